@@ -0,0 +1,203 @@
+package com.demdex.idgen;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A LeaseSizingPolicy that sizes each category's leases so that a client takes a new lease roughly once per
+ * target refill interval.
+ *
+ * The policy tracks, per category, the rate at which leased ID's are consumed and the number of version conflicts
+ * encountered while taking leases.  The consumption rate is measured over wall-clock windows of at least
+ * 1/RATE_WINDOWS_PER_REFILL_INTERVAL of the target refill interval:  the ID's leased during a window, divided by the
+ * window's length.  Leases taken by concurrent threads thus add up within a window, rather than each being measured
+ * against the (possibly near-zero) time since some other thread's lease.  The next lease size is the smoothed consumption rate multiplied by the target refill interval, grown further
+ * when version conflicts are frequent (since larger leases mean fewer competing writes), and clamped to
+ * [<code>minLeaseSize</code>, <code>maxLeaseSize</code>].  The maximum lease size bounds the number of ID's that can be
+ * lost if a client dies while holding a lease.
+ *
+ * To avoid oscillation, a lease may grow by at most a factor of MAX_GROWTH_FACTOR, and shrink by at most a factor of
+ * MAX_SHRINK_FACTOR, from one lease to the next.
+ *
+ * Note that an AdaptiveLeaseSizingPolicy is threadsafe.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class AdaptiveLeaseSizingPolicy implements LeaseSizingPolicy {
+
+	public AdaptiveLeaseSizingPolicy() {
+		this(IDGeneratorConstants.DEFAULT_TARGET_REFILL_INTERVAL_MILLIS);
+	}
+
+	public AdaptiveLeaseSizingPolicy(long targetRefillIntervalMillis) {
+		this(
+			targetRefillIntervalMillis,
+			IDGeneratorConstants.DEFAULT_MIN_LEASE_SIZE,
+			IDGeneratorConstants.DEFAULT_MAX_LEASE_SIZE,
+			IDGeneratorConstants.DEFAULT_ID_SET_SIZE
+		);
+	}
+
+	public AdaptiveLeaseSizingPolicy(long targetRefillIntervalMillis, long minLeaseSize, long maxLeaseSize, long initialLeaseSize) {
+		if (targetRefillIntervalMillis <= 0) {
+			throw new IllegalArgumentException("Invalid target refill interval: "+targetRefillIntervalMillis);
+		}
+		if (minLeaseSize <= 0 || maxLeaseSize < minLeaseSize) {
+			throw new IllegalArgumentException("Invalid min/max lease sizes: "+minLeaseSize+", "+maxLeaseSize);
+		}
+		if (initialLeaseSize < minLeaseSize || initialLeaseSize > maxLeaseSize) {
+			throw new IllegalArgumentException(
+				"Invalid initial lease size: "+initialLeaseSize+"; must be between "+minLeaseSize+" and "+maxLeaseSize
+			);
+		}
+		this.targetRefillIntervalMillis = targetRefillIntervalMillis;
+		this.minLeaseSize = minLeaseSize;
+		this.maxLeaseSize = maxLeaseSize;
+		this.initialLeaseSize = initialLeaseSize;
+		rateWindowMillis = Math.max(1, targetRefillIntervalMillis / RATE_WINDOWS_PER_REFILL_INTERVAL);
+		logger = LoggerFactory.getLogger(AdaptiveLeaseSizingPolicy.class);
+	}
+
+	public long getLeaseSize(IDCategory category) {
+		CategoryStats stats = getStats(category);
+		synchronized(stats) {
+			return stats.nextLeaseSize;
+		}
+	}
+
+	public void leaseTaken(IDCategory category, long leaseSize, int versionConflictCount) {
+		long now = currentTimeMillis();
+		CategoryStats stats = getStats(category);
+		synchronized(stats) {
+			stats.conflictRate = smooth(stats.conflictRate, versionConflictCount, stats.leaseCount == 0);
+			if (stats.leaseCount == 0) {
+				stats.windowStartTime = now;
+			}
+			else if (now - stats.windowStartTime >= rateWindowMillis) {
+				// the ID's leased during the window were consumed over its length; this lease opens the next window
+				double observedRate = (double)stats.windowLeasedIDs / (now - stats.windowStartTime);
+				stats.consumptionRate = smooth(stats.consumptionRate, observedRate, stats.windowCount == 0);
+				stats.windowCount++;
+				stats.windowStartTime = now;
+				stats.windowLeasedIDs = 0;
+			}
+			stats.windowLeasedIDs += leaseSize;
+			stats.leaseCount++;
+			if (stats.windowCount > 0) {
+				stats.nextLeaseSize = computeLeaseSize(stats);
+			}
+			if (logger.isDebugEnabled()) {
+				logger.debug(
+					"Next lease size for category {} is {}",
+					category,
+					Long.toString(stats.nextLeaseSize)
+				);
+			}
+		}
+	}
+
+	public long getTargetRefillIntervalMillis() {
+		return targetRefillIntervalMillis;
+	}
+
+	public long getMinLeaseSize() {
+		return minLeaseSize;
+	}
+
+	public long getMaxLeaseSize() {
+		return maxLeaseSize;
+	}
+
+	public String toString() {
+		return
+			AdaptiveLeaseSizingPolicy.class.getSimpleName() +
+				": target refill interval: " + targetRefillIntervalMillis + "ms" +
+				", lease size range: " + minLeaseSize + IDGeneratorConstants.RANGE_VALUES_SEPARATOR + maxLeaseSize;
+	}
+
+
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+
+	private long computeLeaseSize(CategoryStats stats) {
+		double targetSize = stats.consumptionRate * targetRefillIntervalMillis;
+		targetSize *= 1 + stats.conflictRate * CONFLICT_GROWTH_FACTOR;
+		double previousSize = stats.nextLeaseSize;
+		targetSize = Math.min(targetSize, previousSize * MAX_GROWTH_FACTOR);
+		targetSize = Math.max(targetSize, previousSize / MAX_SHRINK_FACTOR);
+		long leaseSize = Math.round(targetSize);
+		return Math.max(minLeaseSize, Math.min(maxLeaseSize, leaseSize));
+	}
+
+	private CategoryStats getStats(IDCategory category) {
+		String categoryName = category.getName();
+		CategoryStats stats = categoryStats.get(categoryName);
+		if (stats == null) {
+			CategoryStats newStats = new CategoryStats(initialLeaseSize);
+			stats = categoryStats.putIfAbsent(categoryName, newStats);
+			if (stats == null) {
+				stats = newStats;
+			}
+		}
+		return stats;
+	}
+
+	private static double smooth(double average, double sample, boolean firstSample) {
+		if (firstSample) {
+			return sample;
+		}
+		return SMOOTHING_FACTOR * sample + (1 - SMOOTHING_FACTOR) * average;
+	}
+
+
+	private static class CategoryStats {
+
+		public CategoryStats(long initialLeaseSize) {
+			nextLeaseSize = initialLeaseSize;
+		}
+
+		private long nextLeaseSize;
+		private long windowStartTime;
+		private long windowLeasedIDs;
+		private long windowCount;
+		private long leaseCount;
+		private double consumptionRate;
+		private double conflictRate;
+	}
+
+	public static final double MAX_GROWTH_FACTOR = 8;
+	public static final double MAX_SHRINK_FACTOR = 2;
+	public static final long RATE_WINDOWS_PER_REFILL_INTERVAL = 100;
+	private static final double SMOOTHING_FACTOR = 0.5;
+	private static final double CONFLICT_GROWTH_FACTOR = 1;
+	private long targetRefillIntervalMillis;
+	private long minLeaseSize;
+	private long maxLeaseSize;
+	private long initialLeaseSize;
+	private long rateWindowMillis;
+	private ConcurrentMap<String,CategoryStats> categoryStats = new ConcurrentHashMap<String,CategoryStats>();
+	private Logger logger;
+}
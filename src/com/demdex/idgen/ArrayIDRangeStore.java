@@ -0,0 +1,224 @@
+package com.demdex.idgen;
+
+import java.util.NoSuchElementException;
+
+/**
+ * An IDRangeStore that holds its ranges in a pair of sorted primitive arrays of start and end ID's.
+ *
+ * At 16 bytes per range (compared to well over 100 for a skip list of IDRange objects), and with ranges laid out
+ * contiguously in memory, this is a much more compact representation of large, fragmented sets, and much faster to
+ * iterate over.  Ranges are located by binary search, and taking ID's from the front of the set just advances the index
+ * of the first range, so the arrays only need to be shifted when ranges are inserted into (or merged in) the middle.
+ *
+ * All access is synchronized, so a set using this store is not suitable for being taken from by many threads at once.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+class ArrayIDRangeStore extends IDRangeStore {
+
+	public ArrayIDRangeStore() {
+		startIDs = new long[INITIAL_CAPACITY];
+		endIDs = new long[INITIAL_CAPACITY];
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getRangeCount() {
+		return tail - head;
+	}
+
+	public synchronized long getLargestRangeSize() {
+		if (largestRangeSize == UNKNOWN) {
+			largestRangeSize = 0;
+			for (int i = head; i < tail; i++) {
+				largestRangeSize = Math.max(largestRangeSize, endIDs[i] - startIDs[i] + 1);
+			}
+		}
+		return largestRangeSize;
+	}
+
+	public synchronized boolean hasMoreIDs() {
+		return head < tail;
+	}
+
+	public synchronized long peekNextID() {
+		validateNotEmpty();
+		return startIDs[head];
+	}
+
+	public synchronized long takeID() {
+		validateNotEmpty();
+		long takenID = startIDs[head];
+		headRangeShrinking();
+		size--;
+		if (takenID == endIDs[head]) {
+			head++;
+		}
+		else {
+			startIDs[head]++;
+		}
+		return takenID;
+	}
+
+	public synchronized long takeIDs(long idSetSize, IDSet.RangeVisitor takenRanges) {
+		long numTaken = 0;
+		while (numTaken < idSetSize && head < tail) {
+			long numToBeTaken = idSetSize - numTaken;
+			long startID = startIDs[head];
+			headRangeShrinking();
+			long sizeMinusOne = endIDs[head] - startID;
+			if (sizeMinusOne >= 0 && sizeMinusOne < numToBeTaken) {
+				takenRanges.visitRange(startID, endIDs[head]);
+				numTaken += sizeMinusOne + 1;
+				head++;
+			}
+			else {
+				takenRanges.visitRange(startID, startID + numToBeTaken - 1);
+				numTaken += numToBeTaken;
+				startIDs[head] = startID + numToBeTaken;
+			}
+		}
+		size -= numTaken;
+		return numTaken;
+	}
+
+	public synchronized void validateNoOverlap(long startID, long endID, IDSet idSet) {
+		// the first range ending at or after the new range's start is the only one that can overlap it
+		int i = findFirstEndingAtOrAfter(startID);
+		if (i < tail && startIDs[i] <= endID) {
+			throw new IDSet.OverlappingRangeException(startID, endID, startIDs[i], endIDs[i], idSet);
+		}
+	}
+
+	public synchronized void addRange(long startID, long endID) {
+		size += endID - startID + 1;
+		int i = findFirstEndingAtOrAfter(startID);
+		boolean mergesPrevious = i > head && endIDs[i - 1] == startID - 1;
+		boolean mergesNext = i < tail && startIDs[i] - 1 == endID;
+		long mergedRangeSize;
+		if (mergesPrevious && mergesNext) {
+			endIDs[i - 1] = endIDs[i];
+			remove(i);
+			mergedRangeSize = endIDs[i - 1] - startIDs[i - 1] + 1;
+		}
+		else if (mergesPrevious) {
+			endIDs[i - 1] = endID;
+			mergedRangeSize = endID - startIDs[i - 1] + 1;
+		}
+		else if (mergesNext) {
+			startIDs[i] = startID;
+			mergedRangeSize = endIDs[i] - startID + 1;
+		}
+		else {
+			insert(i, startID, endID);
+			mergedRangeSize = endID - startID + 1;
+		}
+		if (largestRangeSize != UNKNOWN) {
+			largestRangeSize = Math.max(largestRangeSize, mergedRangeSize);
+		}
+	}
+
+	public synchronized void visitRanges(IDSet.RangeVisitor visitor) {
+		for (int i = head; i < tail; i++) {
+			visitor.visitRange(startIDs[i], endIDs[i]);
+		}
+	}
+
+	public synchronized void drainRanges(IDSet.RangeVisitor visitor) {
+		visitRanges(visitor);
+		head = 0;
+		tail = 0;
+		size = 0;
+		largestRangeSize = 0;
+	}
+
+
+	private int findFirstEndingAtOrAfter(long id) {
+		int low = head;
+		int high = tail;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (endIDs[mid] < id) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private void insert(int i, long startID, long endID) {
+		if (tail == startIDs.length) {
+			// reclaim the space freed up by taken ranges before growing the arrays
+			int size = tail - head;
+			int newCapacity = size + 1 > startIDs.length / 2 ? startIDs.length * 2 : startIDs.length;
+			long[] newStartIDs = newCapacity != startIDs.length ? new long[newCapacity] : startIDs;
+			long[] newEndIDs = newCapacity != endIDs.length ? new long[newCapacity] : endIDs;
+			System.arraycopy(startIDs, head, newStartIDs, 0, size);
+			System.arraycopy(endIDs, head, newEndIDs, 0, size);
+			startIDs = newStartIDs;
+			endIDs = newEndIDs;
+			i -= head;
+			tail = size;
+			head = 0;
+		}
+		System.arraycopy(startIDs, i, startIDs, i + 1, tail - i);
+		System.arraycopy(endIDs, i, endIDs, i + 1, tail - i);
+		startIDs[i] = startID;
+		endIDs[i] = endID;
+		tail++;
+	}
+
+	private void remove(int i) {
+		System.arraycopy(startIDs, i + 1, startIDs, i, tail - i - 1);
+		System.arraycopy(endIDs, i + 1, endIDs, i, tail - i - 1);
+		tail--;
+	}
+
+	/**
+	 * Called before taking ID's from the first range; if it was the largest range, the largest range size needs to be
+	 * recomputed the next time it's requested.
+	 */
+	private void headRangeShrinking() {
+		if (endIDs[head] - startIDs[head] + 1 == largestRangeSize) {
+			largestRangeSize = UNKNOWN;
+		}
+	}
+
+	private void validateNotEmpty() {
+		if (head == tail) {
+			throw new NoSuchElementException("No more id's remaining in set");
+		}
+	}
+
+	private static final int INITIAL_CAPACITY = 4;
+	private static final long UNKNOWN = -1;
+	private long[] startIDs;
+	private long[] endIDs;
+	// the set's ranges are at indexes [head, tail)
+	private int head;
+	private int tail;
+	private long size = 0;
+	private long largestRangeSize = 0;
+}
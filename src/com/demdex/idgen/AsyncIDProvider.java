@@ -0,0 +1,46 @@
+package com.demdex.idgen;
+
+/**
+ * An IDProvider that can read and write category data asynchronously, so that requests for many categories can be
+ * pipelined instead of waiting for each one in turn.  IDGenerator's asynchronous methods (e.g., takeIDsAsync()) use one
+ * if it's available.
+ *
+ * Callbacks may be invoked on the provider's own threads (or, for requests that complete immediately, on the calling
+ * thread), so they must not block.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public interface AsyncIDProvider extends IDProvider {
+
+	public void getDataAsync(IDCategory category, Callback<RawIDSetData> callback);
+
+	/**
+	 * Like setData(), but asynchronous.  A write that fails due to a version conflict is reported to the callback as an
+	 * IDProviderVersionException.
+	 */
+	public void setDataAsync(IDCategory category, RawIDSetData idContents, Callback<Void> callback);
+
+
+	public interface Callback<T> {
+		public void completed(T result);
+		public void failed(IDGeneratorException e);
+	}
+}
@@ -0,0 +1,259 @@
+package com.demdex.idgen;
+
+import java.util.NoSuchElementException;
+
+import com.demdex.util.io.ByteArrayBuilder;
+
+/**
+ * A compact, versioned binary id set format.
+ *
+ * The data starts with a header consisting of the MAGIC bytes followed by a single format version byte.  (The first
+ * magic byte is 0, which can never start text format data, so the two formats can be told apart.)  The header is followed
+ * by one entry per range, in ascending order, each consisting of two variable-length integers:
+ * <ul>
+ * <li>the gap between the range's start ID and the end of the previous range (or 0, for the first range), zigzag-encoded
+ * so that negative ID's are supported
+ * <li>the range's size, minus 1
+ * </ul>
+ * Variable-length integers are written 7 bits at a time, least significant group first, with the high bit of each byte set
+ * if more bytes follow.  Since both values are usually small, a typical range takes 2-6 bytes, compared to ~40 in the
+ * text format.
+ *
+ * Data is decoded directly from the raw bytes, and encoded into a per-thread buffer that is reused from one call to the
+ * next, so apart from the ranges themselves and the final byte array, no objects are created.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class BinaryIDSetCodec implements IDSetCodec {
+
+	public String getName() {
+		return NAME;
+	}
+
+	public boolean canDecode(byte[] data) {
+		return hasMagic(data);
+	}
+
+	public IDSet decode(IDCategory category, byte[] data) throws IDGeneratorException {
+		validateHeader(category, data);
+		IDSet idSet = new IDSet(category, IDSet.Storage.ARRAY);
+		try {
+			int pos = HEADER_LENGTH;
+			long nextStartID = 0;
+			while (pos < data.length) {
+				long gap = readVarLong(data, pos);
+				pos = skipVarLong(data, pos);
+				long sizeMinusOne = readVarLong(data, pos);
+				pos = skipVarLong(data, pos);
+				long startID = nextStartID + zigzagDecode(gap);
+				long endID = startID + sizeMinusOne;
+				idSet.addRange(startID, endID);
+				nextStartID = endID + 1;
+			}
+		}
+		catch (RuntimeException e) {
+			throw new IDGeneratorException("Error deserializing binary data for category "+category.toString(), e);
+		}
+		return idSet;
+	}
+
+	/**
+	 * Takes up to idSetSize ID's from the front of the encoded set, and returns the encoded remainder of the set.  Only
+	 * the ranges that are (wholly or partly) consumed are decoded;  the entries following them are copied verbatim, so the
+	 * cost of a take is proportional to the number of ranges taken, rather than to the size of the set.
+	 *
+	 * The taken ID's are added to takenIDs.
+	 */
+	byte[] takeHead(IDCategory category, byte[] data, long idSetSize, IDSet takenIDs) throws IDGeneratorException {
+		validateHeader(category, data);
+		if (data.length == HEADER_LENGTH) {
+			throw new NoSuchElementException("Can't take id's; IDSet is empty");
+		}
+		Encoder encoder = encoders.get();
+		try {
+			int pos = HEADER_LENGTH;
+			long nextStartID = 0;
+			long numToBeTaken = idSetSize;
+			while (pos < data.length) {
+				long startID = nextStartID + zigzagDecode(readVarLong(data, pos));
+				pos = skipVarLong(data, pos);
+				long sizeMinusOne = readVarLong(data, pos);
+				pos = skipVarLong(data, pos);
+				long endID = startID + sizeMinusOne;
+				// (a negative size means the range holds more than Long.MAX_VALUE ID's)
+				if (sizeMinusOne >= 0 && sizeMinusOne < numToBeTaken - 1) {
+					takenIDs.addRange(startID, endID);
+					numToBeTaken -= sizeMinusOne + 1;
+					nextStartID = endID + 1;
+					continue;
+				}
+
+				long takenEndID = startID + numToBeTaken - 1;
+				takenIDs.addRange(startID, takenEndID);
+				if (takenEndID < endID) {
+					return encoder.encodeHead(takenEndID + 1, endID, data, pos);
+				}
+				if (pos == data.length) {
+					return encoder.encodeHead(data, pos);
+				}
+				// the next range's gap is relative to the range just taken, so it has to be re-encoded
+				long nextRangeStartID = endID + 1 + zigzagDecode(readVarLong(data, pos));
+				pos = skipVarLong(data, pos);
+				long nextRangeSizeMinusOne = readVarLong(data, pos);
+				pos = skipVarLong(data, pos);
+				return encoder.encodeHead(nextRangeStartID, nextRangeStartID + nextRangeSizeMinusOne, data, pos);
+			}
+			return encoder.encodeHead(data, pos);
+		}
+		catch (RuntimeException e) {
+			if (e instanceof NoSuchElementException) {
+				throw e;
+			}
+			throw new IDGeneratorException("Error deserializing binary data for category "+category.toString(), e);
+		}
+		finally {
+			if (encoder.out.capacity() > IDGeneratorConstants.MAX_RETAINED_BUFFER_SIZE) {
+				encoders.remove();
+			}
+		}
+	}
+
+	public byte[] encode(IDSet idSet) {
+		Encoder encoder = encoders.get();
+		try {
+			return encoder.encode(idSet);
+		}
+		finally {
+			if (encoder.out.capacity() > IDGeneratorConstants.MAX_RETAINED_BUFFER_SIZE) {
+				encoders.remove();
+			}
+		}
+	}
+
+	public String toString() {
+		return getName();
+	}
+
+
+	private static boolean hasMagic(byte[] data) {
+		if (data.length < HEADER_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (data[i] != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void validateHeader(IDCategory category, byte[] data) throws IDGeneratorException {
+		if (!hasMagic(data)) {
+			throw new IDGeneratorException("Data for category "+category.toString()+" is not in binary id set format");
+		}
+		int formatVersion = data[MAGIC.length];
+		if (formatVersion != FORMAT_VERSION) {
+			throw new IDGeneratorException(
+				"Unsupported binary id set format version "+formatVersion+" in data for category "+category.toString()
+			);
+		}
+	}
+
+	private static long readVarLong(byte[] data, int pos) {
+		long value = 0;
+		for (int shift = 0; shift < Long.SIZE; shift += VARINT_PAYLOAD_BITS) {
+			byte b = data[pos++];
+			value |= (b & VARINT_PAYLOAD_MASK) << shift;
+			if ((b & VARINT_CONTINUATION_BIT) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed variable-length integer");
+	}
+
+	private static int skipVarLong(byte[] data, int pos) {
+		while ((data[pos] & VARINT_CONTINUATION_BIT) != 0) {
+			pos++;
+		}
+		return pos + 1;
+	}
+
+	private static long zigzagEncode(long value) {
+		return (value << 1) ^ (value >> (Long.SIZE - 1));
+	}
+
+	private static long zigzagDecode(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+
+	private static class Encoder implements IDSet.RangeVisitor {
+
+		public byte[] encode(IDSet idSet) {
+			out.reset();
+			out.append(MAGIC);
+			out.append(FORMAT_VERSION);
+			nextStartID = 0;
+			idSet.visitRanges(this);
+			return out.toByteArray();
+		}
+
+		public byte[] encodeHead(byte[] tail, int tailPos) {
+			out.reset();
+			out.append(MAGIC);
+			out.append(FORMAT_VERSION);
+			out.append(tail, tailPos, tail.length - tailPos);
+			return out.toByteArray();
+		}
+
+		public byte[] encodeHead(long firstStartID, long firstEndID, byte[] tail, int tailPos) {
+			out.reset();
+			out.append(MAGIC);
+			out.append(FORMAT_VERSION);
+			nextStartID = 0;
+			visitRange(firstStartID, firstEndID);
+			out.append(tail, tailPos, tail.length - tailPos);
+			return out.toByteArray();
+		}
+
+		public void visitRange(long startID, long endID) {
+			out.appendVarLong(zigzagEncode(startID - nextStartID));
+			out.appendVarLong(endID - startID);
+			nextStartID = endID + 1;
+		}
+
+		private ByteArrayBuilder out = new ByteArrayBuilder(IDGeneratorConstants.DEFAULT_BUFFER_SIZE);
+		private long nextStartID;
+	}
+
+	public static final String NAME = "binary";
+	public static final byte FORMAT_VERSION = 1;
+	private static final byte[] MAGIC = { 0, 'I', 'D', 'S' };
+	private static final int HEADER_LENGTH = MAGIC.length + 1;
+	private static final int VARINT_PAYLOAD_BITS = 7;
+	private static final long VARINT_PAYLOAD_MASK = 0x7F;
+	private static final int VARINT_CONTINUATION_BIT = 0x80;
+	private static final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+		protected Encoder initialValue() {
+			return new Encoder();
+		}
+	};
+}
@@ -0,0 +1,54 @@
+package com.demdex.idgen;
+
+/**
+ * An IDProvider that can create ephemeral nodes:  nodes that only exist for as long as the client that created them is
+ * connected.  Time-based ID generators (see TimeBasedIDGenerator) require one, to lease their worker ID's.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public interface EphemeralNodeIDProvider extends NodeCreatingIDProvider {
+
+	/**
+	 * Creates an ephemeral node for the category, with the given data.  Returns false if the node already exists.
+	 * Otherwise, the listener is notified once the node is lost:  i.e., once it's deleted, or once the client it belongs
+	 * to has gone away (e.g., because the provider's session has expired).  A node is not lost while the provider is
+	 * merely disconnected, but it may be lost without the listener hearing of it until the provider has reconnected;  see
+	 * isConnected().
+	 */
+	public boolean createEphemeralData(IDCategory category, byte[] data, NodeLossListener listener)
+		throws IDGeneratorException;
+
+	/**
+	 * Deletes the category's node, if it exists.
+	 */
+	public void deleteData(IDCategory category) throws IDGeneratorException;
+
+	/**
+	 * Returns whether the provider is currently connected, and so whether the nodes whose loss hasn't been reported can
+	 * be relied on to still exist.
+	 */
+	public boolean isConnected();
+
+
+	public interface NodeLossListener {
+		public void nodeLost(IDCategory category);
+	}
+}
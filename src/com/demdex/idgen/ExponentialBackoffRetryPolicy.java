@@ -0,0 +1,114 @@
+package com.demdex.idgen;
+
+import java.util.Random;
+
+/**
+ * A RetryPolicy that backs off exponentially between retries, using "decorrelated jitter":  each delay is chosen at random
+ * between the base delay and three times the previous delay, capped at the maximum delay.  Randomizing the delays keeps
+ * clients that conflicted with each other from retrying in lock-step, and so conflicting again.
+ *
+ * An update is retried until either the maximum number of tries has been made, or the total time budget for the update
+ * has been used up (the final delay is shortened so as not to exceed the budget).
+ *
+ * Note that an ExponentialBackoffRetryPolicy is threadsafe.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+	public ExponentialBackoffRetryPolicy() {
+		this(IDGeneratorConstants.DEFAULT_MAX_TRY_COUNT);
+	}
+
+	public ExponentialBackoffRetryPolicy(int maxTryCount) {
+		this(
+			maxTryCount,
+			IDGeneratorConstants.DEFAULT_BASE_RETRY_DELAY_MILLIS,
+			IDGeneratorConstants.DEFAULT_MAX_RETRY_DELAY_MILLIS,
+			IDGeneratorConstants.DEFAULT_MAX_RETRY_ELAPSED_MILLIS
+		);
+	}
+
+	public ExponentialBackoffRetryPolicy(int maxTryCount, long baseDelayMillis, long maxDelayMillis, long maxElapsedMillis) {
+		if (maxTryCount <= 0) {
+			throw new IllegalArgumentException("Invalid try count; try count must be set to at least 1 try");
+		}
+		if (baseDelayMillis <= 0 || maxDelayMillis < baseDelayMillis) {
+			throw new IllegalArgumentException("Invalid base/max retry delays: "+baseDelayMillis+", "+maxDelayMillis);
+		}
+		if (maxElapsedMillis <= 0) {
+			throw new IllegalArgumentException("Invalid retry time budget: "+maxElapsedMillis);
+		}
+		this.maxTryCount = maxTryCount;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.maxElapsedMillis = maxElapsedMillis;
+	}
+
+	public int getMaxTryCount() {
+		return maxTryCount;
+	}
+
+	public long getBaseDelayMillis() {
+		return baseDelayMillis;
+	}
+
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	public long getMaxElapsedMillis() {
+		return maxElapsedMillis;
+	}
+
+	public long getRetryDelayMillis(int failedTryCount, long elapsedMillis, long previousDelayMillis) {
+		if (failedTryCount >= maxTryCount) {
+			return STOP_RETRYING;
+		}
+		long remainingMillis = maxElapsedMillis - elapsedMillis;
+		if (remainingMillis <= 0) {
+			return STOP_RETRYING;
+		}
+		long upperBoundMillis = Math.min(maxDelayMillis, Math.max(baseDelayMillis, previousDelayMillis * JITTER_MULTIPLIER));
+		long delayMillis = baseDelayMillis + nextLong(upperBoundMillis - baseDelayMillis + 1);
+		return Math.min(delayMillis, remainingMillis);
+	}
+
+	public String toString() {
+		return
+			ExponentialBackoffRetryPolicy.class.getSimpleName() +
+				": " + maxTryCount + " tries" +
+				", delay range: " + baseDelayMillis + IDGeneratorConstants.RANGE_VALUES_SEPARATOR + maxDelayMillis + "ms" +
+				", time budget: " + maxElapsedMillis + "ms";
+	}
+
+
+	private long nextLong(long bound) {
+		return (long)(random.nextDouble() * bound);
+	}
+
+	private static final long JITTER_MULTIPLIER = 3;
+	private int maxTryCount;
+	private long baseDelayMillis;
+	private long maxDelayMillis;
+	private long maxElapsedMillis;
+	private Random random = new Random();
+}
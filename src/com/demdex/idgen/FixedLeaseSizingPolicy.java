@@ -0,0 +1,51 @@
+package com.demdex.idgen;
+
+/**
+ * A LeaseSizingPolicy that always leases the same number of ID's, regardless of category or workload.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class FixedLeaseSizingPolicy implements LeaseSizingPolicy {
+
+	public FixedLeaseSizingPolicy() {
+		this(IDGeneratorConstants.DEFAULT_ID_SET_SIZE);
+	}
+
+	public FixedLeaseSizingPolicy(long leaseSize) {
+		if (leaseSize <= 0) {
+			throw new IllegalArgumentException("Invalid lease size: "+leaseSize+"; lease size must be at least 1 ID");
+		}
+		this.leaseSize = leaseSize;
+	}
+
+	public long getLeaseSize(IDCategory category) {
+		return leaseSize;
+	}
+
+	public void leaseTaken(IDCategory category, long leaseSize, int versionConflictCount) {
+	}
+
+	public String toString() {
+		return FixedLeaseSizingPolicy.class.getSimpleName()+": "+leaseSize;
+	}
+
+	private long leaseSize;
+}
@@ -0,0 +1,200 @@
+package com.demdex.idgen;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An IDCategory for ID spaces that are mostly allocated "from the top":  the untouched tail of the ID space is stored
+ * as a single 8-byte high-water mark (the next ID that has never been handed out), and ranges that are pushed back are
+ * stored in a separate free list node.
+ *
+ * Takes advance the high-water mark, which is a tiny write no matter how fragmented the free list is, and only fall
+ * back to the free list once the tail (up to <code>maxID</code>) has been exhausted.  If <code>reuseFirst</code> is
+ * set, takes are served from the free list first instead, and only advance the high-water mark for the remainder.
+ * Pushes only ever write the free list, so push traffic never conflicts with take traffic on the high-water mark.
+ *
+ * Pushed ID's must have been taken from the category, i.e., must lie below the high-water mark;  every push reads the
+ * high-water mark to check this, and rejects ID's that were never taken with an IllegalArgumentException.
+ *
+ * The nodes are named <code>name/high-water-mark</code> and <code>name/free-list</code>.  An existing category is
+ * converted to this layout with IDGenerator.separateHighWaterMark(), which requires a NodeCreatingIDProvider.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class HighWaterMarkIDCategory extends IDCategory {
+
+	public HighWaterMarkIDCategory(String name, long maxID) {
+		this(name, maxID, false);
+	}
+
+	public HighWaterMarkIDCategory(String name, long maxID, boolean reuseFirst) {
+		super(name);
+		if (maxID == Long.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid max ID: "+maxID+"; the high-water mark must be able to pass it");
+		}
+		this.maxID = maxID;
+		this.reuseFirst = reuseFirst;
+		highWaterMarkNode =
+			new IDCategory(name + NODE_PATH_SEPARATOR + IDGeneratorConstants.HIGH_WATER_MARK_NODE_NAME, this);
+		freeListNode = new IDCategory(name + NODE_PATH_SEPARATOR + IDGeneratorConstants.FREE_LIST_NODE_NAME, this);
+		logger = LoggerFactory.getLogger(HighWaterMarkIDCategory.class);
+	}
+
+	public long getMaxID() {
+		return maxID;
+	}
+
+	public boolean isReuseFirst() {
+		return reuseFirst;
+	}
+
+	public IDCategory getHighWaterMarkNode() {
+		return highWaterMarkNode;
+	}
+
+	public IDCategory getFreeListNode() {
+		return freeListNode;
+	}
+
+
+	IDSet takeIDs(IDGenerator idGenerator, long idSetSize, RetryPolicy retryPolicy) throws IDGeneratorException {
+		IDSet takenIDs = new IDSet(this);
+		if (reuseFirst) {
+			takeFreeIDs(idGenerator, idSetSize, retryPolicy, takenIDs);
+			takeCounterIDs(idGenerator, idSetSize - takenIDs.getSize(), retryPolicy, takenIDs);
+		}
+		else {
+			takeCounterIDs(idGenerator, idSetSize, retryPolicy, takenIDs);
+			takeFreeIDs(idGenerator, idSetSize - takenIDs.getSize(), retryPolicy, takenIDs);
+		}
+		if (!takenIDs.hasMoreIDs() && idSetSize > 0) {
+			throw new NoSuchElementException("Can't take id's; category "+getName()+" is exhausted");
+		}
+		return takenIDs;
+	}
+
+	void pushIDs(IDGenerator idGenerator, IDSet idSet, RetryPolicy retryPolicy) throws IDGeneratorException {
+		if (!equals(idSet.getCategory())) {
+			throw new IllegalArgumentException(
+				"Can't push id set: "+idSet.toString()+" to category: "+getName()+"; categories do not match"
+			);
+		}
+		// ID's at or above the high-water mark were never taken, and pushing them to the free list would hand them out twice
+		long highWaterMark = idGenerator.peekHighWaterMark(this);
+		Iterator<IDRange> pushedRanges = idSet.peekRanges();
+		while (pushedRanges.hasNext()) {
+			IDRange pushedRange = pushedRanges.next();
+			if (pushedRange.getEndID() >= highWaterMark) {
+				throw new IllegalArgumentException(
+					"Can't push id set: "+idSet.toString()+" to category: "+getName()+
+						"; range "+pushedRange.toString()+" was never taken (high-water mark is "+highWaterMark+")"
+				);
+			}
+		}
+		idGenerator.pushNodeIDs(freeListNode, idSet.copy(freeListNode), retryPolicy);
+		if (idSet.hasMoreIDs()) {
+			idSet.takeIDs(idSet.getSize());
+		}
+	}
+
+	IDSet peekIDs(IDGenerator idGenerator) throws IDGeneratorException {
+		IDSet allIDs = idGenerator.peekNodeIDs(freeListNode).copy(this);
+		long highWaterMark = idGenerator.peekHighWaterMark(this);
+		if (highWaterMark <= maxID) {
+			allIDs.addRange(highWaterMark, maxID);
+		}
+		return allIDs;
+	}
+
+
+	static byte[] encodeHighWaterMark(long highWaterMark) {
+		return ByteBuffer.allocate(HIGH_WATER_MARK_SIZE).putLong(highWaterMark).array();
+	}
+
+	static long decodeHighWaterMark(byte[] data) throws IDGeneratorException {
+		if (data == null || data.length != HIGH_WATER_MARK_SIZE) {
+			throw new IDGeneratorException(
+				"Invalid high-water mark data; expected "+HIGH_WATER_MARK_SIZE+" bytes, found "+(data != null ? data.length : 0)
+			);
+		}
+		return ByteBuffer.wrap(data).getLong();
+	}
+
+
+	private void takeCounterIDs(IDGenerator idGenerator, long idSetSize, RetryPolicy retryPolicy, IDSet takenIDs)
+		throws IDGeneratorException
+	{
+		if (idSetSize <= 0) {
+			return;
+		}
+		try {
+			IDRange counterIDs = idGenerator.takeCounterIDs(this, idSetSize, retryPolicy);
+			takenIDs.addRange(counterIDs.getStartID(), counterIDs.getEndID());
+		}
+		catch (NoSuchElementException e) {
+			// tail exhausted
+		}
+		catch (IDGeneratorException e) {
+			if (!takenIDs.hasMoreIDs()) {
+				throw e;
+			}
+			// the ID's already taken from the free list are no longer in the category, so return them rather than fail
+			logger.warn("Error advancing high-water mark of category "+getName()+"; returning partial set", e);
+		}
+	}
+
+	private void takeFreeIDs(IDGenerator idGenerator, long idSetSize, RetryPolicy retryPolicy, IDSet takenIDs)
+		throws IDGeneratorException
+	{
+		if (idSetSize <= 0) {
+			return;
+		}
+		IDSet freeIDs;
+		try {
+			freeIDs = idGenerator.takeNodeIDs(freeListNode, idSetSize, retryPolicy);
+		}
+		catch (NoSuchElementException e) {
+			// free list empty
+			return;
+		}
+		catch (IDGeneratorException e) {
+			if (!takenIDs.hasMoreIDs()) {
+				throw e;
+			}
+			// the ID's already taken from the high-water mark are no longer in the category, so return them rather than fail
+			logger.warn("Error taking ID's from free list of category "+getName()+"; returning partial set", e);
+			return;
+		}
+		takenIDs.pushIDs(freeIDs.copy(this));
+	}
+
+	private static final char NODE_PATH_SEPARATOR = '/';
+	private static final int HIGH_WATER_MARK_SIZE = 8;
+	private long maxID;
+	private boolean reuseFirst;
+	private IDCategory highWaterMarkNode;
+	private IDCategory freeListNode;
+	private Logger logger;
+}
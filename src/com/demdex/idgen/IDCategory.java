@@ -33,7 +33,12 @@ public class IDCategory {
 	public IDCategory(String name) {
 		// TODO - validate that category string is a valid zookeeper node name format
 		// (i.e., /foo/bar...)
+		this(name, null);
+	}
+
+	IDCategory(String name, IDCategory logicalCategory) {
 		this.name = name;
+		this.logicalCategory = logicalCategory != null ? logicalCategory : this;
 	}
 
 	public String getName() {
@@ -44,5 +49,39 @@ public class IDCategory {
 		return getName();
 	}
 
+	public boolean equals(Object o) {
+		if (o instanceof IDCategory) {
+			return name.equals(((IDCategory)o).name);
+		}
+		return false;
+	}
+
+	public int hashCode() {
+		return name.hashCode();
+	}
+
+
+	/**
+	 * The category that this category's node belongs to, from the point of view of the generator's clients.  For an
+	 * ordinary category that is the category itself;  for a node that stores part of a larger category (e.g., a shard)
+	 * it is the larger category.
+	 */
+	IDCategory getLogicalCategory() {
+		return logicalCategory;
+	}
+
+	IDSet takeIDs(IDGenerator idGenerator, long idSetSize, RetryPolicy retryPolicy) throws IDGeneratorException {
+		return idGenerator.takeNodeIDs(this, idSetSize, retryPolicy);
+	}
+
+	void pushIDs(IDGenerator idGenerator, IDSet idSet, RetryPolicy retryPolicy) throws IDGeneratorException {
+		idGenerator.pushNodeIDs(this, idSet, retryPolicy);
+	}
+
+	IDSet peekIDs(IDGenerator idGenerator) throws IDGeneratorException {
+		return idGenerator.peekNodeIDs(this);
+	}
+
 	private String name;
+	private IDCategory logicalCategory;
 }
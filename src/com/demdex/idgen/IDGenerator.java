@@ -1,18 +1,18 @@
 package com.demdex.idgen;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.demdex.util.io.CharacterStreamUtils;
+import com.demdex.util.concurrent.DaemonThreadFactory;
 
 /**
  * The IDGenerator utility.
@@ -64,48 +64,57 @@ public class IDGenerator {
 		logger.info("ID provider and generator opened");
 	}
 
+	public IDSet takeIDs(IDCategory category) throws IDGeneratorException {
+		return takeIDsWithRetry(category, leaseSizingPolicy.getLeaseSize(category), NO_RETRY, true/*=sizedByPolicy*/);
+	}
+
 	public IDSet takeIDs(IDCategory category, long idSetSize) throws IDGeneratorException {
-		return takeIDsWithRetry(category, idSetSize, 1);
+		return takeIDsWithRetry(category, idSetSize, NO_RETRY);
+	}
+
+	public IDSet takeIDsWithRetry(IDCategory category) throws IDGeneratorException {
+		return takeIDsWithRetry(
+			category, leaseSizingPolicy.getLeaseSize(category), defaultRetryPolicy, true/*=sizedByPolicy*/
+		);
 	}
 
 	public IDSet takeIDsWithRetry(IDCategory category, long idSetSize) throws IDGeneratorException {
-		return takeIDsWithRetry(category, idSetSize, getDefaultTryCount());
+		return takeIDsWithRetry(category, idSetSize, defaultRetryPolicy);
 	}
 
 	public IDSet takeIDsWithRetry(IDCategory category, long idSetSize, int maxTryCount) throws IDGeneratorException {
-		logger.debug("Taking {} ID's from category {}", idSetSize, category.getName());
-		// TODO - remove duplication
-		int currTryCount = 0;
-		IDSet takenIDs = null;
-		boolean succeeded = false;
-		while (!succeeded ) {
-			currTryCount++;
-			if (maxTryCount > 1) {
-				logger.debug("Attempt # {} of {}", currTryCount, maxTryCount);
-			}
-			RawIDSetData currData = idProvider.getData(category);
-			int currVersion = currData.getVersion();
-			IDSet currIDs = deserialize(category, currData.getData());
-			takenIDs = currIDs.takeIDs(idSetSize);
-			byte[] newData = serialize(currIDs);
+		return takeIDsWithRetry(category, idSetSize, new ExponentialBackoffRetryPolicy(maxTryCount));
+	}
+
+	public IDSet takeIDsWithRetry(IDCategory category, long idSetSize, RetryPolicy retryPolicy) throws IDGeneratorException {
+		return takeIDsWithRetry(category, idSetSize, retryPolicy, false/*=sizedByPolicy*/);
+	}
+
+	/**
+	 * Only takes whose size came from the lease sizing policy are reported to it:  a take of an explicit size says
+	 * nothing about how fast the policy's leases are being consumed.
+	 */
+	private IDSet takeIDsWithRetry(IDCategory category, long idSetSize, RetryPolicy retryPolicy, boolean sizedByPolicy)
+		throws IDGeneratorException
+	{
+		int[] conflictCount = VERSION_CONFLICT_COUNT.get();
+		conflictCount[0] = 0;
+		IDSet takenIDs = category.takeIDs(this, idSetSize, retryPolicy);
+		if (sizedByPolicy) {
+			// reported once per take, however many nodes (pages, shards, counters) it touched
+			leaseSizingPolicy.leaseTaken(category.getLogicalCategory(), takenIDs.getSize(), conflictCount[0]);
+		}
+		LeaseTracker tracker = leaseTracker;
+		if (tracker != null) {
+			tracker.leaseTaken(takenIDs);
 			try {
-				idProvider.setData(category, new RawIDSetData(currVersion, newData));
-				succeeded = true;
+				tracker.returnUnreachableLeases(false);
 			}
-			catch(IDProviderVersionException e) {
-				if (logger.isDebugEnabled()) {
-					logger.debug("Take ID's failed due to versioning error {}", getVersionDetailText(e));
-				}
-				if (currTryCount >= maxTryCount) {
-					if (maxTryCount > 1) {
-						logger.error("Take ID's request has failed after " + maxTryCount + " tries", e);
-					}
-					throw e;
-				}
-				logger.debug("Retrying ...");
+			catch (IDGeneratorException e) {
+				// the ID's stay queued, and are returned with the next batch
+				logger.warn("Error returning unreachable leases", e);
 			}
 		}
-		if (logger.isDebugEnabled()) logger.debug("Successfully took ID's: {}", takenIDs.toString());
 		return takenIDs;
 	}
 
@@ -114,7 +123,7 @@ public class IDGenerator {
 	}
 
 	public void pushIDs(IDCategory category, IDSet idSet) throws IDGeneratorException {
-		pushIDsWithRetry(category, idSet, 1);
+		pushIDsWithRetry(category, idSet, NO_RETRY);
 	}
 
 	public void pushIDsWithRetry(IDSet idSet) throws IDGeneratorException {
@@ -122,44 +131,163 @@ public class IDGenerator {
 	}
 
 	public void pushIDsWithRetry(IDCategory category, IDSet idSet) throws IDGeneratorException {
-		pushIDsWithRetry(category, idSet, getDefaultTryCount());
+		pushIDsWithRetry(category, idSet, defaultRetryPolicy);
 	}
 
 	public void pushIDsWithRetry(IDCategory category, IDSet idSet, int maxTryCount) throws IDGeneratorException {
+		pushIDsWithRetry(category, idSet, new ExponentialBackoffRetryPolicy(maxTryCount));
+	}
+
+	public void pushIDsWithRetry(IDCategory category, IDSet idSet, RetryPolicy retryPolicy) throws IDGeneratorException {
 		IDSet.validateNotReadOnly(idSet);
+		category.pushIDs(this, idSet, retryPolicy);
+	}
 
-		if (logger.isDebugEnabled()) logger.debug("Pushing ID's: {} to category: {}", idSet.toString(), category.toString());
-		// TODO - remove duplication
-		int currTryCount = 0;
-		boolean succeeded = false;
-		while (!succeeded ) {
-			currTryCount++;
-			if (maxTryCount > 1) {
-				logger.debug("Attempt # {} of {}", currTryCount, maxTryCount);
+	/**
+	 * Like takeIDs(), but asynchronous.  If the provider is an AsyncIDProvider, the take is issued without waiting for
+	 * it to complete, so takes (and pushes and peeks) for many categories can be pipelined;  otherwise (or if the
+	 * category is stored across several nodes, e.g. a ShardedIDCategory), the take is performed before returning.
+	 */
+	public IDGeneratorFuture<IDSet> takeIDsAsync(IDCategory category) {
+		return takeIDsAsync(category, leaseSizingPolicy.getLeaseSize(category), NO_RETRY, true/*=sizedByPolicy*/);
+	}
+
+	public IDGeneratorFuture<IDSet> takeIDsAsync(IDCategory category, long idSetSize) {
+		return takeIDsAsync(category, idSetSize, NO_RETRY);
+	}
+
+	public IDGeneratorFuture<IDSet> takeIDsAsync(final IDCategory category, final long idSetSize, RetryPolicy retryPolicy) {
+		return takeIDsAsync(category, idSetSize, retryPolicy, false/*=sizedByPolicy*/);
+	}
+
+	private IDGeneratorFuture<IDSet> takeIDsAsync(
+		final IDCategory category, final long idSetSize, RetryPolicy retryPolicy, final boolean sizedByPolicy
+	) {
+		if (!isAsyncCapable(category)) {
+			try {
+				return IDGeneratorFuture.completed(takeIDsWithRetry(category, idSetSize, retryPolicy, sizedByPolicy));
 			}
-			RawIDSetData currData = idProvider.getData(category);
-			int currVersion = currData.getVersion();
-			IDSet currIDs = deserialize(category, currData.getData());
-			currIDs.pushIDs(idSet);
-			byte[] newData = serialize(currIDs);
+			catch (Exception e) {
+				return IDGeneratorFuture.failed(e);
+			}
+		}
+		logger.debug("Taking {} ID's from category {} asynchronously", idSetSize, category.getName());
+		final TakeUpdate take = new TakeUpdate(idSetSize);
+		AsyncUpdate<IDSet> asyncTake = new AsyncUpdate<IDSet>(category, take, retryPolicy) {
+			IDSet getResult(int tryCount) {
+				IDSet takenIDs = take.getTakenIDs();
+				if (sizedByPolicy) {
+					leaseSizingPolicy.leaseTaken(category, takenIDs.getSize(), tryCount - 1);
+				}
+				LeaseTracker tracker = leaseTracker;
+				if (tracker != null) {
+					tracker.leaseTaken(takenIDs);
+				}
+				return takenIDs;
+			}
+		};
+		asyncTake.start();
+		return asyncTake.future;
+	}
+
+	public IDGeneratorFuture<Void> pushIDsAsync(IDSet idSet) {
+		return pushIDsAsync(idSet.getCategory(), idSet, NO_RETRY);
+	}
+
+	public IDGeneratorFuture<Void> pushIDsAsync(IDCategory category, IDSet idSet, RetryPolicy retryPolicy) {
+		IDSet.validateNotReadOnly(idSet);
+		if (!isAsyncCapable(category)) {
 			try {
-				idProvider.setData(category, new RawIDSetData(currVersion, newData));
-				succeeded = true;
+				pushIDsWithRetry(category, idSet, retryPolicy);
+				return IDGeneratorFuture.completed(null);
 			}
-			catch(IDProviderVersionException e) {
-				if (logger.isDebugEnabled()) {
-					logger.debug("Push ID's failed due to versioning error {}", getVersionDetailText(e));
+			catch (Exception e) {
+				return IDGeneratorFuture.failed(e);
+			}
+		}
+		if (logger.isDebugEnabled()) logger.debug("Pushing ID's: {} to category: {} asynchronously", idSet.toString(), category.toString());
+		final PushUpdate push = new PushUpdate(idSet);
+		AsyncUpdate<Void> asyncPush = new AsyncUpdate<Void>(category, push, retryPolicy) {
+			Void getResult(int tryCount) {
+				push.commit();
+				return null;
+			}
+		};
+		asyncPush.start();
+		return asyncPush.future;
+	}
+
+	public IDGeneratorFuture<IDSet> peekIDsAsync(final IDCategory category) {
+		ConcurrentMap<String,PeekSnapshot> cache = peekCache;
+		PeekSnapshot snapshot = cache != null ? cache.get(category.getName()) : null;
+		if (!isAsyncCapable(category) || snapshot != null) {
+			try {
+				return IDGeneratorFuture.completed(peekIDs(category));
+			}
+			catch (Exception e) {
+				return IDGeneratorFuture.failed(e);
+			}
+		}
+		final IDGeneratorFuture<IDSet> future = new IDGeneratorFuture<IDSet>();
+		((AsyncIDProvider)idProvider).getDataAsync(category, new AsyncIDProvider.Callback<RawIDSetData>() {
+			public void completed(RawIDSetData currData) {
+				try {
+					future.complete(deserialize(category, currData.getData()));
 				}
-				if (currTryCount >= maxTryCount) {
-					if (maxTryCount > 1) {
-						logger.error("Push ID's request has failed after " + maxTryCount + " tries", e);
-					}
-					throw e;
+				catch (Exception e) {
+					future.fail(e);
 				}
-				logger.debug("Retrying ...");
+			}
+
+			public void failed(IDGeneratorException e) {
+				future.fail(e);
+			}
+		});
+		return future;
+	}
+
+	public void rebalanceShards(ShardedIDCategory category) throws IDGeneratorException {
+		reshard(category, category.getShardCount());
+	}
+
+	public ShardedIDCategory reshard(ShardedIDCategory category, int newShardCount) throws IDGeneratorException {
+		ShardedIDCategory newCategory = new ShardedIDCategory(category.getName(), newShardCount, category.getShardSelection());
+		logger.info(
+			"Redistributing ID's in category {} from {} to {} shards",
+			new Object[] { category, category.getShardCount(), newShardCount }
+		);
+
+		// ID's are moved a chunk at a time, straight from one node to another, rather than taken out of the whole category
+		// first, so that takers keep being served throughout, and a failure can't strand more than one chunk
+		List<IDCategory> newShards = newCategory.getShards();
+		List<IDCategory> drainedNodes = new ArrayList<IDCategory>();
+		drainedNodes.add(category);
+		for (IDCategory shard : category.getShards()) {
+			if (!newShards.contains(shard)) {
+				drainedNodes.add(shard);
 			}
 		}
-		logger.debug("Successfully pushed ID's");
+		long[] shardSizes = new long[newShardCount];
+		long totalSize = 0;
+		for (int i = 0; i < newShardCount; i++) {
+			shardSizes[i] = countNodeIDs(newShards.get(i));
+			totalSize += shardSizes[i];
+		}
+		for (IDCategory drainedNode : drainedNodes) {
+			totalSize += countNodeIDs(drainedNode);
+		}
+		long targetShardSize = (totalSize + newShardCount - 1) / newShardCount;
+
+		for (IDCategory drainedNode : drainedNodes) {
+			moveNodeIDs(drainedNode, NOT_A_SHARD, Long.MAX_VALUE, newShards, shardSizes, targetShardSize);
+		}
+		for (int i = 0; i < newShardCount; i++) {
+			if (shardSizes[i] > targetShardSize) {
+				moveNodeIDs(newShards.get(i), i, shardSizes[i] - targetShardSize, newShards, shardSizes, targetShardSize);
+			}
+		}
+		logger.info("ID's in category {} redistributed", category);
+		return newCategory;
 	}
 
 	public void setDefaultTryCount(int defaultTryCount) {
@@ -167,15 +295,254 @@ public class IDGenerator {
 		if (defaultTryCount <= 0) {
 			throw new IllegalArgumentException("Invalid default try count; try count must be set to at least 1 try");
 		}
-		this.defaultTryCount = defaultTryCount;
+		setDefaultRetryPolicy(new ExponentialBackoffRetryPolicy(defaultTryCount));
 	}
 
 	public int getDefaultTryCount() {
-		return defaultTryCount;
+		return defaultRetryPolicy.getMaxTryCount();
+	}
+
+	public void setDefaultRetryPolicy(RetryPolicy defaultRetryPolicy) {
+		logger.info("Setting default retry policy to {}", defaultRetryPolicy);
+		if (defaultRetryPolicy == null) {
+			throw new IllegalArgumentException("Invalid default retry policy; policy must not be null");
+		}
+		this.defaultRetryPolicy = defaultRetryPolicy;
+	}
+
+	public RetryPolicy getDefaultRetryPolicy() {
+		return defaultRetryPolicy;
+	}
+
+	public void setLeaseSizingPolicy(LeaseSizingPolicy leaseSizingPolicy) {
+		logger.info("Setting lease sizing policy to {}", leaseSizingPolicy);
+		if (leaseSizingPolicy == null) {
+			throw new IllegalArgumentException("Invalid lease sizing policy; policy must not be null");
+		}
+		this.leaseSizingPolicy = leaseSizingPolicy;
+	}
+
+	public LeaseSizingPolicy getLeaseSizingPolicy() {
+		return leaseSizingPolicy;
+	}
+
+	public void setTakeCoalescingEnabled(boolean takeCoalescingEnabled) {
+		logger.info("Setting take coalescing enabled to {}", takeCoalescingEnabled);
+		takeCoalescer = takeCoalescingEnabled ? new TakeCoalescer(this) : null;
+	}
+
+	public boolean isTakeCoalescingEnabled() {
+		return takeCoalescer != null;
+	}
+
+	public void setIDSetCodec(IDSetCodec idSetCodec) {
+		logger.info("Setting id set write format to {}", idSetCodec);
+		if (idSetCodec == null) {
+			throw new IllegalArgumentException("Invalid id set codec; codec must not be null");
+		}
+		this.idSetCodec = idSetCodec;
+	}
+
+	public IDSetCodec getIDSetCodec() {
+		return idSetCodec;
+	}
+
+	/**
+	 * Enables caching of the data that this generator last wrote to each category, so that the next update of a category
+	 * can be written straight from the cache, without reading the category's data first.  If another client has updated
+	 * the category in the meantime, the write fails with a version conflict (or the update itself may fail, e.g. when
+	 * taking from a set that's only empty in the cache), and the update is retried using freshly read data;  that retry
+	 * doesn't count against the request's RetryPolicy, so single-try requests don't fail merely because the cache was out
+	 * of date.  In the uncontended case, this halves the number of provider round trips per update.
+	 *
+	 * If the provider is a WatchingIDProvider, cached data is also discarded as soon as the provider reports that it
+	 * has changed, which avoids most such failed writes.
+	 *
+	 * Note that caching relies on the provider incrementing a category's version by 1 on every write (as ZooKeeper does).
+	 */
+	public void setVersionCachingEnabled(boolean versionCachingEnabled) {
+		logger.info("Setting version caching enabled to {}", versionCachingEnabled);
+		if (versionCachingEnabled) {
+			listenForDataChanges();
+		}
+		versionCache = versionCachingEnabled ? new ConcurrentHashMap<String,RawIDSetData>() : null;
+	}
+
+	public boolean isVersionCachingEnabled() {
+		return versionCache != null;
+	}
+
+	/**
+	 * Enables caching of the ID's returned by peekIDs/peekIDsView.  Each category's data is read and decoded once, and
+	 * the resulting snapshot is served until the provider reports that the category's data has changed (or this
+	 * generator changes it), so repeated peeks generate no provider traffic at all.
+	 *
+	 * Since a cached snapshot can only be kept fresh by being notified of changes, peek caching requires a
+	 * WatchingIDProvider.
+	 */
+	public void setPeekCachingEnabled(boolean peekCachingEnabled) {
+		logger.info("Setting peek caching enabled to {}", peekCachingEnabled);
+		if (peekCachingEnabled && !(idProvider instanceof WatchingIDProvider)) {
+			throw new IllegalStateException("Peek caching requires a watching ID provider; provider is: "+idProvider.getName());
+		}
+		if (peekCachingEnabled) {
+			listenForDataChanges();
+		}
+		peekCache = peekCachingEnabled ? new ConcurrentHashMap<String,PeekSnapshot>() : null;
+	}
+
+	public boolean isPeekCachingEnabled() {
+		return peekCache != null;
+	}
+
+	/**
+	 * Enables tracking of the leases (i.e., the IDSets returned by takeIDs) handed out by this generator, so that their
+	 * unused ID's are returned to their categories rather than lost.  The ID's remaining in leases that become unreachable
+	 * are queued and returned in batches (with a single push per category), and when the generator is closed, the ID's
+	 * remaining in all outstanding leases are returned, again with a single push per category.
+	 *
+	 * Note that this means leases must no longer be used once the generator that handed them out has been closed.
+	 */
+	public void setLeaseReturnEnabled(boolean leaseReturnEnabled) {
+		logger.info("Setting lease return enabled to {}", leaseReturnEnabled);
+		leaseTracker = leaseReturnEnabled ? new LeaseTracker(this) : null;
+	}
+
+	public boolean isLeaseReturnEnabled() {
+		return leaseTracker != null;
+	}
+
+	/**
+	 * Returns the unused ID's of any leases that have become unreachable, without waiting for a full batch to be queued.
+	 */
+	public void returnUnreachableLeases() throws IDGeneratorException {
+		LeaseTracker tracker = leaseTracker;
+		if (tracker != null) {
+			tracker.returnUnreachableLeases(true);
+		}
+	}
+
+	/**
+	 * Converts a category to paged storage:  creates the category's page index and first page, and moves all of the ID's
+	 * in the category's own node into its pages (splitting them across as many pages as needed).
+	 */
+	public void page(PagedIDCategory category) throws IDGeneratorException {
+		logger.info("Converting category {} to paged storage", category);
+		createNode(category.getPage(0), new IDSet(category.getPage(0)));
+		if (createNode(category.getPageIndexNode(), PageIndex.newIndex().encode())) {
+			logger.info("Created page index for category {}", category);
+		}
+		IDSet allIDs = new IDSet(category);
+		drainNodeIDs(new IDCategory(category.getName()), allIDs);
+		if (allIDs.hasMoreIDs()) {
+			category.pushIDs(this, allIDs, defaultRetryPolicy);
+		}
+	}
+
+	/**
+	 * Converts a category to high-water mark storage:  if the category's last range ends at the category's max ID, its
+	 * start becomes the high-water mark, and all of the category's other ID's move to the free list.
+	 */
+	public void separateHighWaterMark(final HighWaterMarkIDCategory category) throws IDGeneratorException {
+		logger.info("Separating high-water mark of category {}", category);
+		createNode(category.getFreeListNode(), new IDSet(category.getFreeListNode()));
+		IDSet allIDs = new IDSet(category);
+		drainNodeIDs(new IDCategory(category.getName()), allIDs);
+		final IDSet freeIDs = new IDSet(category);
+		final long[] highWaterMark = new long[] { category.getMaxID() + 1 };
+		allIDs.visitRanges(new IDSet.RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				if (endID == category.getMaxID()) {
+					highWaterMark[0] = startID;
+				}
+				else {
+					freeIDs.addRange(startID, endID);
+				}
+			}
+		});
+		if (createNode(category.getHighWaterMarkNode(), HighWaterMarkIDCategory.encodeHighWaterMark(highWaterMark[0]))) {
+			logger.info("Created high-water mark {} for category {}", highWaterMark[0], category);
+		}
+		else if (highWaterMark[0] <= category.getMaxID()) {
+			// already converted; the high-water mark can't be moved back, so the tail goes to the free list too
+			freeIDs.addRange(highWaterMark[0], category.getMaxID());
+		}
+		if (freeIDs.hasMoreIDs()) {
+			category.pushIDs(this, freeIDs, defaultRetryPolicy);
+		}
+	}
+
+	/**
+	 * Converts a category to block allocation:  the category's last range becomes the ID space that blocks of blockSize
+	 * ID's are allocated from, and all of the category's other ID's move to the free list.
+	 */
+	public void allocateInBlocks(SequentialBlockIDCategory category, long blockSize) throws IDGeneratorException {
+		logger.info("Converting category {} to block allocation with block size {}", category, blockSize);
+		IDProvider provider = idProvider;
+		if (!(provider instanceof SequentialNodeIDProvider)) {
+			throw new IllegalStateException(
+				"Block allocation requires a sequential node ID provider; provider is: "+provider.getName()
+			);
+		}
+		createNode(category.getFreeListNode(), new IDSet(category.getFreeListNode()));
+		IDSet allIDs = new IDSet(category);
+		drainNodeIDs(new IDCategory(category.getName()), allIDs);
+		final IDSet freeIDs = new IDSet(category);
+		final IDRange[] tailRange = new IDRange[1];
+		allIDs.visitRanges(new IDSet.RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				if (tailRange[0] != null) {
+					freeIDs.addRange(tailRange[0].getStartID(), tailRange[0].getEndID());
+				}
+				tailRange[0] = new IDRange(startID, endID);
+			}
+		});
+		SequentialBlockIDCategory.BlockLayout layout =
+			tailRange[0] != null
+				? new SequentialBlockIDCategory.BlockLayout(tailRange[0].getStartID(), tailRange[0].getEndID(), blockSize)
+				: new SequentialBlockIDCategory.BlockLayout(1, 0, blockSize);
+		if (((SequentialNodeIDProvider)provider).createData(category.getBlocksNode(), layout.encode())) {
+			logger.info("Created blocks node for category {}", category);
+		}
+		else if (tailRange[0] != null) {
+			// already converted; the existing layout can't be changed, so the tail goes to the free list too
+			freeIDs.addRange(tailRange[0].getStartID(), tailRange[0].getEndID());
+		}
+		if (freeIDs.hasMoreIDs()) {
+			category.pushIDs(this, freeIDs, defaultRetryPolicy);
+		}
+	}
+
+	public void rewriteIDs(IDCategory category) throws IDGeneratorException {
+		logger.info("Rewriting ID's in category {} using format {}", category, idSetCodec);
+		updateWithRetry(category, new RewriteUpdate(), defaultRetryPolicy);
+		if (category instanceof ShardedIDCategory) {
+			for (IDCategory shard : ((ShardedIDCategory)category).getShards()) {
+				updateWithRetry(shard, new RewriteUpdate(), defaultRetryPolicy);
+			}
+		}
 	}
 
 	public void close() throws IDGeneratorException {
 		logger.info("Closing ID generator ...");
+		LeaseTracker tracker = leaseTracker;
+		if (tracker != null && isOpen()) {
+			logger.info("Returning outstanding leases ...");
+			try {
+				tracker.returnAllLeases();
+			}
+			catch (IDGeneratorException e) {
+				logger.error("Error returning outstanding leases", e);
+			}
+		}
+		ScheduledExecutorService scheduler;
+		synchronized(this) {
+			scheduler = retryScheduler;
+			retryScheduler = null;
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
 		try {
 			logger.info("Closing ID provider ...");
 			idProvider.close();
@@ -183,6 +550,14 @@ public class IDGenerator {
 		}
 		finally {
 			idProvider = new ClosedIDProvider();
+			ConcurrentMap<String,RawIDSetData> cache = versionCache;
+			if (cache != null) {
+				cache.clear();
+			}
+			ConcurrentMap<String,PeekSnapshot> snapshots = peekCache;
+			if (snapshots != null) {
+				snapshots.clear();
+			}
 		}
     }
 
@@ -191,61 +566,369 @@ public class IDGenerator {
 	}
 
 	public IDSet peekIDs(IDCategory category) throws IDGeneratorException {
-		// TODO - remove duplication
+		IDSet peekedIDs = category.peekIDs(this);
+		return peekedIDs.isReadOnly() ? peekedIDs.copy() : peekedIDs;
+	}
+
+	/**
+	 * Like peekIDs, but returns a read-only view of the category's ID's, which (if peek caching is enabled) may be shared
+	 * with other callers, rather than a private copy.  This avoids copying the set, and is intended for callers that only
+	 * inspect it (e.g., to monitor a category's remaining capacity).
+	 */
+	public IDSet peekIDsView(IDCategory category) throws IDGeneratorException {
+		IDSet peekedIDs = category.peekIDs(this);
+		if (!peekedIDs.isReadOnly()) {
+			peekedIDs.setReadOnly();
+		}
+		return peekedIDs;
+	}
+
+
+	IDSet takeNodeIDs(IDCategory category, long idSetSize, RetryPolicy retryPolicy) throws IDGeneratorException {
+		TakeCoalescer coalescer = takeCoalescer;
+		if (coalescer != null) {
+			return coalescer.takeIDs(category, idSetSize, retryPolicy);
+		}
+		return doTakeIDs(category, idSetSize, retryPolicy);
+	}
+
+	/**
+	 * Pushes the ID's into the category's node, and returns the number of ranges that the node holds as a result.
+	 */
+	int pushNodeIDs(IDCategory category, IDSet idSet, RetryPolicy retryPolicy) throws IDGeneratorException {
+		if (logger.isDebugEnabled()) logger.debug("Pushing ID's: {} to category: {}", idSet.toString(), category.toString());
+		PushUpdate push = new PushUpdate(idSet);
+		updateWithRetry(category, push, retryPolicy);
+		push.commit();
+		logger.debug("Successfully pushed ID's");
+		return push.getResultingRangeCount();
+	}
+
+	/**
+	 * Removes all of the ID's at or above splitID from the category's node, and returns them.
+	 */
+	IDSet splitNodeIDs(IDCategory category, long splitID, RetryPolicy retryPolicy) throws IDGeneratorException {
+		SplitUpdate split = new SplitUpdate(splitID);
+		updateWithRetry(category, split, retryPolicy);
+		return split.getSplitIDs();
+	}
+
+	/**
+	 * Creates the category's node, holding the given ID's.  Returns false if the node already exists.
+	 */
+	boolean createNode(IDCategory category, IDSet idSet) throws IDGeneratorException {
+		return createNode(category, serialize(idSet));
+	}
+
+	/**
+	 * Creates the category's node, holding the given raw data.  Returns false if the node already exists.
+	 */
+	boolean createNode(IDCategory category, byte[] data) throws IDGeneratorException {
+		IDProvider provider = idProvider;
+		if (!(provider instanceof NodeCreatingIDProvider)) {
+			throw new IllegalStateException("Creating nodes requires a node creating ID provider; provider is: "+provider.getName());
+		}
+		logger.debug("Creating node for category {}", category);
+		return ((NodeCreatingIDProvider)provider).createData(category, data);
+	}
+
+	/**
+	 * Advances the category's high-water mark by up to idSetSize ID's (without passing the category's max ID), and
+	 * returns the range of ID's that it moved past.
+	 */
+	IDRange takeCounterIDs(HighWaterMarkIDCategory category, long idSetSize, RetryPolicy retryPolicy) throws IDGeneratorException {
+		logger.debug("Taking {} ID's from high-water mark of category {}", idSetSize, category.getName());
+		CounterUpdate advance = new CounterUpdate(idSetSize, category.getMaxID());
+		updateDataWithRetry(category.getHighWaterMarkNode(), advance, retryPolicy);
+		return advance.getTakenIDs();
+	}
+
+	long peekHighWaterMark(HighWaterMarkIDCategory category) throws IDGeneratorException {
+		return HighWaterMarkIDCategory.decodeHighWaterMark(idProvider.getData(category.getHighWaterMarkNode()).getData());
+	}
+
+	IDProvider getIDProvider() {
+		return idProvider;
+	}
+
+	/**
+	 * Returns the ID's currently in the category's node.  If peek caching is enabled, the set returned is a shared,
+	 * read-only snapshot.
+	 */
+	IDSet peekNodeIDs(IDCategory category) throws IDGeneratorException {
+		ConcurrentMap<String,PeekSnapshot> cache = peekCache;
+		if (cache != null) {
+			PeekSnapshot snapshot = cache.get(category.getName());
+			if (snapshot != null) {
+				logger.trace("Using cached snapshot of category {}", category);
+				return snapshot.idSet;
+			}
+		}
 		RawIDSetData currContents = idProvider.getData(category);
 		IDSet currIDs = deserialize(category, currContents.getData());
-		//currIDs.setReadOnly();
 		if (logger.isDebugEnabled()) logger.debug("Peeked at ID's in category {}: {}", category.toString(), currIDs.toString());
+		IDProvider provider = idProvider;
+		if (cache != null && provider instanceof WatchingIDProvider) {
+			currIDs.setReadOnly();
+			cache.put(category.getName(), new PeekSnapshot(currContents, currIDs));
+			((WatchingIDProvider)provider).watchData(category, currContents);
+		}
 		return currIDs;
 	}
 
+	IDSet doTakeIDs(IDCategory category, long idSetSize, RetryPolicy retryPolicy) throws IDGeneratorException {
+		logger.debug("Taking {} ID's from category {}", idSetSize, category.getName());
+		TakeUpdate take = new TakeUpdate(idSetSize);
+		updateWithRetry(category, take, retryPolicy);
+		IDSet takenIDs = take.getTakenIDs();
+		if (logger.isDebugEnabled()) logger.debug("Successfully took ID's: {}", takenIDs.toString());
+		return takenIDs;
+	}
 
-	private IDSet deserialize(IDCategory category, byte[] currData) throws IDGeneratorException {
-		BufferedReader in = CharacterStreamUtils.toBufferedReader(
-			new InputStreamReader(new ByteArrayInputStream(currData), IDGeneratorConstants.UTF8_CHARSET),
-			IDGeneratorConstants.DEFAULT_BUFFER_SIZE
-		);
-		List<IDRange> idRanges = new LinkedList<IDRange>();
-		try {
-			String line;
-			while((line = in.readLine()) != null) {
-				IDRange range = IDRange.parse(line);
-				idRanges.add(range);
+
+	/**
+	 * Moves up to moveSize ID's (or all of them) out of the source node, a chunk at a time, each into whichever of the
+	 * shards currently holds the fewest ID's, until that shard would reach targetShardSize.  shardSizes is kept up to
+	 * date as ID's are moved;  sourceShardIndex is the source's index in shards, if it's one of them.
+	 */
+	private void moveNodeIDs(
+		IDCategory source,
+		int sourceShardIndex,
+		long moveSize,
+		List<IDCategory> shards,
+		long[] shardSizes,
+		long targetShardSize
+	) throws IDGeneratorException {
+		long remainingSize = moveSize;
+		while (remainingSize > 0) {
+			int targetShardIndex = 0;
+			for (int i = 1; i < shardSizes.length; i++) {
+				if (shardSizes[i] < shardSizes[targetShardIndex]) {
+					targetShardIndex = i;
+				}
 			}
+			if (targetShardIndex == sourceShardIndex) {
+				return;
+			}
+			long chunkSize = Math.min(remainingSize, MAX_RESHARD_CHUNK_SIZE);
+			if (shardSizes[targetShardIndex] < targetShardSize) {
+				chunkSize = Math.min(chunkSize, targetShardSize - shardSizes[targetShardIndex]);
+			}
+
+			// a plain take, rather than a lease, so that it doesn't count towards lease sizing
+			TakeUpdate take = new TakeUpdate(chunkSize);
+			try {
+				updateWithRetry(source, take, defaultRetryPolicy);
+			}
+			catch (NoSuchElementException e) {
+				return;
+			}
+			IDSet movedIDs = take.getTakenIDs();
+			IDCategory targetShard = shards.get(targetShardIndex);
+			boolean moved = false;
+			try {
+				pushNodeIDs(targetShard, movedIDs.copy(targetShard), defaultRetryPolicy);
+				moved = true;
+			}
+			finally {
+				if (!moved) {
+					logger.error("Moving ID's from {} to {} failed; returning them to {}", new Object[] { source, targetShard, source });
+					pushNodeIDs(source, movedIDs.copy(source), defaultRetryPolicy);
+				}
+			}
+			shardSizes[targetShardIndex] += movedIDs.getSize();
+			if (sourceShardIndex != NOT_A_SHARD) {
+				shardSizes[sourceShardIndex] -= movedIDs.getSize();
+			}
+			remainingSize -= movedIDs.getSize();
 		}
-		catch (Exception e) {
-			throw new IDGeneratorException(
-				"Error deserializing data for category "+category.toString()+": "+new String(currData),
-				e
-			);
-		}
-		finally {
-			CharacterStreamUtils.close(in);
+	}
+
+	private long countNodeIDs(IDCategory category) throws IDGeneratorException {
+		return deserialize(category, idProvider.getData(category).getData()).getSize();
+	}
+
+	private void drainNodeIDs(IDCategory category, IDSet drainedIDs) throws IDGeneratorException {
+		DrainUpdate drain = new DrainUpdate();
+		updateWithRetry(category, drain, defaultRetryPolicy);
+		IDSet nodeIDs = drain.getDrainedIDs();
+		if (logger.isDebugEnabled()) logger.debug("Drained ID's: {}", nodeIDs.toString());
+		if (nodeIDs.hasMoreIDs()) {
+			drainedIDs.pushIDs(nodeIDs.copy(drainedIDs.getCategory()));
 		}
-		return new IDSet(category, idRanges);
 	}
 
-	private byte[] serialize(IDSet currIDs) throws IDGeneratorException {
-		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-		PrintWriter out = CharacterStreamUtils.toBufferedPrintWriter(
-			new OutputStreamWriter(bytesOut),
-			IDGeneratorConstants.DEFAULT_BUFFER_SIZE
-		);
-		try {
+
+	private void updateWithRetry(IDCategory category, IDSetUpdate update, RetryPolicy retryPolicy) throws IDGeneratorException {
+		updateDataWithRetry(category, new IDSetDataUpdate(category, update), retryPolicy);
+	}
+
+	private void updateDataWithRetry(IDCategory category, DataUpdate update, RetryPolicy retryPolicy) throws IDGeneratorException {
+		int maxTryCount = retryPolicy.getMaxTryCount();
+		long startTime = System.currentTimeMillis();
+		long retryDelay = 0;
+		int currTryCount = 0;
+		boolean useCachedData = true;
+		while (true) {
+			currTryCount++;
+			if (maxTryCount > 1) {
+				logger.debug("Attempt # {} of {}", currTryCount, maxTryCount);
+			}
+			RawIDSetData cachedData = useCachedData ? getCachedData(category) : null;
+			RawIDSetData currData = cachedData != null ? cachedData : idProvider.getData(category);
+			int currVersion = currData.getVersion();
+			byte[] newData;
 			try {
-				currIDs.write(out);
+				newData = update.apply(currData.getData());
 			}
-			finally {
-				CharacterStreamUtils.flushAndClose(out);
+			catch(RuntimeException e) {
+				if (cachedData == null) {
+					throw e;
+				}
+				// the failure (e.g., taking from an empty set) may only be due to the cache being out of date, so as on
+				// a version conflict, retry once with fresh data, without counting it as a try
+				invalidateCachedData(category, currData);
+				logger.debug("{} failed on cached data for category {}; retrying with fresh data", update.getName(), category);
+				currTryCount--;
+				useCachedData = false;
+				continue;
+			}
+			try {
+				idProvider.setData(category, new RawIDSetData(currVersion, newData));
+				dataWritten(category, new RawIDSetData(currVersion + 1, newData));
+				return;
+			}
+			catch(IDProviderVersionException e) {
+				invalidateCachedData(category, currData);
+				if (logger.isDebugEnabled()) {
+					logger.debug("{} failed due to versioning error {}", update.getName(), getVersionDetailText(e));
+				}
+				if (cachedData != null) {
+					// only the cache was out of date, not the caller's read, so that retry is free
+					logger.debug("Cached data for category {} was out of date; retrying with fresh data", category);
+					currTryCount--;
+					useCachedData = false;
+					continue;
+				}
+				VERSION_CONFLICT_COUNT.get()[0]++;
+				long elapsedMillis = System.currentTimeMillis() - startTime;
+				retryDelay = retryPolicy.getRetryDelayMillis(currTryCount, elapsedMillis, retryDelay);
+				if (retryDelay == RetryPolicy.STOP_RETRYING) {
+					if (maxTryCount > 1) {
+						logger.error(update.getName() + " request has failed after " + currTryCount + " tries", e);
+					}
+					throw e;
+				}
+				logger.debug("Retrying in {}ms ...", Long.toString(retryDelay));
+				sleep(retryDelay);
+			}
+			catch(IDGeneratorException e) {
+				// the write may or may not have been applied, so the cached data can't be trusted either way
+				invalidateCachedData(category, currData);
+				throw e;
 			}
 		}
-		catch (Exception e) {
-			throw new IDGeneratorException(
-				"Error serializing data for id set "+currIDs.toString(),
-				e
-			);
+	}
+
+	/**
+	 * Whether requests for the category can be issued asynchronously:  i.e., whether the provider supports asynchronous
+	 * requests, and the category is stored in a single node of its own (as opposed to, e.g., a ShardedIDCategory, whose
+	 * requests span several nodes).
+	 */
+	private boolean isAsyncCapable(IDCategory category) {
+		return idProvider instanceof AsyncIDProvider && category.getClass() == IDCategory.class;
+	}
+
+	private synchronized ScheduledExecutorService getRetryScheduler() {
+		if (retryScheduler == null) {
+			retryScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(RETRY_THREAD_NAME_PREFIX));
+		}
+		return retryScheduler;
+	}
+
+	private void listenForDataChanges() {
+		if (idProvider instanceof WatchingIDProvider) {
+			((WatchingIDProvider)idProvider).setDataChangeListener(new CacheInvalidator());
+		}
+	}
+
+	/**
+	 * Returns the data that this generator last wrote to the category, or null if it isn't cached.
+	 */
+	private RawIDSetData getCachedData(IDCategory category) {
+		ConcurrentMap<String,RawIDSetData> cache = versionCache;
+		if (cache != null) {
+			RawIDSetData cachedData = cache.get(category.getName());
+			if (cachedData != null) {
+				logger.trace("Using cached data for category {}", category);
+				return cachedData;
+			}
+		}
+		return null;
+	}
+
+	private void dataWritten(IDCategory category, RawIDSetData writtenData) {
+		ConcurrentMap<String,PeekSnapshot> snapshots = peekCache;
+		if (snapshots != null) {
+			snapshots.remove(category.getName());
+		}
+		ConcurrentMap<String,RawIDSetData> cache = versionCache;
+		if (cache == null) {
+			return;
+		}
+		cache.put(category.getName(), writtenData);
+		IDProvider provider = idProvider;
+		if (provider instanceof WatchingIDProvider) {
+			((WatchingIDProvider)provider).watchData(category, writtenData);
 		}
-		return bytesOut.toByteArray();
+	}
+
+	private void invalidateCachedData(IDCategory category, RawIDSetData staleData) {
+		// only remove entries for the stale data itself, not newer ones that another thread may have cached in the meantime
+		ConcurrentMap<String,RawIDSetData> cache = versionCache;
+		if (cache != null) {
+			cache.remove(category.getName(), staleData);
+		}
+		ConcurrentMap<String,PeekSnapshot> snapshots = peekCache;
+		if (snapshots != null) {
+			PeekSnapshot snapshot = snapshots.get(category.getName());
+			if (snapshot != null && snapshot.rawData == staleData) {
+				snapshots.remove(category.getName(), snapshot);
+			}
+		}
+	}
+
+	private void sleep(long millis) throws IDGeneratorException {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IDGeneratorException("Interrupted while waiting to retry", e);
+		}
+	}
+
+	private byte[] applyUpdate(IDCategory category, IDSetUpdate update, byte[] currData) throws IDGeneratorException {
+		// takes only need to look at the front of the set, so if the data is already in (binary) write format, avoid
+		// decoding and re-encoding all of it
+		IDSetCodec codec = idSetCodec;
+		if (update instanceof TakeUpdate && codec instanceof BinaryIDSetCodec && codec.canDecode(currData)) {
+			return ((TakeUpdate)update).applyToHead(category, currData, (BinaryIDSetCodec)codec);
+		}
+		IDSet currIDs = deserialize(category, currData);
+		update.apply(currIDs);
+		return serialize(currIDs);
+	}
+
+	private IDSet deserialize(IDCategory category, byte[] currData) throws IDGeneratorException {
+		return IDSetCodecs.decode(category, currData);
+	}
+
+	private byte[] serialize(IDSet currIDs) throws IDGeneratorException {
+		return idSetCodec.encode(currIDs);
 	}
 
 	private String getVersionDetailText(IDProviderVersionException e) {
@@ -258,6 +941,328 @@ public class IDGenerator {
 		return versionDetails;
 	}
 
+	private interface IDSetUpdate {
+		public String getName();
+		public void apply(IDSet currIDs);
+	}
+
+	/**
+	 * An update of a node's raw data, for nodes that don't hold an ID set (e.g., a high-water mark node).
+	 */
+	private interface DataUpdate {
+		public String getName();
+		public byte[] apply(byte[] currData) throws IDGeneratorException;
+	}
+
+	private class IDSetDataUpdate implements DataUpdate {
+
+		public IDSetDataUpdate(IDCategory category, IDSetUpdate update) {
+			this.category = category;
+			this.update = update;
+		}
+
+		public String getName() {
+			return update.getName();
+		}
+
+		public byte[] apply(byte[] currData) throws IDGeneratorException {
+			return applyUpdate(category, update, currData);
+		}
+
+		private IDCategory category;
+		private IDSetUpdate update;
+	}
+
+	private static class TakeUpdate implements IDSetUpdate {
+
+		public TakeUpdate(long idSetSize) {
+			this.idSetSize = idSetSize;
+		}
+
+		public String getName() {
+			return "Take ID's";
+		}
+
+		public void apply(IDSet currIDs) {
+			takenIDs = currIDs.takeIDs(idSetSize);
+		}
+
+		public byte[] applyToHead(IDCategory category, byte[] currData, BinaryIDSetCodec codec) throws IDGeneratorException {
+			if (idSetSize <= 0) {
+				IDSet currIDs = codec.decode(category, currData);
+				apply(currIDs);
+				return codec.encode(currIDs);
+			}
+			takenIDs = new IDSet(category);
+			return codec.takeHead(category, currData, idSetSize, takenIDs);
+		}
+
+		public IDSet getTakenIDs() {
+			return takenIDs;
+		}
+
+		private long idSetSize;
+		private IDSet takenIDs;
+	}
+
+	private static class DrainUpdate implements IDSetUpdate {
+
+		public String getName() {
+			return "Drain ID's";
+		}
+
+		public void apply(IDSet currIDs) {
+			drainedIDs = currIDs.hasMoreIDs() ? currIDs.takeIDs(currIDs.getSize()) : new IDSet(currIDs.getCategory());
+		}
+
+		public IDSet getDrainedIDs() {
+			return drainedIDs;
+		}
+
+		private IDSet drainedIDs;
+	}
+
+	private static class RewriteUpdate implements IDSetUpdate {
+
+		public String getName() {
+			return "Rewrite ID's";
+		}
+
+		public void apply(IDSet currIDs) {
+			// nothing to change; the ID's are simply re-serialized in the generator's current format
+		}
+	}
+
+	private static class PushUpdate implements IDSetUpdate {
+
+		public PushUpdate(IDSet pushedIDs) {
+			this.pushedIDs = pushedIDs;
+		}
+
+		public String getName() {
+			return "Push ID's";
+		}
+
+		public void apply(IDSet currIDs) {
+			// push a copy, so that the pushed ID's are still available if the update needs to be retried
+			currIDs.pushIDs(pushedIDs.copy());
+			resultingRangeCount = currIDs.getRangeCount();
+		}
+
+		public int getResultingRangeCount() {
+			return resultingRangeCount;
+		}
+
+		public void commit() {
+			if (pushedIDs.hasMoreIDs()) {
+				pushedIDs.takeIDs(pushedIDs.getSize());
+			}
+		}
+
+		private IDSet pushedIDs;
+		private int resultingRangeCount;
+	}
+
+	private static class SplitUpdate implements IDSetUpdate {
+
+		public SplitUpdate(long splitID) {
+			this.splitID = splitID;
+		}
+
+		public String getName() {
+			return "Split ID's";
+		}
+
+		public void apply(IDSet currIDs) {
+			final IDSet keptIDs = new IDSet(currIDs.getCategory());
+			final IDSet movedIDs = new IDSet(currIDs.getCategory());
+			currIDs.takeRanges(Long.MAX_VALUE, new IDSet.RangeVisitor() {
+				public void visitRange(long startID, long endID) {
+					if (endID < splitID) {
+						keptIDs.addRange(startID, endID);
+					}
+					else if (startID >= splitID) {
+						movedIDs.addRange(startID, endID);
+					}
+					else {
+						keptIDs.addRange(startID, splitID - 1);
+						movedIDs.addRange(splitID, endID);
+					}
+				}
+			});
+			currIDs.pushIDs(keptIDs);
+			splitIDs = movedIDs;
+		}
+
+		public IDSet getSplitIDs() {
+			return splitIDs;
+		}
+
+		private long splitID;
+		private IDSet splitIDs;
+	}
+
+	private static class CounterUpdate implements DataUpdate {
+
+		public CounterUpdate(long idSetSize, long maxID) {
+			this.idSetSize = idSetSize;
+			this.maxID = maxID;
+		}
+
+		public String getName() {
+			return "Advance high-water mark";
+		}
+
+		public byte[] apply(byte[] currData) throws IDGeneratorException {
+			long nextID = HighWaterMarkIDCategory.decodeHighWaterMark(currData);
+			if (nextID > maxID) {
+				throw new NoSuchElementException("Can't take id's; high-water mark has reached max ID: "+maxID);
+			}
+			long endID = nextID + Math.min(idSetSize - 1, maxID - nextID);
+			takenIDs = new IDRange(nextID, endID);
+			return HighWaterMarkIDCategory.encodeHighWaterMark(endID + 1);
+		}
+
+		public IDRange getTakenIDs() {
+			return takenIDs;
+		}
+
+		private long idSetSize;
+		private long maxID;
+		private IDRange takenIDs;
+	}
+
+	/**
+	 * The asynchronous counterpart of updateWithRetry():  reads the category's data, applies the update, and writes the
+	 * result, each step being issued from the callback of the previous one.  Retries after a version conflict are
+	 * scheduled on the retry scheduler, so that provider threads are never put to sleep.
+	 */
+	private abstract class AsyncUpdate<T> implements AsyncIDProvider.Callback<RawIDSetData> {
+
+		public AsyncUpdate(IDCategory category, IDSetUpdate update, RetryPolicy retryPolicy) {
+			this.category = category;
+			this.update = update;
+			this.retryPolicy = retryPolicy;
+		}
+
+		public void start() {
+			tryCount++;
+			AsyncIDProvider provider = getAsyncProvider();
+			if (provider != null) {
+				provider.getDataAsync(category, this);
+			}
+		}
+
+		public void completed(final RawIDSetData currData) {
+			final byte[] newData;
+			try {
+				newData = applyUpdate(category, update, currData.getData());
+			}
+			catch (Throwable t) {
+				future.fail(t);
+				return;
+			}
+			AsyncIDProvider provider = getAsyncProvider();
+			if (provider == null) {
+				return;
+			}
+			provider.setDataAsync(
+				category,
+				new RawIDSetData(currData.getVersion(), newData),
+				new AsyncIDProvider.Callback<Void>() {
+					public void completed(Void result) {
+						dataWritten(category, new RawIDSetData(currData.getVersion() + 1, newData));
+						try {
+							future.complete(getResult(tryCount));
+						}
+						catch (Throwable t) {
+							future.fail(t);
+						}
+					}
+
+					public void failed(IDGeneratorException e) {
+						invalidateCachedData(category, currData);
+						if (e instanceof IDProviderVersionException) {
+							retry((IDProviderVersionException)e);
+						}
+						else {
+							future.fail(e);
+						}
+					}
+				}
+			);
+		}
+
+		public void failed(IDGeneratorException e) {
+			future.fail(e);
+		}
+
+		abstract T getResult(int tryCount) throws IDGeneratorException;
+
+		private AsyncIDProvider getAsyncProvider() {
+			IDProvider provider = idProvider;
+			if (!(provider instanceof AsyncIDProvider)) {
+				future.fail(new IDGeneratorException("Can't complete "+update.getName()+" request; ID generator has been closed"));
+				return null;
+			}
+			return (AsyncIDProvider)provider;
+		}
+
+		private void retry(IDProviderVersionException e) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("{} failed due to versioning error {}", update.getName(), getVersionDetailText(e));
+			}
+			long elapsedMillis = System.currentTimeMillis() - startTime;
+			retryDelay = retryPolicy.getRetryDelayMillis(tryCount, elapsedMillis, retryDelay);
+			if (retryDelay == RetryPolicy.STOP_RETRYING || !isOpen()) {
+				future.fail(e);
+				return;
+			}
+			try {
+				getRetryScheduler().schedule(
+					new Runnable() {
+						public void run() {
+							start();
+						}
+					},
+					retryDelay,
+					TimeUnit.MILLISECONDS
+				);
+			}
+			catch (RuntimeException rejected) {
+				// the generator has been closed
+				future.fail(e);
+			}
+		}
+
+		protected final IDGeneratorFuture<T> future = new IDGeneratorFuture<T>();
+		private IDCategory category;
+		private IDSetUpdate update;
+		private RetryPolicy retryPolicy;
+		private long startTime = System.currentTimeMillis();
+		private long retryDelay = 0;
+		private volatile int tryCount = 0;
+	}
+
+	private static class PeekSnapshot {
+
+		public PeekSnapshot(RawIDSetData rawData, IDSet idSet) {
+			this.rawData = rawData;
+			this.idSet = idSet;
+		}
+
+		private RawIDSetData rawData;
+		private IDSet idSet;
+	}
+
+	private class CacheInvalidator implements WatchingIDProvider.DataChangeListener {
+
+		public void dataChanged(IDCategory category, RawIDSetData watchedData) {
+			logger.trace("Data for category {} has changed", category);
+			invalidateCachedData(category, watchedData);
+		}
+	}
+
 	private static class ClosedIDProvider implements IDProvider {
 
 		public void open() {
@@ -284,5 +1289,25 @@ public class IDGenerator {
 
 	private IDProvider idProvider;
 	private Logger logger;
-	private int defaultTryCount = IDGeneratorConstants.DEFAULT_MAX_TRY_COUNT;
+	private static final RetryPolicy NO_RETRY = new ImmediateRetryPolicy(1);
+	private static final String RETRY_THREAD_NAME_PREFIX = "idgen-async-retry";
+	private static final int NOT_A_SHARD = -1;
+	/**
+	 * The number of version conflicts that the calling thread has run into since its current take began, so that the
+	 * lease sizing policy hears about each take once, however many nodes the take touched.
+	 */
+	private static final ThreadLocal<int[]> VERSION_CONFLICT_COUNT = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+	private static final long MAX_RESHARD_CHUNK_SIZE = IDGeneratorConstants.DEFAULT_MAX_LEASE_SIZE;
+	private RetryPolicy defaultRetryPolicy = new ExponentialBackoffRetryPolicy();
+	private LeaseSizingPolicy leaseSizingPolicy = new FixedLeaseSizingPolicy();
+	private volatile TakeCoalescer takeCoalescer;
+	private volatile LeaseTracker leaseTracker;
+	private ScheduledExecutorService retryScheduler;
+	private volatile IDSetCodec idSetCodec = IDSetCodecs.TEXT;
+	private volatile ConcurrentMap<String,RawIDSetData> versionCache;
+	private volatile ConcurrentMap<String,PeekSnapshot> peekCache;
 }
@@ -86,6 +86,19 @@ public class IDGeneratorCLI {
 				String rangeStr = args[3];
 				cli.push(category, rangeStr);
 			}
+			else
+			if (command.equalsIgnoreCase(SHARD)) {
+				checkUsageCommandDependent(args, SHARD, HOST_LIST, CATEGORY, "<# shards> [<current # shards>]");
+				int shardCount = Integer.parseInt(args[3]);
+				int currentShardCount = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+				cli.shard(category, shardCount, currentShardCount);
+			}
+			else
+			if (command.equalsIgnoreCase(CONVERT)) {
+				checkUsageCommandDependent(args, CONVERT, HOST_LIST, CATEGORY, FORMAT);
+				String format = args[3];
+				cli.convert(category, format);
+			}
 			else {
 				throw new IllegalArgumentException("Unknown command: "+command);
 			}
@@ -98,7 +111,7 @@ public class IDGeneratorCLI {
 	}
 
 	public IDGeneratorCLI(String zkHostList) {
-		idProvider = new ZooKeeperIDProvider(zkHostList, DEFAULT_SESSION_TIMEOUT);
+		idProvider = new ZooKeeperIDProvider(zkHostList, DEFAULT_SESSION_TIMEOUT, ZooKeeperSessionRegistry.getSharedRegistry());
 		idGenerator = new IDGenerator(idProvider);
 //		logger = LoggerFactory.getLogger(IDGeneratorCLI.class);
 	}
@@ -143,6 +156,26 @@ public class IDGeneratorCLI {
 		System.out.println("pushed");
 	}
 
+	public void shard(String category, int shardCount, int currentShardCount) throws Exception {
+		open();
+		ShardedIDCategory currentCategory = new ShardedIDCategory(category, currentShardCount);
+		ShardedIDCategory newCategory = new ShardedIDCategory(category, shardCount);
+		for (IDCategory shard : newCategory.getShards()) {
+			if (zookeeper.exists(shard.getName(), false/*=watch*/) == null) {
+				doCreate(new File(shard.getName()), "");
+			}
+		}
+		idGenerator.reshard(currentCategory, shardCount);
+		System.out.println("sharded");
+	}
+
+	public void convert(String category, String format) throws Exception {
+		open();
+		idGenerator.setIDSetCodec(IDSetCodecs.forName(format));
+		idGenerator.rewriteIDs(new IDCategory(category));
+		System.out.println("converted");
+	}
+
 
 	private void open() throws IDGeneratorException {
 		idGenerator.open();
@@ -209,10 +242,13 @@ public class IDGeneratorCLI {
 	private static final String DELETE = "delete";
 	private static final String TAKE = "take";
 	private static final String PUSH = "push";
-	private static final String[] ALL_COMMANDS = {CREATE, READ, SET, DELETE, TAKE, PUSH};
+	private static final String SHARD = "shard";
+	private static final String CONVERT = "convert";
+	private static final String[] ALL_COMMANDS = {CREATE, READ, SET, DELETE, TAKE, PUSH, SHARD, CONVERT};
 	private static final String COMMANDS = "<Command (one of: "+Arrays.toString(ALL_COMMANDS)+")>";
 	private static final String HOST_LIST = "<ZooKeeper hostname list>";
 	private static final String CATEGORY = "<ZooKeeper node path>";
+	private static final String FORMAT = "<Format (one of: \""+TextIDSetCodec.NAME+"\", \""+BinaryIDSetCodec.NAME+"\")>";
 	private static final String RANGE_STR = "<Range (i.e., \"startID-endID\")>";
 	private static final int DEFAULT_SESSION_TIMEOUT = 10000;
 	private static final int ANY_VERSION = -1;
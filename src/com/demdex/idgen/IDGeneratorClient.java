@@ -0,0 +1,224 @@
+package com.demdex.idgen;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client of a host-local IDGeneratorServer, which takes and pushes ID's the way an IDGenerator does, but without a
+ * provider session of its own:  each request is a single round trip over a loopback socket, served from the server's
+ * prefetched leases.
+ *
+ * A take may return fewer ID's than requested, if the server's pool for the category holds fewer;  it never returns an
+ * empty set, and throws a NoSuchElementException once the category is exhausted.  takeIDs(List, long) pipelines one take
+ * per category over the connection, so that taking from many categories costs a single round trip.
+ *
+ * Note that an IDGeneratorClient is threadsafe, but serializes requests over its single connection.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class IDGeneratorClient {
+
+	public IDGeneratorClient() {
+		this(IDGeneratorConstants.DEFAULT_SERVER_PORT);
+	}
+
+	public IDGeneratorClient(int port) {
+		this.port = port;
+		logger = LoggerFactory.getLogger(IDGeneratorClient.class);
+	}
+
+	public synchronized void open() throws IDGeneratorException {
+		try {
+			channel = SocketChannel.open(new InetSocketAddress(InetAddress.getByName(null), port));
+			channel.socket().setTcpNoDelay(true);
+		}
+		catch (IOException e) {
+			throw new IDGeneratorException("Can't connect to ID generator server on port "+port, e);
+		}
+		logger.debug("Connected to ID generator server on port {}", port);
+	}
+
+	public IDSet takeIDs(IDCategory category) throws IDGeneratorException {
+		return takeIDs(category, IDGeneratorConstants.DEFAULT_ID_SET_SIZE);
+	}
+
+	public synchronized IDSet takeIDs(IDCategory category, long idSetSize) throws IDGeneratorException {
+		validateOpen();
+		send(IDGeneratorProtocol.newTakeRequest(category, idSetSize));
+		return IDSetCodecs.BINARY.decode(category, receive(category));
+	}
+
+	/**
+	 * Takes ID's from each of the categories, pipelining the requests.  Returns the ID sets in the same order as the
+	 * categories.  If any of the takes fails, the ID's taken from the other categories are pushed back before the failure
+	 * is rethrown.
+	 */
+	public synchronized List<IDSet> takeIDs(List<IDCategory> categories, long idSetSize) throws IDGeneratorException {
+		validateOpen();
+		ByteBuffer[] requests = new ByteBuffer[categories.size()];
+		for (int i = 0; i < requests.length; i++) {
+			requests[i] = IDGeneratorProtocol.newTakeRequest(categories.get(i), idSetSize);
+		}
+		send(requests);
+
+		List<IDSet> takenIDSets = new ArrayList<IDSet>(categories.size());
+		Exception takeException = null;
+		for (IDCategory category : categories) {
+			try {
+				takenIDSets.add(IDSetCodecs.BINARY.decode(category, receive(category)));
+			}
+			catch (NoSuchElementException e) {
+				takeException = takeException != null ? takeException : e;
+			}
+			catch (IDGeneratorException e) {
+				if (!isOpen()) {
+					// the connection is gone, so neither the remaining responses nor the pushes can get through
+					throw e;
+				}
+				takeException = takeException != null ? takeException : e;
+			}
+		}
+		if (takeException == null) {
+			return takenIDSets;
+		}
+		for (IDSet takenIDs : takenIDSets) {
+			pushIDs(takenIDs);
+		}
+		if (takeException instanceof IDGeneratorException) {
+			throw (IDGeneratorException)takeException;
+		}
+		throw (NoSuchElementException)takeException;
+	}
+
+	public synchronized void pushIDs(IDSet idSet) throws IDGeneratorException {
+		validateOpen();
+		send(IDGeneratorProtocol.newPushRequest(idSet));
+		receive(idSet.getCategory());
+	}
+
+	public synchronized void close() throws IDGeneratorException {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			throw new IDGeneratorException("Error closing connection to ID generator server on port "+port, e);
+		}
+		finally {
+			channel = null;
+		}
+	}
+
+	public synchronized boolean isOpen() {
+		return channel != null;
+	}
+
+
+	private void send(ByteBuffer... requests) throws IDGeneratorException {
+		try {
+			long remaining = 0;
+			for (ByteBuffer request : requests) {
+				remaining += request.remaining();
+			}
+			while (remaining > 0) {
+				remaining -= channel.write(requests);
+			}
+		}
+		catch (IOException e) {
+			throw connectionFailed(e);
+		}
+	}
+
+	/**
+	 * Reads the next response, and returns its payload if the request succeeded.
+	 */
+	private byte[] receive(IDCategory category) throws IDGeneratorException {
+		ByteBuffer response;
+		try {
+			ByteBuffer frameLength = ByteBuffer.allocate(IDGeneratorProtocol.FRAME_LENGTH_SIZE);
+			readFully(frameLength);
+			IDGeneratorProtocol.validateFrameLength(frameLength.getInt(0));
+			response = ByteBuffer.allocate(frameLength.getInt(0));
+			readFully(response);
+			response.flip();
+		}
+		catch (IDGeneratorException e) {
+			// the stream is out of sync with the server, so the connection can't be used anymore
+			throw connectionFailed(e);
+		}
+		catch (IOException e) {
+			throw connectionFailed(e);
+		}
+		byte status = response.get();
+		byte[] payload = IDGeneratorProtocol.readRemaining(response);
+		switch (status) {
+			case IDGeneratorProtocol.OK:
+				return payload;
+			case IDGeneratorProtocol.EXHAUSTED:
+				throw new NoSuchElementException("Can't take id's; category "+category.toString()+" is exhausted");
+			default:
+				throw new IDGeneratorException(
+					"ID generator server failed request for category "+category.toString()+": "+
+						new String(payload, IDGeneratorConstants.UTF8_CHARSET)
+				);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("Connection closed by ID generator server");
+			}
+		}
+	}
+
+	private IDGeneratorException connectionFailed(Exception cause) {
+		try {
+			close();
+		}
+		catch (IDGeneratorException e) {
+			logger.debug("Ignoring error while closing failed connection", e);
+		}
+		return new IDGeneratorException("Lost connection to ID generator server on port "+port, cause);
+	}
+
+	private void validateOpen() {
+		if (channel == null) {
+			throw new IllegalStateException("ID generator client for port "+port+" is not open");
+		}
+	}
+
+	private int port;
+	private SocketChannel channel;
+	private Logger logger;
+}
@@ -33,9 +33,34 @@ import java.nio.charset.Charset;
 public abstract class IDGeneratorConstants {
 	public static final int DEFAULT_ID_SET_SIZE = 1000;
 	public static final int DEFAULT_MAX_TRY_COUNT = 3;
+	public static final long DEFAULT_BASE_RETRY_DELAY_MILLIS = 10;
+	public static final long DEFAULT_MAX_RETRY_DELAY_MILLIS = 1000;
+	public static final long DEFAULT_MAX_RETRY_ELAPSED_MILLIS = 10000;
+	public static final int DEFAULT_LOW_WATERMARK_DIVISOR = 4;
+	public static final long DEFAULT_TARGET_REFILL_INTERVAL_MILLIS = 10000;
+	public static final long DEFAULT_MIN_LEASE_SIZE = 100;
+	public static final long DEFAULT_MAX_LEASE_SIZE = 1000000;
+	public static final long DEFAULT_CHUNK_SIZE = 64;
+	public static final long DEFAULT_TIME_BASED_EPOCH_MILLIS = 1262304000000L; // 2010-01-01T00:00:00Z
+	public static final int DEFAULT_MAX_PAGE_RANGE_COUNT = 10000;
+	public static final int DEFAULT_SERVER_PORT = 2191;
     public static final char RANGE_SEPARATOR = ',';
 	public static final char RANGE_VALUES_SEPARATOR = '-';
+	public static final String SHARD_NODE_PREFIX = "shard-";
+	public static final String SHARD_NODE_NUMBER_FORMAT = "%04d";
+	public static final String PAGE_NODE_PREFIX = "page-";
+	public static final String PAGE_NODE_NUMBER_FORMAT = "%06d";
+	public static final String PAGE_INDEX_NODE_NAME = "page-index";
+	public static final String HIGH_WATER_MARK_NODE_NAME = "high-water-mark";
+	public static final String FREE_LIST_NODE_NAME = "free-list";
+	public static final String BLOCKS_NODE_NAME = "blocks";
+	public static final String SEQUENTIAL_NODE_PREFIX = "block-";
+	public static final String GENERATION_NODE_NUMBER_FORMAT = "%010d";
+	public static final String WORKERS_NODE_NAME = "workers";
+	public static final String WORKER_NODE_PREFIX = "worker-";
+	public static final String WORKER_NODE_NUMBER_FORMAT = "%04d";
 	public static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
 	public static final int ONE_KILO_BYTE = 1024;
 	public static final int DEFAULT_BUFFER_SIZE = 16 * ONE_KILO_BYTE;
+	public static final int MAX_RETAINED_BUFFER_SIZE = 1024 * ONE_KILO_BYTE;
 }
@@ -0,0 +1,151 @@
+package com.demdex.idgen;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous IDGenerator request (e.g., IDGenerator.takeIDsAsync()).
+ *
+ * Besides the standard Future methods, getResult() waits for the request to complete and rethrows its failure as is
+ * (rather than wrapped in an ExecutionException).  Requests can't be cancelled once issued, since the provider may
+ * already have applied them.
+ *
+ * Note that an IDGeneratorFuture is threadsafe.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class IDGeneratorFuture<T> implements Future<T> {
+
+	IDGeneratorFuture() {
+	}
+
+	static <T> IDGeneratorFuture<T> completed(T result) {
+		IDGeneratorFuture<T> future = new IDGeneratorFuture<T>();
+		future.complete(result);
+		return future;
+	}
+
+	static <T> IDGeneratorFuture<T> failed(Throwable failure) {
+		IDGeneratorFuture<T> future = new IDGeneratorFuture<T>();
+		future.fail(failure);
+		return future;
+	}
+
+	public T getResult() throws IDGeneratorException {
+		awaitUninterruptibly();
+		return getCompletedResult();
+	}
+
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return getOrThrow();
+	}
+
+	public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (!done) {
+			long remainingMillis = deadline - System.currentTimeMillis();
+			if (remainingMillis <= 0) {
+				throw new TimeoutException("Timed out after "+unit.toMillis(timeout)+"ms waiting for ID generator request");
+			}
+			wait(remainingMillis);
+		}
+		return getOrThrow();
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+
+	synchronized void complete(T result) {
+		if (done) {
+			return;
+		}
+		this.result = result;
+		done = true;
+		notifyAll();
+	}
+
+	synchronized void fail(Throwable failure) {
+		if (done) {
+			return;
+		}
+		this.failure = failure;
+		done = true;
+		notifyAll();
+	}
+
+
+	private synchronized void awaitUninterruptibly() {
+		boolean interrupted = false;
+		while (!done) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized T getCompletedResult() throws IDGeneratorException {
+		if (failure instanceof IDGeneratorException) {
+			throw (IDGeneratorException)failure;
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException)failure;
+		}
+		if (failure instanceof Error) {
+			throw (Error)failure;
+		}
+		if (failure != null) {
+			throw new IDGeneratorException("Asynchronous request failed", (Exception)failure);
+		}
+		return result;
+	}
+
+	private T getOrThrow() throws ExecutionException {
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return result;
+	}
+
+	private T result;
+	private Throwable failure;
+	private boolean done = false;
+}
@@ -0,0 +1,117 @@
+package com.demdex.idgen;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The binary protocol spoken between IDGeneratorClients and an IDGeneratorServer.
+ *
+ * Every message is a frame:  a 4-byte big-endian length, followed by that many bytes.  A request frame consists of a
+ * 1-byte operation, the category name (a 2-byte length followed by its UTF-8 bytes) and the operation's argument:
+ * <ul>
+ * <li>TAKE:  the number of ID's requested, as an 8-byte long
+ * <li>PUSH:  the pushed ID's, in binary id set format (see BinaryIDSetCodec)
+ * </ul>
+ * A response frame consists of a 1-byte status, followed by the ID's taken (for a successful TAKE, in binary id set
+ * format), nothing (for a successful PUSH), or a UTF-8 error message.
+ *
+ * Requests may be pipelined:  a client may send any number of requests before reading the responses, which the server
+ * sends in the same order as the requests.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+abstract class IDGeneratorProtocol {
+
+	public static ByteBuffer newTakeRequest(IDCategory category, long idSetSize) {
+		byte[] categoryName = category.getName().getBytes(IDGeneratorConstants.UTF8_CHARSET);
+		ByteBuffer request = newRequest(TAKE, categoryName, LONG_SIZE);
+		request.putLong(idSetSize);
+		request.flip();
+		return request;
+	}
+
+	public static ByteBuffer newPushRequest(IDSet idSet) throws IDGeneratorException {
+		byte[] categoryName = idSet.getCategory().getName().getBytes(IDGeneratorConstants.UTF8_CHARSET);
+		byte[] data = IDSetCodecs.BINARY.encode(idSet);
+		ByteBuffer request = newRequest(PUSH, categoryName, data.length);
+		request.put(data);
+		request.flip();
+		return request;
+	}
+
+	public static ByteBuffer newResponse(byte status, byte[] payload) {
+		ByteBuffer response = ByteBuffer.allocate(FRAME_LENGTH_SIZE + STATUS_SIZE + payload.length);
+		response.putInt(STATUS_SIZE + payload.length);
+		response.put(status);
+		response.put(payload);
+		response.flip();
+		return response;
+	}
+
+	public static ByteBuffer newErrorResponse(byte status, String message) {
+		return newResponse(status, String.valueOf(message).getBytes(IDGeneratorConstants.UTF8_CHARSET));
+	}
+
+	public static IDCategory readCategory(ByteBuffer frame) {
+		int categoryNameLength = frame.getShort() & MAX_CATEGORY_NAME_LENGTH;
+		byte[] categoryName = new byte[categoryNameLength];
+		frame.get(categoryName);
+		return new IDCategory(new String(categoryName, IDGeneratorConstants.UTF8_CHARSET));
+	}
+
+	public static byte[] readRemaining(ByteBuffer frame) {
+		byte[] remaining = new byte[frame.remaining()];
+		frame.get(remaining);
+		return remaining;
+	}
+
+	public static void validateFrameLength(int frameLength) throws IDGeneratorException {
+		if (frameLength <= 0 || frameLength > MAX_FRAME_LENGTH) {
+			throw new IDGeneratorException("Invalid frame length: "+frameLength+"; must be between 1 and "+MAX_FRAME_LENGTH);
+		}
+	}
+
+
+	private static ByteBuffer newRequest(byte operation, byte[] categoryName, int argumentLength) {
+		if (categoryName.length > MAX_CATEGORY_NAME_LENGTH) {
+			throw new IllegalArgumentException("Category name too long: "+categoryName.length+" bytes");
+		}
+		int frameLength = OPERATION_SIZE + SHORT_SIZE + categoryName.length + argumentLength;
+		ByteBuffer request = ByteBuffer.allocate(FRAME_LENGTH_SIZE + frameLength);
+		request.putInt(frameLength);
+		request.put(operation);
+		request.putShort((short)categoryName.length);
+		request.put(categoryName);
+		return request;
+	}
+
+	public static final byte TAKE = 1;
+	public static final byte PUSH = 2;
+	public static final byte OK = 0;
+	public static final byte EXHAUSTED = 1;
+	public static final byte ERROR = 2;
+	public static final int FRAME_LENGTH_SIZE = 4;
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * IDGeneratorConstants.ONE_KILO_BYTE;
+	private static final int OPERATION_SIZE = 1;
+	private static final int STATUS_SIZE = 1;
+	private static final int SHORT_SIZE = 2;
+	private static final int LONG_SIZE = 8;
+	private static final int MAX_CATEGORY_NAME_LENGTH = 0xFFFF;
+}
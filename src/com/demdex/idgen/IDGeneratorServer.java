@@ -0,0 +1,551 @@
+package com.demdex.idgen;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.demdex.util.concurrent.DaemonThreadFactory;
+
+/**
+ * A host-local daemon that serves takes and pushes of ID's to any number of processes on the same host, so that the
+ * provider only sees a single client per host, and short-lived processes get ID's without opening a session of their own.
+ *
+ * The server holds one PrefetchingIDPool per category it's asked for, and serves each request from the pool's leased ID's
+ * in memory;  pushed ID's go back into the pool, rather than to the provider.  Clients (see IDGeneratorClient) talk to it
+ * over a loopback socket, using the pipelined binary protocol described in IDGeneratorProtocol.  All connections are
+ * served by a single selector thread, which never waits on the provider:  a take whose pool has been drained before the
+ * pool's background refill has completed is handed to a worker thread, which waits for the refill and then has the
+ * selector thread send the response (after any responses to earlier requests on the same connection).
+ *
+ * Closing the server closes its pools, which pushes their unused ID's back to the IDGenerator;  the IDGenerator itself
+ * is left open.
+ *
+ * Note that an IDGeneratorServer is threadsafe.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class IDGeneratorServer {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage:\tIDGeneratorServer <ZooKeeper hostname list> [<port>]");
+			System.exit(1);
+		}
+		String zkHostList = args[0];
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : IDGeneratorConstants.DEFAULT_SERVER_PORT;
+
+		final IDGenerator idGenerator = new IDGenerator(new ZooKeeperIDProvider(zkHostList, DEFAULT_SESSION_TIMEOUT));
+		idGenerator.open();
+		final IDGeneratorServer server = new IDGeneratorServer(idGenerator, port);
+		server.open();
+		Runtime.getRuntime().addShutdownHook(new Thread(SHUTDOWN_THREAD_NAME) {
+			public void run() {
+				try {
+					server.close();
+					idGenerator.close();
+				}
+				catch (IDGeneratorException e) {
+					server.logger.error("Error shutting down ID generator server", e);
+				}
+			}
+		});
+	}
+
+	public IDGeneratorServer(IDGenerator idGenerator) {
+		this(idGenerator, IDGeneratorConstants.DEFAULT_SERVER_PORT);
+	}
+
+	public IDGeneratorServer(IDGenerator idGenerator, int port) {
+		this.idGenerator = idGenerator;
+		this.port = port;
+		logger = LoggerFactory.getLogger(IDGeneratorServer.class);
+	}
+
+	/**
+	 * Creates a server whose pools lease ID's in blocks of <code>leaseSize</code>, rather than sizing their leases using
+	 * the IDGenerator's LeaseSizingPolicy.
+	 */
+	public IDGeneratorServer(IDGenerator idGenerator, int port, long leaseSize) {
+		this(idGenerator, port);
+		if (leaseSize <= 0) {
+			throw new IllegalArgumentException("Invalid lease size: "+leaseSize+"; lease size must be at least 1 ID");
+		}
+		this.leaseSize = leaseSize;
+	}
+
+	public synchronized void open() throws IDGeneratorException {
+		if (!closed) {
+			throw new IllegalStateException("ID generator server on port "+port+" is already open");
+		}
+		try {
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(null), port));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		catch (IOException e) {
+			closeChannels();
+			throw new IDGeneratorException("Can't open ID generator server on port "+port, e);
+		}
+		closed = false;
+		takeExecutor = Executors.newFixedThreadPool(TAKE_THREAD_COUNT, new DaemonThreadFactory(TAKE_THREAD_NAME_PREFIX));
+		serverThread = new Thread(new ServerLoop(), SERVER_THREAD_NAME);
+		serverThread.start();
+		logger.info("ID generator server listening on {}", serverChannel.socket().getLocalSocketAddress());
+	}
+
+	public void close() throws IDGeneratorException {
+		logger.info("Closing ID generator server on port {} ...", port);
+		Thread currServerThread;
+		synchronized(this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			currServerThread = serverThread;
+			serverThread = null;
+		}
+		selector.wakeup();
+		takeExecutor.shutdown();
+		try {
+			currServerThread.join();
+			// waiting takes only wait for their pools' refills, so they finish without being interrupted
+			takeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IDGeneratorException("Interrupted while waiting for ID generator server to stop", e);
+		}
+		closeChannels();
+		completedConnections.clear();
+
+		// the server and worker threads have stopped, so the pools can no longer be used concurrently
+		IDGeneratorException poolCloseException = null;
+		for (PrefetchingIDPool pool : pools.values()) {
+			try {
+				pool.close();
+			}
+			catch (IDGeneratorException e) {
+				logger.warn("Error closing ID pool for category "+pool.getCategory().toString(), e);
+				if (poolCloseException == null) {
+					poolCloseException = e;
+				}
+			}
+		}
+		pools.clear();
+		if (poolCloseException != null) {
+			throw poolCloseException;
+		}
+		logger.info("ID generator server on port {} closed", port);
+	}
+
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Returns the port the server is listening on, which is only known before the server is opened if it wasn't created
+	 * with port 0 (i.e., any free port).
+	 */
+	public synchronized int getPort() {
+		if (closed) {
+			return port;
+		}
+		return serverChannel.socket().getLocalPort();
+	}
+
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Connection(channel, key));
+		logger.debug("Accepted connection from {}", channel.socket().getRemoteSocketAddress());
+	}
+
+	/**
+	 * Serves a request, and returns its response.  A take from an empty pool is handed to a worker thread, in which case
+	 * the response returned is only completed once the take has.
+	 */
+	private Response handleRequest(Connection connection, ByteBuffer frame) {
+		try {
+			byte operation = frame.get();
+			IDCategory category = IDGeneratorProtocol.readCategory(frame);
+			switch (operation) {
+				case IDGeneratorProtocol.TAKE:
+					PrefetchingIDPool pool = getPool(category);
+					long idSetSize = frame.getLong();
+					IDSet takenIDs = pool.pollIDs(idSetSize);
+					if (takenIDs == null) {
+						Response response = new Response();
+						takeExecutor.execute(new WaitingTake(connection, pool, idSetSize, response));
+						return response;
+					}
+					return new Response(newTakeResponse(takenIDs));
+				case IDGeneratorProtocol.PUSH:
+					IDSet pushedIDs = IDSetCodecs.BINARY.decode(category, IDGeneratorProtocol.readRemaining(frame));
+					getPool(category).pushIDs(pushedIDs);
+					return new Response(IDGeneratorProtocol.newResponse(IDGeneratorProtocol.OK, NO_PAYLOAD));
+				default:
+					return new Response(
+						IDGeneratorProtocol.newErrorResponse(IDGeneratorProtocol.ERROR, "Unknown operation: "+operation)
+					);
+			}
+		}
+		catch (IDGeneratorException e) {
+			return new Response(newErrorResponse(e));
+		}
+		catch (RuntimeException e) {
+			return new Response(newErrorResponse(e));
+		}
+	}
+
+	private ByteBuffer newTakeResponse(IDSet takenIDs) throws IDGeneratorException {
+		return IDGeneratorProtocol.newResponse(IDGeneratorProtocol.OK, IDSetCodecs.BINARY.encode(takenIDs));
+	}
+
+	private ByteBuffer newErrorResponse(Exception e) {
+		if (e instanceof NoSuchElementException) {
+			return IDGeneratorProtocol.newErrorResponse(IDGeneratorProtocol.EXHAUSTED, e.getMessage());
+		}
+		logger.warn("Error serving ID generator request", e);
+		return IDGeneratorProtocol.newErrorResponse(
+			IDGeneratorProtocol.ERROR,
+			e instanceof IDGeneratorException ? e.getMessage() : e.toString()
+		);
+	}
+
+	/**
+	 * Called by the selector thread to send the responses to any takes completed by worker threads since the last call.
+	 */
+	private void writeCompletedResponses() {
+		Connection connection;
+		while ((connection = completedConnections.poll()) != null) {
+			if (!connection.isOpen()) {
+				continue;
+			}
+			try {
+				connection.write();
+			}
+			catch (IOException e) {
+				logger.debug("Closing connection after I/O error", e);
+				connection.close();
+			}
+		}
+	}
+
+	private PrefetchingIDPool getPool(IDCategory category) {
+		PrefetchingIDPool pool = pools.get(category);
+		if (pool == null) {
+			pool =
+				leaseSize == ADAPTIVE_LEASE_SIZE
+					? new PrefetchingIDPool(idGenerator, category)
+					: new PrefetchingIDPool(idGenerator, category, leaseSize);
+			pools.put(category, pool);
+		}
+		return pool;
+	}
+
+	private void closeChannels() {
+		if (selector != null) {
+			for (SelectionKey key : selector.keys()) {
+				closeQuietly(key.channel());
+			}
+			try {
+				selector.close();
+			}
+			catch (IOException e) {
+				logger.debug("Ignoring error while closing selector", e);
+			}
+		}
+		closeQuietly(serverChannel);
+	}
+
+	private void closeQuietly(Channel channel) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			logger.debug("Ignoring error while closing "+channel, e);
+		}
+	}
+
+
+	private class ServerLoop implements Runnable {
+
+		public void run() {
+			while (!closed) {
+				try {
+					selector.select();
+				}
+				catch (IOException e) {
+					logger.error("ID generator server on port "+port+" failed; no longer serving requests", e);
+					return;
+				}
+				writeCompletedResponses();
+				Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						try {
+							accept();
+						}
+						catch (IOException e) {
+							logger.warn("Error accepting connection", e);
+						}
+						continue;
+					}
+					Connection connection = (Connection)key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					}
+					catch (IOException e) {
+						logger.debug("Closing connection after I/O error", e);
+						connection.close();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A client connection, which buffers partially received requests and the responses not yet written.
+	 */
+	private class Connection {
+
+		public Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+
+		public void read() throws IOException {
+			if (channel.read(readBuffer) < 0) {
+				close();
+				return;
+			}
+			readBuffer.flip();
+			try {
+				// serve every complete request received so far, so that pipelined requests are answered in one write
+				while (readBuffer.remaining() >= IDGeneratorProtocol.FRAME_LENGTH_SIZE) {
+					int frameLength = readBuffer.getInt(readBuffer.position());
+					IDGeneratorProtocol.validateFrameLength(frameLength);
+					if (readBuffer.remaining() < IDGeneratorProtocol.FRAME_LENGTH_SIZE + frameLength) {
+						break;
+					}
+					ByteBuffer frame = readBuffer.duplicate();
+					frame.position(readBuffer.position() + IDGeneratorProtocol.FRAME_LENGTH_SIZE);
+					frame.limit(frame.position() + frameLength);
+					readBuffer.position(frame.limit());
+					pendingResponses.add(handleRequest(this, frame.slice()));
+				}
+			}
+			catch (IDGeneratorException e) {
+				logger.warn("Closing connection from {}: {}", channel.socket().getRemoteSocketAddress(), e.getMessage());
+				close();
+				return;
+			}
+			readBuffer.compact();
+			resizeReadBuffer();
+			write();
+		}
+
+		/**
+		 * Writes as many of the responses as possible, in request order:  i.e., up to the first response that is still
+		 * waiting for its take to complete.
+		 */
+		public void write() throws IOException {
+			List<ByteBuffer> completedResponses = new ArrayList<ByteBuffer>(pendingResponses.size());
+			for (Response response : pendingResponses) {
+				if (!response.isCompleted()) {
+					break;
+				}
+				completedResponses.add(response.getBuffer());
+			}
+			if (!completedResponses.isEmpty()) {
+				channel.write(completedResponses.toArray(new ByteBuffer[completedResponses.size()]));
+				while (!pendingResponses.isEmpty() && pendingResponses.getFirst().isWritten()) {
+					pendingResponses.removeFirst();
+				}
+			}
+			// a response that is still waiting for its take is written once the take completes, not when the channel is ready
+			key.interestOps(
+				!pendingResponses.isEmpty() && pendingResponses.getFirst().isCompleted()
+					? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+					: SelectionKey.OP_READ
+			);
+		}
+
+		public void close() {
+			key.cancel();
+			closeQuietly(channel);
+		}
+
+		public boolean isOpen() {
+			return key.isValid();
+		}
+
+
+		private void resizeReadBuffer() {
+			int requiredCapacity = IDGeneratorConstants.DEFAULT_BUFFER_SIZE;
+			if (readBuffer.position() >= IDGeneratorProtocol.FRAME_LENGTH_SIZE) {
+				requiredCapacity = Math.max(requiredCapacity, IDGeneratorProtocol.FRAME_LENGTH_SIZE + readBuffer.getInt(0));
+			}
+			if (
+				requiredCapacity > readBuffer.capacity() ||
+				(readBuffer.position() == 0 && readBuffer.capacity() > IDGeneratorConstants.MAX_RETAINED_BUFFER_SIZE)
+			) {
+				ByteBuffer resizedBuffer = ByteBuffer.allocate(requiredCapacity);
+				readBuffer.flip();
+				resizedBuffer.put(readBuffer);
+				readBuffer = resizedBuffer;
+			}
+		}
+
+		private SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer readBuffer = ByteBuffer.allocate(IDGeneratorConstants.DEFAULT_BUFFER_SIZE);
+		private LinkedList<Response> pendingResponses = new LinkedList<Response>();
+	}
+
+	/**
+	 * The response to a request, which is completed either right away, or by the worker thread serving the request.
+	 */
+	private static class Response {
+
+		public Response() {
+		}
+
+		public Response(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public void complete(ByteBuffer completedBuffer) {
+			buffer = completedBuffer;
+		}
+
+		public boolean isCompleted() {
+			return buffer != null;
+		}
+
+		public boolean isWritten() {
+			return buffer != null && !buffer.hasRemaining();
+		}
+
+		public ByteBuffer getBuffer() {
+			return buffer;
+		}
+
+		private volatile ByteBuffer buffer;
+	}
+
+	/**
+	 * A take from a pool that was empty when the request was received, which waits for the pool's refill on a worker
+	 * thread, and then hands the response back to the selector thread.
+	 */
+	private class WaitingTake implements Runnable {
+
+		public WaitingTake(Connection connection, PrefetchingIDPool pool, long idSetSize, Response response) {
+			this.connection = connection;
+			this.pool = pool;
+			this.idSetSize = idSetSize;
+			this.response = response;
+		}
+
+		public void run() {
+			ByteBuffer buffer;
+			try {
+				buffer = newTakeResponse(pool.takeIDs(idSetSize));
+			}
+			catch (IDGeneratorException e) {
+				buffer = newErrorResponse(e);
+			}
+			catch (RuntimeException e) {
+				buffer = newErrorResponse(e);
+			}
+			response.complete(buffer);
+			completedConnections.add(connection);
+			selector.wakeup();
+		}
+
+		private Connection connection;
+		private PrefetchingIDPool pool;
+		private long idSetSize;
+		private Response response;
+	}
+
+	private static final long ADAPTIVE_LEASE_SIZE = 0;
+	private static final byte[] NO_PAYLOAD = new byte[0];
+	private static final int DEFAULT_SESSION_TIMEOUT = 10000;
+	private static final int TAKE_THREAD_COUNT = 4;
+	private static final String SERVER_THREAD_NAME = "idgen-server";
+	private static final String TAKE_THREAD_NAME_PREFIX = "idgen-server-take";
+	private static final String SHUTDOWN_THREAD_NAME = "idgen-server-shutdown";
+	private IDGenerator idGenerator;
+	private int port;
+	private long leaseSize = ADAPTIVE_LEASE_SIZE;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private Thread serverThread;
+	private ExecutorService takeExecutor;
+	private Queue<Connection> completedConnections = new ConcurrentLinkedQueue<Connection>();
+	private Map<IDCategory,PrefetchingIDPool> pools = new HashMap<IDCategory,PrefetchingIDPool>();
+	private volatile boolean closed = true;
+	private Logger logger;
+}
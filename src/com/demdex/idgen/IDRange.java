@@ -67,24 +67,36 @@ public class IDRange implements Comparable<IDRange>, Cloneable {
 
 	public IDRange takeIDs(long idRangeSize) {
 		validateNotReadOnly();
-		long takenStartID;
-		synchronized(this) {
-			long size = getSize();
-			if (size == 0) {
-				throw new IllegalArgumentException("Can't take id's; IDRange is empty");
-			}
-			if (idRangeSize > size) {
-				// if requesting more than maximum available amount of ID's, only return maximum
-				idRangeSize = size;
-			}
-			takenStartID = currStartID.getAndAdd(idRangeSize);
+		IDRange takenIDs = tryTakeIDs(idRangeSize);
+		if (takenIDs == null) {
+			throw new IllegalArgumentException("Can't take id's; IDRange is empty");
+		}
+		return takenIDs;
+	}
+
+	public long takeID() {
+		validateNotReadOnly();
+		long takenID = tryTakeID();
+		if (takenID > endID) {
+			throw new IllegalArgumentException("Can't take id; IDRange is empty");
 		}
-		return new IDRange(takenStartID, takenStartID + idRangeSize - 1);
+		return takenID;
 	}
 
-	public synchronized long takeID() {
+	/**
+	 * Takes up to len ID's from the front of the range, writing them consecutively into dest starting at index off, and
+	 * returns the number of ID's taken (which is 0 if the range is empty).
+	 */
+	public int fill(long[] dest, int off, int len) {
 		validateNotReadOnly();
-		return currStartID.getAndIncrement();
+		checkBounds(dest, off, len);
+		IDRange takenIDs = tryTakeIDs(len);
+		if (takenIDs == null) {
+			return 0;
+		}
+		int numTaken = (int)takenIDs.getSize();
+		fill(dest, off, takenIDs.getStartID(), numTaken);
+		return numTaken;
 	}
 
 	public long peekNextID() {
@@ -128,11 +140,11 @@ public class IDRange implements Comparable<IDRange>, Cloneable {
 	}
 
 	public int compareTo(IDRange other) {
-		long diff = endID - other.endID;
-		if (diff < 0) {
+		// (subtracting the end ID's could overflow)
+		if (endID < other.endID) {
 			return LESS_THAN;
 		}
-		if (diff > 0) {
+		if (endID > other.endID) {
 			return GREATER_THAN;
 		}
 		return EQUAL;
@@ -179,6 +191,64 @@ public class IDRange implements Comparable<IDRange>, Cloneable {
     }
 
 
+	/**
+	 * Takes the next ID from the range, without locking.  Returns the ID taken, or a value greater than the range's end ID
+	 * if the range is empty.
+	 */
+	long tryTakeID() {
+		while (true) {
+			long takenID = currStartID.get();
+			if (takenID > endID || currStartID.compareAndSet(takenID, takenID + 1)) {
+				return takenID;
+			}
+		}
+	}
+
+	/**
+	 * Takes up to idRangeSize ID's from the front of the range, without locking.  Returns null if the range is empty.
+	 */
+	IDRange tryTakeIDs(long idRangeSize) {
+		while (true) {
+			long takenStartID = currStartID.get();
+			if (takenStartID > endID) {
+				return null;
+			}
+			long size = endID - takenStartID + 1;
+			if (idRangeSize > size) {
+				// if requesting more than maximum available amount of ID's, only return maximum
+				idRangeSize = size;
+			}
+			if (currStartID.compareAndSet(takenStartID, takenStartID + idRangeSize)) {
+				return new IDRange(takenStartID, takenStartID + idRangeSize - 1);
+			}
+		}
+	}
+
+	/**
+	 * Atomically takes all of the ID's remaining in the range (or returns null if there are none), after which no more
+	 * ID's can be taken from it.  This allows a range to be replaced (e.g., by a merged range) without any ID's being
+	 * taken from it concurrently being handed out twice.
+	 */
+	IDRange takeRemainingIDs() {
+		return tryTakeIDs(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Writes the count consecutive ID's starting at startID into dest, starting at index off.
+	 */
+	static void fill(long[] dest, int off, long startID, int count) {
+		// a simple counted loop, which the JIT can unroll and vectorize
+		for (int i = 0; i < count; i++) {
+			dest[off + i] = startID + i;
+		}
+	}
+
+	static void checkBounds(long[] dest, int off, int len) {
+		if (off < 0 || len < 0 || off > dest.length - len) {
+			throw new IndexOutOfBoundsException("Invalid offset/length: "+off+", "+len+" for array of length "+dest.length);
+		}
+	}
+
 	void setReadOnly() {
 		readOnly = true;
 	}
@@ -0,0 +1,69 @@
+package com.demdex.idgen;
+
+/**
+ * The internal storage of an IDSet's ranges.
+ *
+ * A store keeps its ranges sorted, non-overlapping and merged (i.e., no two ranges are adjacent), and takes ID's from its
+ * lowest range first.  Callers are responsible for checking that ranges being added don't overlap existing ones (using
+ * validateNoOverlap) before adding them.
+ *
+ * Note that implementations must be threadsafe.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+abstract class IDRangeStore {
+
+	/**
+	 * Returns the number of ID's in the store.  Implementations track this incrementally, so it takes constant time.
+	 */
+	public abstract long getSize();
+
+	public abstract int getRangeCount();
+
+	/**
+	 * Returns the size of the store's largest range (i.e., its longest run of contiguous ID's), or 0 if it's empty.
+	 */
+	public abstract long getLargestRangeSize();
+
+	public abstract boolean hasMoreIDs();
+
+	public abstract long peekNextID();
+
+	public abstract long takeID();
+
+	/**
+	 * Takes up to idSetSize ID's from the front of the store, passing each range of ID's taken to the visitor, and returns
+	 * the number of ID's taken.
+	 */
+	public abstract long takeIDs(long idSetSize, IDSet.RangeVisitor takenRanges);
+
+	public abstract void validateNoOverlap(long startID, long endID, IDSet idSet);
+
+	public abstract void addRange(long startID, long endID);
+
+	public abstract void visitRanges(IDSet.RangeVisitor visitor);
+
+	/**
+	 * Removes all of the ranges from the store, passing each one to the visitor.  No ID passed to the visitor can be taken
+	 * from the store concurrently.
+	 */
+	public abstract void drainRanges(IDSet.RangeVisitor visitor);
+}
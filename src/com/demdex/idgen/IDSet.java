@@ -1,14 +1,13 @@
 package com.demdex.idgen;
 
 import java.io.PrintWriter;
+import java.nio.LongBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.NavigableSet;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ConcurrentSkipListSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,7 +19,10 @@ import org.slf4j.LoggerFactory;
  * Note that given a call to <code>idSet.takeIDs(idSetSize)</code>, if <code>idSetSize > idSet.getSize()</code>,
  * the IDSet will *not* throw an exception, but rather will return an IDSet of size <code>idSet.getSize()</code>.
  * 
- * Note that an IDSet is threadsafe.
+ * Note that an IDSet is threadsafe.  How its ranges are stored depends on the set's Storage:  by default (SKIP_LIST) they
+ * are held in a concurrent skip list, and taking ID's from the set is lock-free; alternatively (ARRAY) they are held in
+ * sorted primitive arrays, which is far more compact and faster to iterate over for sets with many ranges, but
+ * serializes all access to the set.  Sets decoded from a category's data use ARRAY storage.
  * 
  * Note:  For data integrity reasons an IDSet must never publicly expose - or allow any calling client to access -
  * its internal collection of IDRanges, or any of the individual IDRanges held within it.  We do not want clients
@@ -57,12 +59,24 @@ import org.slf4j.LoggerFactory;
 
 public class IDSet {
 
+	/**
+	 * The ways in which an IDSet's ranges can be stored.
+	 */
+	public enum Storage {
+		SKIP_LIST,
+		ARRAY;
+
+		IDRangeStore newStore() {
+			return this == ARRAY ? new ArrayIDRangeStore() : new SkipListIDRangeStore();
+		}
+	}
+
     public IDSet(IDCategory category, String initIdRangesStr) {
         this(category, IDRange.parseMultiple(initIdRangesStr));
     }
 
 	public IDSet(IDCategory category, List<IDRange> initIDRanges) {
-		this(category, initIDRanges, EXTERNAL);
+		this(category, initIDRanges, DEFAULT_STORAGE);
 	}
 
 	public IDSet(IDCategory category, IDRange idRange) {
@@ -75,21 +89,28 @@ public class IDSet {
 
 	public IDSet(IDCategory category) {
 		// empty IDSet
-		this(category, toList(null));
+		this(category, DEFAULT_STORAGE);
+	}
+
+	public IDSet(IDCategory category, Storage storage) {
+		this(category, toList(null), storage);
 	}
 
 	public IDSet(IDCategory category, IDRange... initIDRanges) {
 		this(category, Arrays.asList(initIDRanges));
 	}
 
-	private IDSet(IDCategory category, List<IDRange> initIDRanges, boolean idRangeSource) {
+	public IDSet(IDCategory category, List<IDRange> initIDRanges, Storage storage) {
 		this.category = category;
+		this.storage = storage;
+		idRanges = storage.newStore();
 		for (IDRange initIDRange : initIDRanges) {
-			validateNoOverlap(initIDRange);
-			if (idRangeSource == EXTERNAL) {
-				initIDRange = initIDRange.copy();
+			if (!initIDRange.hasMoreIDs()) {
+				continue;
 			}
-			addIDRange(initIDRange);
+			long startID = initIDRange.peekNextID();
+			idRanges.validateNoOverlap(startID, initIDRange.getEndID(), this);
+			idRanges.addRange(startID, initIDRange.getEndID());
 		}
 		logger = LoggerFactory.getLogger(IDSet.class);
 	}
@@ -98,77 +119,122 @@ public class IDSet {
 		return category;
 	}
 
+	public Storage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Returns the number of ID's in the set.  The count is maintained as ID's are taken and pushed, so this takes
+	 * constant time regardless of how fragmented the set is.
+	 */
 	public long getSize() {
-		long size = 0;
-		for (IDRange range : idRanges) {
-			size += range.getSize();
-		}
-		return size;
+		return idRanges.getSize();
+	}
+
+	/**
+	 * Returns the number of contiguous ranges that the set's ID's are split into.
+	 */
+	public int getRangeCount() {
+		return idRanges.getRangeCount();
+	}
+
+	/**
+	 * Returns the size of the set's longest run of contiguous ID's, or 0 if the set is empty.
+	 */
+	public long getLargestRangeSize() {
+		return idRanges.getLargestRangeSize();
 	}
 
 	public IDSet takeIDs(long idSetSize) {
 		validateNotReadOnly(this);
-		List<IDRange> takenRanges;
-		synchronized(this) {
-			if (logger.isTraceEnabled()) logger.trace("Taking {} ID's from ID set: {}", Long.toString(idSetSize), toString());
-			long size = getSize();
-			if (size == 0) {
-				throw new NoSuchElementException("Can't take id's; IDSet is empty");
+		if (logger.isTraceEnabled()) logger.trace("Taking {} ID's from ID set: {}", Long.toString(idSetSize), toString());
+		final IDSet takenIDSet = new IDSet(category);
+		long numTaken = idRanges.takeIDs(idSetSize, new RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				takenIDSet.idRanges.addRange(startID, endID);
 			}
-			if (idSetSize > size) {
-				logger.trace(
-					"Requested 'take size' of {} exceeds current size of IDSet; using set's current size of {} instead",
-					idSetSize,
-					size
-				);
-				idSetSize = size;
-			}
-			long numTaken = 0;
-			takenRanges = new LinkedList<IDRange>();
-			while (numTaken < idSetSize) {
-				long numToBeTaken = idSetSize - numTaken;
-				IDRange firstRange = idRanges.first();
-				long numToBeTakenFromRange = Math.min(numToBeTaken, firstRange.getSize());
-				IDRange takenIDRange = firstRange.takeIDs(numToBeTakenFromRange);
-				takenRanges.add(takenIDRange);
-				numTaken += numToBeTakenFromRange;
-				if (!firstRange.hasMoreIDs()) {
-					takeFirstRange();
-				}
+		});
+		if (numTaken < idSetSize) {
+			// (checking hasMoreIDs() instead could return an empty set, if ID's are pushed concurrently after the take)
+			if (numTaken == 0 && idSetSize > 0) {
+				throw new NoSuchElementException("Can't take id's; IDSet is empty");
 			}
+			logger.trace(
+				"Requested 'take size' of {} exceeds current size of IDSet; using set's current size of {} instead",
+				idSetSize,
+				numTaken
+			);
 		}
-		IDSet takenIDSet = new IDSet(category, takenRanges, INTERNAL);
 		if (logger.isTraceEnabled()) logger.trace("Took ID's from set; ID's taken: {}, ID's remaining: {}", takenIDSet.toString(), toString());
 		return takenIDSet;
 	}
 
 	public long takeID() {
 		validateNotReadOnly(this);
-		long takenID;
-		synchronized(this) {
-			if (logger.isTraceEnabled()) logger.trace("Taking single ID from ID set {}", toString());
-			if (idRanges.size() == 0) {
-				throw new NoSuchElementException("No more id's remaining in set");
-			}
-			IDRange firstRange = idRanges.first();
-			takenID = firstRange.takeID();
-			if (!firstRange.hasMoreIDs()) {
-				takeFirstRange();
+		return idRanges.takeID();
+	}
+
+	public long peekNextID() {
+		return idRanges.peekNextID();
+	}
+
+	/**
+	 * Takes up to len ID's from the set, writing them into dest (in ascending order) starting at index off, and returns
+	 * the number of ID's taken.  This is much cheaper than taking ID's one at a time:  ID's are taken a range at a
+	 * time, and written into the array in a tight loop.
+	 */
+	public int takeInto(final long[] dest, final int off, int len) {
+		validateNotReadOnly(this);
+		IDRange.checkBounds(dest, off, len);
+		if (len == 0) {
+			return 0;
+		}
+		int numTaken = (int)idRanges.takeIDs(len, new RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				int count = (int)(endID - startID + 1);
+				IDRange.fill(dest, pos, startID, count);
+				pos += count;
 			}
+			private int pos = off;
+		});
+		if (numTaken == 0) {
+			throw new NoSuchElementException("Can't take id's; IDSet is empty");
 		}
-		if (logger.isTraceEnabled()) logger.trace("Took ID from set; ID taken: {}, ID's remaining: {}", Long.toString(takenID), toString());
-		return takenID;
+		return numTaken;
 	}
 
-	public long peekNextID() {
-        if (idRanges.size() == 0) {
-            throw new NoSuchElementException("No more id's remaining in set");
-        }
-		IDRange firstRange = idRanges.first();
-		return firstRange.peekNextID();
+	/**
+	 * Takes up to <code>dest.remaining()</code> ID's from the set, putting them into dest (in ascending order), and
+	 * returns the number of ID's taken.
+	 */
+	public int takeInto(final LongBuffer dest) {
+		if (dest.isReadOnly()) {
+			throw new ReadOnlyBufferException();
+		}
+		if (dest.hasArray()) {
+			int numTaken = takeInto(dest.array(), dest.arrayOffset() + dest.position(), dest.remaining());
+			dest.position(dest.position() + numTaken);
+			return numTaken;
+		}
+		validateNotReadOnly(this);
+		if (!dest.hasRemaining()) {
+			return 0;
+		}
+		int numTaken = (int)idRanges.takeIDs(dest.remaining(), new RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				int count = (int)(endID - startID + 1);
+				for (int i = 0; i < count; i++) {
+					dest.put(startID + i);
+				}
+			}
+		});
+		if (numTaken == 0) {
+			throw new NoSuchElementException("Can't take id's; IDSet is empty");
+		}
+		return numTaken;
 	}
 
-	public void pushIDs(IDSet pushedIDSet) {
+	public void pushIDs(final IDSet pushedIDSet) {
 		if (!pushedIDSet.category.equals(category)) {
 			throw new IllegalArgumentException(
 				"Can't push id set: "+pushedIDSet.toString()+" to id set: "+toString()+"; categories do not match"
@@ -178,15 +244,18 @@ public class IDSet {
 		validateNotReadOnly(this);
 		synchronized(pushedIDSet) {
 			if (logger.isTraceEnabled()) logger.trace("Pushing ID's: {} to ID set: {}", pushedIDSet.toString(), toString());
-			for (IDRange pushedIDRange : pushedIDSet.idRanges) {
-				validateNoOverlap(pushedIDRange);
-			}
+			pushedIDSet.idRanges.visitRanges(new RangeVisitor() {
+				public void visitRange(long startID, long endID) {
+					idRanges.validateNoOverlap(startID, endID, IDSet.this);
+				}
+			});
 
 			synchronized(this) {
-    			while(pushedIDSet.hasMoreIDs()) {
-    				IDRange pushedIDRange = pushedIDSet.takeFirstRange();
-    	            addIDRange(pushedIDRange);
-    			}
+				pushedIDSet.idRanges.drainRanges(new RangeVisitor() {
+					public void visitRange(long startID, long endID) {
+						idRanges.addRange(startID, endID);
+					}
+				});
 			}
 			if (logger.isTraceEnabled()) logger.trace("Pushed ID's to set; ID's now remaining: {}", toString());
 		}
@@ -204,30 +273,34 @@ public class IDSet {
 		rangesToString(buf);
 	}
 
-	public void rangesToString(StringBuilder buf) {
-		boolean firstRange = true;
-		for (IDRange range : idRanges) {
-			if (!firstRange) {
-				buf.append(IDGeneratorConstants.RANGE_SEPARATOR);
+	public void rangesToString(final StringBuilder buf) {
+		idRanges.visitRanges(new RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				if (!firstRange) {
+					buf.append(IDGeneratorConstants.RANGE_SEPARATOR);
+				}
+				buf.append(startID);
+				buf.append(IDGeneratorConstants.RANGE_VALUES_SEPARATOR);
+				buf.append(endID);
+				firstRange = false;
 			}
-			range.toString(buf);
-			firstRange = false;
-		}
+			private boolean firstRange = true;
+		});
 	}
 	
-	public void write(PrintWriter out) {
-		for (IDRange range : idRanges) {
-			range.write(out);
-			out.println();
-		}
+	public void write(final PrintWriter out) {
+		idRanges.visitRanges(new RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				out.print(startID);
+				out.print(IDGeneratorConstants.RANGE_VALUES_SEPARATOR);
+				out.print(endID);
+				out.println();
+			}
+		});
 	}
 
 	public boolean hasMoreIDs() {
-		if (idRanges.size() == 0) {
-			return false;
-		}
-		IDRange firstRange = idRanges.first();
-		return firstRange.hasMoreIDs();
+		return idRanges.hasMoreIDs();
 	}
 
 	public boolean isReadOnly() {
@@ -235,14 +308,78 @@ public class IDSet {
 	}
 
 	public Iterator<IDRange> peekRanges() {
-		List<IDRange> peekingRanges = new ArrayList<IDRange>();
-		for (IDRange range : idRanges) {
-			peekingRanges.add(range.copy(true/*=readOnly*/));
-		}
+		final List<IDRange> peekingRanges = new ArrayList<IDRange>();
+		idRanges.visitRanges(new RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				peekingRanges.add(new IDRange(startID, endID, true/*=readOnly*/));
+			}
+		});
 		return peekingRanges.iterator();
 	}
 
 
+	IDSet copy() {
+		return copy(category);
+	}
+
+	synchronized IDSet copy(IDCategory newCategory) {
+		final IDSet copiedIDSet = new IDSet(newCategory, storage);
+		idRanges.visitRanges(new RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				copiedIDSet.idRanges.addRange(startID, endID);
+			}
+		});
+		return copiedIDSet;
+	}
+
+	/**
+	 * Like copy(), but takes the ID's from this set, e.g. to hand a shard's lease out under its logical category.  Unlike
+	 * a copy, the drained set leaves no ID's behind for a LeaseTracker to return once it becomes unreachable.
+	 */
+	IDSet drain(IDCategory newCategory) {
+		final IDSet drainedIDSet = new IDSet(newCategory, storage);
+		takeRanges(Long.MAX_VALUE, new RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				drainedIDSet.idRanges.addRange(startID, endID);
+			}
+		});
+		return drainedIDSet;
+	}
+
+	/**
+	 * Takes up to idSetSize ID's from the front of the set, passing each range of ID's taken to the visitor (rather than
+	 * collecting them into a new IDSet), and returns the number of ID's taken.
+	 */
+	long takeRanges(long idSetSize, RangeVisitor takenRanges) {
+		validateNotReadOnly(this);
+		return idRanges.takeIDs(idSetSize, takenRanges);
+	}
+
+	/**
+	 * Adds a single range to the set, merging it with any adjacent ranges.
+	 */
+	synchronized void addRange(long startID, long endID) {
+		validateNotReadOnly(this);
+		idRanges.validateNoOverlap(startID, endID, this);
+		idRanges.addRange(startID, endID);
+	}
+
+	/**
+	 * Calls the visitor with the bounds of each of the set's ranges, in ascending order, without exposing the ranges
+	 * themselves.
+	 */
+	synchronized void visitRanges(RangeVisitor visitor) {
+		idRanges.visitRanges(visitor);
+	}
+
+	/**
+	 * Returns the set's internal range store.  This is only for keeping track of the set's ID's once the set itself is no
+	 * longer reachable, and must not be used to modify a set that's still in use.
+	 */
+	IDRangeStore getRangeStore() {
+		return idRanges;
+	}
+
 	static void validateNotReadOnly(IDSet idSet) {
 		if (idSet.isReadOnly()) {
 			throw new IllegalStateException("IDSet is read-only: "+idSet.toString());
@@ -250,73 +387,19 @@ public class IDSet {
 	}
 
 	void setReadOnly() {
-		for (IDRange range : idRanges) {
-			range.setReadOnly();
-		}
         readOnly = true;
 	}
 
 
-	private IDRange takeFirstRange() {
-		return idRanges.pollFirst();
-	}
-
-    private void addIDRange(IDRange newRange) {
-        synchronized(idRanges) {
-            boolean rangeMerged;
-            do {
-                rangeMerged = false;
-                IDRange previousRange = idRanges.lower(newRange);
-                if (previousRange != null) {
-                    IDRange combinedNewRange = previousRange.tryMerge(newRange);
-                    if (combinedNewRange != null) {
-                        rangeMerged = true;
-                        newRange = combinedNewRange;
-                        idRanges.remove(previousRange);
-                    }
-                }
-    
-                IDRange nextRange = idRanges.higher(newRange);
-                if (nextRange != null) {
-                    IDRange combinedNewRange = newRange.tryMerge(nextRange);
-                    if (combinedNewRange != null) {
-                        rangeMerged = true;
-                        newRange = combinedNewRange;
-                        idRanges.remove(nextRange);
-                    }
-                }
-            } while(rangeMerged);
-    
-            idRanges.add(newRange);
-        }
-    }
-
-    private void validateNoOverlap(IDRange pushedRange) {
-		if (idRanges.size() == 0) {
-			return;
-		}
-		IDRange previousRange = idRanges.lower(pushedRange);
-		if (previousRange != null) {
-			if (previousRange.getEndID() > pushedRange.getStartID()) {
-				throw new OverlappingRangeException(pushedRange, previousRange, this);
-			}
-		}
-		else {
-			IDRange firstRange = idRanges.first();
-			if (firstRange == null) {
-				return;
-			}
-			if (pushedRange.getEndID() >= firstRange.getStartID()) {
-				throw new OverlappingRangeException(pushedRange, firstRange, this);
-			}
-		}
+	interface RangeVisitor {
+		public void visitRange(long startID, long endID);
 	}
 
-	private static class OverlappingRangeException extends IllegalArgumentException {
-        public OverlappingRangeException(IDRange pushedRange, IDRange existingRange, IDSet idSet) {
+	static class OverlappingRangeException extends IllegalArgumentException {
+        public OverlappingRangeException(long pushedStartID, long pushedEndID, long existingStartID, long existingEndID, IDSet idSet) {
             super(
-    			"Pushed range: "+pushedRange.toString()+
-    			" overlaps with range: "+existingRange.toString()+
+    			"Pushed range: "+pushedStartID+IDGeneratorConstants.RANGE_VALUES_SEPARATOR+pushedEndID+
+    			" overlaps with range: "+existingStartID+IDGeneratorConstants.RANGE_VALUES_SEPARATOR+existingEndID+
     			" in id set: "+idSet.toString()
     		);
         }
@@ -330,10 +413,10 @@ public class IDSet {
 		return ranges;
 	}
 
-	private static final boolean INTERNAL = true;
-	private static final boolean EXTERNAL = !INTERNAL;
+	private static final Storage DEFAULT_STORAGE = Storage.SKIP_LIST;
 	private IDCategory category;
+	private Storage storage;
 	private Logger logger;
-	private NavigableSet<IDRange> idRanges = new ConcurrentSkipListSet<IDRange>();
-	private boolean readOnly = false;
+	private IDRangeStore idRanges;
+	private volatile boolean readOnly = false;
 }
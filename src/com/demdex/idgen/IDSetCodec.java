@@ -0,0 +1,45 @@
+package com.demdex.idgen;
+
+/**
+ * Converts an IDSet to and from the raw bytes that an IDProvider stores for a category.
+ *
+ * The IDGenerator decodes a category's data using whichever codec recognizes it (see IDSetCodecs), but always encodes it
+ * using its configured write codec.  This allows a category's storage format to be migrated without downtime:  clients
+ * that can read the new format are deployed first, and then writers are switched over, each category being converted
+ * the next time it is written.
+ *
+ * Note that implementations must be threadsafe.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public interface IDSetCodec {
+
+	public String getName();
+
+	/**
+	 * Returns whether the given data is in this codec's format.
+	 */
+	public boolean canDecode(byte[] data);
+
+	public IDSet decode(IDCategory category, byte[] data) throws IDGeneratorException;
+
+	public byte[] encode(IDSet idSet) throws IDGeneratorException;
+}
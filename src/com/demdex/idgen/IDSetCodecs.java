@@ -0,0 +1,53 @@
+package com.demdex.idgen;
+
+/**
+ * The available IDSetCodecs, and format detection for data read from an IDProvider.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public abstract class IDSetCodecs {
+
+	public static final IDSetCodec TEXT = new TextIDSetCodec();
+	public static final IDSetCodec BINARY = new BinaryIDSetCodec();
+	private static final IDSetCodec[] ALL_CODECS = { BINARY, TEXT };
+
+	public static IDSetCodec detect(byte[] data) throws IDGeneratorException {
+		for (IDSetCodec codec : ALL_CODECS) {
+			if (codec.canDecode(data)) {
+				return codec;
+			}
+		}
+		throw new IDGeneratorException("Unrecognized id set data format");
+	}
+
+	public static IDSet decode(IDCategory category, byte[] data) throws IDGeneratorException {
+		return detect(data).decode(category, data);
+	}
+
+	public static IDSetCodec forName(String name) {
+		for (IDSetCodec codec : ALL_CODECS) {
+			if (codec.getName().equalsIgnoreCase(name)) {
+				return codec;
+			}
+		}
+		throw new IllegalArgumentException("Unknown id set format: "+name);
+	}
+}
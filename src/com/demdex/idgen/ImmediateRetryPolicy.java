@@ -0,0 +1,49 @@
+package com.demdex.idgen;
+
+/**
+ * A RetryPolicy that retries immediately, without any delay, up to a maximum number of tries.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class ImmediateRetryPolicy implements RetryPolicy {
+
+	public ImmediateRetryPolicy(int maxTryCount) {
+		if (maxTryCount <= 0) {
+			throw new IllegalArgumentException("Invalid try count; try count must be set to at least 1 try");
+		}
+		this.maxTryCount = maxTryCount;
+	}
+
+	public int getMaxTryCount() {
+		return maxTryCount;
+	}
+
+	public long getRetryDelayMillis(int failedTryCount, long elapsedMillis, long previousDelayMillis) {
+		return failedTryCount < maxTryCount ? NO_DELAY : STOP_RETRYING;
+	}
+
+	public String toString() {
+		return ImmediateRetryPolicy.class.getSimpleName()+": "+maxTryCount+" tries";
+	}
+
+	private static final long NO_DELAY = 0;
+	private int maxTryCount;
+}
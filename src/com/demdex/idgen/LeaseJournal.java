@@ -0,0 +1,386 @@
+package com.demdex.idgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local, crash-safe record of the ID's leased for a single category, kept in a memory-mapped file.
+ *
+ * Leases taken from an IDGenerator are added to the journal, and ID's are then handed out from the journal with
+ * <code>nextID()</code>.  For each leased range, the journal keeps a persisted cursor:  every ID below the cursor may
+ * have been handed out, and every ID at or above it has not.  Rather than writing the cursor on every ID, the journal
+ * advances it <code>flushInterval</code> ID's at a time, and forces it to disk each time it does so.  So if the process
+ * (or the machine) dies, at most <code>flushInterval</code> ID's per range are lost, and no ID is ever handed out twice.
+ *
+ * When a journal is opened on an existing file, the unconsumed remainder of the leases recorded in it is recovered
+ * without any provider round trip:  it can be consumed with <code>nextID()</code> as usual, or taken with
+ * <code>takeRemainingIDs()</code> and returned to the IDGenerator with <code>pushIDs()</code>.  This makes it safe to use
+ * much larger leases than would otherwise be acceptable.
+ *
+ * The file consists of a fixed-size header (magic number, version, slot capacity, slot count and category name),
+ * followed by one 24 byte slot (start ID, end ID, cursor) per leased range.  The file is grown as needed.
+ *
+ * Note that a LeaseJournal is threadsafe, and that a journal file must only be opened by one journal at a time.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class LeaseJournal {
+
+	public LeaseJournal(File file, IDCategory category) {
+		this(file, category, DEFAULT_FLUSH_INTERVAL);
+	}
+
+	public LeaseJournal(File file, IDCategory category, long flushInterval) {
+		if (flushInterval <= 0) {
+			throw new IllegalArgumentException("Invalid flush interval: "+flushInterval+"; flush interval must be at least 1 ID");
+		}
+		if (category.getName().getBytes(IDGeneratorConstants.UTF8_CHARSET).length > MAX_CATEGORY_NAME_LENGTH) {
+			throw new IllegalArgumentException("Category name too long for lease journal: "+category.getName());
+		}
+		this.file = file;
+		this.category = category;
+		this.flushInterval = flushInterval;
+		logger = LoggerFactory.getLogger(LeaseJournal.class);
+	}
+
+	public synchronized void open() throws IDGeneratorException {
+		logger.info("Opening lease journal {} for category {}", file, category);
+		try {
+			boolean exists = file.length() > 0;
+			journalFile = new RandomAccessFile(file, "rw");
+			if (exists) {
+				map(journalFile.length());
+				recover();
+			}
+			else {
+				map(toFileSize(INITIAL_SLOT_CAPACITY));
+				writeHeader();
+				buffer.force();
+			}
+		}
+		catch (IOException e) {
+			throw new IDGeneratorException("Error opening lease journal "+file, e);
+		}
+		logger.info("Lease journal {} open; {} ID's recovered", file, Long.toString(size));
+	}
+
+	public IDCategory getCategory() {
+		return category;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized boolean hasMoreIDs() {
+		return size > 0;
+	}
+
+	/**
+	 * Adds all of the ID's in the lease to the journal (taking them from the lease), and forces them to disk.
+	 */
+	public synchronized void addLease(IDSet lease) throws IDGeneratorException {
+		validateOpen();
+		// leases of a sharded category are labelled with the shard they came from
+		if (!lease.getCategory().getLogicalCategory().equals(category)) {
+			throw new IllegalArgumentException(
+				"Can't add lease: "+lease.toString()+" to lease journal for category "+category.toString()
+			);
+		}
+		final List<long[]> leasedRanges = new ArrayList<long[]>();
+		lease.takeRanges(Long.MAX_VALUE, new IDSet.RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				leasedRanges.add(new long[] { startID, endID });
+			}
+		});
+		try {
+			ensureCapacity(leasedRanges.size());
+		}
+		catch (IOException e) {
+			// the lease has already been taken, so give it back to the caller
+			for (long[] range : leasedRanges) {
+				lease.addRange(range[0], range[1]);
+			}
+			throw new IDGeneratorException("Error growing lease journal "+file, e);
+		}
+		for (long[] range : leasedRanges) {
+			writeSlot(slotCount, range[0], range[1], range[0]);
+			cursors[slotCount] = range[0];
+			size += range[1] - range[0] + 1;
+			slotCount++;
+		}
+		// the slot count is written after the slots, so that a partially written lease is never recovered
+		buffer.putInt(SLOT_COUNT_OFFSET, slotCount);
+		buffer.force();
+		logger.debug("Added {} leased range(s) to lease journal {}", Integer.toString(leasedRanges.size()), file);
+	}
+
+	public synchronized long nextID() {
+		validateOpen();
+		while (firstSlot < slotCount) {
+			long nextID = cursors[firstSlot];
+			long endID = buffer.getLong(slotOffset(firstSlot) + END_ID_OFFSET);
+			if (nextID <= endID) {
+				long persistedCursor = buffer.getLong(slotOffset(firstSlot) + CURSOR_OFFSET);
+				if (nextID >= persistedCursor) {
+					// reserve the next block of ID's before handing any of them out
+					long newCursor = endID - nextID < flushInterval ? endID + 1 : nextID + flushInterval;
+					buffer.putLong(slotOffset(firstSlot) + CURSOR_OFFSET, newCursor);
+					buffer.force();
+				}
+				cursors[firstSlot] = nextID + 1;
+				size--;
+				return nextID;
+			}
+			firstSlot++;
+		}
+		throw new NoSuchElementException("No more id's remaining in lease journal");
+	}
+
+	/**
+	 * Removes all of the ID's remaining in the journal, and returns them (e.g., so that they can be returned to the
+	 * IDGenerator).  Note that if the process dies before they've been returned, they're lost.
+	 */
+	public synchronized IDSet takeRemainingIDs() {
+		validateOpen();
+		IDSet remainingIDs = new IDSet(category);
+		for (int slot = firstSlot; slot < slotCount; slot++) {
+			long nextID = cursors[slot];
+			long endID = buffer.getLong(slotOffset(slot) + END_ID_OFFSET);
+			if (nextID <= endID) {
+				remainingIDs.addRange(nextID, endID);
+			}
+		}
+		clear();
+		buffer.force();
+		return remainingIDs;
+	}
+
+	public synchronized void close() throws IDGeneratorException {
+		if (journalFile == null) {
+			return;
+		}
+		logger.info("Closing lease journal {} ...", file);
+		buffer.force();
+		buffer = null;
+		try {
+			journalFile.close();
+		}
+		catch (IOException e) {
+			throw new IDGeneratorException("Error closing lease journal "+file, e);
+		}
+		finally {
+			journalFile = null;
+		}
+		logger.info("Lease journal {} closed", file);
+	}
+
+
+	private void recover() throws IOException {
+		if (buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+			throw new IOException("Not a lease journal: "+file);
+		}
+		int version = buffer.getInt(VERSION_OFFSET);
+		if (version != VERSION) {
+			throw new IOException("Unsupported lease journal version: "+version+" in "+file);
+		}
+		byte[] categoryNameBytes = new byte[buffer.getShort(CATEGORY_NAME_OFFSET)];
+		buffer.position(CATEGORY_NAME_OFFSET + 2);
+		buffer.get(categoryNameBytes);
+		String categoryName = new String(categoryNameBytes, IDGeneratorConstants.UTF8_CHARSET);
+		if (!categoryName.equals(category.getName())) {
+			throw new IOException("Lease journal "+file+" is for category "+categoryName+", not "+category.getName());
+		}
+		slotCapacity = buffer.getInt(SLOT_CAPACITY_OFFSET);
+		slotCount = buffer.getInt(SLOT_COUNT_OFFSET);
+		firstSlot = 0;
+		cursors = new long[slotCapacity];
+		size = 0;
+		Set<Long> recoveredStartIDs = new HashSet<Long>();
+		for (int slot = 0; slot < slotCount; slot++) {
+			// any ID's below the persisted cursor may already have been handed out, so resume from the cursor
+			long cursor = buffer.getLong(slotOffset(slot) + CURSOR_OFFSET);
+			long startID = buffer.getLong(slotOffset(slot) + START_ID_OFFSET);
+			long endID = buffer.getLong(slotOffset(slot) + END_ID_OFFSET);
+			if (cursor <= endID && !recoveredStartIDs.add(startID)) {
+				// a second copy of a slot, left behind by an interrupted compaction
+				cursor = endID + 1;
+				buffer.putLong(slotOffset(slot) + CURSOR_OFFSET, cursor);
+			}
+			cursors[slot] = cursor;
+			if (cursor <= endID) {
+				size += endID - cursor + 1;
+			}
+			else if (slot == firstSlot) {
+				firstSlot++;
+			}
+		}
+	}
+
+	private void ensureCapacity(int newSlotCount) throws IOException {
+		if (slotCount + newSlotCount <= slotCapacity) {
+			return;
+		}
+		compact();
+		int requiredSlotCount = slotCount + newSlotCount;
+		if (requiredSlotCount > slotCapacity) {
+			int newSlotCapacity = slotCapacity;
+			while (newSlotCapacity < requiredSlotCount) {
+				newSlotCapacity *= 2;
+			}
+			logger.debug("Growing lease journal {} to {} slots", file, newSlotCapacity);
+			map(toFileSize(newSlotCapacity));
+			slotCapacity = newSlotCapacity;
+			long[] newCursors = new long[slotCapacity];
+			System.arraycopy(cursors, 0, newCursors, 0, slotCount);
+			cursors = newCursors;
+			buffer.putInt(SLOT_CAPACITY_OFFSET, slotCapacity);
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Moves the journal's live slots to the front of the file, discarding exhausted ones.
+	 */
+	private void compact() {
+		if (firstSlot == 0) {
+			return;
+		}
+		// if the process dies part way through a compaction, a moved slot can be recovered twice; recover() discards the
+		// second copy
+		int liveSlotCount = slotCount - firstSlot;
+		for (int i = 0; i < liveSlotCount; i++) {
+			int slot = firstSlot + i;
+			// the moved slot's persisted cursor is kept, since ID's below it may have been handed out
+			writeSlot(
+				i,
+				buffer.getLong(slotOffset(slot) + START_ID_OFFSET),
+				buffer.getLong(slotOffset(slot) + END_ID_OFFSET),
+				buffer.getLong(slotOffset(slot) + CURSOR_OFFSET)
+			);
+			cursors[i] = cursors[slot];
+		}
+		buffer.putInt(SLOT_COUNT_OFFSET, liveSlotCount);
+		buffer.force();
+		slotCount = liveSlotCount;
+		firstSlot = 0;
+	}
+
+	private void clear() {
+		buffer.putInt(SLOT_COUNT_OFFSET, 0);
+		slotCount = 0;
+		firstSlot = 0;
+		size = 0;
+	}
+
+	private void writeHeader() {
+		byte[] categoryNameBytes = category.getName().getBytes(IDGeneratorConstants.UTF8_CHARSET);
+		buffer.putInt(MAGIC_OFFSET, MAGIC);
+		buffer.putInt(VERSION_OFFSET, VERSION);
+		buffer.putInt(SLOT_CAPACITY_OFFSET, INITIAL_SLOT_CAPACITY);
+		buffer.putInt(SLOT_COUNT_OFFSET, 0);
+		buffer.putShort(CATEGORY_NAME_OFFSET, (short)categoryNameBytes.length);
+		buffer.position(CATEGORY_NAME_OFFSET + 2);
+		buffer.put(categoryNameBytes);
+		slotCapacity = INITIAL_SLOT_CAPACITY;
+		slotCount = 0;
+		firstSlot = 0;
+		cursors = new long[slotCapacity];
+		size = 0;
+	}
+
+	private void writeSlot(int slot, long startID, long endID, long cursor) {
+		int offset = slotOffset(slot);
+		// the slot is marked as exhausted while it's being written, so that a partially written slot is never recovered
+		buffer.putLong(offset + CURSOR_OFFSET, Long.MAX_VALUE);
+		buffer.putLong(offset + START_ID_OFFSET, startID);
+		buffer.putLong(offset + END_ID_OFFSET, endID);
+		buffer.putLong(offset + CURSOR_OFFSET, cursor);
+	}
+
+	private void map(long fileSize) throws IOException {
+		// a mapping can't be explicitly released, so the previous one (if any) is simply dropped
+		buffer = journalFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+	}
+
+	private void validateOpen() {
+		if (journalFile == null) {
+			throw new IllegalStateException("Lease journal "+file+" is not open");
+		}
+	}
+
+	private static int slotOffset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	private static long toFileSize(int slotCapacity) {
+		return slotOffset(slotCapacity);
+	}
+
+
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+	private static final int MAGIC = 0x49444c4a; // "IDLJ"
+	private static final int VERSION = 1;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int SLOT_CAPACITY_OFFSET = 8;
+	private static final int SLOT_COUNT_OFFSET = 12;
+	private static final int CATEGORY_NAME_OFFSET = 16;
+	private static final int MAX_CATEGORY_NAME_LENGTH = 238;
+	private static final int HEADER_SIZE = 256;
+	private static final int START_ID_OFFSET = 0;
+	private static final int END_ID_OFFSET = 8;
+	private static final int CURSOR_OFFSET = 16;
+	private static final int SLOT_SIZE = 24;
+	private static final int INITIAL_SLOT_CAPACITY = 16;
+	private File file;
+	private IDCategory category;
+	private long flushInterval;
+	private RandomAccessFile journalFile;
+	private MappedByteBuffer buffer;
+	private int slotCapacity;
+	private int slotCount;
+	// slots before the first slot are exhausted
+	private int firstSlot;
+	// the in-memory cursor (i.e., the next ID to be handed out) of each slot
+	private long[] cursors;
+	private long size;
+	private Logger logger;
+}
@@ -0,0 +1,33 @@
+package com.demdex.idgen;
+
+/**
+ * A policy that decides how many ID's to lease from a category at a time.
+ *
+ * The IDGenerator consults its lease sizing policy whenever ID's are taken without an explicit size, and reports each
+ * such take back to the policy once it succeeds, so that the policy can adapt future lease sizes to the observed
+ * workload.  Takes of an explicit size aren't reported.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public interface LeaseSizingPolicy {
+	public long getLeaseSize(IDCategory category);
+	public void leaseTaken(IDCategory category, long leaseSize, int versionConflictCount);
+}
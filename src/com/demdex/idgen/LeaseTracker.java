@@ -0,0 +1,162 @@
+package com.demdex.idgen;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the leases (i.e., the IDSets returned by takeIDs) handed out by an IDGenerator, so that ID's left
+ * in them are returned to their categories rather than lost.
+ *
+ * Each lease is registered with a phantom reference, which holds on to the lease's internal range store (but not to the
+ * lease itself).  Once a lease becomes unreachable, the ID's remaining in its store are queued for return, merged with
+ * any other ID's queued for the same category, and pushed back in a single update once RETURN_BATCH_SIZE leases' worth
+ * have been queued.  When the generator is closed, the ID's remaining in all outstanding leases (whether reachable or
+ * not) are returned, again in a single push per category.
+ *
+ * Note that a LeaseTracker is threadsafe.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+class LeaseTracker {
+
+	public LeaseTracker(IDGenerator idGenerator) {
+		this.idGenerator = idGenerator;
+		logger = LoggerFactory.getLogger(LeaseTracker.class);
+	}
+
+	public void leaseTaken(IDSet lease) {
+		trackedLeases.put(new TrackedLease(lease, unreachableLeases), Boolean.TRUE);
+	}
+
+	/**
+	 * Queues the ID's remaining in any leases that have become unreachable, and returns those of any category for which
+	 * a full batch has been queued (or, if <code>force</code> is set, of every category).
+	 */
+	public void returnUnreachableLeases(boolean force) throws IDGeneratorException {
+		Reference<? extends IDSet> ref;
+		while ((ref = unreachableLeases.poll()) != null) {
+			TrackedLease lease = (TrackedLease)ref;
+			trackedLeases.remove(lease);
+			queueForReturn(lease);
+		}
+		for (PendingReturn pendingReturn : pendingReturns.values()) {
+			if (force || pendingReturn.leaseCount >= RETURN_BATCH_SIZE) {
+				pendingReturn.push(idGenerator);
+			}
+		}
+	}
+
+	/**
+	 * Returns the ID's remaining in every outstanding lease, reachable or not.  Any ID's that are still in reachable leases
+	 * are taken from them, so callers must no longer be using them.
+	 */
+	public void returnAllLeases() throws IDGeneratorException {
+		Iterator<TrackedLease> it = trackedLeases.keySet().iterator();
+		while (it.hasNext()) {
+			TrackedLease lease = it.next();
+			it.remove();
+			lease.clear();
+			queueForReturn(lease);
+		}
+		returnUnreachableLeases(true);
+	}
+
+
+	private void queueForReturn(TrackedLease lease) {
+		String categoryName = lease.category.getName();
+		PendingReturn pendingReturn = pendingReturns.get(categoryName);
+		if (pendingReturn == null) {
+			PendingReturn newPendingReturn = new PendingReturn(lease.category);
+			pendingReturn = pendingReturns.putIfAbsent(categoryName, newPendingReturn);
+			if (pendingReturn == null) {
+				pendingReturn = newPendingReturn;
+			}
+		}
+		pendingReturn.add(lease);
+	}
+
+
+	private static class TrackedLease extends PhantomReference<IDSet> {
+
+		public TrackedLease(IDSet lease, ReferenceQueue<IDSet> queue) {
+			super(lease, queue);
+			category = lease.getCategory();
+			idRanges = lease.getRangeStore();
+		}
+
+		private IDCategory category;
+		private IDRangeStore idRanges;
+	}
+
+	private class PendingReturn {
+
+		public PendingReturn(IDCategory category) {
+			this.category = category;
+			returnedIDs = new IDSet(category);
+		}
+
+		public synchronized void add(TrackedLease lease) {
+			long sizeBefore = returnedIDs.getSize();
+			lease.idRanges.drainRanges(new IDSet.RangeVisitor() {
+				public void visitRange(long startID, long endID) {
+					returnedIDs.addRange(startID, endID);
+				}
+			});
+			if (returnedIDs.getSize() > sizeBefore) {
+				leaseCount++;
+			}
+		}
+
+		public synchronized void push(IDGenerator idGenerator) throws IDGeneratorException {
+			if (!returnedIDs.hasMoreIDs()) {
+				return;
+			}
+			if (logger.isDebugEnabled()) {
+				logger.debug(
+					"Returning unused ID's from {} lease(s): {}",
+					Integer.toString(leaseCount),
+					returnedIDs.toString()
+				);
+			}
+			// if the push fails, the ID's stay queued, and are returned with the next batch
+			category.pushIDs(idGenerator, returnedIDs, idGenerator.getDefaultRetryPolicy());
+			leaseCount = 0;
+		}
+
+		private IDCategory category;
+		private IDSet returnedIDs;
+		private int leaseCount = 0;
+	}
+
+	static final int RETURN_BATCH_SIZE = 16;
+	private IDGenerator idGenerator;
+	private ConcurrentMap<TrackedLease,Boolean> trackedLeases = new ConcurrentHashMap<TrackedLease,Boolean>();
+	private ReferenceQueue<IDSet> unreachableLeases = new ReferenceQueue<IDSet>();
+	private ConcurrentMap<String,PendingReturn> pendingReturns = new ConcurrentHashMap<String,PendingReturn>();
+	private Logger logger;
+}
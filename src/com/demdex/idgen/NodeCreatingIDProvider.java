@@ -0,0 +1,34 @@
+package com.demdex.idgen;
+
+/**
+ * An IDProvider that can create new category nodes on its own (rather than requiring them to be created up front, e.g.
+ * with IDGeneratorCLI).  Paged categories (see PagedIDCategory) require one, since they create page nodes as they grow.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public interface NodeCreatingIDProvider extends IDProvider {
+
+	/**
+	 * Creates the category's node, with the given data (and version 0).  Returns false if the node already exists, in
+	 * which case its data is left as is.
+	 */
+	public boolean createData(IDCategory category, byte[] data) throws IDGeneratorException;
+}
@@ -0,0 +1,148 @@
+package com.demdex.idgen;
+
+import java.util.Arrays;
+
+/**
+ * The index of a paged category's pages:  the number of each page, and the lowest ID of the interval of ID's that it
+ * holds, in ascending order of interval.  A page holds the ID's from its own lower bound up to (but not including) the
+ * next page's lower bound;  the first page's lower bound is Long.MIN_VALUE.
+ *
+ * The index is stored (as one "lowerBound pageNumber" line per page, in ASCII) in its own node, and is versioned like
+ * any other node's data.  Note that a PageIndex is immutable.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+class PageIndex {
+
+	public PageIndex(int version, long[] lowerBounds, int[] pageNumbers) {
+		this.version = version;
+		this.lowerBounds = lowerBounds;
+		this.pageNumbers = pageNumbers;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public int getPageCount() {
+		return pageNumbers.length;
+	}
+
+	public int getPageNumber(int pageIndex) {
+		return pageNumbers[pageIndex];
+	}
+
+	public long getLowerBound(int pageIndex) {
+		return lowerBounds[pageIndex];
+	}
+
+	/**
+	 * Returns the highest ID in the interval of the page at the given index.
+	 */
+	public long getUpperBound(int pageIndex) {
+		return pageIndex + 1 < lowerBounds.length ? lowerBounds[pageIndex + 1] - 1 : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the index of the page whose interval includes the ID.
+	 */
+	public int indexOf(long id) {
+		int i = Arrays.binarySearch(lowerBounds, id);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	public int getNextPageNumber() {
+		int maxPageNumber = -1;
+		for (int pageNumber : pageNumbers) {
+			maxPageNumber = Math.max(maxPageNumber, pageNumber);
+		}
+		return maxPageNumber + 1;
+	}
+
+	/**
+	 * Returns a copy of the index, in which the interval that includes lowerBound is split in two at lowerBound, and the
+	 * upper half is given to page pageNumber.
+	 */
+	public PageIndex split(long lowerBound, int pageNumber) {
+		int splitIndex = indexOf(lowerBound);
+		if (lowerBounds[splitIndex] == lowerBound) {
+			throw new IllegalArgumentException("Page index already has a page starting at "+lowerBound);
+		}
+		int newPageCount = pageNumbers.length + 1;
+		long[] newLowerBounds = new long[newPageCount];
+		int[] newPageNumbers = new int[newPageCount];
+		System.arraycopy(lowerBounds, 0, newLowerBounds, 0, splitIndex + 1);
+		System.arraycopy(pageNumbers, 0, newPageNumbers, 0, splitIndex + 1);
+		newLowerBounds[splitIndex + 1] = lowerBound;
+		newPageNumbers[splitIndex + 1] = pageNumber;
+		System.arraycopy(lowerBounds, splitIndex + 1, newLowerBounds, splitIndex + 2, pageNumbers.length - splitIndex - 1);
+		System.arraycopy(pageNumbers, splitIndex + 1, newPageNumbers, splitIndex + 2, pageNumbers.length - splitIndex - 1);
+		return new PageIndex(version, newLowerBounds, newPageNumbers);
+	}
+
+	public byte[] encode() {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < pageNumbers.length; i++) {
+			buf.append(lowerBounds[i]);
+			buf.append(FIELD_SEPARATOR);
+			buf.append(pageNumbers[i]);
+			buf.append(LINE_SEPARATOR);
+		}
+		return buf.toString().getBytes(IDGeneratorConstants.UTF8_CHARSET);
+	}
+
+	public static PageIndex decode(RawIDSetData data) throws IDGeneratorException {
+		String[] lines = new String(data.getData(), IDGeneratorConstants.UTF8_CHARSET).trim().split("\n");
+		long[] lowerBounds = new long[lines.length];
+		int[] pageNumbers = new int[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			String line = lines[i].trim();
+			int sepLoc = line.indexOf(FIELD_SEPARATOR);
+			if (sepLoc < 0) {
+				throw new IDGeneratorException("Invalid page index entry: "+line);
+			}
+			try {
+				lowerBounds[i] = Long.parseLong(line.substring(0, sepLoc));
+				pageNumbers[i] = Integer.parseInt(line.substring(sepLoc + 1));
+			}
+			catch(NumberFormatException e) {
+				throw new IDGeneratorException("Invalid page index entry: "+line, e);
+			}
+		}
+		if (lines.length == 0 || lowerBounds[0] != Long.MIN_VALUE) {
+			throw new IDGeneratorException("Invalid page index; first page must start at "+Long.MIN_VALUE);
+		}
+		return new PageIndex(data.getVersion(), lowerBounds, pageNumbers);
+	}
+
+	/**
+	 * Returns the index of a newly paged category, which has a single page (page 0).
+	 */
+	public static PageIndex newIndex() {
+		return new PageIndex(0, new long[] { Long.MIN_VALUE }, new int[] { 0 });
+	}
+
+	private static final char FIELD_SEPARATOR = ' ';
+	private static final char LINE_SEPARATOR = '\n';
+	private int version;
+	private long[] lowerBounds;
+	private int[] pageNumbers;
+}
@@ -0,0 +1,307 @@
+package com.demdex.idgen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An IDCategory whose ranges are partitioned across several "page" nodes, so that no single node has to hold the whole
+ * (possibly very fragmented) range list.
+ *
+ * Each page holds the ID's in one interval of the ID space, and a small index node (see PageIndex) records which
+ * interval belongs to which page.  Takes are served from the first non-empty page(s), and pushed ID's go to the pages
+ * whose intervals include them, so each take or push only rewrites the pages that it touches.  Whenever a push leaves a
+ * page with more than <code>maxPageRangeCount</code> ranges, the upper half of the page's ranges is moved to a new page,
+ * and its interval is split accordingly.
+ *
+ * A page's node is the authority on the ID's it holds:  a page may end up holding a few ID's outside of its interval
+ * (e.g., if a push is routed using an index that is being split concurrently), but they are still taken and peeked
+ * as usual.  A failure part way through a split can lose the ID's being moved, but never duplicates them.
+ *
+ * Pages are named <code>name/page-NNNNNN</code>, and the index <code>name/page-index</code>.  An existing category is
+ * converted to paged storage with IDGenerator.page(), which requires a NodeCreatingIDProvider.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class PagedIDCategory extends IDCategory {
+
+	public PagedIDCategory(String name) {
+		this(name, IDGeneratorConstants.DEFAULT_MAX_PAGE_RANGE_COUNT);
+	}
+
+	public PagedIDCategory(String name, int maxPageRangeCount) {
+		super(name);
+		if (maxPageRangeCount < 2) {
+			throw new IllegalArgumentException(
+				"Invalid max page range count: "+maxPageRangeCount+"; pages must be able to hold at least 2 ranges"
+			);
+		}
+		this.maxPageRangeCount = maxPageRangeCount;
+		pageIndexNode = new IDCategory(name + NODE_PATH_SEPARATOR + IDGeneratorConstants.PAGE_INDEX_NODE_NAME, this);
+		logger = LoggerFactory.getLogger(PagedIDCategory.class);
+	}
+
+	public int getMaxPageRangeCount() {
+		return maxPageRangeCount;
+	}
+
+	public IDCategory getPage(int pageNumber) {
+		String pageName =
+			getName() + NODE_PATH_SEPARATOR +
+				IDGeneratorConstants.PAGE_NODE_PREFIX + String.format(IDGeneratorConstants.PAGE_NODE_NUMBER_FORMAT, pageNumber);
+		return new IDCategory(pageName, this);
+	}
+
+	public IDCategory getPageIndexNode() {
+		return pageIndexNode;
+	}
+
+
+	IDSet takeIDs(IDGenerator idGenerator, long idSetSize, RetryPolicy retryPolicy) throws IDGeneratorException {
+		PageIndex pageIndex = readPageIndex(idGenerator);
+		IDSet takenIDs = new IDSet(this);
+		for (int i = 0; i < pageIndex.getPageCount() && takenIDs.getSize() < idSetSize; i++) {
+			IDSet pageIDs;
+			try {
+				pageIDs = idGenerator.takeNodeIDs(getPage(pageIndex.getPageNumber(i)), idSetSize - takenIDs.getSize(), retryPolicy);
+			}
+			catch (NoSuchElementException e) {
+				// page empty; move on to the next one
+				continue;
+			}
+			catch (IDGeneratorException e) {
+				if (!takenIDs.hasMoreIDs()) {
+					throw e;
+				}
+				// the ID's already taken from earlier pages are no longer in the category, so return them rather than fail
+				logger.warn("Error taking ID's from page "+i+" of category "+getName()+"; returning partial set", e);
+				break;
+			}
+			moveIDs(pageIDs, takenIDs);
+		}
+		if (!takenIDs.hasMoreIDs()) {
+			throw new NoSuchElementException("Can't take id's; all pages of category "+getName()+" are empty");
+		}
+		return takenIDs;
+	}
+
+	void pushIDs(IDGenerator idGenerator, IDSet idSet, RetryPolicy retryPolicy) throws IDGeneratorException {
+		if (!equals(idSet.getCategory())) {
+			throw new IllegalArgumentException(
+				"Can't push id set: "+idSet.toString()+" to category: "+getName()+"; categories do not match"
+			);
+		}
+		final PageIndex pageIndex = readPageIndex(idGenerator);
+		// split the pushed ID's by page; the pieces are in ascending order of ID, so once a piece has been pushed, its ID's
+		// can be taken from the front of the pushed set
+		final List<Integer> pageNumbers = new ArrayList<Integer>();
+		final List<IDSet> pageIDSets = new ArrayList<IDSet>();
+		idSet.visitRanges(new IDSet.RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				while (true) {
+					int i = pageIndex.indexOf(startID);
+					long pieceEndID = Math.min(endID, pageIndex.getUpperBound(i));
+					int pageNumber = pageIndex.getPageNumber(i);
+					if (pageNumbers.isEmpty() || pageNumbers.get(pageNumbers.size() - 1) != pageNumber) {
+						pageNumbers.add(pageNumber);
+						pageIDSets.add(new IDSet(getPage(pageNumber)));
+					}
+					pageIDSets.get(pageIDSets.size() - 1).addRange(startID, pieceEndID);
+					if (pieceEndID == endID) {
+						return;
+					}
+					startID = pieceEndID + 1;
+				}
+			}
+		});
+		for (int i = 0; i < pageNumbers.size(); i++) {
+			IDSet pageIDs = pageIDSets.get(i);
+			long pushedSize = pageIDs.getSize();
+			int pageRangeCount = idGenerator.pushNodeIDs(getPage(pageNumbers.get(i)), pageIDs, retryPolicy);
+			idSet.takeIDs(pushedSize);
+			if (pageRangeCount > maxPageRangeCount) {
+				try {
+					splitPage(idGenerator, pageNumbers.get(i), retryPolicy);
+				}
+				catch (IDGeneratorException e) {
+					logger.warn("Error splitting page "+pageNumbers.get(i)+" of category "+getName(), e);
+				}
+			}
+		}
+	}
+
+	IDSet peekIDs(IDGenerator idGenerator) throws IDGeneratorException {
+		PageIndex pageIndex = readPageIndex(idGenerator);
+		IDSet allIDs = new IDSet(this);
+		for (int i = 0; i < pageIndex.getPageCount(); i++) {
+			idGenerator.peekNodeIDs(getPage(pageIndex.getPageNumber(i))).visitRanges(new AddingVisitor(allIDs));
+		}
+		return allIDs;
+	}
+
+
+	/**
+	 * Moves the upper half of the page's ranges to a new page.  The ranges are removed from the page first, then written
+	 * to the new page, and only then is the new page added to the index, so an ID can never be in two pages at once.
+	 */
+	private void splitPage(IDGenerator idGenerator, int pageNumber, RetryPolicy retryPolicy) throws IDGeneratorException {
+		IDCategory page = getPage(pageNumber);
+		final List<Long> rangeStartIDs = new ArrayList<Long>();
+		idGenerator.peekNodeIDs(page).visitRanges(new IDSet.RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				rangeStartIDs.add(startID);
+			}
+		});
+		if (rangeStartIDs.size() <= maxPageRangeCount) {
+			return;
+		}
+		long splitID = rangeStartIDs.get(rangeStartIDs.size() / 2);
+		logger.info("Splitting page {} of category {} at ID {}", new Object[] { pageNumber, getName(), splitID });
+		IDSet movedIDs = idGenerator.splitNodeIDs(page, splitID, retryPolicy);
+		if (!movedIDs.hasMoreIDs()) {
+			return;
+		}
+		int newPageNumber = NO_PAGE;
+		try {
+			PageIndex pageIndex = readPageIndex(idGenerator);
+			newPageNumber = pageIndex.getNextPageNumber();
+			IDCategory newPage = getPage(newPageNumber);
+			IDSet newPageIDs = new IDSet(newPage);
+			movedIDs.visitRanges(new AddingVisitor(newPageIDs));
+			// another client may be creating a page with the same number at the same time
+			while (!idGenerator.createNode(newPage, newPageIDs)) {
+				newPageNumber++;
+				newPage = getPage(newPageNumber);
+				newPageIDs = newPageIDs.copy(newPage);
+			}
+			while (true) {
+				int splitIndex = pageIndex.indexOf(splitID);
+				if (pageIndex.getLowerBound(splitIndex) == splitID) {
+					// another client has split at the same ID in the meantime, so the moved ID's belong to its page, and the
+					// new page is dropped (i.e., emptied, and never indexed)
+					IDCategory ownerPage = getPage(pageIndex.getPageNumber(splitIndex));
+					logger.info(
+						"Page {} of category {} was already split at ID {}; moving ID's to page {}",
+						new Object[] { pageNumber, getName(), splitID, pageIndex.getPageNumber(splitIndex) }
+					);
+					idGenerator.takeNodeIDs(newPage, movedIDs.getSize(), retryPolicy);
+					idGenerator.pushNodeIDs(ownerPage, movedIDs.copy(ownerPage), retryPolicy);
+					break;
+				}
+				try {
+					writePageIndex(idGenerator, pageIndex.split(splitID, newPageNumber));
+					break;
+				}
+				catch (IDProviderVersionException e) {
+					pageIndex = readPageIndex(idGenerator);
+				}
+			}
+			movedIDs.takeIDs(movedIDs.getSize());
+		}
+		finally {
+			if (movedIDs.hasMoreIDs()) {
+				// the split's own failure is the one reported to the caller
+				try {
+					returnMovedIDs(idGenerator, pageNumber, splitID, newPageNumber, movedIDs, retryPolicy);
+				}
+				catch (Exception e) {
+					logger.error(
+						"Split of page "+pageNumber+" of category "+getName()+" failed, and the moved ID's can't be returned to " +
+							"it; dropping moved ID's: "+movedIDs.toString(),
+						e
+					);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the ID's moved out of a page by a failed split to the page, unless the new page has been indexed after all
+	 * (e.g., if the connection was lost after the index write was applied).  If that can't be determined, the moved ID's
+	 * are dropped rather than risk putting them in two pages.
+	 */
+	private void returnMovedIDs(
+		IDGenerator idGenerator,
+		int pageNumber,
+		long splitID,
+		int newPageNumber,
+		IDSet movedIDs,
+		RetryPolicy retryPolicy
+	) throws IDGeneratorException {
+		if (newPageNumber != NO_PAGE) {
+			PageIndex pageIndex;
+			try {
+				pageIndex = readPageIndex(idGenerator);
+			}
+			catch (IDGeneratorException e) {
+				logger.error(
+					"Split of page "+pageNumber+" of category "+getName()+" failed, and the page index can't be read to check " +
+						"whether it was applied; dropping moved ID's: "+movedIDs.toString(),
+					e
+				);
+				return;
+			}
+			int splitIndex = pageIndex.indexOf(splitID);
+			if (pageIndex.getLowerBound(splitIndex) == splitID && pageIndex.getPageNumber(splitIndex) == newPageNumber) {
+				logger.info("Split of page {} of category {} was applied despite failing", pageNumber, getName());
+				return;
+			}
+		}
+		logger.warn("Split of page {} of category {} failed; returning moved ID's to it", pageNumber, getName());
+		idGenerator.pushNodeIDs(getPage(pageNumber), movedIDs, retryPolicy);
+	}
+
+	private PageIndex readPageIndex(IDGenerator idGenerator) throws IDGeneratorException {
+		return PageIndex.decode(idGenerator.getIDProvider().getData(pageIndexNode));
+	}
+
+	private void writePageIndex(IDGenerator idGenerator, PageIndex pageIndex) throws IDGeneratorException {
+		idGenerator.getIDProvider().setData(pageIndexNode, new RawIDSetData(pageIndex.getVersion(), pageIndex.encode()));
+	}
+
+	private static void moveIDs(IDSet fromIDs, IDSet toIDs) {
+		fromIDs.visitRanges(new AddingVisitor(toIDs));
+		fromIDs.takeIDs(fromIDs.getSize());
+	}
+
+
+	private static class AddingVisitor implements IDSet.RangeVisitor {
+
+		public AddingVisitor(IDSet idSet) {
+			this.idSet = idSet;
+		}
+
+		public void visitRange(long startID, long endID) {
+			idSet.addRange(startID, endID);
+		}
+
+		private IDSet idSet;
+	}
+
+	private static final char NODE_PATH_SEPARATOR = '/';
+	private static final int NO_PAGE = -1;
+	private int maxPageRangeCount;
+	private IDCategory pageIndexNode;
+	private Logger logger;
+}
@@ -0,0 +1,385 @@
+package com.demdex.idgen;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.demdex.util.concurrent.DaemonThreadFactory;
+
+/**
+ * A client-side pool of ID's for a single category, which hands out individual ID's from a leased IDSet held in memory.
+ *
+ * The pool leases ID's from an IDGenerator in blocks of <code>leaseSize</code> ID's.  Whenever the number of ID's remaining
+ * in the pool drops below the pool's low watermark, a new lease is taken in the background, so that callers of
+ * <code>nextID()</code> normally never wait on the IDGenerator's provider.  A caller only blocks if the pool has been
+ * completely drained before the background refill has completed.
+ *
+ * A pool created without an explicit lease size sizes its leases using the IDGenerator's LeaseSizingPolicy, and keeps its
+ * low watermark at a fixed fraction of the most recent lease size.
+ *
+ * Closing the pool pushes any unused ID's back to the IDGenerator.
+ *
+ * Note that a PrefetchingIDPool is threadsafe.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class PrefetchingIDPool {
+
+	public PrefetchingIDPool(IDGenerator idGenerator, IDCategory category) {
+		this(
+			idGenerator,
+			category,
+			idGenerator.getLeaseSizingPolicy().getLeaseSize(category),
+			newRefillExecutor(category),
+			OWNED_EXECUTOR
+		);
+	}
+
+	public PrefetchingIDPool(IDGenerator idGenerator, IDCategory category, long leaseSize) {
+		this(idGenerator, category, leaseSize, leaseSize / IDGeneratorConstants.DEFAULT_LOW_WATERMARK_DIVISOR);
+	}
+
+	public PrefetchingIDPool(IDGenerator idGenerator, IDCategory category, long leaseSize, long lowWatermark) {
+		this(idGenerator, category, leaseSize, lowWatermark, newRefillExecutor(category), OWNED_EXECUTOR, !ADAPTIVE_LEASE_SIZE);
+	}
+
+	public PrefetchingIDPool(
+		IDGenerator idGenerator,
+		IDCategory category,
+		long leaseSize,
+		long lowWatermark,
+		ExecutorService refillExecutor
+	) {
+		this(idGenerator, category, leaseSize, lowWatermark, refillExecutor, !OWNED_EXECUTOR, !ADAPTIVE_LEASE_SIZE);
+	}
+
+	private PrefetchingIDPool(
+		IDGenerator idGenerator,
+		IDCategory category,
+		long initialLeaseSize,
+		ExecutorService refillExecutor,
+		boolean ownsRefillExecutor
+	) {
+		this(
+			idGenerator,
+			category,
+			initialLeaseSize,
+			toLowWatermark(initialLeaseSize),
+			refillExecutor,
+			ownsRefillExecutor,
+			ADAPTIVE_LEASE_SIZE
+		);
+	}
+
+	private PrefetchingIDPool(
+		IDGenerator idGenerator,
+		IDCategory category,
+		long leaseSize,
+		long lowWatermark,
+		ExecutorService refillExecutor,
+		boolean ownsRefillExecutor,
+		boolean adaptiveLeaseSize
+	) {
+		if (leaseSize <= 0) {
+			throw new IllegalArgumentException("Invalid lease size: "+leaseSize+"; lease size must be at least 1 ID");
+		}
+		if (lowWatermark < 0 || lowWatermark >= leaseSize) {
+			throw new IllegalArgumentException(
+				"Invalid low watermark: "+lowWatermark+"; low watermark must be between 0 and the lease size ("+leaseSize+")"
+			);
+		}
+		this.idGenerator = idGenerator;
+		this.category = category;
+		this.leaseSize = leaseSize;
+		this.lowWatermark = lowWatermark;
+		this.refillExecutor = refillExecutor;
+		this.ownsRefillExecutor = ownsRefillExecutor;
+		this.adaptiveLeaseSize = adaptiveLeaseSize;
+		leasedIDs = new IDSet(category);
+		logger = LoggerFactory.getLogger(PrefetchingIDPool.class);
+		logger.info(
+			"Initializing prefetching ID pool for category {}, using {}lease size {} and low watermark {}",
+			new Object[] { category, adaptiveLeaseSize ? "adaptive " : "", leaseSize, lowWatermark }
+		);
+	}
+
+	public IDCategory getCategory() {
+		return category;
+	}
+
+	public long getLeaseSize() {
+		return leaseSize;
+	}
+
+	public long getLowWatermark() {
+		return lowWatermark;
+	}
+
+	public long getSize() {
+		return leasedIDs.getSize();
+	}
+
+	public void prefetch() {
+		validateOpen();
+		requestRefill();
+	}
+
+	public long nextID() throws IDGeneratorException {
+		validateOpen();
+		while (true) {
+			long takenID;
+			try {
+				takenID = leasedIDs.takeID();
+			}
+			catch (NoSuchElementException e) {
+				logger.debug("ID pool for category {} is empty; waiting for refill", category);
+				awaitRefill();
+				continue;
+			}
+			if (leasedIDs.getSize() < lowWatermark && !isRefillPending()) {
+				requestRefill();
+			}
+			return takenID;
+		}
+	}
+
+	/**
+	 * Takes up to <code>idSetSize</code> ID's from the pool at once.  Returns fewer ID's if the pool holds fewer, rather
+	 * than waiting for a refill;  only waits if the pool is empty.
+	 */
+	public IDSet takeIDs(long idSetSize) throws IDGeneratorException {
+		validateOpen();
+		if (idSetSize <= 0) {
+			throw new IllegalArgumentException("Invalid ID set size: "+idSetSize+"; must take at least 1 ID");
+		}
+		while (true) {
+			IDSet takenIDs;
+			try {
+				takenIDs = leasedIDs.takeIDs(idSetSize);
+			}
+			catch (NoSuchElementException e) {
+				logger.debug("ID pool for category {} is empty; waiting for refill", category);
+				awaitRefill();
+				continue;
+			}
+			if (leasedIDs.getSize() < lowWatermark && !isRefillPending()) {
+				requestRefill();
+			}
+			return takenIDs;
+		}
+	}
+
+	/**
+	 * Takes up to <code>idSetSize</code> ID's from the pool at once, like takeIDs(), but never waits:  returns null if the
+	 * pool is empty, after requesting a refill.
+	 */
+	public IDSet pollIDs(long idSetSize) {
+		validateOpen();
+		if (idSetSize <= 0) {
+			throw new IllegalArgumentException("Invalid ID set size: "+idSetSize+"; must take at least 1 ID");
+		}
+		IDSet takenIDs;
+		try {
+			takenIDs = leasedIDs.takeIDs(idSetSize);
+		}
+		catch (NoSuchElementException e) {
+			requestRefill();
+			return null;
+		}
+		if (leasedIDs.getSize() < lowWatermark && !isRefillPending()) {
+			requestRefill();
+		}
+		return takenIDs;
+	}
+
+	/**
+	 * Returns ID's to the pool, so that they're handed out again (or pushed back to the IDGenerator once the pool is
+	 * closed) without a write to the IDGenerator's provider.
+	 */
+	public void pushIDs(IDSet idSet) {
+		validateOpen();
+		if (!category.equals(idSet.getCategory().getLogicalCategory())) {
+			throw new IllegalArgumentException(
+				"Can't push id set: "+idSet.toString()+" to ID pool for category: "+category.toString()+"; categories do not match"
+			);
+		}
+		leasedIDs.pushIDs(toPoolCategory(idSet));
+	}
+
+	public void close() throws IDGeneratorException {
+		logger.info("Closing prefetching ID pool for category {} ...", category);
+		Future<Object> lastRefill;
+		synchronized(this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			lastRefill = pendingRefill;
+		}
+		if (ownsRefillExecutor) {
+			refillExecutor.shutdown();
+		}
+		if (lastRefill != null) {
+			try {
+				lastRefill.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IDGeneratorException(e);
+			}
+			catch (ExecutionException e) {
+				logger.debug("Ignoring failed refill while closing ID pool", e.getCause());
+			}
+		}
+		// the unused ID's are moved out of the pool before they're returned, so that takers still in progress can't be
+		// handed any of them while they're being pushed
+		IDSet unusedIDs = leasedIDs.drain(category);
+		if (unusedIDs.hasMoreIDs()) {
+			if (logger.isDebugEnabled()) logger.debug("Returning unused ID's: {}", unusedIDs.toString());
+			idGenerator.pushIDsWithRetry(category, unusedIDs);
+		}
+		logger.info("Prefetching ID pool for category {} closed", category);
+	}
+
+	public boolean isOpen() {
+		return !closed;
+	}
+
+
+	/**
+	 * Returns the pending refill, requesting one first if none is pending, or null if the pool has been closed.
+	 */
+	private synchronized Future<Object> requestRefill() {
+		if (closed) {
+			return null;
+		}
+		if (pendingRefill == null || pendingRefill.isDone()) {
+			logger.debug("Requesting refill of ID pool for category {}", category);
+			pendingRefill = refillExecutor.submit(new RefillTask());
+		}
+		return pendingRefill;
+	}
+
+	private boolean isRefillPending() {
+		Future<Object> refill = pendingRefill;
+		return refill != null && !refill.isDone();
+	}
+
+	private void awaitRefill() throws IDGeneratorException {
+		Future<Object> refill = requestRefill();
+		if (refill == null) {
+			// closed while waiting;  close() drains the pool, so waiting again would never end
+			validateOpen();
+		}
+		try {
+			refill.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IDGeneratorException(e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IDGeneratorException) {
+				throw (IDGeneratorException)cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new IDGeneratorException("Error refilling ID pool for category "+category.toString(), e);
+		}
+	}
+
+	private void validateOpen() {
+		if (closed) {
+			throw new IllegalStateException("ID pool for category "+category.toString()+" has been closed");
+		}
+	}
+
+	private static long toLowWatermark(long leaseSize) {
+		return leaseSize / IDGeneratorConstants.DEFAULT_LOW_WATERMARK_DIVISOR;
+	}
+
+	private static ExecutorService newRefillExecutor(IDCategory category) {
+		return Executors.newSingleThreadExecutor(new DaemonThreadFactory(REFILL_THREAD_NAME_PREFIX + category.getName()));
+	}
+
+	/**
+	 * Leases of a sharded category are labelled with the shard they came from, so they're moved into a set of the pool's
+	 * own category before being pooled.
+	 */
+	private IDSet toPoolCategory(IDSet idSet) {
+		return category.equals(idSet.getCategory()) ? idSet : idSet.drain(category);
+	}
+
+
+	private class RefillTask implements Callable<Object> {
+
+		public Object call() throws IDGeneratorException {
+			IDSet lease;
+			try {
+				lease =
+					adaptiveLeaseSize
+						? idGenerator.takeIDsWithRetry(category)
+						: idGenerator.takeIDsWithRetry(category, leaseSize);
+			}
+			catch (IDGeneratorException e) {
+				logger.warn("Refill of ID pool for category "+category.toString()+" failed", e);
+				throw e;
+			}
+			catch (RuntimeException e) {
+				logger.warn("Refill of ID pool for category "+category.toString()+" failed", e);
+				throw e;
+			}
+			if (logger.isDebugEnabled()) logger.debug("Refilling ID pool with lease: {}", lease.toString());
+			if (adaptiveLeaseSize) {
+				leaseSize = lease.getSize();
+				lowWatermark = toLowWatermark(leaseSize);
+			}
+			leasedIDs.pushIDs(toPoolCategory(lease));
+			return null;
+		}
+	}
+
+	private static final boolean OWNED_EXECUTOR = true;
+	private static final boolean ADAPTIVE_LEASE_SIZE = true;
+	private static final String REFILL_THREAD_NAME_PREFIX = "idpool-refill:";
+	private IDGenerator idGenerator;
+	private IDCategory category;
+	private volatile long leaseSize;
+	private volatile long lowWatermark;
+	private ExecutorService refillExecutor;
+	private boolean ownsRefillExecutor;
+	private boolean adaptiveLeaseSize;
+	private IDSet leasedIDs;
+	private volatile Future<Object> pendingRefill;
+	private volatile boolean closed = false;
+	private Logger logger;
+}
@@ -0,0 +1,35 @@
+package com.demdex.idgen;
+
+/**
+ * A policy that decides whether, and after how long a delay, an update that failed due to a version conflict
+ * should be retried.
+ *
+ * <code>getRetryDelayMillis</code> is called after each failed attempt with the number of attempts made so far, the time
+ * elapsed since the first attempt, and the delay that preceded the failed attempt (0 for the first attempt).  It returns
+ * the number of milliseconds to wait before the next attempt, or STOP_RETRYING if the update should fail.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public interface RetryPolicy {
+	public static final long STOP_RETRYING = -1;
+	public int getMaxTryCount();
+	public long getRetryDelayMillis(int failedTryCount, long elapsedMillis, long previousDelayMillis);
+}
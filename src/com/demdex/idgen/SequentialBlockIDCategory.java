@@ -0,0 +1,270 @@
+package com.demdex.idgen;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An IDCategory that allocates fixed-size blocks of ID's by creating sequential nodes, rather than by rewriting a range
+ * list with a versioned write.
+ *
+ * Each take creates one sequential child node per block that it needs under the current generation node,
+ * <code>name/blocks/block-NNNNNNNNNN</code>, and maps the node's sequence number <code>n</code> within generation
+ * <code>g</code> to block number <code>b = g * GENERATION_SIZE + n</code>, i.e. to the ID's
+ * <code>[firstID + b * blockSize, firstID + (b + 1) * blockSize)</code> (truncated at <code>maxID</code>).  Since
+ * creating a sequential node never fails due to a version conflict, lease throughput is bounded by the provider's write
+ * throughput rather than by contention.  Leases are always a whole number of blocks, so a take may return more ID's than
+ * requested.
+ * The block layout (first ID, max ID and block size) is stored in the <code>blocks</code> node itself, so that every
+ * client maps sequence numbers the same way.
+ *
+ * Sequence nodes carry no data once created, but deleting them would make the provider skip sequence numbers (and with
+ * them, blocks), and ZooKeeper's sequence counter wraps after 2^31 nodes.  So once a generation's GENERATION_SIZE
+ * sequence numbers are used up, takes move on to the next generation node, and whoever takes the last block of a
+ * generation deletes the sequence nodes of the one before it in the background.  Generation nodes themselves are never
+ * deleted:  recreating one would restart its sequence numbers, and hand out its blocks again.  They're named like
+ * sequence nodes so that peekNextSequenceNumber() on the blocks node finds the latest one.  If the provider does skip sequence
+ * numbers, the corresponding blocks are never handed out (as if they had been leased by a client that died).
+ *
+ * Pushed ID's can't be returned to the sequence, so they're stored in a <code>name/free-list</code> node, which takes
+ * fall back to once the blocks are exhausted.  An existing category is converted to block allocation with
+ * IDGenerator.allocateInBlocks(), which requires a SequentialNodeIDProvider.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class SequentialBlockIDCategory extends IDCategory {
+
+	public SequentialBlockIDCategory(String name) {
+		super(name);
+		blocksNode = new IDCategory(name + NODE_PATH_SEPARATOR + IDGeneratorConstants.BLOCKS_NODE_NAME, this);
+		freeListNode = new IDCategory(name + NODE_PATH_SEPARATOR + IDGeneratorConstants.FREE_LIST_NODE_NAME, this);
+		logger = LoggerFactory.getLogger(SequentialBlockIDCategory.class);
+	}
+
+	public IDCategory getBlocksNode() {
+		return blocksNode;
+	}
+
+	public IDCategory getFreeListNode() {
+		return freeListNode;
+	}
+
+	public IDCategory getGenerationNode(long generation) {
+		String generationNumber = String.format(IDGeneratorConstants.GENERATION_NODE_NUMBER_FORMAT, generation);
+		String generationName =
+			blocksNode.getName() + NODE_PATH_SEPARATOR + IDGeneratorConstants.SEQUENTIAL_NODE_PREFIX + generationNumber;
+		return new IDCategory(generationName, this);
+	}
+
+
+	IDSet takeIDs(IDGenerator idGenerator, long idSetSize, RetryPolicy retryPolicy) throws IDGeneratorException {
+		IDSet takenIDs = new IDSet(this);
+		if (idSetSize <= 0) {
+			return takenIDs;
+		}
+		takeBlocks(idGenerator, idSetSize, takenIDs);
+		if (takenIDs.getSize() < idSetSize) {
+			try {
+				takenIDs.pushIDs(idGenerator.takeNodeIDs(freeListNode, idSetSize - takenIDs.getSize(), retryPolicy).copy(this));
+			}
+			catch (NoSuchElementException e) {
+				// free list empty
+			}
+			catch (IDGeneratorException e) {
+				if (!takenIDs.hasMoreIDs()) {
+					throw e;
+				}
+				// the blocks already taken are no longer in the category, so return them rather than fail
+				logger.warn("Error taking ID's from free list of category "+getName()+"; returning partial set", e);
+			}
+		}
+		if (!takenIDs.hasMoreIDs()) {
+			throw new NoSuchElementException("Can't take id's; category "+getName()+" is exhausted");
+		}
+		return takenIDs;
+	}
+
+	void pushIDs(IDGenerator idGenerator, IDSet idSet, RetryPolicy retryPolicy) throws IDGeneratorException {
+		if (!equals(idSet.getCategory())) {
+			throw new IllegalArgumentException(
+				"Can't push id set: "+idSet.toString()+" to category: "+getName()+"; categories do not match"
+			);
+		}
+		idGenerator.pushNodeIDs(freeListNode, idSet.copy(freeListNode), retryPolicy);
+		if (idSet.hasMoreIDs()) {
+			idSet.takeIDs(idSet.getSize());
+		}
+	}
+
+	IDSet peekIDs(IDGenerator idGenerator) throws IDGeneratorException {
+		IDSet allIDs = idGenerator.peekNodeIDs(freeListNode).copy(this);
+		BlockLayout layout = getLayout(idGenerator);
+		SequentialNodeIDProvider provider = getProvider(idGenerator);
+		// the latest generation's sequence nodes are only deleted once the next generation is used up
+		long latestGeneration = findLatestGeneration(provider);
+		long nextSequenceNumber =
+			Math.min(GENERATION_SIZE, provider.peekNextSequenceNumber(getGenerationNode(latestGeneration)));
+		long nextBlockNumber = latestGeneration * GENERATION_SIZE + nextSequenceNumber;
+		if (!layout.isExhausted(nextBlockNumber)) {
+			allIDs.addRange(layout.getStartID(nextBlockNumber), layout.maxID);
+		}
+		return allIDs;
+	}
+
+
+	private void takeBlocks(IDGenerator idGenerator, long idSetSize, IDSet takenIDs) throws IDGeneratorException {
+		BlockLayout layout = getLayout(idGenerator);
+		SequentialNodeIDProvider provider = getProvider(idGenerator);
+		long currGeneration = getGeneration(provider);
+		while (takenIDs.getSize() < idSetSize && !layout.isExhausted(currGeneration * GENERATION_SIZE)) {
+			IDCategory generationNode = getGenerationNode(currGeneration);
+			long sequenceNumber;
+			try {
+				sequenceNumber = provider.createSequentialNode(generationNode);
+				if (sequenceNumber == SequentialNodeIDProvider.NO_NODE) {
+					// generation nodes are never deleted, so this one just hasn't been created yet
+					provider.createData(generationNode, new byte[0]);
+					continue;
+				}
+			}
+			catch (IDGeneratorException e) {
+				if (!takenIDs.hasMoreIDs()) {
+					throw e;
+				}
+				logger.warn("Error taking block from category "+getName()+"; returning partial set", e);
+				return;
+			}
+			if (sequenceNumber >= GENERATION_SIZE) {
+				// someone else took the last block of this generation; skip ahead to the latest one
+				currGeneration = Math.max(currGeneration + 1, findLatestGeneration(provider));
+				advanceGeneration(currGeneration);
+				continue;
+			}
+			long blockNumber = currGeneration * GENERATION_SIZE + sequenceNumber;
+			if (layout.isExhausted(blockNumber)) {
+				return;
+			}
+			long startID = layout.getStartID(blockNumber);
+			takenIDs.addRange(startID, Math.min(layout.maxID, startID + (layout.blockSize - 1)));
+			if (sequenceNumber == GENERATION_SIZE - 1) {
+				if (currGeneration > 0) {
+					logger.debug("Deleting sequence nodes of category {} generation {}", getName(), currGeneration - 1);
+					provider.deleteSequentialNodes(getGenerationNode(currGeneration - 1));
+				}
+				currGeneration++;
+				advanceGeneration(currGeneration);
+			}
+		}
+	}
+
+	private long getGeneration(SequentialNodeIDProvider provider) throws IDGeneratorException {
+		long currGeneration = generation;
+		if (currGeneration < 0) {
+			currGeneration = findLatestGeneration(provider);
+			advanceGeneration(currGeneration);
+		}
+		return currGeneration;
+	}
+
+	private long findLatestGeneration(SequentialNodeIDProvider provider) throws IDGeneratorException {
+		return Math.max(0, provider.peekNextSequenceNumber(blocksNode) - 1);
+	}
+
+	private synchronized void advanceGeneration(long newGeneration) {
+		// only ever moves forward, since racing takes may learn of generations out of order
+		if (newGeneration > generation) {
+			generation = newGeneration;
+		}
+	}
+
+	private BlockLayout getLayout(IDGenerator idGenerator) throws IDGeneratorException {
+		// the layout never changes once the blocks node has been created, so it only needs to be read once
+		BlockLayout currLayout = layout;
+		if (currLayout == null) {
+			currLayout = BlockLayout.decode(idGenerator.getIDProvider().getData(blocksNode).getData());
+			layout = currLayout;
+		}
+		return currLayout;
+	}
+
+	private SequentialNodeIDProvider getProvider(IDGenerator idGenerator) {
+		IDProvider provider = idGenerator.getIDProvider();
+		if (!(provider instanceof SequentialNodeIDProvider)) {
+			throw new IllegalStateException(
+				"Block allocation requires a sequential node ID provider; provider is: "+provider.getName()
+			);
+		}
+		return (SequentialNodeIDProvider)provider;
+	}
+
+
+	/**
+	 * The mapping from sequence numbers to blocks of ID's.
+	 */
+	static class BlockLayout {
+
+		public BlockLayout(long firstID, long maxID, long blockSize) {
+			if (blockSize <= 0) {
+				throw new IllegalArgumentException("Invalid block size: "+blockSize);
+			}
+			this.firstID = firstID;
+			this.maxID = maxID;
+			this.blockSize = blockSize;
+		}
+
+		public boolean isExhausted(long sequenceNumber) {
+			return firstID > maxID || sequenceNumber > (maxID - firstID) / blockSize;
+		}
+
+		public long getStartID(long sequenceNumber) {
+			return firstID + sequenceNumber * blockSize;
+		}
+
+		public byte[] encode() {
+			return ByteBuffer.allocate(ENCODED_SIZE).putLong(firstID).putLong(maxID).putLong(blockSize).array();
+		}
+
+		public static BlockLayout decode(byte[] data) throws IDGeneratorException {
+			if (data == null || data.length != ENCODED_SIZE) {
+				throw new IDGeneratorException(
+					"Invalid block layout data; expected "+ENCODED_SIZE+" bytes, found "+(data != null ? data.length : 0)
+				);
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			return new BlockLayout(buffer.getLong(), buffer.getLong(), buffer.getLong());
+		}
+
+		private static final int ENCODED_SIZE = 24;
+		private final long firstID;
+		private final long maxID;
+		private final long blockSize;
+	}
+
+	public static final long GENERATION_SIZE = 1000;
+	private static final char NODE_PATH_SEPARATOR = '/';
+	private IDCategory blocksNode;
+	private IDCategory freeListNode;
+	private volatile BlockLayout layout = null;
+	private volatile long generation = -1;
+	private Logger logger;
+}
@@ -0,0 +1,54 @@
+package com.demdex.idgen;
+
+/**
+ * An IDProvider that can create sequentially numbered child nodes under a category's node.  Each creation is handed a
+ * new, strictly increasing sequence number without any version checks, so concurrent clients never conflict with each
+ * other.  Block allocated categories (see SequentialBlockIDCategory) require one.
+ *
+ * Sequence numbers are never negative, but they're only contiguous as long as none of the node's children are deleted:
+ * a provider may skip numbers (e.g., ZooKeeper derives them from the parent node's child version, which deletes advance
+ * too).  Callers that need contiguous numbers should only delete the children of nodes that they're done with.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public interface SequentialNodeIDProvider extends NodeCreatingIDProvider {
+
+	/**
+	 * Creates a new sequential child node under the category's node, and returns its sequence number, or NO_NODE if the
+	 * category's node doesn't exist.  Throws rather than return a sequence number that has wrapped around.
+	 */
+	public long createSequentialNode(IDCategory category) throws IDGeneratorException;
+
+	/**
+	 * Returns a sequence number that is higher than that of any sequential child node (or child node named like one)
+	 * currently under the category's node, or 0 if there are none (or the category's node doesn't exist).
+	 */
+	public long peekNextSequenceNumber(IDCategory category) throws IDGeneratorException;
+
+	/**
+	 * Deletes all of the sequential child nodes under the category's node, leaving the node itself in place (so that its
+	 * sequence numbers are never reused).  The deletes may be performed in the background, after this method has
+	 * returned.
+	 */
+	public void deleteSequentialNodes(IDCategory category) throws IDGeneratorException;
+
+	public static final long NO_NODE = -1;
+}
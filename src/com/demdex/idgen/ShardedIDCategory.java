@@ -0,0 +1,150 @@
+package com.demdex.idgen;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A category whose ID's are split across several shards, each of which is stored as a separate child node of the
+ * category's node (named <code>shard-0000</code>, <code>shard-0001</code>, etc.).  Since each shard is updated
+ * independently, writers that use different shards never conflict with each other, and the category's take throughput
+ * scales with the number of shards.
+ *
+ * Each take is served by a single shard.  The shard is chosen either by a hash of the client's identity (so that a client
+ * keeps using the same shard) or at random, and if the chosen shard is exhausted or too contended (i.e., the take still
+ * fails with a version conflict after retrying) the take fails over to the next shard.  The ID's taken belong to the
+ * shard's category, so pushing them back returns them to the shard they were taken from.  Peeking at a sharded category
+ * returns the union of all of its shards.
+ *
+ * The shard nodes must already exist.  ID's are distributed across shards using the IDGenerator's
+ * <code>reshard</code> / <code>rebalanceShards</code> operations (or the CLI's <code>shard</code> command).
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class ShardedIDCategory extends IDCategory {
+
+	public enum ShardSelection { CLIENT_HASH, RANDOM }
+
+	public ShardedIDCategory(String name, int shardCount) {
+		this(name, shardCount, ShardSelection.CLIENT_HASH);
+	}
+
+	public ShardedIDCategory(String name, int shardCount, ShardSelection shardSelection) {
+		super(name);
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("Invalid shard count: "+shardCount+"; category must have at least 1 shard");
+		}
+		this.shardSelection = shardSelection;
+		List<IDCategory> shardList = new ArrayList<IDCategory>(shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			String shardName =
+				name + NODE_PATH_SEPARATOR +
+					IDGeneratorConstants.SHARD_NODE_PREFIX + String.format(IDGeneratorConstants.SHARD_NODE_NUMBER_FORMAT, i);
+			shardList.add(new IDCategory(shardName, this));
+		}
+		shards = Collections.unmodifiableList(shardList);
+	}
+
+	public int getShardCount() {
+		return shards.size();
+	}
+
+	public IDCategory getShard(int shardIndex) {
+		return shards.get(shardIndex);
+	}
+
+	public List<IDCategory> getShards() {
+		return shards;
+	}
+
+	public ShardSelection getShardSelection() {
+		return shardSelection;
+	}
+
+
+	IDSet takeIDs(IDGenerator idGenerator, long idSetSize, RetryPolicy retryPolicy) throws IDGeneratorException {
+		int firstShardIndex = selectShardIndex();
+		IDProviderVersionException lastVersionException = null;
+		for (int i = 0; i < shards.size(); i++) {
+			IDCategory shard = shards.get((firstShardIndex + i) % shards.size());
+			try {
+				return idGenerator.takeNodeIDs(shard, idSetSize, retryPolicy);
+			}
+			catch (NoSuchElementException e) {
+				// shard exhausted; fail over to the next one
+			}
+			catch (IDProviderVersionException e) {
+				// shard too contended; fail over to the next one
+				lastVersionException = e;
+			}
+		}
+		if (lastVersionException != null) {
+			throw lastVersionException;
+		}
+		throw new NoSuchElementException("Can't take id's; all shards of category "+getName()+" are empty");
+	}
+
+	void pushIDs(IDGenerator idGenerator, IDSet idSet, RetryPolicy retryPolicy) throws IDGeneratorException {
+		IDCategory shard;
+		if (equals(idSet.getCategory())) {
+			shard = shards.get(selectShardIndex());
+		}
+		else {
+			int shardIndex = shards.indexOf(idSet.getCategory());
+			if (shardIndex < 0) {
+				throw new IllegalArgumentException(
+					"Can't push id set: "+idSet.toString()+" to category: "+getName()+"; categories do not match"
+				);
+			}
+			shard = shards.get(shardIndex);
+		}
+		IDSet shardIDs = idSet.copy(shard);
+		idGenerator.pushNodeIDs(shard, shardIDs, retryPolicy);
+		if (idSet.hasMoreIDs()) {
+			idSet.takeIDs(idSet.getSize());
+		}
+	}
+
+	IDSet peekIDs(IDGenerator idGenerator) throws IDGeneratorException {
+		IDSet allIDs = new IDSet(this);
+		for (IDCategory shard : shards) {
+			allIDs.pushIDs(idGenerator.peekNodeIDs(shard).copy(this));
+		}
+		return allIDs;
+	}
+
+
+	private int selectShardIndex() {
+		if (shardSelection == ShardSelection.RANDOM) {
+			return random.nextInt(shards.size());
+		}
+		return (CLIENT_ID.hashCode() & Integer.MAX_VALUE) % shards.size();
+	}
+
+	private static final char NODE_PATH_SEPARATOR = '/';
+	private static final String CLIENT_ID = ManagementFactory.getRuntimeMXBean().getName();
+	private static final Random random = new Random();
+	private List<IDCategory> shards;
+	private ShardSelection shardSelection;
+}
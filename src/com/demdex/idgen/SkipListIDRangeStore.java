@@ -0,0 +1,310 @@
+package com.demdex.idgen;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An IDRangeStore that holds its ranges in a concurrent skip list, so that ID's can be taken without locking.
+ *
+ * Takers advance the first range's cursor with a compare-and-set, and remove the range once it's exhausted.  Additions
+ * are synchronized, and any range that an addition merges away is first "sealed" (by atomically taking all of its
+ * remaining ID's), so that no ID can be handed out by a concurrent taker after it has been copied into the merged range.
+ * Since the merged range is only published after the sealed ranges have been removed, a taker that finds no ranges at
+ * all waits for any addition in progress to finish before reporting the store empty.
+ *
+ * The store's size and range count are maintained with atomic counters, which are updated just after the ranges
+ * themselves; they're exact whenever no take or addition is in progress.  So is the largest range size:  the sizes of
+ * the ranges that no ID has been taken from yet are kept in a size-ordered multiset, which is only updated once or twice
+ * per range (when it's published, and when its first ID's are taken or it's merged away), while the ranges that ID's
+ * have been taken from (normally just the first one or two) are measured directly.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+class SkipListIDRangeStore extends IDRangeStore {
+
+	public long getSize() {
+		return size.get();
+	}
+
+	public int getRangeCount() {
+		return rangeCount.get();
+	}
+
+	public long getLargestRangeSize() {
+		long largestSize = 0;
+		synchronized(unshrunkRangeSizes) {
+			if (!unshrunkRangeSizes.isEmpty()) {
+				largestSize = unshrunkRangeSizes.lastKey();
+			}
+		}
+		for (IDRange range : shrunkRanges.keySet()) {
+			largestSize = Math.max(largestSize, range.getSize());
+		}
+		return largestSize;
+	}
+
+	public boolean hasMoreIDs() {
+		for (IDRange range : idRanges.values()) {
+			if (range.hasMoreIDs()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public long peekNextID() {
+		for (IDRange range : idRanges.values()) {
+			long nextID = range.peekNextID();
+			if (nextID <= range.getEndID()) {
+				return nextID;
+			}
+		}
+		throw new NoSuchElementException("No more id's remaining in set");
+	}
+
+	public long takeID() {
+		while (true) {
+			StoredRange firstRange = firstRangeAfterAdditions();
+			if (firstRange == null) {
+				throw new NoSuchElementException("No more id's remaining in set");
+			}
+			long takenID = firstRange.tryTakeID();
+			if (takenID <= firstRange.getEndID()) {
+				if (takenID == firstRange.firstID) {
+					rangeShrunk(firstRange);
+				}
+				size.decrementAndGet();
+				if (takenID == firstRange.getEndID()) {
+					removeRange(firstRange);
+				}
+				return takenID;
+			}
+			// another thread emptied (or sealed) the range first; move on to the next one
+			removeRange(firstRange);
+		}
+	}
+
+	public long takeIDs(long idSetSize, IDSet.RangeVisitor takenRanges) {
+		long numTaken = 0;
+		while (numTaken < idSetSize) {
+			StoredRange firstRange = firstRangeAfterAdditions();
+			if (firstRange == null) {
+				break;
+			}
+			IDRange takenIDRange = firstRange.tryTakeIDs(idSetSize - numTaken);
+			if (takenIDRange != null) {
+				if (takenIDRange.getStartID() == firstRange.firstID) {
+					rangeShrunk(firstRange);
+				}
+				size.addAndGet(-takenIDRange.getSize());
+				takenRanges.visitRange(takenIDRange.getStartID(), takenIDRange.getEndID());
+				numTaken += takenIDRange.getSize();
+			}
+			if (!firstRange.hasMoreIDs()) {
+				removeRange(firstRange);
+			}
+		}
+		return numTaken;
+	}
+
+	public void validateNoOverlap(long startID, long endID, IDSet idSet) {
+		// the first (non-exhausted) range ending at or after the new range's start is the only one that can overlap it
+		for (IDRange range : idRanges.tailMap(startID).values()) {
+			long rangeStartID = range.getStartID();
+			if (rangeStartID > range.getEndID()) {
+				continue;
+			}
+			if (rangeStartID <= endID) {
+				throw new IDSet.OverlappingRangeException(startID, endID, rangeStartID, range.getEndID(), idSet);
+			}
+			return;
+		}
+	}
+
+	public void addRange(long startID, long endID) {
+		IDRange newRange = new IDRange(startID, endID);
+		synchronized(idRanges) {
+			boolean rangeMerged;
+			do {
+				rangeMerged = false;
+				Map.Entry<Long,StoredRange> previousEntry = idRanges.lowerEntry(newRange.getEndID());
+				if (previousEntry != null && previousEntry.getValue().isAdjacent(newRange)) {
+					StoredRange previousRange = previousEntry.getValue();
+					IDRange remainingRange = sealRange(previousRange);
+					if (remainingRange != null) {
+						size.addAndGet(-remainingRange.getSize());
+						rangeMerged = true;
+						newRange = remainingRange.tryMerge(newRange);
+					}
+				}
+
+				Map.Entry<Long,StoredRange> nextEntry = idRanges.higherEntry(newRange.getEndID());
+				if (nextEntry != null && newRange.isAdjacent(nextEntry.getValue())) {
+					StoredRange nextRange = nextEntry.getValue();
+					IDRange remainingRange = sealRange(nextRange);
+					if (remainingRange != null) {
+						size.addAndGet(-remainingRange.getSize());
+						IDRange combinedNewRange = newRange.tryMerge(remainingRange);
+						if (combinedNewRange != null) {
+							rangeMerged = true;
+							newRange = combinedNewRange;
+						}
+						else {
+							// ID's were taken from the front of the range before it was sealed, so it's no longer adjacent
+							putRange(remainingRange);
+						}
+					}
+				}
+			} while(rangeMerged);
+
+			putRange(newRange);
+		}
+	}
+
+	public void visitRanges(IDSet.RangeVisitor visitor) {
+		for (IDRange range : idRanges.values()) {
+			long startID = range.getStartID();
+			if (startID <= range.getEndID()) {
+				visitor.visitRange(startID, range.getEndID());
+			}
+		}
+	}
+
+	public void drainRanges(IDSet.RangeVisitor visitor) {
+		StoredRange range;
+		while((range = firstRangeAfterAdditions()) != null) {
+			// seal each range before handing it over, in case other threads are still taking ID's from it
+			IDRange remainingRange = sealRange(range);
+			if (remainingRange != null) {
+				size.addAndGet(-remainingRange.getSize());
+				visitor.visitRange(remainingRange.getStartID(), remainingRange.getEndID());
+			}
+		}
+	}
+
+
+	private StoredRange firstRange() {
+		Map.Entry<Long,StoredRange> firstEntry = idRanges.firstEntry();
+		return firstEntry != null ? firstEntry.getValue() : null;
+	}
+
+	/**
+	 * Like firstRange(), but if the store looks empty, checks again once any addition in progress has finished:  an
+	 * addition removes the ranges that it merges away before it publishes the merged range, so in between, a store that
+	 * still holds ID's may have no ranges at all.
+	 */
+	private StoredRange firstRangeAfterAdditions() {
+		StoredRange firstRange = firstRange();
+		if (firstRange == null) {
+			synchronized(idRanges) {
+				firstRange = firstRange();
+			}
+		}
+		return firstRange;
+	}
+
+	private void putRange(IDRange range) {
+		StoredRange storedRange = new StoredRange(range.getStartID(), range.getEndID());
+		// the range is measured before it's published, since other threads may start taking ID's from it immediately
+		size.addAndGet(storedRange.getSize());
+		rangeCount.incrementAndGet();
+		updateUnshrunkRangeSizes(storedRange.getSize(), 1);
+		idRanges.put(storedRange.getEndID(), storedRange);
+	}
+
+	private void removeRange(StoredRange range) {
+		// ranges are keyed by end ID, and a sealed range may already have been replaced by a new range with the same end
+		// ID; since IDRange equality is based on the identity of the range's cursor, only the range itself is removed
+		if (idRanges.remove(range.getEndID(), range)) {
+			rangeCount.decrementAndGet();
+		}
+		shrunkRanges.remove(range);
+	}
+
+	/**
+	 * Takes all of the range's remaining ID's (so that no other thread can take any more of them) and removes it,
+	 * returning the ID's taken, or null if there were none.
+	 */
+	private IDRange sealRange(StoredRange range) {
+		IDRange remainingRange = range.takeRemainingIDs();
+		if (remainingRange != null && remainingRange.getStartID() == range.firstID) {
+			updateUnshrunkRangeSizes(remainingRange.getSize(), -1);
+		}
+		removeRange(range);
+		return remainingRange;
+	}
+
+	/**
+	 * Called by the thread that took the range's first ID('s); from then on, the range is measured directly.
+	 */
+	private void rangeShrunk(StoredRange range) {
+		updateUnshrunkRangeSizes(range.getEndID() - range.firstID + 1, -1);
+		shrunkRanges.put(range, Boolean.TRUE);
+		if (!range.hasMoreIDs()) {
+			// the range may have been exhausted (and removed) before it was added above
+			shrunkRanges.remove(range);
+		}
+	}
+
+	private void updateUnshrunkRangeSizes(long rangeSize, int countChange) {
+		synchronized(unshrunkRangeSizes) {
+			Integer count = unshrunkRangeSizes.get(rangeSize);
+			int newCount = (count != null ? count : 0) + countChange;
+			if (newCount != 0) {
+				unshrunkRangeSizes.put(rangeSize, newCount);
+			}
+			else {
+				unshrunkRangeSizes.remove(rangeSize);
+			}
+		}
+	}
+
+
+	/**
+	 * A range held by the store, which remembers its first ID, so that the thread that takes it can tell.
+	 */
+	private static class StoredRange extends IDRange {
+
+		public StoredRange(long startID, long endID) {
+			super(startID, endID);
+			firstID = startID;
+		}
+
+		private final long firstID;
+	}
+
+	// ranges keyed by end ID (which, unlike a range's start ID, never changes)
+	private ConcurrentNavigableMap<Long,StoredRange> idRanges = new ConcurrentSkipListMap<Long,StoredRange>();
+	private AtomicLong size = new AtomicLong();
+	private AtomicInteger rangeCount = new AtomicInteger();
+	// the number of ranges of each size that no ID has been taken from yet
+	private SortedMap<Long,Integer> unshrunkRangeSizes = new TreeMap<Long,Integer>();
+	// the ranges that ID's have been taken from (keyed by identity, since IDRange doesn't override hashCode())
+	private ConcurrentMap<IDRange,Boolean> shrunkRanges = new ConcurrentHashMap<IDRange,Boolean>();
+}
@@ -0,0 +1,235 @@
+package com.demdex.idgen;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Combines concurrent take requests for the same category, made from within a single IDGenerator, into a single
+ * read-modify-write of the category's data.
+ *
+ * The first thread to request ID's from an idle category becomes the category's "leader":  it takes enough ID's to satisfy
+ * every request queued at that time in one update, and splits the resulting IDSet among the waiting requests in arrival
+ * order.  Requests that arrive while the leader's update is in flight are queued, and leadership is handed to the oldest
+ * of them once the leader's update completes.  As a result, at most one update per category is in flight at any time,
+ * so threads within the same process never cause version conflicts for each other.
+ *
+ * If the category runs out of ID's, requests are satisfied in arrival order:  a request may receive fewer ID's than it asked
+ * for, and requests that receive no ID's at all fail with a NoSuchElementException, just as a non-coalesced take would.
+ * The batch is retried using the retry policy of whichever request in it allows the most tries.  If the update itself
+ * fails, every request in the batch fails with the same exception.
+ *
+ * Note that a TakeCoalescer is threadsafe.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+class TakeCoalescer {
+
+	public TakeCoalescer(IDGenerator idGenerator) {
+		this.idGenerator = idGenerator;
+		logger = LoggerFactory.getLogger(TakeCoalescer.class);
+	}
+
+	public IDSet takeIDs(IDCategory category, long idSetSize, RetryPolicy retryPolicy) throws IDGeneratorException {
+		CategoryQueue queue = getQueue(category);
+		TakeRequest request = new TakeRequest(idSetSize, retryPolicy);
+		boolean leader;
+		synchronized(queue) {
+			queue.pendingRequests.add(request);
+			leader = !queue.leaderActive;
+			if (leader) {
+				queue.leaderActive = true;
+			}
+		}
+		if (!leader) {
+			leader = request.awaitCompletionOrLeadership();
+		}
+		if (leader) {
+			executeNextBatch(category, queue);
+		}
+		return request.getResult();
+	}
+
+
+	private void executeNextBatch(IDCategory category, CategoryQueue queue) {
+		List<TakeRequest> batch;
+		synchronized(queue) {
+			batch = new ArrayList<TakeRequest>(queue.pendingRequests);
+			queue.pendingRequests.clear();
+		}
+		try {
+			executeBatch(category, batch);
+		}
+		finally {
+			synchronized(queue) {
+				TakeRequest nextLeader = queue.pendingRequests.peek();
+				if (nextLeader != null) {
+					nextLeader.assignLeadership();
+				}
+				else {
+					queue.leaderActive = false;
+				}
+			}
+		}
+	}
+
+	private void executeBatch(IDCategory category, List<TakeRequest> batch) {
+		long totalSize = 0;
+		RetryPolicy retryPolicy = null;
+		for (TakeRequest request : batch) {
+			totalSize += request.idSetSize;
+			if (totalSize < 0) {
+				totalSize = Long.MAX_VALUE;
+			}
+			if (retryPolicy == null || request.retryPolicy.getMaxTryCount() > retryPolicy.getMaxTryCount()) {
+				retryPolicy = request.retryPolicy;
+			}
+		}
+		if (batch.size() > 1) {
+			logger.debug(
+				"Coalescing {} take requests for category {}",
+				Integer.toString(batch.size()),
+				category.getName()
+			);
+		}
+
+		IDSet combinedIDs;
+		try {
+			combinedIDs = idGenerator.doTakeIDs(category, totalSize, retryPolicy);
+		}
+		catch (Throwable t) {
+			for (TakeRequest request : batch) {
+				request.fail(t);
+			}
+			return;
+		}
+
+		for (TakeRequest request : batch) {
+			if (combinedIDs.hasMoreIDs()) {
+				request.complete(combinedIDs.takeIDs(request.idSetSize));
+			}
+			else {
+				request.fail(new NoSuchElementException("Can't take id's; IDSet is empty"));
+			}
+		}
+	}
+
+	private CategoryQueue getQueue(IDCategory category) {
+		String categoryName = category.getName();
+		CategoryQueue queue = categoryQueues.get(categoryName);
+		if (queue == null) {
+			CategoryQueue newQueue = new CategoryQueue();
+			queue = categoryQueues.putIfAbsent(categoryName, newQueue);
+			if (queue == null) {
+				queue = newQueue;
+			}
+		}
+		return queue;
+	}
+
+
+	private static class CategoryQueue {
+		private Queue<TakeRequest> pendingRequests = new LinkedList<TakeRequest>();
+		private boolean leaderActive = false;
+	}
+
+	private static class TakeRequest {
+
+		public TakeRequest(long idSetSize, RetryPolicy retryPolicy) {
+			this.idSetSize = idSetSize;
+			this.retryPolicy = retryPolicy;
+		}
+
+		public synchronized void complete(IDSet result) {
+			this.result = result;
+			done = true;
+			notifyAll();
+		}
+
+		public synchronized void fail(Throwable failure) {
+			this.failure = failure;
+			done = true;
+			notifyAll();
+		}
+
+		public synchronized void assignLeadership() {
+			leader = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits until this request has either been completed by another thread's batch, or been handed leadership
+		 * (in which case the caller must execute the next batch itself).
+		 *
+		 * The wait is deliberately uninterruptible:  once a request has been queued, ID's may be taken on its behalf
+		 * at any moment, and abandoning the request would lose them.
+		 */
+		public synchronized boolean awaitCompletionOrLeadership() {
+			boolean interrupted = false;
+			while (!done && !leader) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			return !done;
+		}
+
+		public synchronized IDSet getResult() throws IDGeneratorException {
+			if (failure instanceof IDGeneratorException) {
+				throw (IDGeneratorException)failure;
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException)failure;
+			}
+			if (failure instanceof Error) {
+				throw (Error)failure;
+			}
+			if (failure != null) {
+				throw new IDGeneratorException("Coalesced take request failed", (Exception)failure);
+			}
+			return result;
+		}
+
+		private long idSetSize;
+		private RetryPolicy retryPolicy;
+		private IDSet result;
+		private Throwable failure;
+		private boolean done = false;
+		private boolean leader = false;
+	}
+
+	private IDGenerator idGenerator;
+	private ConcurrentMap<String,CategoryQueue> categoryQueues = new ConcurrentHashMap<String,CategoryQueue>();
+	private Logger logger;
+}
@@ -0,0 +1,158 @@
+package com.demdex.idgen;
+
+import com.demdex.util.io.ByteArrayBuilder;
+
+/**
+ * The original, human-readable id set format:  one "startID-endID" line per range, in ASCII (and therefore UTF-8).
+ *
+ * Since this is the format written by the CLI's "create" and "set" commands, and by older versions of the IDGenerator,
+ * it is accepted for any data that isn't recognized as another format.
+ *
+ * Data is parsed directly from the raw bytes, and encoded into a per-thread buffer that is reused from one call to the
+ * next, so apart from the ranges themselves and the final byte array, no objects are created.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TextIDSetCodec implements IDSetCodec {
+
+	public String getName() {
+		return NAME;
+	}
+
+	public boolean canDecode(byte[] data) {
+		return data.length == 0 || data[0] != 0;
+	}
+
+	public IDSet decode(IDCategory category, byte[] data) throws IDGeneratorException {
+		IDSet idSet = new IDSet(category, IDSet.Storage.ARRAY);
+		int pos = 0;
+		try {
+			while (pos < data.length) {
+				int sepPos = scanLong(data, pos);
+				if (sepPos == data.length || data[sepPos] != IDGeneratorConstants.RANGE_VALUES_SEPARATOR) {
+					throw new IllegalArgumentException("Invalid IDRange format at offset "+sepPos);
+				}
+				int endPos = scanLong(data, sepPos + 1);
+				int lineEndPos = endPos;
+				if (lineEndPos < data.length && data[lineEndPos] == CR) {
+					lineEndPos++;
+				}
+				if (lineEndPos < data.length && data[lineEndPos] != LF) {
+					throw new IllegalArgumentException("Invalid IDRange format at offset "+lineEndPos);
+				}
+				idSet.addRange(parseLong(data, pos, sepPos), parseLong(data, sepPos + 1, endPos));
+				pos = lineEndPos + 1;
+			}
+		}
+		catch (Exception e) {
+			throw new IDGeneratorException(
+				"Error deserializing data for category "+category.toString()+": "+
+					new String(data, IDGeneratorConstants.UTF8_CHARSET),
+				e
+			);
+		}
+		return idSet;
+	}
+
+	public byte[] encode(IDSet idSet) {
+		Encoder encoder = encoders.get();
+		try {
+			return encoder.encode(idSet);
+		}
+		finally {
+			if (encoder.out.capacity() > IDGeneratorConstants.MAX_RETAINED_BUFFER_SIZE) {
+				encoders.remove();
+			}
+		}
+	}
+
+	public String toString() {
+		return getName();
+	}
+
+
+	/**
+	 * Returns the position just past the (optionally signed) decimal number starting at pos.
+	 */
+	private static int scanLong(byte[] data, int pos) {
+		if (pos < data.length && data[pos] == MINUS) {
+			pos++;
+		}
+		while (pos < data.length && data[pos] >= '0' && data[pos] <= '9') {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static long parseLong(byte[] data, int startPos, int endPos) {
+		boolean negative = data[startPos] == MINUS;
+		int pos = negative ? startPos + 1 : startPos;
+		if (pos == endPos || endPos - pos > MAX_DECIMAL_DIGITS) {
+			throw new NumberFormatException("Invalid number at offset "+startPos);
+		}
+		// accumulate negatively, so that Long.MIN_VALUE can be represented
+		long value = 0;
+		for (; pos < endPos; pos++) {
+			int digit = data[pos] - '0';
+			if (value < (Long.MIN_VALUE + digit) / 10) {
+				throw new NumberFormatException("Number out of range at offset "+startPos);
+			}
+			value = value * 10 - digit;
+		}
+		if (!negative) {
+			if (value == Long.MIN_VALUE) {
+				throw new NumberFormatException("Number out of range at offset "+startPos);
+			}
+			value = -value;
+		}
+		return value;
+	}
+
+
+	private static class Encoder implements IDSet.RangeVisitor {
+
+		public byte[] encode(IDSet idSet) {
+			out.reset();
+			idSet.visitRanges(this);
+			return out.toByteArray();
+		}
+
+		public void visitRange(long startID, long endID) {
+			out.appendDecimal(startID);
+			out.append((byte)IDGeneratorConstants.RANGE_VALUES_SEPARATOR);
+			out.appendDecimal(endID);
+			out.append(LF);
+		}
+
+		private ByteArrayBuilder out = new ByteArrayBuilder(IDGeneratorConstants.DEFAULT_BUFFER_SIZE);
+	}
+
+	public static final String NAME = "text";
+	private static final byte LF = '\n';
+	private static final byte CR = '\r';
+	private static final byte MINUS = '-';
+	private static final int MAX_DECIMAL_DIGITS = 19;
+	private static final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+		protected Encoder initialValue() {
+			return new Encoder();
+		}
+	};
+}
@@ -0,0 +1,204 @@
+package com.demdex.idgen;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out individual ID's from a shared IDSet to many threads, by giving each thread its own chunk of ID's.
+ *
+ * Each thread takes ID's from a private chunk of (up to) <code>chunkSize</code> ID's, and only goes back to the shared set
+ * when its chunk is empty, so threads contend on the shared set once per chunk rather than once per ID.  A chunk's ID's
+ * are still held in IDRanges, so that the chunk can be reclaimed safely while its thread is using it:  reclaiming a chunk
+ * seals its ranges (by atomically taking all of their remaining ID's), and pushes the remaining ID's back into the shared
+ * set.  Chunks are reclaimed when the dispenser is closed.  Refills don't lock the dispenser (the shared set is taken
+ * from lock-free), so to keep them cheap, the chunks of threads that have exited are only looked for once every
+ * REFILLS_PER_RECLAIM refills, and whenever the shared set runs out of ID's.
+ *
+ * Note that closing the dispenser doesn't return the shared set's ID's to the IDGenerator; the caller is still
+ * responsible for pushing them back.
+ *
+ * Note that a ThreadLocalIDDispenser is threadsafe.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class ThreadLocalIDDispenser {
+
+	public ThreadLocalIDDispenser(IDSet sharedIDs) {
+		this(sharedIDs, IDGeneratorConstants.DEFAULT_CHUNK_SIZE);
+	}
+
+	public ThreadLocalIDDispenser(IDSet sharedIDs, long chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Invalid chunk size: "+chunkSize+"; chunk size must be at least 1 ID");
+		}
+		IDSet.validateNotReadOnly(sharedIDs);
+		this.sharedIDs = sharedIDs;
+		this.chunkSize = chunkSize;
+		logger = LoggerFactory.getLogger(ThreadLocalIDDispenser.class);
+		logger.info(
+			"Initializing thread-local ID dispenser for category {}, using chunk size {}",
+			sharedIDs.getCategory(),
+			chunkSize
+		);
+	}
+
+	public IDCategory getCategory() {
+		return sharedIDs.getCategory();
+	}
+
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	public long nextID() {
+		validateOpen();
+		Chunk chunk = localChunk.get();
+		while (true) {
+			IDRange[] ranges = chunk.ranges;
+			while (chunk.index < ranges.length) {
+				IDRange range = ranges[chunk.index];
+				long takenID = range.tryTakeID();
+				if (takenID <= range.getEndID()) {
+					return takenID;
+				}
+				chunk.index++;
+			}
+			refill(chunk);
+		}
+	}
+
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		logger.info("Closing thread-local ID dispenser for category {} ...", getCategory());
+		closed = true;
+		for (Chunk chunk : chunks) {
+			reclaim(chunk);
+		}
+		chunks.clear();
+		logger.info("Thread-local ID dispenser for category {} closed", getCategory());
+	}
+
+	public boolean isOpen() {
+		return !closed;
+	}
+
+
+	private void refill(Chunk chunk) {
+		validateOpen();
+		if (refillCount.incrementAndGet() % REFILLS_PER_RECLAIM == 0) {
+			reclaimAbandonedChunks();
+		}
+		List<IDRange> takenRanges = takeSharedRanges();
+		if (takenRanges.isEmpty()) {
+			// exited threads' chunks may still hold ID's
+			reclaimAbandonedChunks();
+			takenRanges = takeSharedRanges();
+			if (takenRanges.isEmpty()) {
+				throw new NoSuchElementException("No more id's remaining in set");
+			}
+		}
+		chunk.ranges = takenRanges.toArray(new IDRange[takenRanges.size()]);
+		chunk.index = 0;
+		if (closed) {
+			// close() may have reclaimed this chunk before the new ranges were published, so make sure they're returned
+			reclaim(chunk);
+			validateOpen();
+		}
+	}
+
+	private List<IDRange> takeSharedRanges() {
+		final List<IDRange> takenRanges = new ArrayList<IDRange>();
+		sharedIDs.takeRanges(chunkSize, new IDSet.RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				takenRanges.add(new IDRange(startID, endID));
+			}
+		});
+		return takenRanges;
+	}
+
+	private synchronized void reclaimAbandonedChunks() {
+		Iterator<Chunk> it = chunks.iterator();
+		while (it.hasNext()) {
+			Chunk chunk = it.next();
+			Thread owner = chunk.owner.get();
+			if (owner == null || !owner.isAlive()) {
+				reclaim(chunk);
+				it.remove();
+			}
+		}
+	}
+
+	private void reclaim(Chunk chunk) {
+		for (IDRange range : chunk.ranges) {
+			IDRange remainingRange = range.takeRemainingIDs();
+			if (remainingRange != null) {
+				if (logger.isDebugEnabled()) logger.debug("Returning unused ID's: {} to shared ID set", remainingRange.toString());
+				sharedIDs.pushIDs(new IDSet(sharedIDs.getCategory(), remainingRange));
+			}
+		}
+	}
+
+	private void validateOpen() {
+		if (closed) {
+			throw new IllegalStateException("ID dispenser for category "+getCategory().toString()+" has been closed");
+		}
+	}
+
+
+	private static class Chunk {
+
+		public Chunk(Thread owner) {
+			this.owner = new WeakReference<Thread>(owner);
+		}
+
+		// replaced (by the owning thread) on each refill, and read by reclaim
+		private volatile IDRange[] ranges = new IDRange[0];
+		// only accessed by the owning thread
+		private int index = 0;
+		private WeakReference<Thread> owner;
+	}
+
+	static final int REFILLS_PER_RECLAIM = 64;
+	private IDSet sharedIDs;
+	private long chunkSize;
+	private AtomicLong refillCount = new AtomicLong();
+	private Queue<Chunk> chunks = new ConcurrentLinkedQueue<Chunk>();
+	private ThreadLocal<Chunk> localChunk = new ThreadLocal<Chunk>() {
+		protected Chunk initialValue() {
+			Chunk chunk = new Chunk(Thread.currentThread());
+			chunks.add(chunk);
+			return chunk;
+		}
+	};
+	private volatile boolean closed = false;
+	private Logger logger;
+}
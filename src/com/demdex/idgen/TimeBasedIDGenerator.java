@@ -0,0 +1,222 @@
+package com.demdex.idgen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates ID's locally from a timestamp, a worker ID and a sequence number, rather than by leasing ranges of ID's.
+ *
+ * Each 63-bit ID is composed of the milliseconds elapsed since the epoch (TIMESTAMP_BITS), the generator's worker ID
+ * (WORKER_ID_BITS) and a per-millisecond sequence number (SEQUENCE_BITS), so ID's from the same generator increase
+ * strictly, and ID's from generators with different worker ID's never collide.  If more than 2^SEQUENCE_BITS ID's are
+ * requested within the same millisecond, nextID() waits for the next one.
+ *
+ * Worker ID's are leased once, when the generator is opened, by creating the first free ephemeral
+ * <code>name/workers/worker-NNNN</code> node;  after that, generating ID's doesn't involve the provider at all, so the
+ * provider's load doesn't depend on traffic.  If the worker node is lost (e.g., because the provider's session expired,
+ * in which case another client may lease the same worker ID), a new worker ID is leased before any more ID's are
+ * generated.  While the provider is disconnected, nextID() fails, since the worker node may have been lost without the
+ * generator having heard of it yet.
+ *
+ * If the clock moves backwards by up to MAX_CLOCK_REGRESSION_MILLIS, nextID() waits for it to catch up with the last
+ * timestamp used;  if it moves back any further, nextID() fails rather than risk handing out duplicate ID's.  Note that
+ * ID's are only unique across clients whose clocks are (roughly) in sync, since a worker ID may be leased by a client
+ * whose clock is behind that of its previous holder.
+ *
+ * Note that a TimeBasedIDGenerator is threadsafe, and requires an EphemeralNodeIDProvider.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TimeBasedIDGenerator {
+
+	public TimeBasedIDGenerator(IDGenerator idGenerator, IDCategory category) {
+		this(idGenerator, category, IDGeneratorConstants.DEFAULT_TIME_BASED_EPOCH_MILLIS);
+	}
+
+	public TimeBasedIDGenerator(IDGenerator idGenerator, IDCategory category, long epochMillis) {
+		this.idGenerator = idGenerator;
+		this.category = category;
+		this.epochMillis = epochMillis;
+		workersNode = new IDCategory(category.getName() + NODE_PATH_SEPARATOR + IDGeneratorConstants.WORKERS_NODE_NAME, category);
+		logger = LoggerFactory.getLogger(TimeBasedIDGenerator.class);
+	}
+
+	public synchronized void open() throws IDGeneratorException {
+		logger.info("Opening time-based ID generator for category {}", category);
+		if (getProvider().createData(workersNode, new byte[0])) {
+			logger.info("Created workers node for category {}", category);
+		}
+		leaseWorkerID();
+		closed = false;
+	}
+
+	public synchronized long nextID() throws IDGeneratorException {
+		if (closed) {
+			throw new IllegalStateException("Time-based ID generator for category "+category.toString()+" has been closed");
+		}
+		if (!getProvider().isConnected()) {
+			// the worker node may be lost (and its worker ID leased by another client) without us knowing yet
+			throw new IDGeneratorException(
+				"Provider is disconnected; can't confirm the lease of worker ID "+workerID+" of category "+category
+			);
+		}
+		if (workerNode == null) {
+			logger.warn("Worker ID {} of category {} was lost; leasing a new one", workerID, category);
+			leaseWorkerID();
+		}
+
+		long timestamp = currentTimeMillis() - epochMillis;
+		if (timestamp < lastTimestamp) {
+			long regressionMillis = lastTimestamp - timestamp;
+			if (regressionMillis > MAX_CLOCK_REGRESSION_MILLIS) {
+				throw new IDGeneratorException(
+					"Clock moved backwards by "+regressionMillis+"ms; refusing to generate ID's for category "+category
+				);
+			}
+			logger.warn("Clock moved backwards by {}ms; waiting for it to catch up", regressionMillis);
+			timestamp = waitForTimestamp(lastTimestamp);
+		}
+		if (timestamp == lastTimestamp) {
+			sequence = (sequence + 1) & MAX_SEQUENCE;
+			if (sequence == 0) {
+				// sequence exhausted for this millisecond
+				timestamp = waitForTimestamp(lastTimestamp + 1);
+			}
+		}
+		else {
+			sequence = 0;
+		}
+		if (timestamp > MAX_TIMESTAMP) {
+			throw new IDGeneratorException("Timestamp "+timestamp+" no longer fits in an ID; epoch is: "+epochMillis);
+		}
+		lastTimestamp = timestamp;
+		return (timestamp << (WORKER_ID_BITS + SEQUENCE_BITS)) | (workerID << SEQUENCE_BITS) | sequence;
+	}
+
+	public synchronized void close() throws IDGeneratorException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		IDCategory currWorkerNode = workerNode;
+		workerNode = null;
+		if (currWorkerNode != null) {
+			logger.info("Releasing worker ID {} of category {}", workerID, category);
+			getProvider().deleteData(currWorkerNode);
+		}
+	}
+
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	public IDCategory getCategory() {
+		return category;
+	}
+
+	public synchronized long getWorkerID() {
+		return workerID;
+	}
+
+
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	void sleep(long millis) throws IDGeneratorException {
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IDGeneratorException("Interrupted while waiting for clock", e);
+		}
+	}
+
+
+	private void leaseWorkerID() throws IDGeneratorException {
+		EphemeralNodeIDProvider provider = getProvider();
+		for (long candidateID = 0; candidateID <= MAX_WORKER_ID; candidateID++) {
+			String workerName =
+				workersNode.getName() + NODE_PATH_SEPARATOR +
+					IDGeneratorConstants.WORKER_NODE_PREFIX +
+					String.format(IDGeneratorConstants.WORKER_NODE_NUMBER_FORMAT, candidateID);
+			IDCategory candidateNode = new IDCategory(workerName, category);
+			if (provider.createEphemeralData(candidateNode, new byte[0], new WorkerNodeLossListener())) {
+				workerID = candidateID;
+				workerNode = candidateNode;
+				logger.info("Leased worker ID {} for category {}", workerID, category);
+				return;
+			}
+		}
+		throw new IDGeneratorException("Can't lease worker ID for category "+category+"; all worker ID's are in use");
+	}
+
+	private long waitForTimestamp(long targetTimestamp) throws IDGeneratorException {
+		while (true) {
+			long timestamp = currentTimeMillis() - epochMillis;
+			if (timestamp >= targetTimestamp) {
+				return timestamp;
+			}
+			sleep(targetTimestamp - timestamp);
+		}
+	}
+
+	private EphemeralNodeIDProvider getProvider() {
+		IDProvider provider = idGenerator.getIDProvider();
+		if (!(provider instanceof EphemeralNodeIDProvider)) {
+			throw new IllegalStateException(
+				"Time-based ID generation requires an ephemeral node ID provider; provider is: "+provider.getName()
+			);
+		}
+		return (EphemeralNodeIDProvider)provider;
+	}
+
+
+	private class WorkerNodeLossListener implements EphemeralNodeIDProvider.NodeLossListener {
+		public void nodeLost(IDCategory lostNode) {
+			synchronized(TimeBasedIDGenerator.this) {
+				if (lostNode.equals(workerNode)) {
+					workerNode = null;
+				}
+			}
+		}
+	}
+
+	public static final int TIMESTAMP_BITS = 41;
+	public static final int WORKER_ID_BITS = 10;
+	public static final int SEQUENCE_BITS = 12;
+	public static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+	public static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+	public static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+	public static final long MAX_CLOCK_REGRESSION_MILLIS = 1000;
+	private static final char NODE_PATH_SEPARATOR = '/';
+	private IDGenerator idGenerator;
+	private IDCategory category;
+	private long epochMillis;
+	private IDCategory workersNode;
+	private IDCategory workerNode = null;
+	private long workerID = -1;
+	private long lastTimestamp = -1;
+	private long sequence = 0;
+	private volatile boolean closed = true;
+	private Logger logger;
+}
@@ -0,0 +1,45 @@
+package com.demdex.idgen;
+
+/**
+ * An IDProvider that can notify its client when a category's data changes.
+ *
+ * The IDGenerator uses these notifications to keep its cache of recently written category data fresh (see
+ * IDGenerator.setVersionCachingEnabled()):  after each successful write it asks the provider to watch the data it wrote,
+ * and discards the cached copy as soon as the provider reports that it has been superseded.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public interface WatchingIDProvider extends IDProvider {
+
+	public void setDataChangeListener(DataChangeListener listener);
+
+	/**
+	 * Asks the provider to notify the listener (once) when the category's data is no longer watchedData, i.e., when it
+	 * is changed or deleted.  If the data has already changed by the time the watch is set, the listener is notified
+	 * immediately.  Watches are set asynchronously, and notifications are delivered on a provider thread.
+	 */
+	public void watchData(IDCategory category, RawIDSetData watchedData);
+
+
+	public interface DataChangeListener {
+		public void dataChanged(IDCategory category, RawIDSetData watchedData);
+	}
+}
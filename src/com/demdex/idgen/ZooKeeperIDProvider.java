@@ -1,10 +1,16 @@
 package com.demdex.idgen;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
@@ -38,28 +44,95 @@ import org.slf4j.LoggerFactory;
  * under the License.
  */
 
-public class ZooKeeperIDProvider implements IDProvider {
+public class ZooKeeperIDProvider
+	implements WatchingIDProvider, SequentialNodeIDProvider, EphemeralNodeIDProvider, AsyncIDProvider
+{
 
 	public ZooKeeperIDProvider(String hostList, int sessionTimeout) {
 		this(hostList, sessionTimeout, new NoOpWatcher());
 	}
 
 	public ZooKeeperIDProvider(String hostList, int sessionTimeout, Watcher watcher) {
+		this(hostList, sessionTimeout, watcher, null);
+	}
+
+	public ZooKeeperIDProvider(String hostList, int sessionTimeout, ZooKeeperSessionRegistry sessionRegistry) {
+		this(hostList, sessionTimeout, new NoOpWatcher(), sessionRegistry);
+	}
+
+	/**
+	 * Creates a provider that shares its ZooKeeper session with the other providers (for the same hosts and session
+	 * timeout) that use the same session registry, e.g. ZooKeeperSessionRegistry.getSharedRegistry().  If the registry
+	 * is null, the provider opens a session of its own.
+	 */
+	public ZooKeeperIDProvider(String hostList, int sessionTimeout, Watcher watcher, ZooKeeperSessionRegistry sessionRegistry) {
 		this.hostList = hostList;
 		this.sessionTimeout = sessionTimeout;
 		this.watcher = watcher;
+		this.sessionRegistry = sessionRegistry;
+		connectTimeoutMillis = sessionTimeout;
 		logger = LoggerFactory.getLogger(ZooKeeperIDProvider.class);
 	}
 
+	/**
+	 * Opens the connection to ZooKeeper (or joins the shared session), and waits up to the connect timeout for the
+	 * session to be connected.
+	 */
 	public void open() throws IDGeneratorException {
 		try {
-			logger.info("Opening connection(s) to Zookeeper(s) at {}", hostList);
-			zooKeeper = new ZooKeeper(hostList, sessionTimeout, watcher);
-			logger.info("Zookeeper connection(s) open");
+			if (sessionRegistry != null) {
+				logger.info("Joining shared session to Zookeeper(s) at {}", hostList);
+				sharedSession = sessionRegistry.acquire(hostList, sessionTimeout, connectionWatcher);
+				zooKeeper = sharedSession.getZooKeeper();
+			}
+			else {
+				logger.info("Opening connection(s) to Zookeeper(s) at {}", hostList);
+				zooKeeper = new ZooKeeper(hostList, sessionTimeout, connectionWatcher);
+			}
 		}
 		catch (IOException e) {
 			throw new IDGeneratorException(e);
 		}
+		try {
+			awaitConnected();
+		}
+		catch (IDGeneratorException e) {
+			try {
+				close();
+			}
+			catch (IDGeneratorException closeException) {
+				logger.warn("Error closing connection(s) to Zookeeper(s) at "+hostList, closeException);
+			}
+			throw e;
+		}
+		logger.info("Zookeeper connection(s) open");
+	}
+
+	/**
+	 * Sets how long open() waits for the session to be connected, and how long a request that failed due to a lost
+	 * connection waits for the connection to be re-established before being retried.  A timeout of 0 means don't wait.
+	 */
+	public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+		if (connectTimeoutMillis < 0) {
+			throw new IllegalArgumentException("Invalid connect timeout: "+connectTimeoutMillis);
+		}
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	public long getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	public boolean isConnected() {
+		ZooKeeper currZooKeeper = zooKeeper;
+		return currZooKeeper != null && currZooKeeper.getState() == ZooKeeper.States.CONNECTED;
+	}
+
+	/**
+	 * Returns the session state reported by the most recent connection event, or null if there hasn't been one yet.
+	 */
+	public Watcher.Event.KeeperState getSessionState() {
+		return sessionState;
 	}
 
 	public String getName() {
@@ -68,11 +141,15 @@ public class ZooKeeperIDProvider implements IDProvider {
 	
 	public RawIDSetData getData(IDCategory category) throws IDGeneratorException {
 		logger.trace("Getting data for category {}", category);
-		String categoryName = category.getName();
-		Stat stat = new Stat();
+		final String categoryName = category.getName();
+		final Stat stat = new Stat();
 		byte[] bytes;
 		try {
-			bytes = zooKeeper.getData(categoryName, false, stat);
+			bytes = retryOnConnectionLoss(new ZooKeeperRequest<byte[]>() {
+				public byte[] execute() throws KeeperException, InterruptedException {
+					return zooKeeper.getData(categoryName, false, stat);
+				}
+			});
 		}
 		catch(KeeperException e) {
 			if (e.code().equals(KeeperException.Code.NONODE)) {
@@ -91,7 +168,22 @@ public class ZooKeeperIDProvider implements IDProvider {
 		logger.trace("Setting data for category {} and version {}", category, expectedVersion);
 		String categoryName = category.getName();
 		try {
-			zooKeeper.setData(categoryName, idContents.getData(), expectedVersion);
+			int tryCount = 0;
+			while (true) {
+				try {
+					zooKeeper.setData(categoryName, idContents.getData(), expectedVersion);
+					return;
+				}
+				catch(KeeperException.ConnectionLossException e) {
+					if (++tryCount >= MAX_CONNECTION_LOSS_TRY_COUNT) {
+						throw e;
+					}
+					// the write may or may not have been applied before the connection was lost
+					logger.warn("Connection lost while setting data for category {}; checking whether it was applied", category);
+					awaitConnected();
+					checkDataUnchanged(category, expectedVersion);
+				}
+			}
 		}
 		catch(KeeperException.BadVersionException e) {
 			int actualVersion = getDataVersion(category);
@@ -103,13 +195,183 @@ public class ZooKeeperIDProvider implements IDProvider {
 			}
 			throw new IDGeneratorException(e);
 		}
+		catch(IDGeneratorException e) {
+			throw e;
+		}
+		catch(Exception e) {
+			throw new IDGeneratorException(e);
+		}
+	}
+
+	public void getDataAsync(final IDCategory category, final Callback<RawIDSetData> callback) {
+		logger.trace("Getting data for category {} asynchronously", category);
+		zooKeeper.getData(category.getName(), false, new AsyncCallback.DataCallback() {
+			public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+				if (rc == KeeperException.Code.OK.intValue()) {
+					callback.completed(new RawIDSetData(stat.getVersion(), data));
+				}
+				else {
+					callback.failed(toIDGeneratorException(category, rc, IDProviderVersionException.UNKNOWN));
+				}
+			}
+		}, null/*=ctx*/);
+	}
+
+	/**
+	 * Like setData(), but asynchronous.  Note that unlike setData(), a write whose outcome is unknown due to a lost
+	 * connection isn't checked, but is simply reported as failed.
+	 */
+	public void setDataAsync(final IDCategory category, final RawIDSetData idContents, final Callback<Void> callback) {
+		final int expectedVersion = idContents.getVersion();
+		logger.trace("Setting data for category {} and version {} asynchronously", category, expectedVersion);
+		zooKeeper.setData(category.getName(), idContents.getData(), expectedVersion, new AsyncCallback.StatCallback() {
+			public void processResult(int rc, String path, Object ctx, Stat stat) {
+				if (rc == KeeperException.Code.OK.intValue()) {
+					callback.completed(null);
+				}
+				else {
+					callback.failed(toIDGeneratorException(category, rc, expectedVersion));
+				}
+			}
+		}, null/*=ctx*/);
+	}
+
+	public boolean createData(IDCategory category, byte[] data) throws IDGeneratorException {
+		logger.trace("Creating node for category {}", category);
+		try {
+			zooKeeper.create(category.getName(), data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			return true;
+		}
+		catch(KeeperException.NodeExistsException e) {
+			return false;
+		}
+		catch(Exception e) {
+			throw new IDGeneratorException(e);
+		}
+	}
+
+	public boolean createEphemeralData(IDCategory category, byte[] data, NodeLossListener listener)
+		throws IDGeneratorException
+	{
+		logger.trace("Creating ephemeral node for category {}", category);
+		try {
+			zooKeeper.create(category.getName(), data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+		}
+		catch(KeeperException.NodeExistsException e) {
+			return false;
+		}
+		catch(Exception e) {
+			throw new IDGeneratorException(e);
+		}
+		EphemeralNodeWatcher nodeWatcher = new EphemeralNodeWatcher(category, listener);
+		ephemeralNodeWatchers.put(category, nodeWatcher);
+		nodeWatcher.watch();
+		return true;
+	}
+
+	public void deleteData(IDCategory category) throws IDGeneratorException {
+		logger.trace("Deleting node for category {}", category);
+		try {
+			zooKeeper.delete(category.getName(), ANY_VERSION);
+		}
+		catch(KeeperException.NoNodeException e) {
+			// already gone
+		}
+		catch(Exception e) {
+			throw new IDGeneratorException(e);
+		}
+	}
+
+	public long createSequentialNode(IDCategory category) throws IDGeneratorException {
+		logger.trace("Creating sequential node for category {}", category);
+		String categoryName = category.getName();
+		try {
+			String path =
+				zooKeeper.create(
+					categoryName + NODE_PATH_SEPARATOR + IDGeneratorConstants.SEQUENTIAL_NODE_PREFIX,
+					new byte[0],
+					ZooDefs.Ids.OPEN_ACL_UNSAFE,
+					CreateMode.PERSISTENT_SEQUENTIAL
+				);
+			long sequenceNumber = parseSequenceNumber(path.substring(path.lastIndexOf(NODE_PATH_SEPARATOR) + 1));
+			if (sequenceNumber < 0) {
+				// ZooKeeper's sequence counter is a signed int, which goes negative once it wraps
+				throw new IDGeneratorException("Sequence number of node "+path+" has wrapped");
+			}
+			return sequenceNumber;
+		}
+		catch(KeeperException e) {
+			if (e.code().equals(KeeperException.Code.NONODE)) {
+				return NO_NODE;
+			}
+			throw new IDGeneratorException(e);
+		}
+		catch(Exception e) {
+			throw new IDGeneratorException(e);
+		}
+	}
+
+	public long peekNextSequenceNumber(IDCategory category) throws IDGeneratorException {
+		long nextSequenceNumber = 0;
+		final String categoryName = category.getName();
+		try {
+			List<String> children = retryOnConnectionLoss(new ZooKeeperRequest<List<String>>() {
+				public List<String> execute() throws KeeperException, InterruptedException {
+					return zooKeeper.getChildren(categoryName, false);
+				}
+			});
+			for (String child : children) {
+				nextSequenceNumber = Math.max(nextSequenceNumber, parseSequenceNumber(child) + 1);
+			}
+		}
+		catch(KeeperException.NoNodeException e) {
+			// no node, so no sequential nodes under it either
+		}
 		catch(Exception e) {
 			throw new IDGeneratorException(e);
 		}
+		return nextSequenceNumber;
+	}
+
+	public void deleteSequentialNodes(IDCategory category) {
+		// the children are listed and deleted asynchronously, so that cleanup never holds up a take
+		zooKeeper.getChildren(category.getName(), false, new AsyncCallback.ChildrenCallback() {
+			public void processResult(int rc, String path, Object ctx, List<String> children) {
+				if (rc == KeeperException.Code.NONODE.intValue()) {
+					return;
+				}
+				if (rc != KeeperException.Code.OK.intValue()) {
+					logger.warn("Error listing sequential nodes of {}: {}", path, KeeperException.Code.get(rc));
+					return;
+				}
+				for (String child : children) {
+					if (parseSequenceNumber(child) != NOT_SEQUENTIAL) {
+						zooKeeper.delete(path + NODE_PATH_SEPARATOR + child, ANY_VERSION, deleteCallback, null/*=ctx*/);
+					}
+				}
+			}
+		}, null/*=ctx*/);
+	}
+
+	public void setDataChangeListener(DataChangeListener dataChangeListener) {
+		this.dataChangeListener = dataChangeListener;
+	}
+
+	public void watchData(IDCategory category, RawIDSetData watchedData) {
+		logger.trace("Watching data for category {} and version {}", category, watchedData.getVersion());
+		DataWatcher dataWatcher = new DataWatcher(category, watchedData);
+		zooKeeper.exists(category.getName(), dataWatcher, dataWatcher, null/*=ctx*/);
 	}
 
 	public void close() throws IDGeneratorException {
 		try {
+			if (sharedSession != null) {
+				logger.info("Leaving shared session to Zookeeper(s) at {}", hostList);
+				ZooKeeperSessionRegistry.SharedSession session = sharedSession;
+				sharedSession = null;
+				sessionRegistry.release(session, connectionWatcher);
+				return;
+			}
 			logger.info("Closing connection(s) to Zookeeper(s) at {}", hostList);
 			zooKeeper.close();
 			logger.info("Zookeeper connection(s) closed");
@@ -124,6 +386,116 @@ public class ZooKeeperIDProvider implements IDProvider {
 		return zooKeeper;
 	}
 
+	/**
+	 * Replaces the provider's ZooKeeper handle, e.g. with one that simulates failures.
+	 */
+	void setZookeeper(ZooKeeper zooKeeper) {
+		this.zooKeeper = zooKeeper;
+	}
+
+	/**
+	 * Converts the result code of a failed asynchronous request into the exception the synchronous request would throw.
+	 */
+	private IDGeneratorException toIDGeneratorException(IDCategory category, int rc, int expectedVersion) {
+		KeeperException.Code code = KeeperException.Code.get(rc);
+		KeeperException e = KeeperException.create(code, category.getName());
+		if (code == KeeperException.Code.BADVERSION) {
+			return new IDProviderVersionException("Set data failed", category, expectedVersion, IDProviderVersionException.UNKNOWN, e);
+		}
+		if (code == KeeperException.Code.NONODE) {
+			return new IDGeneratorException("No id data found for category: "+category.getName());
+		}
+		return new IDGeneratorException(e);
+	}
+
+	/**
+	 * Waits up to the connect timeout for the session to be connected.
+	 */
+	private void awaitConnected() throws IDGeneratorException {
+		long deadline = System.currentTimeMillis() + connectTimeoutMillis;
+		synchronized(connectionWatcher) {
+			while (!isConnected()) {
+				long remainingMillis = deadline - System.currentTimeMillis();
+				if (remainingMillis <= 0) {
+					if (connectTimeoutMillis == 0) {
+						return;
+					}
+					throw new IDGeneratorException(
+						"Timed out after "+connectTimeoutMillis+"ms waiting to connect to Zookeeper(s) at "+hostList
+					);
+				}
+				try {
+					connectionWatcher.wait(remainingMillis);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IDGeneratorException("Interrupted while waiting to connect to Zookeeper(s) at "+hostList, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Executes an idempotent request, retrying it (once the connection has been re-established) if it fails because the
+	 * connection was lost.
+	 */
+	private <T> T retryOnConnectionLoss(ZooKeeperRequest<T> request)
+		throws KeeperException, InterruptedException, IDGeneratorException
+	{
+		int tryCount = 0;
+		while (true) {
+			try {
+				return request.execute();
+			}
+			catch(KeeperException.ConnectionLossException e) {
+				if (++tryCount >= MAX_CONNECTION_LOSS_TRY_COUNT) {
+					throw e;
+				}
+				logger.warn("Connection lost; retrying request once reconnected");
+				awaitConnected();
+			}
+		}
+	}
+
+	/**
+	 * After a setData() whose outcome is unknown, checks that the node is still at the expected version, so that the
+	 * write can safely be retried.  If the node has moved on, the write is treated as having failed due to a version
+	 * conflict, even if it was in fact applied:  whether the new data is ours can't be told from the data itself, since
+	 * two clients that take the same number of ID's at the same version write identical bytes.  So if our write had been
+	 * applied, the ID's it removed are lost, but never handed out twice.
+	 */
+	private void checkDataUnchanged(IDCategory category, int expectedVersion)
+		throws KeeperException, InterruptedException, IDGeneratorException
+	{
+		final String categoryName = category.getName();
+		final Stat stat = new Stat();
+		retryOnConnectionLoss(new ZooKeeperRequest<byte[]>() {
+			public byte[] execute() throws KeeperException, InterruptedException {
+				return zooKeeper.getData(categoryName, false, stat);
+			}
+		});
+		if (stat.getVersion() != expectedVersion) {
+			throw new IDProviderVersionException(
+				"Set data failed; connection lost and node changed", category, expectedVersion, stat.getVersion()
+			);
+		}
+	}
+
+	/**
+	 * Returns the sequence number of a sequential node, or -1 if the node isn't one.
+	 */
+	private static long parseSequenceNumber(String nodeName) {
+		if (!nodeName.startsWith(IDGeneratorConstants.SEQUENTIAL_NODE_PREFIX)) {
+			return NOT_SEQUENTIAL;
+		}
+		try {
+			return Long.parseLong(nodeName.substring(IDGeneratorConstants.SEQUENTIAL_NODE_PREFIX.length()));
+		}
+		catch (NumberFormatException e) {
+			return NOT_SEQUENTIAL;
+		}
+	}
+
 	private int getDataVersion(IDCategory category) {
 		int version;
 		try {
@@ -137,14 +509,164 @@ public class ZooKeeperIDProvider implements IDProvider {
 	}
 
 
+	/**
+	 * Sets a one-shot watch on a category's node, and reports to the data change listener when the node no longer holds
+	 * the watched data:  either because the watch fires, or because (as reported by the exists() call that set the watch)
+	 * the node had already changed by the time the watch was set.  The connection to ZooKeeper being lost is also
+	 * reported, since changes made while disconnected may go unnoticed.
+	 */
+	private class DataWatcher implements Watcher, AsyncCallback.StatCallback {
+
+		public DataWatcher(IDCategory category, RawIDSetData watchedData) {
+			this.category = category;
+			this.watchedData = watchedData;
+		}
+
+		public void process(WatchedEvent event) {
+			if (event.getType() == Event.EventType.None && event.getState() == Event.KeeperState.SyncConnected) {
+				return;
+			}
+			notifyListener();
+		}
+
+		public void processResult(int rc, String path, Object ctx, Stat stat) {
+			if (rc != KeeperException.Code.OK.intValue() || stat == null || stat.getVersion() != watchedData.getVersion()) {
+				notifyListener();
+			}
+		}
+
+		private void notifyListener() {
+			DataChangeListener listener = dataChangeListener;
+			if (listener != null) {
+				listener.dataChanged(category, watchedData);
+			}
+		}
+
+		private IDCategory category;
+		private RawIDSetData watchedData;
+	}
+
+	/**
+	 * Watches an ephemeral node, and reports to the node's listener once the node has been deleted, or once the connection
+	 * to ZooKeeper has been lost (since the session, and with it the node, may expire while disconnected).  The watch is
+	 * re-set after any other change to the node.
+	 */
+	private class EphemeralNodeWatcher implements Watcher, AsyncCallback.StatCallback {
+
+		public EphemeralNodeWatcher(IDCategory category, NodeLossListener listener) {
+			this.category = category;
+			this.listener = listener;
+		}
+
+		public void process(WatchedEvent event) {
+			if (event.getType() == Event.EventType.None) {
+				// session events reach every ephemeral node watcher through the ConnectionWatcher
+				return;
+			}
+			if (event.getType() == Event.EventType.NodeDeleted) {
+				notifyListener();
+				return;
+			}
+			watch();
+		}
+
+		public void processResult(int rc, String path, Object ctx, Stat stat) {
+			// other failures (e.g., connection loss) leave the node in doubt;  it's checked again once reconnected
+			if (rc == KeeperException.Code.NONODE.intValue()) {
+				notifyListener();
+			}
+		}
+
+		/**
+		 * Only an expired session loses the node;  while the session is merely disconnected, the node still exists (and
+		 * nodes in doubt are reported by isConnected()), so it's checked again once the session has reconnected.
+		 */
+		public void processSessionEvent(Event.KeeperState state) {
+			if (state == Event.KeeperState.Expired) {
+				notifyListener();
+			}
+			else
+			if (state == Event.KeeperState.SyncConnected) {
+				watch();
+			}
+		}
+
+		public void watch() {
+			if (!isLost()) {
+				zooKeeper.exists(category.getName(), this, this, null/*=ctx*/);
+			}
+		}
+
+		private synchronized boolean isLost() {
+			return lost;
+		}
+
+		private synchronized void notifyListener() {
+			if (!lost) {
+				lost = true;
+				ephemeralNodeWatchers.remove(category, this);
+				listener.nodeLost(category);
+			}
+		}
+
+		private IDCategory category;
+		private NodeLossListener listener;
+		private boolean lost = false;
+	}
+
 	private static class NoOpWatcher implements Watcher {
 		public void process(WatchedEvent event) {
 		}		
 	}
 
+	private interface ZooKeeperRequest<T> {
+		public T execute() throws KeeperException, InterruptedException;
+	}
+
+	/**
+	 * Tracks the session state, wakes up any threads waiting for the session to be connected, and passes every event on
+	 * to the provider's watcher.
+	 */
+	private class ConnectionWatcher implements Watcher {
+		public void process(WatchedEvent event) {
+			if (event.getType() == Event.EventType.None) {
+				sessionState = event.getState();
+				logger.debug("Zookeeper session state is now {}", sessionState);
+				synchronized(this) {
+					notifyAll();
+				}
+				for (EphemeralNodeWatcher nodeWatcher : ephemeralNodeWatchers.values()) {
+					nodeWatcher.processSessionEvent(event.getState());
+				}
+			}
+			watcher.process(event);
+		}
+	}
+
+	private class DeleteCallback implements AsyncCallback.VoidCallback {
+		public void processResult(int rc, String path, Object ctx) {
+			if (rc != KeeperException.Code.OK.intValue() && rc != KeeperException.Code.NONODE.intValue()) {
+				logger.warn("Error deleting sequential node {}: {}", path, KeeperException.Code.get(rc));
+			}
+		}
+	}
+
+	private static final char NODE_PATH_SEPARATOR = '/';
+	private static final int ANY_VERSION = -1;
+	private static final long NOT_SEQUENTIAL = -1;
+	private static final int MAX_CONNECTION_LOSS_TRY_COUNT = 3;
 	private String hostList;
 	private int sessionTimeout;
 	private Watcher watcher;
+	private ZooKeeperSessionRegistry sessionRegistry;
+	private ZooKeeperSessionRegistry.SharedSession sharedSession = null;
+	private ConnectionWatcher connectionWatcher = new ConnectionWatcher();
+	private volatile long connectTimeoutMillis;
+	private volatile Watcher.Event.KeeperState sessionState = null;
 	private Logger logger;
-	private ZooKeeper zooKeeper;
+	private volatile ZooKeeper zooKeeper;
+	private volatile DataChangeListener dataChangeListener;
+	private DeleteCallback deleteCallback = new DeleteCallback();
+	private ConcurrentMap<IDCategory,EphemeralNodeWatcher> ephemeralNodeWatchers =
+		new ConcurrentHashMap<IDCategory,EphemeralNodeWatcher>();
 }
@@ -0,0 +1,129 @@
+package com.demdex.idgen;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A registry of ZooKeeper sessions that can be shared by several ZooKeeperIDProviders (and so by several IDGenerators)
+ * within the same process, so that they multiplex a single connection rather than each opening its own session, socket
+ * and heartbeat threads.
+ *
+ * Sessions are keyed by host list and session timeout, and are reference counted:  the first provider to acquire a
+ * session opens it, and the last one to release it closes it.  A session that has expired is replaced by a new one for
+ * the providers that acquire it from then on.  Session events are forwarded to the watchers of every
+ * provider currently sharing the session.
+ *
+ * Note that ephemeral nodes belong to the session, so a provider's ephemeral nodes outlive the provider itself if
+ * other providers are still sharing its session;  they have to be deleted explicitly.
+ *
+ * Note that a ZooKeeperSessionRegistry is threadsafe.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class ZooKeeperSessionRegistry {
+
+	public ZooKeeperSessionRegistry() {
+		logger = LoggerFactory.getLogger(ZooKeeperSessionRegistry.class);
+	}
+
+	/**
+	 * Returns the registry shared by all ZooKeeperIDProviders that are created with session sharing enabled.
+	 */
+	public static ZooKeeperSessionRegistry getSharedRegistry() {
+		return SHARED_REGISTRY;
+	}
+
+	public synchronized int getSessionCount() {
+		return sessions.size();
+	}
+
+
+	synchronized SharedSession acquire(String hostList, int sessionTimeout, Watcher watcher) throws IOException {
+		String sessionKey = hostList + SESSION_KEY_SEPARATOR + sessionTimeout;
+		SharedSession session = sessions.get(sessionKey);
+		if (session != null && !session.zooKeeper.getState().isAlive()) {
+			// an expired (or closed) session can't be reused;  its current holders keep it until they release it
+			logger.info("Shared session {} is no longer alive; replacing it", sessionKey);
+			sessions.remove(sessionKey);
+			session = null;
+		}
+		if (session == null) {
+			logger.info("Opening shared session to Zookeeper(s) at {}", hostList);
+			session = new SharedSession(sessionKey);
+			session.zooKeeper = new ZooKeeper(hostList, sessionTimeout, session);
+			sessions.put(sessionKey, session);
+		}
+		session.referenceCount++;
+		session.watchers.add(watcher);
+		logger.debug("Acquired shared session {}; reference count is now {}", sessionKey, session.referenceCount);
+		return session;
+	}
+
+	synchronized void release(SharedSession session, Watcher watcher) throws InterruptedException {
+		session.watchers.remove(watcher);
+		session.referenceCount--;
+		logger.debug("Released shared session {}; reference count is now {}", session.sessionKey, session.referenceCount);
+		if (session.referenceCount == 0) {
+			if (sessions.get(session.sessionKey) == session) {
+				sessions.remove(session.sessionKey);
+			}
+			logger.info("Closing shared session {}", session.sessionKey);
+			session.zooKeeper.close();
+		}
+	}
+
+
+	static class SharedSession implements Watcher {
+
+		public SharedSession(String sessionKey) {
+			this.sessionKey = sessionKey;
+		}
+
+		public ZooKeeper getZooKeeper() {
+			return zooKeeper;
+		}
+
+		public void process(WatchedEvent event) {
+			for (Watcher watcher : watchers) {
+				watcher.process(event);
+			}
+		}
+
+		private String sessionKey;
+		private ZooKeeper zooKeeper;
+		private int referenceCount = 0;
+		private List<Watcher> watchers = new CopyOnWriteArrayList<Watcher>();
+	}
+
+	private static final ZooKeeperSessionRegistry SHARED_REGISTRY = new ZooKeeperSessionRegistry();
+	private static final char SESSION_KEY_SEPARATOR = '#';
+	private Map<String,SharedSession> sessions = new HashMap<String,SharedSession>();
+	private Logger logger;
+}
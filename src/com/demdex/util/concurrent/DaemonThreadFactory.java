@@ -0,0 +1,44 @@
+package com.demdex.util.concurrent;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ThreadFactory that creates named daemon threads, so that background worker threads never prevent the JVM from exiting.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class DaemonThreadFactory implements ThreadFactory {
+
+	public DaemonThreadFactory(String threadNamePrefix) {
+		this.threadNamePrefix = threadNamePrefix;
+	}
+
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, threadNamePrefix + THREAD_NAME_SEPARATOR + threadNumber.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	private static final char THREAD_NAME_SEPARATOR = '-';
+	private String threadNamePrefix;
+	private AtomicInteger threadNumber = new AtomicInteger();
+}
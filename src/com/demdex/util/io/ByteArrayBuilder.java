@@ -0,0 +1,123 @@
+package com.demdex.util.io;
+
+/**
+ * A growable byte array, like a ByteArrayOutputStream, but unsynchronized and with methods for appending numbers without
+ * creating any intermediate objects.  A builder is intended to be reset and reused (e.g., one per thread), so that its
+ * internal buffer only has to be allocated once.
+ *
+ * Note that a ByteArrayBuilder is not threadsafe.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class ByteArrayBuilder {
+
+	public ByteArrayBuilder(int initialCapacity) {
+		buf = new byte[initialCapacity];
+	}
+
+	public void reset() {
+		count = 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int capacity() {
+		return buf.length;
+	}
+
+	public void append(byte b) {
+		ensureCapacity(count + 1);
+		buf[count++] = b;
+	}
+
+	public void append(byte[] bytes) {
+		append(bytes, 0, bytes.length);
+	}
+
+	public void append(byte[] bytes, int offset, int length) {
+		ensureCapacity(count + length);
+		System.arraycopy(bytes, offset, buf, count, length);
+		count += length;
+	}
+
+	/**
+	 * Appends the value as ASCII decimal digits (with a leading '-' if negative), as Long.toString() would.
+	 */
+	public void appendDecimal(long value) {
+		ensureCapacity(count + MAX_DECIMAL_LENGTH);
+		if (value < 0) {
+			buf[count++] = '-';
+		}
+		else {
+			// work with negative values, so that Long.MIN_VALUE needs no special case
+			value = -value;
+		}
+		int firstDigit = count;
+		do {
+			buf[count++] = (byte)('0' - (value % 10));
+			value /= 10;
+		} while (value != 0);
+		for (int i = firstDigit, j = count - 1; i < j; i++, j--) {
+			byte digit = buf[i];
+			buf[i] = buf[j];
+			buf[j] = digit;
+		}
+	}
+
+	/**
+	 * Appends the value as an unsigned variable-length integer:  7 bits at a time, least significant group first, with
+	 * the high bit of each byte set if more bytes follow.
+	 */
+	public void appendVarLong(long value) {
+		ensureCapacity(count + MAX_VARLONG_LENGTH);
+		while ((value & ~VARINT_PAYLOAD_MASK) != 0) {
+			buf[count++] = (byte)((value & VARINT_PAYLOAD_MASK) | VARINT_CONTINUATION_BIT);
+			value >>>= VARINT_PAYLOAD_BITS;
+		}
+		buf[count++] = (byte)value;
+	}
+
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[count];
+		System.arraycopy(buf, 0, bytes, 0, count);
+		return bytes;
+	}
+
+
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity <= buf.length) {
+			return;
+		}
+		byte[] newBuf = new byte[Math.max(minCapacity, buf.length * 2)];
+		System.arraycopy(buf, 0, newBuf, 0, count);
+		buf = newBuf;
+	}
+
+	private static final int MAX_DECIMAL_LENGTH = 20;
+	private static final int MAX_VARLONG_LENGTH = 10;
+	private static final int VARINT_PAYLOAD_BITS = 7;
+	private static final long VARINT_PAYLOAD_MASK = 0x7F;
+	private static final int VARINT_CONTINUATION_BIT = 0x80;
+	private byte[] buf;
+	private int count;
+}
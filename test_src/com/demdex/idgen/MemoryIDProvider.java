@@ -1,7 +1,10 @@
 package com.demdex.idgen;
 
-import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicStampedReference;
 
 
@@ -33,7 +36,7 @@ import java.util.concurrent.atomic.AtomicStampedReference;
  * under the License.
  */
 
-public class MemoryIDProvider implements IDProvider {
+public class MemoryIDProvider implements SequentialNodeIDProvider, EphemeralNodeIDProvider, AsyncIDProvider {
 
 	public MemoryIDProvider(IDCategory category) {
 		this(category, "");
@@ -47,11 +50,15 @@ public class MemoryIDProvider implements IDProvider {
 	}
 
 	private MemoryIDProvider(IDCategory category, String rangeStr) {
-		String categoryName = category.getName();
-		ids.put(categoryName, new IDData(category, rangeStr, 1));
+		addCategory(category, rangeStr);
 	}
 
 
+	public void addCategory(IDCategory category, String rangeStr) {
+		String categoryName = category.getName();
+		ids.put(categoryName, new IDData(category, rangeStr.getBytes(IDGeneratorConstants.UTF8_CHARSET), 1));
+	}
+
 	public void open() {
 	}
 
@@ -60,40 +67,189 @@ public class MemoryIDProvider implements IDProvider {
 	}
 
 	public RawIDSetData getData(IDCategory category) throws IDGeneratorException {
+		getDataCount.incrementAndGet();
 		String categoryName = category.getName();
 		IDData idData = ids.get(categoryName);
 		if (idData == null) {
 			throw new IDGeneratorException("No id data found for category: "+categoryName);
 		}
-		return new RawIDSetData(idData.getVersion(), idData.getText().getBytes(IDGeneratorConstants.UTF8_CHARSET));
+		return new RawIDSetData(idData.getVersion(), idData.getBytes());
 	}
 
 	public void setData(IDCategory category, RawIDSetData idContents) throws IDGeneratorException {
 		String categoryName = category.getName();
 		IDData idData = ids.get(categoryName);
-		idData.set(idContents.getVersion(), new String(idContents.getData(), IDGeneratorConstants.UTF8_CHARSET));
+		idData.set(idContents.getVersion(), idContents.getData());
+		setDataCount.incrementAndGet();
+	}
+
+	public void getDataAsync(IDCategory category, Callback<RawIDSetData> callback) {
+		RawIDSetData data;
+		try {
+			data = getData(category);
+		}
+		catch (IDGeneratorException e) {
+			callback.failed(e);
+			return;
+		}
+		callback.completed(data);
+	}
+
+	public void setDataAsync(IDCategory category, RawIDSetData idContents, Callback<Void> callback) {
+		try {
+			setData(category, idContents);
+		}
+		catch (IDGeneratorException e) {
+			callback.failed(e);
+			return;
+		}
+		callback.completed(null);
+	}
+
+	public boolean createData(IDCategory category, byte[] data) {
+		return ids.putIfAbsent(category.getName(), new IDData(category, data, 0)) == null;
+	}
+
+	public boolean createEphemeralData(IDCategory category, byte[] data, NodeLossListener listener) {
+		if (!createData(category, data)) {
+			return false;
+		}
+		ephemeralNodeListeners.put(category.getName(), listener);
+		return true;
+	}
+
+	public void deleteData(IDCategory category) {
+		ids.remove(category.getName());
+		ephemeralNodeListeners.remove(category.getName());
+	}
+
+	/**
+	 * Simulates the loss of an ephemeral node, e.g. due to session expiry.
+	 */
+	public void expireEphemeralData(IDCategory category) {
+		ids.remove(category.getName());
+		NodeLossListener listener = ephemeralNodeListeners.remove(category.getName());
+		if (listener != null) {
+			listener.nodeLost(category);
+		}
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * Simulates the loss (or recovery) of the provider's connection.
+	 */
+	public void setConnected(boolean connected) {
+		this.connected = connected;
+	}
+
+	public boolean hasData(IDCategory category) {
+		return ids.containsKey(category.getName());
+	}
+
+	public long createSequentialNode(IDCategory category) throws IDGeneratorException {
+		if (!hasData(category)) {
+			return NO_NODE;
+		}
+		SequentialNodes nodes = getSequentialNodes(category);
+		synchronized(nodes) {
+			long sequenceNumber = nodes.nextSequenceNumber++;
+			nodes.sequenceNumbers.add(sequenceNumber);
+			return sequenceNumber;
+		}
+	}
+
+	public long peekNextSequenceNumber(IDCategory category) throws IDGeneratorException {
+		long nextSequenceNumber = 0;
+		// children named like sequential nodes count too, as they do in ZooKeeper
+		String childPrefix = category.getName() + '/' + IDGeneratorConstants.SEQUENTIAL_NODE_PREFIX;
+		for (String name : ids.keySet()) {
+			if (name.startsWith(childPrefix) && name.indexOf('/', childPrefix.length()) < 0) {
+				nextSequenceNumber =
+					Math.max(nextSequenceNumber, Long.parseLong(name.substring(childPrefix.length())) + 1);
+			}
+		}
+		if (!hasData(category)) {
+			return nextSequenceNumber;
+		}
+		SequentialNodes nodes = getSequentialNodes(category);
+		synchronized(nodes) {
+			return nodes.sequenceNumbers.isEmpty()
+				? nextSequenceNumber
+				: Math.max(nextSequenceNumber, nodes.sequenceNumbers.last() + 1);
+		}
+	}
+
+	public void deleteSequentialNodes(IDCategory category) throws IDGeneratorException {
+		if (!hasData(category)) {
+			return;
+		}
+		SequentialNodes nodes = getSequentialNodes(category);
+		synchronized(nodes) {
+			// like ZooKeeper, deletes advance the sequence counter
+			nodes.nextSequenceNumber += nodes.sequenceNumbers.size();
+			nodes.sequenceNumbers.clear();
+		}
+	}
+
+	public int getSequentialNodeCount(IDCategory category) throws IDGeneratorException {
+		SequentialNodes nodes = getSequentialNodes(category);
+		synchronized(nodes) {
+			return nodes.sequenceNumbers.size();
+		}
+	}
+
+	public int getGetDataCount() {
+		return getDataCount.get();
+	}
+
+	public int getSetDataCount() {
+		return setDataCount.get();
 	}
 
 	public void close() {
 	}
 
+	private SequentialNodes getSequentialNodes(IDCategory category) throws IDGeneratorException {
+		String categoryName = category.getName();
+		if (!ids.containsKey(categoryName)) {
+			throw new IDGeneratorException("No id data found for category: "+categoryName);
+		}
+		SequentialNodes nodes = sequentialNodes.get(categoryName);
+		if (nodes == null) {
+			SequentialNodes newNodes = new SequentialNodes();
+			nodes = sequentialNodes.putIfAbsent(categoryName, newNodes);
+			if (nodes == null) {
+				nodes = newNodes;
+			}
+		}
+		return nodes;
+	}
+
+	private static class SequentialNodes {
+		private long nextSequenceNumber = 0;
+		private SortedSet<Long> sequenceNumbers = new TreeSet<Long>();
+	}
+
 	private static class IDData {
 
-		public IDData(IDCategory category, String rangeStr, int i) {
+		public IDData(IDCategory category, byte[] bytes, int i) {
 			this.category = category;
-			data = new AtomicStampedReference<String>(rangeStr, i);
+			data = new AtomicStampedReference<byte[]>(bytes, i);
 		}
 
 		public int getVersion() {
 			return data.getStamp();
 		}
 
-		public String getText() {
+		public byte[] getBytes() {
 			return data.getReference();
 		}
 
-		public void set(int expectedVersion, String newText) throws IDProviderVersionException {
-			boolean success = data.compareAndSet(data.getReference(), newText, expectedVersion, expectedVersion + 1);
+		public void set(int expectedVersion, byte[] newBytes) throws IDProviderVersionException {
+			boolean success = data.compareAndSet(data.getReference(), newBytes, expectedVersion, expectedVersion + 1);
 			if (!success) {
 				throw new IDProviderVersionException(
 					"Set data failed",
@@ -105,8 +261,13 @@ public class MemoryIDProvider implements IDProvider {
 		}
 
 		private IDCategory category;
-		private AtomicStampedReference<String> data;
+		private AtomicStampedReference<byte[]> data;
 	}
 
-	private Map<String,IDData> ids = new ConcurrentHashMap<String,IDData>();
+	private ConcurrentMap<String,IDData> ids = new ConcurrentHashMap<String,IDData>();
+	private ConcurrentMap<String,SequentialNodes> sequentialNodes = new ConcurrentHashMap<String,SequentialNodes>();
+	private ConcurrentMap<String,NodeLossListener> ephemeralNodeListeners = new ConcurrentHashMap<String,NodeLossListener>();
+	private volatile boolean connected = true;
+	private AtomicInteger getDataCount = new AtomicInteger();
+	private AtomicInteger setDataCount = new AtomicInteger();
 }
@@ -0,0 +1,190 @@
+package com.demdex.idgen;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the AdaptiveLeaseSizingPolicy class.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestAdaptiveLeaseSizingPolicy extends TestCase {
+
+	protected void setUp() {
+		policy = new ManualClockPolicy();
+	}
+
+	public void testInitialLeaseSize() {
+		assertEquals(INITIAL_LEASE_SIZE, policy.getLeaseSize(TestingConstants.TEST_IDGEN_CATEGORY));
+		policy.leaseTaken(TestingConstants.TEST_IDGEN_CATEGORY, INITIAL_LEASE_SIZE, 0);
+		assertEquals(INITIAL_LEASE_SIZE, policy.getLeaseSize(TestingConstants.TEST_IDGEN_CATEGORY));
+	}
+
+	public void testGrowsToTargetRefillInterval() {
+		// consume 1 ID per ms => target lease size is 1 ID/ms * 10000ms
+		takeLeasesEvery(INITIAL_LEASE_SIZE, 3);
+		assertEquals(TARGET_REFILL_INTERVAL_MILLIS, policy.getLeaseSize(TestingConstants.TEST_IDGEN_CATEGORY));
+	}
+
+	public void testGrowthIsBounded() {
+		takeLeasesEvery(INITIAL_LEASE_SIZE / 5, 2);
+		assertEquals(
+			(long)(INITIAL_LEASE_SIZE * AdaptiveLeaseSizingPolicy.MAX_GROWTH_FACTOR),
+			policy.getLeaseSize(TestingConstants.TEST_IDGEN_CATEGORY)
+		);
+	}
+
+	public void testShrinksWhenIdle() {
+		takeLeasesEvery(INITIAL_LEASE_SIZE * 1000, 2);
+		assertEquals(
+			(long)(INITIAL_LEASE_SIZE / AdaptiveLeaseSizingPolicy.MAX_SHRINK_FACTOR),
+			policy.getLeaseSize(TestingConstants.TEST_IDGEN_CATEGORY)
+		);
+	}
+
+	public void testClampedToMinAndMax() {
+		takeLeasesEvery(INITIAL_LEASE_SIZE * 1000, 20);
+		assertEquals(MIN_LEASE_SIZE, policy.getLeaseSize(TestingConstants.TEST_IDGEN_CATEGORY));
+		// consume 10 ID's per ms => target lease size is the max lease size
+		takeLeasesEvery(INITIAL_LEASE_SIZE / 10, 200);
+		assertEquals(MAX_LEASE_SIZE, policy.getLeaseSize(TestingConstants.TEST_IDGEN_CATEGORY));
+	}
+
+	public void testConflictsGrowLeaseSize() {
+		// consume 1 ID per 10ms => uncontended lease size stays at the initial lease size
+		takeLeasesEvery(TARGET_REFILL_INTERVAL_MILLIS, 3);
+		long uncontendedSize = policy.getLeaseSize(TestingConstants.TEST_IDGEN_CATEGORY);
+		assertEquals(INITIAL_LEASE_SIZE, uncontendedSize);
+		policy.leaseTaken(TestingConstants.TEST_IDGEN_CATEGORY, uncontendedSize, 2);
+		assertTrue(policy.getLeaseSize(TestingConstants.TEST_IDGEN_CATEGORY) > uncontendedSize);
+	}
+
+	public void testGeneratorUsesPolicy() throws IDGeneratorException {
+		IDGenerator generator = new IDGenerator(new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, 1, 100000));
+		generator.setLeaseSizingPolicy(policy);
+		IDSet taken = generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY);
+		assertEquals(INITIAL_LEASE_SIZE, taken.getSize());
+		policy.advance(INITIAL_LEASE_SIZE / 10);
+		taken = generator.takeIDsWithRetry(TestingConstants.TEST_IDGEN_CATEGORY);
+		assertEquals(INITIAL_LEASE_SIZE, taken.getSize());
+		assertTrue(generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY).getSize() > INITIAL_LEASE_SIZE);
+	}
+
+	public void testOneReportPerTake() throws IDGeneratorException {
+		IDGenerator generator = new IDGenerator(new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, 1, 100000));
+		HighWaterMarkIDCategory category =
+			new HighWaterMarkIDCategory(TestingConstants.TEST_IDGEN_CATEGORY.getName(), 100000, true/*=reuseFirst*/);
+		generator.separateHighWaterMark(category);
+		IDSet taken = generator.takeIDs(category, INITIAL_LEASE_SIZE);
+		generator.pushIDs(taken.takeIDs(INITIAL_LEASE_SIZE / 2));
+
+		// the take is served from both the free list and the high-water mark, but reported as a single lease
+		generator.setLeaseSizingPolicy(policy);
+		generator.takeIDs(category);
+		assertEquals(1, policy.leaseCount);
+		assertEquals(INITIAL_LEASE_SIZE, policy.lastLeaseSize);
+
+		// takes of an explicit size aren't sized by the policy, so they aren't reported to it
+		generator.takeIDs(category, INITIAL_LEASE_SIZE);
+		generator.takeIDsWithRetry(category, INITIAL_LEASE_SIZE);
+		assertEquals(1, policy.leaseCount);
+	}
+
+	public void testConcurrentTakers() throws Exception {
+		// each thread takes a lease every 1000ms, all at the same time => 1 ID per ms per thread
+		final CyclicBarrier barrier = new CyclicBarrier(NUM_THREADS, new Runnable() {
+			public void run() {
+				policy.advance(INITIAL_LEASE_SIZE);
+			}
+		});
+		Thread[] takers = new Thread[NUM_THREADS];
+		final AtomicInteger errorCount = new AtomicInteger();
+		for (int i = 0; i < NUM_THREADS; i++) {
+			takers[i] = new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < 10; j++) {
+							policy.leaseTaken(TestingConstants.TEST_IDGEN_CATEGORY, INITIAL_LEASE_SIZE, 0);
+							barrier.await();
+						}
+					}
+					catch(Exception e) {
+						errorCount.incrementAndGet();
+					}
+				}
+			};
+		}
+		for (Thread taker : takers) {
+			taker.start();
+		}
+		for (Thread taker : takers) {
+			taker.join();
+		}
+		assertEquals(0, errorCount.get());
+		assertEquals(
+			NUM_THREADS * TARGET_REFILL_INTERVAL_MILLIS,
+			policy.getLeaseSize(TestingConstants.TEST_IDGEN_CATEGORY)
+		);
+	}
+
+
+	private void takeLeasesEvery(long intervalMillis, int numLeases) {
+		for (int i = 0; i < numLeases; i++) {
+			long leaseSize = policy.getLeaseSize(TestingConstants.TEST_IDGEN_CATEGORY);
+			policy.leaseTaken(TestingConstants.TEST_IDGEN_CATEGORY, leaseSize, 0);
+			policy.advance(intervalMillis * leaseSize / INITIAL_LEASE_SIZE);
+		}
+	}
+
+	private static class ManualClockPolicy extends AdaptiveLeaseSizingPolicy {
+
+		public ManualClockPolicy() {
+			super(TARGET_REFILL_INTERVAL_MILLIS, MIN_LEASE_SIZE, MAX_LEASE_SIZE, INITIAL_LEASE_SIZE);
+		}
+
+		public void advance(long millis) {
+			now += millis;
+		}
+
+		public void leaseTaken(IDCategory category, long leaseSize, int versionConflictCount) {
+			super.leaseTaken(category, leaseSize, versionConflictCount);
+			leaseCount++;
+			lastLeaseSize = leaseSize;
+		}
+
+		long currentTimeMillis() {
+			return now;
+		}
+
+		private volatile long now = 1;
+		private int leaseCount = 0;
+		private long lastLeaseSize = 0;
+	}
+
+	private static final long TARGET_REFILL_INTERVAL_MILLIS = 10000;
+	private static final long MIN_LEASE_SIZE = 10;
+	private static final long MAX_LEASE_SIZE = 100000;
+	private static final long INITIAL_LEASE_SIZE = 1000;
+	private static final int NUM_THREADS = 4;
+	private ManualClockPolicy policy;
+}
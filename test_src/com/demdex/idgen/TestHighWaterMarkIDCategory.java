@@ -0,0 +1,133 @@
+package com.demdex.idgen;
+
+import java.util.NoSuchElementException;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the HighWaterMarkIDCategory class.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestHighWaterMarkIDCategory extends TestCase {
+
+	protected void setUp() throws IDGeneratorException {
+		provider = new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		generator = new IDGenerator(provider);
+		generator.open();
+		category = new HighWaterMarkIDCategory(TestingConstants.TEST_IDGEN_CATEGORY.getName(), MAX_ID);
+		generator.separateHighWaterMark(category);
+	}
+
+	public void testSeparateHighWaterMark() throws IDGeneratorException {
+		assertEquals(MAX_ID, generator.peekIDs(category).getSize());
+		assertFalse(generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY).hasMoreIDs());
+		assertFalse(generator.peekIDs(category.getFreeListNode()).hasMoreIDs());
+		assertEquals(8, provider.getData(category.getHighWaterMarkNode()).getData().length);
+	}
+
+	public void testSeparateFragmentedCategory() throws IDGeneratorException {
+		HighWaterMarkIDCategory fragmentedCategory = new HighWaterMarkIDCategory(FRAGMENTED_CATEGORY.getName(), MAX_ID);
+		IDSet fragmentedIDs = new IDSet(FRAGMENTED_CATEGORY, "1-10,20-30,40-" + MAX_ID);
+		provider.createData(FRAGMENTED_CATEGORY, generator.getIDSetCodec().encode(fragmentedIDs));
+		generator.separateHighWaterMark(fragmentedCategory);
+		assertEquals(21, generator.peekIDs(fragmentedCategory.getFreeListNode()).getSize());
+		assertEquals(40, generator.takeIDs(fragmentedCategory, NUM_IDS).peekNextID());
+		assertEquals(MAX_ID - 39 - NUM_IDS + 21, generator.peekIDs(fragmentedCategory).getSize());
+	}
+
+	public void testTakeOnlyWritesHighWaterMark() throws IDGeneratorException {
+		IDSet taken = generator.takeIDs(category, NUM_IDS);
+		generator.pushIDs(taken.takeIDs(NUM_IDS / 2));
+		int freeListVersion = provider.getData(category.getFreeListNode()).getVersion();
+
+		taken = generator.takeIDs(category, NUM_IDS);
+		assertEquals(category, taken.getCategory());
+		assertEquals(NUM_IDS, taken.getSize());
+		assertEquals(MIN_ID + NUM_IDS, taken.peekNextID());
+		assertEquals(freeListVersion, provider.getData(category.getFreeListNode()).getVersion());
+		assertEquals(MAX_ID - 3 * NUM_IDS / 2, generator.peekIDs(category).getSize());
+	}
+
+	public void testReuseFirst() throws IDGeneratorException {
+		HighWaterMarkIDCategory reusingCategory =
+			new HighWaterMarkIDCategory(TestingConstants.TEST_IDGEN_CATEGORY.getName(), MAX_ID, true);
+		IDSet taken = generator.takeIDs(reusingCategory, NUM_IDS);
+		generator.pushIDs(taken.takeIDs(NUM_IDS / 2));
+		int highWaterMarkVersion = provider.getData(category.getHighWaterMarkNode()).getVersion();
+
+		taken = generator.takeIDs(reusingCategory, NUM_IDS / 2);
+		assertEquals(MIN_ID, taken.peekNextID());
+		assertEquals(highWaterMarkVersion, provider.getData(category.getHighWaterMarkNode()).getVersion());
+
+		// the free list is now empty, so the rest comes from the high-water mark
+		taken = generator.takeIDs(reusingCategory, NUM_IDS);
+		assertEquals(MIN_ID + NUM_IDS, taken.peekNextID());
+	}
+
+	public void testFallBackToFreeList() throws IDGeneratorException {
+		IDSet taken = generator.takeIDs(category, MAX_ID);
+		generator.pushIDs(taken.takeIDs(NUM_IDS));
+		try {
+			generator.takeIDs(category, NUM_IDS);
+		}
+		catch (NoSuchElementException e) {
+			fail();
+		}
+		try {
+			generator.takeIDs(category, NUM_IDS);
+			fail();
+		}
+		catch (NoSuchElementException e) {
+		}
+	}
+
+	public void testPushOverlappingIDs() throws IDGeneratorException {
+		IDSet taken = generator.takeIDs(category, NUM_IDS);
+		generator.pushIDs(taken.copy());
+		try {
+			generator.pushIDs(taken);
+			fail();
+		}
+		catch(IllegalArgumentException e) {
+		}
+	}
+
+	public void testPushIDsAboveHighWaterMark() throws IDGeneratorException {
+		generator.takeIDs(category, NUM_IDS);
+		try {
+			generator.pushIDs(new IDSet(category, MIN_ID + NUM_IDS - 1, MIN_ID + NUM_IDS));
+			fail();
+		}
+		catch(IllegalArgumentException e) {
+		}
+		assertEquals(MIN_ID + NUM_IDS, generator.takeIDs(category, 1).peekNextID());
+	}
+
+
+	private static final IDCategory FRAGMENTED_CATEGORY = new IDCategory("/fragmented");
+	private static final int MIN_ID = 1;
+	private static final int MAX_ID = 10000;
+	private static final int NUM_IDS = 1000;
+	private MemoryIDProvider provider;
+	private IDGenerator generator;
+	private HighWaterMarkIDCategory category;
+}
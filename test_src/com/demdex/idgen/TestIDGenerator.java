@@ -1,6 +1,8 @@
 package com.demdex.idgen;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -151,15 +153,299 @@ public class TestIDGenerator extends TestCase {
 		@SuppressWarnings("rawtypes")
 		Future pushFuture = doTestConcurrentPush(RETRY);
 		pushFuture.get();
+		IDSet allIDs = generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY);
+		assertEquals(MAX_ID - NUM_IDS - 100, allIDs.getSize());
+		assertEquals(101, allIDs.peekNextID());
+	}
+
+	public void testRetryPolicyStopsRetrying() throws IDGeneratorException, InterruptedException {
+		Future<IDSet> takenFuture = doTestConcurrentTake(new ImmediateRetryPolicy(1));
+		try {
+			takenFuture.get();
+			fail();
+		}
+		catch (ExecutionException e) {
+			ObjectAssert.assertInstanceOf(IDProviderVersionException.class, e.getCause());
+		}
+	}
+
+	public void testDefaultTryCount() {
+		assertEquals(IDGeneratorConstants.DEFAULT_MAX_TRY_COUNT, generator.getDefaultTryCount());
+		generator.setDefaultTryCount(5);
+		assertEquals(5, generator.getDefaultTryCount());
+		assertEquals(5, generator.getDefaultRetryPolicy().getMaxTryCount());
+		try {
+			generator.setDefaultTryCount(0);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+		}
 	}
 
+	public void testCoalescedConcurrentTakes() throws Exception {
+		BlockingMemoryIDProvider blockingProvider =
+			new BlockingMemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		generator = new IDGenerator(blockingProvider);
+		generator.setTakeCoalescingEnabled(true);
+
+		// the first taker becomes the leader, and blocks while writing
+		List<Thread> takers = new ArrayList<Thread>();
+		final List<IDSet> takenSets = new ArrayList<IDSet>();
+		for (int i = 0; i < NUM_COALESCED_TAKERS; i++) {
+			Thread taker = new Thread() {
+				public void run() {
+					try {
+						IDSet taken = generator.takeIDsWithRetry(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+						synchronized(takenSets) {
+							takenSets.add(taken);
+						}
+					}
+					catch (IDGeneratorException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			takers.add(taker);
+			taker.start();
+			if (i == 0) {
+				while(!blockingProvider.isBlocking()) {}
+			}
+		}
+
+		// wait until the remaining takers are all queued up behind the leader
+		for (Thread taker : takers.subList(1, takers.size())) {
+			while(taker.getState() != Thread.State.WAITING) {}
+		}
+		blockingProvider.stopBlocking();
+		for (Thread taker : takers) {
+			taker.join();
+		}
+
+		assertEquals(NUM_COALESCED_TAKERS, takenSets.size());
+		assertEquals(2, blockingProvider.getSetDataCount());
+		IDSet allTaken = new IDSet(TestingConstants.TEST_IDGEN_CATEGORY);
+		for (IDSet taken : takenSets) {
+			assertEquals(NUM_IDS, taken.getSize());
+			allTaken.pushIDs(taken);
+		}
+		assertEquals(NUM_COALESCED_TAKERS * NUM_IDS, allTaken.getSize());
+		assertEquals(MIN_ID, allTaken.peekNextID());
+	}
+
+
+	public void testVersionCaching() throws IDGeneratorException {
+		MemoryIDProvider provider = new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		generator = new IDGenerator(provider);
+		generator.open();
+		generator.setVersionCachingEnabled(true);
+		assertEquals(MIN_ID, generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS).peekNextID());
+		assertEquals(MIN_ID + NUM_IDS, generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS).peekNextID());
+		assertEquals(1, provider.getGetDataCount());
+
+		// another client takes ID's, so the cached data is stale
+		IDGenerator otherGenerator = new IDGenerator(provider);
+		otherGenerator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+		assertEquals(
+			MIN_ID + 3 * NUM_IDS,
+			generator.takeIDsWithRetry(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS).peekNextID()
+		);
+		assertEquals(MAX_ID - 4 * NUM_IDS, generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY).getSize());
+	}
+
+	public void testStaleVersionCacheDoesNotFailSingleTry() throws IDGeneratorException {
+		MemoryIDProvider provider = new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		generator = new IDGenerator(provider);
+		generator.open();
+		generator.setVersionCachingEnabled(true);
+		generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+
+		// the other client's take leaves the cache stale, but the single-try take still succeeds from fresh data
+		IDGenerator otherGenerator = new IDGenerator(provider);
+		otherGenerator.open();
+		otherGenerator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+		IDSet taken = generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+		assertEquals(MIN_ID + 2 * NUM_IDS, taken.peekNextID());
+		IDSet pushed = generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+		otherGenerator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+		generator.pushIDs(pushed);
+		assertEquals(MAX_ID - 4 * NUM_IDS, generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY).getSize());
+	}
+
+	public void testStaleVersionCacheDoesNotFailUpdate() throws IDGeneratorException {
+		MemoryIDProvider provider = new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		generator = new IDGenerator(provider);
+		generator.open();
+		generator.setVersionCachingEnabled(true);
+		generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, MAX_ID - MIN_ID + 1);
+
+		// the cached set is empty, but the other client has since pushed ID's, so the take succeeds from fresh data
+		IDGenerator otherGenerator = new IDGenerator(provider);
+		otherGenerator.open();
+		otherGenerator.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MIN_ID + NUM_IDS - 1));
+		IDSet taken = generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+		assertEquals(NUM_IDS, taken.getSize());
+		assertEquals(MIN_ID, taken.peekNextID());
+		try {
+			generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+			fail();
+		}
+		catch(NoSuchElementException e) {
+		}
+	}
+
+	public void testVersionCacheInvalidatedByWatch() throws IDGeneratorException {
+		WatchingMemoryIDProvider provider = new WatchingMemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		generator = new IDGenerator(provider);
+		generator.open();
+		generator.setVersionCachingEnabled(true);
+		generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+		assertEquals(provider.getData(TestingConstants.TEST_IDGEN_CATEGORY).getVersion(), provider.watchedData.getVersion());
+
+		new IDGenerator(provider).takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+		provider.listener.dataChanged(TestingConstants.TEST_IDGEN_CATEGORY, provider.watchedData);
+		int getDataCount = provider.getGetDataCount();
+		assertEquals(MIN_ID + 2 * NUM_IDS, generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS).peekNextID());
+		assertEquals(getDataCount + 1, provider.getGetDataCount());
+	}
+
+	public void testPeekCaching() throws IDGeneratorException {
+		WatchingMemoryIDProvider provider = new WatchingMemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		generator = new IDGenerator(provider);
+		generator.open();
+		generator.setPeekCachingEnabled(true);
+		IDSet view = generator.peekIDsView(TestingConstants.TEST_IDGEN_CATEGORY);
+		assertTrue(view.isReadOnly());
+		assertSame(view, generator.peekIDsView(TestingConstants.TEST_IDGEN_CATEGORY));
+		IDSet peeked = generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY);
+		assertFalse(peeked.isReadOnly());
+		peeked.takeID();
+		assertEquals(MAX_ID, generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY).getSize());
+		assertEquals(1, provider.getGetDataCount());
+
+		// a write by this generator invalidates the snapshot immediately
+		generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+		assertEquals(MAX_ID - NUM_IDS, generator.peekIDsView(TestingConstants.TEST_IDGEN_CATEGORY).getSize());
+
+		// a write by another client invalidates it once the provider reports the change
+		new IDGenerator(provider).takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+		assertEquals(MAX_ID - NUM_IDS, generator.peekIDsView(TestingConstants.TEST_IDGEN_CATEGORY).getSize());
+		provider.listener.dataChanged(TestingConstants.TEST_IDGEN_CATEGORY, provider.watchedData);
+		assertEquals(MAX_ID - 2 * NUM_IDS, generator.peekIDsView(TestingConstants.TEST_IDGEN_CATEGORY).getSize());
+	}
+
+	public void testPeekCachingRequiresWatchingProvider() {
+		try {
+			generator.setPeekCachingEnabled(true);
+			fail();
+		}
+		catch(IllegalStateException e) {
+		}
+	}
+
+	public void testCloseReturnsOutstandingLeases() throws IDGeneratorException {
+		MemoryIDProvider provider = new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		generator = new IDGenerator(provider);
+		generator.setLeaseReturnEnabled(true);
+		IDSet lease1 = generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+		IDSet lease2 = generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+		lease1.takeIDs(NUM_IDS / 2);
+		lease2.takeID();
+		int setDataCount = provider.getSetDataCount();
+		generator.close();
+		assertEquals(setDataCount + 1, provider.getSetDataCount());
+		assertFalse(lease1.hasMoreIDs());
+		assertFalse(lease2.hasMoreIDs());
+		IDSet remainingIDs = new IDGenerator(provider).peekIDs(TestingConstants.TEST_IDGEN_CATEGORY);
+		assertEquals(MAX_ID - NUM_IDS / 2 - 1, remainingIDs.getSize());
+		assertEquals(NUM_IDS / 2 + 1, remainingIDs.peekNextID());
+	}
+
+	public void testUnreachableLeasesReturned() throws IDGeneratorException, InterruptedException {
+		generator.setLeaseReturnEnabled(true);
+		generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS).takeID();
+		IDSet heldLease = generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS);
+		for (int i = 0; i < GC_ATTEMPTS; i++) {
+			System.gc();
+			Thread.sleep(10);
+			generator.returnUnreachableLeases();
+			if (generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY).getSize() > MAX_ID - 2 * NUM_IDS) {
+				break;
+			}
+		}
+		IDSet remainingIDs = generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY);
+		assertEquals(MAX_ID - NUM_IDS - 1, remainingIDs.getSize());
+		assertEquals(2, remainingIDs.peekNextID());
+		assertEquals(NUM_IDS, heldLease.getSize());
+	}
+
+	public void testAsyncRequestsPipelined() throws IDGeneratorException {
+		MemoryIDProvider provider = new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		List<IDCategory> categories = new ArrayList<IDCategory>();
+		for (int i = 0; i < NUM_ASYNC_CATEGORIES; i++) {
+			IDCategory category = new IDCategory(TestingConstants.TEST_IDGEN_CATEGORY.getName() + i);
+			provider.addCategory(category, "" + MIN_ID + IDGeneratorConstants.RANGE_VALUES_SEPARATOR + MAX_ID);
+			categories.add(category);
+		}
+		generator = new IDGenerator(provider);
+		List<IDGeneratorFuture<IDSet>> takes = new ArrayList<IDGeneratorFuture<IDSet>>();
+		for (IDCategory category : categories) {
+			takes.add(generator.takeIDsAsync(category, NUM_IDS));
+		}
+		List<IDGeneratorFuture<Void>> pushes = new ArrayList<IDGeneratorFuture<Void>>();
+		for (IDGeneratorFuture<IDSet> take : takes) {
+			IDSet taken = take.getResult();
+			assertEquals(NUM_IDS, taken.getSize());
+			assertEquals(MIN_ID, taken.peekNextID());
+			pushes.add(generator.pushIDsAsync(taken.takeIDs(NUM_IDS / 2)));
+		}
+		for (IDGeneratorFuture<Void> push : pushes) {
+			push.getResult();
+		}
+		for (IDCategory category : categories) {
+			IDSet remainingIDs = generator.peekIDsAsync(category).getResult();
+			assertEquals(MAX_ID - NUM_IDS / 2, remainingIDs.getSize());
+			assertEquals(MIN_ID, remainingIDs.peekNextID());
+		}
+	}
+
+	public void testAsyncTakeRetriesOnVersionConflict() throws IDGeneratorException {
+		ConflictingMemoryIDProvider provider =
+			new ConflictingMemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		generator = new IDGenerator(provider);
+		provider.addConflicts(1);
+		try {
+			generator.takeIDsAsync(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS).getResult();
+			fail();
+		}
+		catch (IDProviderVersionException e) {
+		}
+		provider.addConflicts(1);
+		IDSet taken =
+			generator.takeIDsAsync(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS, new ImmediateRetryPolicy(2)).getResult();
+		assertEquals(NUM_IDS, taken.getSize());
+		assertEquals(MAX_ID - NUM_IDS, generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY).getSize());
+	}
+
+	public void testAsyncTakeWithNoIDs() throws IDGeneratorException {
+		generator.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, MAX_ID);
+		try {
+			generator.takeIDsAsync(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS).getResult();
+			fail();
+		}
+		catch (NoSuchElementException e) {
+		}
+	}
 
 	private Future<IDSet> doTestConcurrentTake(boolean retry) throws IDGeneratorException {
+		return doTestConcurrentTake(retry == RETRY ? new ExponentialBackoffRetryPolicy() : null);
+	}
+
+	private Future<IDSet> doTestConcurrentTake(RetryPolicy retryPolicy) throws IDGeneratorException {
 		BlockingMemoryIDProvider blockingProvider =
 			new BlockingMemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
 		generator = new IDGenerator(blockingProvider);
 		Future<IDSet> takenFuture = executeThreadedTask(
-			new IDTakerTask(generator, TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS, retry)
+			new IDTakerTask(generator, TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS, retryPolicy)
 		);
 
 		// wait until the blocking starts
@@ -199,24 +485,24 @@ public class TestIDGenerator extends TestCase {
 
 	private static class IDTakerTask implements Callable<IDSet> {
 
-		public IDTakerTask(IDGenerator generator, IDCategory category, int idSetSize, boolean retry) {
+		public IDTakerTask(IDGenerator generator, IDCategory category, int idSetSize, RetryPolicy retryPolicy) {
 			this.generator = generator;
 			this.category = category;
 			this.idSetSize = idSetSize;
-			this.retry = retry; 
+			this.retryPolicy = retryPolicy; 
 		}
 
 		public IDSet call() throws IDGeneratorException {
 			return
-				(retry == RETRY)
-					? generator.takeIDsWithRetry(category, idSetSize)
+				(retryPolicy != null)
+					? generator.takeIDsWithRetry(category, idSetSize, retryPolicy)
 					: generator.takeIDs(category, idSetSize);
 		}
 
 		private IDGenerator generator;
 		private IDCategory category;
 		private int idSetSize;
-		private boolean retry;
+		private RetryPolicy retryPolicy;
 	}
 
 	private static class IDPusherTask implements Callable<Object> {
@@ -242,9 +528,61 @@ public class TestIDGenerator extends TestCase {
 		private boolean retry;
 	}
 
+	private static class WatchingMemoryIDProvider extends MemoryIDProvider implements WatchingIDProvider {
+
+		public WatchingMemoryIDProvider(IDCategory category, int minID, int maxID) {
+			super(category, minID, maxID);
+		}
+
+		public void setDataChangeListener(DataChangeListener listener) {
+			this.listener = listener;
+		}
+
+		public void watchData(IDCategory category, RawIDSetData watchedData) {
+			this.watchedData = watchedData;
+		}
+
+		private DataChangeListener listener;
+		private RawIDSetData watchedData;
+	}
+
+	/**
+	 * Simulates another client writing to the category between an asynchronous read and write, a given number of times.
+	 */
+	private static class ConflictingMemoryIDProvider extends MemoryIDProvider {
+
+		public ConflictingMemoryIDProvider(IDCategory category, int minID, int maxID) {
+			super(category, minID, maxID);
+		}
+
+		public void setDataAsync(IDCategory category, RawIDSetData idContents, Callback<Void> callback) {
+			if (conflictCount > 0) {
+				conflictCount--;
+				try {
+					RawIDSetData currData = getData(category);
+					setData(category, currData);
+				}
+				catch (IDGeneratorException e) {
+					callback.failed(e);
+					return;
+				}
+			}
+			super.setDataAsync(category, idContents, callback);
+		}
+
+		public void addConflicts(int conflictCount) {
+			this.conflictCount += conflictCount;
+		}
+
+		private int conflictCount = 0;
+	}
+
 	private static final int MIN_ID = 1;
 	private static final int MAX_ID = 10000;
 	private static final int NUM_IDS = 1000;
+	private static final int NUM_COALESCED_TAKERS = 5;
+	private static final int GC_ATTEMPTS = 100;
+	private static final int NUM_ASYNC_CATEGORIES = 5;
 	private static final boolean RETRY = true;
 	private static final boolean NO_RETRY = !RETRY;
 	private IDGenerator generator;
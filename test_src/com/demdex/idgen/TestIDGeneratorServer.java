@@ -0,0 +1,239 @@
+package com.demdex.idgen;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the IDGeneratorServer and IDGeneratorClient classes.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestIDGeneratorServer extends TestCase {
+
+	protected void setUp() throws IDGeneratorException {
+		provider = new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		provider.addCategory(OTHER_CATEGORY, "" + MIN_ID + IDGeneratorConstants.RANGE_VALUES_SEPARATOR + MAX_ID);
+		provider.addCategory(SMALL_CATEGORY, "" + MIN_ID + IDGeneratorConstants.RANGE_VALUES_SEPARATOR + SMALL_MAX_ID);
+		generator = new IDGenerator(provider);
+		generator.open();
+		server = new IDGeneratorServer(generator, ANY_PORT, LEASE_SIZE);
+		server.open();
+		client = newClient();
+	}
+
+	protected void tearDown() throws IDGeneratorException {
+		client.close();
+		server.close();
+		generator.close();
+	}
+
+	public void testTakeIDs() throws IDGeneratorException {
+		IDSet takenIDs = client.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, TAKE_SIZE);
+		assertEquals(TestingConstants.TEST_IDGEN_CATEGORY, takenIDs.getCategory());
+		assertEquals(TAKE_SIZE, takenIDs.getSize());
+		assertEquals(MIN_ID, takenIDs.peekNextID());
+		assertEquals(MIN_ID + TAKE_SIZE, client.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, TAKE_SIZE).peekNextID());
+
+		// the server leases whole blocks, so the provider only sees one take
+		IDSet remainingIDs = generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY);
+		assertEquals(MIN_ID + LEASE_SIZE, remainingIDs.peekNextID());
+	}
+
+	public void testPushIDs() throws IDGeneratorException {
+		IDSet takenIDs = client.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, TAKE_SIZE);
+		client.pushIDs(takenIDs);
+		assertEquals(MIN_ID, client.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, TAKE_SIZE).peekNextID());
+	}
+
+	public void testPipelinedTakes() throws IDGeneratorException {
+		List<IDCategory> categories = Arrays.asList(TestingConstants.TEST_IDGEN_CATEGORY, OTHER_CATEGORY, SMALL_CATEGORY);
+		List<IDSet> takenIDSets = client.takeIDs(categories, TAKE_SIZE);
+		assertEquals(categories.size(), takenIDSets.size());
+		for (int i = 0; i < categories.size(); i++) {
+			assertEquals(categories.get(i), takenIDSets.get(i).getCategory());
+			assertEquals(MIN_ID, takenIDSets.get(i).peekNextID());
+		}
+		assertEquals(SMALL_MAX_ID, takenIDSets.get(2).getSize());
+	}
+
+	public void testExhaustedCategory() throws IDGeneratorException {
+		client.takeIDs(SMALL_CATEGORY, SMALL_MAX_ID);
+		try {
+			client.takeIDs(SMALL_CATEGORY, TAKE_SIZE);
+			fail();
+		}
+		catch(NoSuchElementException e) {
+		}
+		assertTrue(client.isOpen());
+		assertEquals(MIN_ID, client.takeIDs(OTHER_CATEGORY, TAKE_SIZE).peekNextID());
+	}
+
+	public void testPipelinedTakesReturnIDsOnFailure() throws IDGeneratorException {
+		client.takeIDs(SMALL_CATEGORY, SMALL_MAX_ID);
+		try {
+			client.takeIDs(Arrays.asList(OTHER_CATEGORY, SMALL_CATEGORY), TAKE_SIZE);
+			fail();
+		}
+		catch(NoSuchElementException e) {
+		}
+		assertEquals(MIN_ID, client.takeIDs(OTHER_CATEGORY, TAKE_SIZE).peekNextID());
+	}
+
+	public void testCloseReturnsUnusedIDs() throws IDGeneratorException {
+		client.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, TAKE_SIZE);
+		server.close();
+		assertFalse(server.isOpen());
+		IDSet remainingIDs = generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY);
+		assertEquals(MAX_ID - TAKE_SIZE, remainingIDs.getSize());
+		assertEquals(MIN_ID + TAKE_SIZE, remainingIDs.peekNextID());
+		try {
+			client.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, TAKE_SIZE);
+			fail();
+		}
+		catch(IDGeneratorException e) {
+		}
+		assertFalse(client.isOpen());
+	}
+
+	public void testConcurrentClients() throws Exception {
+		final Set<Long> takenIDs = Collections.synchronizedSet(new HashSet<Long>());
+		ExecutorService executor = Executors.newFixedThreadPool(NUM_CLIENTS);
+		Future<?>[] futures = new Future<?>[NUM_CLIENTS];
+		for (int i = 0; i < NUM_CLIENTS; i++) {
+			futures[i] = executor.submit(new Callable<Object>() {
+				public Object call() throws IDGeneratorException {
+					IDGeneratorClient threadClient = newClient();
+					try {
+						for (int j = 0; j < TAKES_PER_CLIENT; j++) {
+							Iterator<IDRange> ranges = threadClient.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, TAKE_SIZE).peekRanges();
+							while (ranges.hasNext()) {
+								IDRange range = ranges.next();
+								for (long id = range.getStartID(); id <= range.getEndID(); id++) {
+									assertTrue(takenIDs.add(id));
+								}
+							}
+						}
+					}
+					finally {
+						threadClient.close();
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		assertEquals(NUM_CLIENTS * TAKES_PER_CLIENT * TAKE_SIZE, takenIDs.size());
+	}
+
+	public void testWaitingTakeDoesNotBlockOtherRequests() throws Exception {
+		final BlockingMemoryIDProvider blockingProvider =
+			new BlockingMemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		IDGenerator blockingGenerator = new IDGenerator(blockingProvider);
+		blockingGenerator.open();
+		final IDGeneratorServer blockingServer = new IDGeneratorServer(blockingGenerator, ANY_PORT, LEASE_SIZE);
+		blockingServer.open();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			// the first take has to wait for a refill, which blocks while writing to the provider
+			Future<IDSet> waitingTake = executor.submit(new Callable<IDSet>() {
+				public IDSet call() throws IDGeneratorException {
+					IDGeneratorClient waitingClient = new IDGeneratorClient(blockingServer.getPort());
+					waitingClient.open();
+					try {
+						return waitingClient.takeIDs(TestingConstants.TEST_IDGEN_CATEGORY, TAKE_SIZE);
+					}
+					finally {
+						waitingClient.close();
+					}
+				}
+			});
+			while (!blockingProvider.isBlocking()) {
+				Thread.sleep(1);
+			}
+
+			// meanwhile, requests that don't need the provider are still served
+			Future<IDSet> otherTake = executor.submit(new Callable<IDSet>() {
+				public IDSet call() throws IDGeneratorException {
+					IDGeneratorClient otherClient = new IDGeneratorClient(blockingServer.getPort());
+					otherClient.open();
+					try {
+						otherClient.pushIDs(new IDSet(OTHER_CATEGORY, MIN_ID, TAKE_SIZE));
+						return otherClient.takeIDs(OTHER_CATEGORY, TAKE_SIZE);
+					}
+					finally {
+						otherClient.close();
+					}
+				}
+			});
+			assertEquals(MIN_ID, otherTake.get(RESPONSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).peekNextID());
+			assertFalse(waitingTake.isDone());
+
+			blockingProvider.setBlockingEnabled(false);
+			blockingProvider.stopBlocking();
+			assertEquals(MIN_ID, waitingTake.get(RESPONSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).peekNextID());
+		}
+		finally {
+			blockingProvider.setBlockingEnabled(false);
+			blockingProvider.stopBlocking();
+			executor.shutdown();
+			blockingServer.close();
+			blockingGenerator.close();
+		}
+	}
+
+
+	private IDGeneratorClient newClient() throws IDGeneratorException {
+		IDGeneratorClient newClient = new IDGeneratorClient(server.getPort());
+		newClient.open();
+		return newClient;
+	}
+
+	private static final IDCategory OTHER_CATEGORY = new IDCategory("/foo/baz");
+	private static final IDCategory SMALL_CATEGORY = new IDCategory("/foo/small");
+	private static final int ANY_PORT = 0;
+	private static final int MIN_ID = 1;
+	private static final int MAX_ID = 100000;
+	private static final int SMALL_MAX_ID = 5;
+	private static final int LEASE_SIZE = 100;
+	private static final int TAKE_SIZE = 10;
+	private static final int NUM_CLIENTS = 4;
+	private static final int TAKES_PER_CLIENT = 200;
+	private static final long RESPONSE_TIMEOUT_MILLIS = 5000;
+	private MemoryIDProvider provider;
+	private IDGenerator generator;
+	private IDGeneratorServer server;
+	private IDGeneratorClient client;
+}
@@ -1,7 +1,13 @@
 package com.demdex.idgen;
 
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
@@ -212,8 +218,301 @@ public class TestIDSet extends TestCase {
         assertEquals(false, idRanges.hasNext());
     }
 
+	public void testConcurrentTakeAndPush() throws Exception {
+		// every other block of ID's starts out in the set; the rest are pushed (and merged) while takers are running
+		final IDSet sharedSet = new IDSet(TestingConstants.TEST_IDGEN_CATEGORY);
+		for (long start = LOW_ID; start <= HIGH_ID; start += 2 * BLOCK_SIZE) {
+			sharedSet.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, start, start + BLOCK_SIZE - 1));
+		}
+		final Set<Long> takenIDs = Collections.synchronizedSet(new HashSet<Long>());
+		final AtomicInteger duplicateCount = new AtomicInteger();
+		Thread[] takers = new Thread[NUM_THREADS];
+		for (int i = 0; i < NUM_THREADS; i++) {
+			takers[i] = new Thread() {
+				public void run() {
+					while (true) {
+						long id;
+						try {
+							id = sharedSet.takeID();
+						}
+						catch(NoSuchElementException e) {
+							return;
+						}
+						if (!takenIDs.add(id)) {
+							duplicateCount.incrementAndGet();
+						}
+					}
+				}
+			};
+		}
+		for (Thread taker : takers) {
+			taker.start();
+		}
+		for (long start = LOW_ID + BLOCK_SIZE; start <= HIGH_ID; start += 2 * BLOCK_SIZE) {
+			sharedSet.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, start, start + BLOCK_SIZE - 1));
+		}
+		for (Thread taker : takers) {
+			taker.join();
+		}
+		while (sharedSet.hasMoreIDs()) {
+			assertTrue(takenIDs.add(sharedSet.takeID()));
+		}
+		assertEquals(0, duplicateCount.get());
+		assertEquals(HIGH_ID, takenIDs.size());
+		assertEquals(0, sharedSet.getLargestRangeSize());
+		assertEquals(0, sharedSet.getSize());
+		assertEquals(0, sharedSet.getRangeCount());
+	}
+
+	public void testConcurrentTakeAndAdjacentPush() throws Exception {
+		// each push merges with the set's only range, so takers must never see the set as empty while it's merging
+		final IDSet sharedSet = new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, LOW_ID, HIGH_ID);
+		final AtomicInteger emptyCount = new AtomicInteger();
+		Thread[] takers = new Thread[NUM_THREADS];
+		for (int i = 0; i < NUM_THREADS; i++) {
+			takers[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < HIGH_ID / NUM_THREADS; j++) {
+						try {
+							sharedSet.takeID();
+						}
+						catch(NoSuchElementException e) {
+							emptyCount.incrementAndGet();
+						}
+					}
+				}
+			};
+		}
+		for (Thread taker : takers) {
+			taker.start();
+		}
+		long nextID = HIGH_ID + 1;
+		for (Thread taker : takers) {
+			while (taker.isAlive()) {
+				sharedSet.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, nextID, nextID));
+				nextID++;
+			}
+		}
+		assertEquals(0, emptyCount.get());
+		assertEquals(nextID - 1 - HIGH_ID, sharedSet.getSize());
+		assertEquals(sharedSet.hasMoreIDs() ? 1 : 0, sharedSet.getRangeCount());
+		assertEquals(sharedSet.getSize(), sharedSet.getLargestRangeSize());
+	}
+
+	public void testPushOverlappingRangeEnd() {
+		for (IDSet.Storage storage : IDSet.Storage.values()) {
+			idSet = new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, storage);
+			idSet.addRange(LOW_ID, NUM_IDS);
+			try {
+				idSet.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, NUM_IDS, HIGH_ID));
+				fail();
+			}
+			catch(IllegalArgumentException e) {
+			}
+			assertEquals(NUM_IDS, idSet.getSize());
+		}
+	}
+
+	public void testArrayStorage() {
+		idSet = new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, IDSet.Storage.ARRAY);
+		idSet.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, new IDRange(101, 200), new IDRange(501, 600)));
+		idSet.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, 301, 400));
+		assertEquals(IDSet.Storage.ARRAY, idSet.getStorage());
+		assertEquals(300, idSet.getSize());
+		assertEquals(101, idSet.peekNextID());
+
+		IDSet taken = idSet.takeIDs(150);
+		assertEquals(150, taken.getSize());
+		assertEquals("101-200,301-350", getRanges(taken));
+		assertEquals(351, idSet.takeID());
+		assertEquals("352-400,501-600", getRanges(idSet));
+
+		// pushing the gap back merges it with its neighbours
+		idSet.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, 401, 500));
+		assertEquals("352-600", getRanges(idSet));
+		try {
+			idSet.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, 600, 700));
+			fail();
+		}
+		catch(IllegalArgumentException e) {
+		}
+
+		IDSet copy = idSet.copy();
+		assertEquals(IDSet.Storage.ARRAY, copy.getStorage());
+		assertEquals("352-600", getRanges(copy));
+		idSet.takeIDs(idSet.getSize());
+		assertFalse(idSet.hasMoreIDs());
+		assertEquals(249, copy.getSize());
+	}
+
+	public void testLargestRangeSizeTracksEachTake() {
+		for (IDSet.Storage storage : IDSet.Storage.values()) {
+			// the largest range comes first, so every take shrinks it, until the later ranges are larger
+			idSet = new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, storage);
+			idSet.pushIDs(
+				new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, new IDRange(1, 100), new IDRange(201, 250), new IDRange(301, 350))
+			);
+			for (int i = 0; i < 60; i++) {
+				assertEquals(getLargestRangeSize(idSet), idSet.getLargestRangeSize());
+				idSet.takeID();
+			}
+			assertEquals(50, idSet.getLargestRangeSize());
+			idSet.takeIDs(45);
+			assertEquals(50, idSet.getLargestRangeSize());
+
+			// merges 301-350 with 351-400, and then what remains of 201-250 with the merged range
+			idSet.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, 351, 400));
+			assertEquals(100, idSet.getLargestRangeSize());
+			idSet.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, 251, 300));
+			assertEquals(195, idSet.getLargestRangeSize());
+			while (idSet.hasMoreIDs()) {
+				idSet.takeIDs(7);
+				assertEquals(getLargestRangeSize(idSet), idSet.getLargestRangeSize());
+			}
+			assertEquals(0, idSet.getLargestRangeSize());
+		}
+	}
+
+	public void testArrayStorageMatchesSkipListStorage() {
+		IDSet arraySet = new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, IDSet.Storage.ARRAY);
+		IDSet skipListSet = new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, IDSet.Storage.SKIP_LIST);
+		// push every other ID in descending order (each range inserted at the front), then take some and fill in gaps
+		for (long id = HIGH_ID; id >= LOW_ID; id -= 2) {
+			arraySet.addRange(id, id);
+			skipListSet.addRange(id, id);
+		}
+		assertEquals(getRanges(skipListSet), getRanges(arraySet));
+		for (int i = 0; i < NUM_IDS; i++) {
+			assertEquals(skipListSet.takeID(), arraySet.takeID());
+		}
+		assertEquals(getRanges(skipListSet.takeIDs(NUM_IDS + 1)), getRanges(arraySet.takeIDs(NUM_IDS + 1)));
+		for (long id = HIGH_ID - 1; id > HIGH_ID / 2; id -= 2) {
+			arraySet.addRange(id, id);
+			skipListSet.addRange(id, id);
+		}
+		assertEquals(skipListSet.getSize(), arraySet.getSize());
+		assertEquals(getRanges(skipListSet), getRanges(arraySet));
+	}
+
+	public void testSizeStatistics() {
+		for (IDSet.Storage storage : IDSet.Storage.values()) {
+			idSet = new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, storage);
+			assertEquals(0, idSet.getSize());
+			assertEquals(0, idSet.getRangeCount());
+			assertEquals(0, idSet.getLargestRangeSize());
+
+			idSet.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, new IDRange(1, 100), new IDRange(201, 250)));
+			assertEquals(150, idSet.getSize());
+			assertEquals(2, idSet.getRangeCount());
+			assertEquals(100, idSet.getLargestRangeSize());
+
+			idSet.takeIDs(60);
+			idSet.takeID();
+			assertEquals(89, idSet.getSize());
+			assertEquals(2, idSet.getRangeCount());
+			assertEquals(50, idSet.getLargestRangeSize());
+
+			// merges 62-100, 101-200 and 201-250 into a single range
+			idSet.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, 101, 200));
+			assertEquals(189, idSet.getSize());
+			assertEquals(1, idSet.getRangeCount());
+			assertEquals(189, idSet.getLargestRangeSize());
+
+			IDSet otherSet = new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, 1001, 1010);
+			otherSet.pushIDs(idSet);
+			assertEquals(0, idSet.getSize());
+			assertEquals(0, idSet.getRangeCount());
+			assertEquals(0, idSet.getLargestRangeSize());
+			assertEquals(199, otherSet.getSize());
+			assertEquals(2, otherSet.getRangeCount());
+			assertEquals(189, otherSet.getLargestRangeSize());
+		}
+	}
+
+	public void testTakeInto() {
+		for (IDSet.Storage storage : IDSet.Storage.values()) {
+			idSet = new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, storage);
+			idSet.pushIDs(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, new IDRange(1, 5), new IDRange(11, 15)));
+			long[] ids = new long[10];
+			assertEquals(7, idSet.takeInto(ids, 1, 7));
+			assertEquals(0, ids[0]);
+			assertEquals(1, ids[1]);
+			assertEquals(5, ids[5]);
+			assertEquals(11, ids[6]);
+			assertEquals(12, ids[7]);
+			assertEquals(0, ids[8]);
+			assertEquals(3, idSet.takeInto(ids, 0, ids.length));
+			assertEquals(15, ids[2]);
+			try {
+				idSet.takeInto(ids, 0, 1);
+				fail();
+			}
+			catch(NoSuchElementException e) {
+			}
+		}
+		try {
+			idSet.takeInto(new long[1], 1, 1);
+			fail();
+		}
+		catch(IndexOutOfBoundsException e) {
+		}
+	}
+
+	public void testTakeIntoLongBuffer() {
+		LongBuffer heapBuffer = LongBuffer.allocate(NUM_IDS);
+		heapBuffer.position(1);
+		assertEquals(NUM_IDS - 1, idSet.takeInto(heapBuffer));
+		assertFalse(heapBuffer.hasRemaining());
+		assertEquals(1, heapBuffer.get(1));
+		assertEquals(NUM_IDS - 1, heapBuffer.get(NUM_IDS - 1));
+
+		LongBuffer directBuffer = ByteBuffer.allocateDirect(NUM_IDS * 8).asLongBuffer();
+		assertEquals(NUM_IDS, idSet.takeInto(directBuffer));
+		directBuffer.flip();
+		for (int i = 0; i < NUM_IDS; i++) {
+			assertEquals(NUM_IDS + i, directBuffer.get());
+		}
+		assertEquals(HIGH_ID - 2 * NUM_IDS + 1, idSet.getSize());
+	}
+
+	public void testRangeFill() {
+		IDRange range = new IDRange(LOW_ID, NUM_IDS);
+		long[] ids = new long[NUM_IDS + 1];
+		assertEquals(10, range.fill(ids, 0, 10));
+		assertEquals(LOW_ID + 9, ids[9]);
+		assertEquals(NUM_IDS - 10, range.fill(ids, 1, NUM_IDS));
+		assertEquals(NUM_IDS, ids[NUM_IDS - 10]);
+		assertEquals(0, range.fill(ids, 0, 1));
+	}
+
+	public void testCompareRangesWithDistantEndIDs() {
+		IDRange lowRange = new IDRange(Long.MIN_VALUE, Long.MIN_VALUE + 1);
+		IDRange highRange = new IDRange(Long.MAX_VALUE - 1, Long.MAX_VALUE);
+		assertTrue(lowRange.compareTo(highRange) < 0);
+		assertTrue(highRange.compareTo(lowRange) > 0);
+		assertEquals(0, highRange.compareTo(highRange.copy()));
+	}
+
+	private static long getLargestRangeSize(IDSet idSet) {
+		final long[] largestSize = new long[1];
+		idSet.visitRanges(new IDSet.RangeVisitor() {
+			public void visitRange(long startID, long endID) {
+				largestSize[0] = Math.max(largestSize[0], endID - startID + 1);
+			}
+		});
+		return largestSize[0];
+	}
+
+	private static String getRanges(IDSet idSet) {
+		StringBuilder buf = new StringBuilder();
+		idSet.rangesToString(buf);
+		return buf.toString();
+	}
+
 	private static final int LOW_ID = 1;
 	private static final int HIGH_ID = 10000;
 	private static final int NUM_IDS = 1000;
+	private static final int BLOCK_SIZE = 10;
+	private static final int NUM_THREADS = 4;
 	private IDSet idSet;
 }
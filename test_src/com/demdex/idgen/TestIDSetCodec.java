@@ -0,0 +1,173 @@
+package com.demdex.idgen;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the IDSetCodec implementations.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestIDSetCodec extends TestCase {
+
+	public void testTextRoundTrip() throws IDGeneratorException {
+		assertRoundTrip(IDSetCodecs.TEXT, RANGES);
+		assertEquals("1-10\n20-20\n", new String(IDSetCodecs.TEXT.encode(new IDSet(CATEGORY, "1-10,20-20"))));
+	}
+
+	public void testTextParsing() throws IDGeneratorException {
+		assertEquals(CATEGORY + ":1-10,20-30", decodeText("1-10\r\n20-30").toString());
+		assertEquals(CATEGORY + ":1-10,20-30", decodeText("20-30\n1-10\n").toString());
+		assertEquals(CATEGORY + ":1-30", decodeText("1-10\n11-30\n").toString());
+		assertEquals(CATEGORY + ":-5--3", decodeText("-5--3\n").toString());
+		assertEquals(
+			CATEGORY + ":" + Long.MIN_VALUE + "-" + Long.MAX_VALUE,
+			decodeText(Long.MIN_VALUE + "-" + Long.MAX_VALUE).toString()
+		);
+		assertFalse(decodeText("").hasMoreIDs());
+		String[] invalidData = { "1", "1-", "1-10\n\n", "1-10x", "a-10", "1-9223372036854775808", "1-10\n5-20" };
+		for (String data : invalidData) {
+			try {
+				decodeText(data);
+				fail(data);
+			}
+			catch(IDGeneratorException e) {
+			}
+		}
+	}
+
+	public void testBinaryRoundTrip() throws IDGeneratorException {
+		assertRoundTrip(IDSetCodecs.BINARY, RANGES);
+		assertRoundTrip(
+			IDSetCodecs.BINARY,
+			new IDSet(CATEGORY, new IDRange(-100, -50), new IDRange(-10, 10), new IDRange(Long.MAX_VALUE / 2, Long.MAX_VALUE / 2 + 1))
+		);
+		assertRoundTrip(IDSetCodecs.BINARY, new IDSet(CATEGORY, Long.MIN_VALUE, Long.MAX_VALUE));
+		IDSet empty = IDSetCodecs.BINARY.decode(CATEGORY, IDSetCodecs.BINARY.encode(new IDSet(CATEGORY)));
+		assertFalse(empty.hasMoreIDs());
+	}
+
+	public void testBinaryIsSmaller() throws IDGeneratorException {
+		IDSet fragmented = new IDSet(CATEGORY);
+		for (long i = 0; i < 1000; i++) {
+			fragmented.pushIDs(new IDSet(CATEGORY, 1000000000L + i * 10, 1000000000L + i * 10 + 4));
+		}
+		int textSize = IDSetCodecs.TEXT.encode(fragmented).length;
+		int binarySize = IDSetCodecs.BINARY.encode(fragmented).length;
+		assertTrue(binarySize * 5 < textSize);
+	}
+
+	public void testDetect() throws IDGeneratorException {
+		IDSet idSet = new IDSet(CATEGORY, RANGES);
+		assertSame(IDSetCodecs.BINARY, IDSetCodecs.detect(IDSetCodecs.BINARY.encode(idSet)));
+		assertSame(IDSetCodecs.TEXT, IDSetCodecs.detect(IDSetCodecs.TEXT.encode(idSet)));
+		assertSame(IDSetCodecs.TEXT, IDSetCodecs.detect(new byte[0]));
+		assertSame(IDSetCodecs.BINARY, IDSetCodecs.forName("BINARY"));
+	}
+
+	public void testCorruptBinaryData() throws IDGeneratorException {
+		byte[] data = IDSetCodecs.BINARY.encode(new IDSet(CATEGORY, RANGES));
+		byte[] truncated = new byte[data.length - 1];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		truncated[truncated.length - 1] = (byte)0x80;
+		try {
+			IDSetCodecs.decode(CATEGORY, truncated);
+			fail();
+		}
+		catch(IDGeneratorException e) {
+		}
+	}
+
+	public void testGeneratorMigratesTextToBinary() throws IDGeneratorException {
+		MemoryIDProvider provider = new MemoryIDProvider(CATEGORY, 1, 1000);
+		IDGenerator generator = new IDGenerator(provider);
+		generator.open();
+		generator.setIDSetCodec(IDSetCodecs.BINARY);
+		assertSame(IDSetCodecs.TEXT, IDSetCodecs.detect(provider.getData(CATEGORY).getData()));
+
+		IDSet taken = generator.takeIDs(CATEGORY, 10);
+		assertEquals(1, taken.peekNextID());
+		assertSame(IDSetCodecs.BINARY, IDSetCodecs.detect(provider.getData(CATEGORY).getData()));
+		assertEquals(11, generator.peekIDs(CATEGORY).peekNextID());
+
+		generator.setIDSetCodec(IDSetCodecs.TEXT);
+		generator.rewriteIDs(CATEGORY);
+		assertEquals("11-1000\n", new String(provider.getData(CATEGORY).getData(), IDGeneratorConstants.UTF8_CHARSET));
+	}
+
+
+	public void testBinaryTakeHead() throws IDGeneratorException {
+		BinaryIDSetCodec codec = (BinaryIDSetCodec)IDSetCodecs.BINARY;
+		IDSet idSet = new IDSet(CATEGORY, "1-10,20-20,22-100,200-300");
+		long[] takeSizes = { 1, 9, 10, 11, 12, 90, 1000 };
+		for (long takeSize : takeSizes) {
+			IDSet expectedRemaining = idSet.copy();
+			IDSet expectedTaken = expectedRemaining.takeIDs(takeSize);
+			IDSet taken = new IDSet(CATEGORY);
+			byte[] remaining = codec.takeHead(CATEGORY, codec.encode(idSet), takeSize, taken);
+			assertEquals(expectedTaken.toString(), taken.toString());
+			assertEquals(expectedRemaining.toString(), codec.decode(CATEGORY, remaining).toString());
+			assertTrue(Arrays.equals(codec.encode(expectedRemaining), remaining));
+		}
+		try {
+			codec.takeHead(CATEGORY, codec.encode(new IDSet(CATEGORY)), 1, new IDSet(CATEGORY));
+			fail();
+		}
+		catch(NoSuchElementException e) {
+		}
+	}
+
+	public void testGeneratorTakesHeadOfBinaryData() throws IDGeneratorException {
+		MemoryIDProvider provider = new MemoryIDProvider(CATEGORY, 1, 1000);
+		IDGenerator generator = new IDGenerator(provider);
+		generator.open();
+		generator.setIDSetCodec(IDSetCodecs.BINARY);
+		generator.pushIDs(new IDSet(CATEGORY, 2000, 2010));
+		assertEquals("/foo/bar:1-10", generator.takeIDs(CATEGORY, 10).toString());
+		assertEquals("/foo/bar:11-1000,2000-2004", generator.takeIDs(CATEGORY, 995).toString());
+		assertEquals("/foo/bar:2005-2010", generator.takeIDs(CATEGORY, 100).toString());
+		assertFalse(generator.peekIDs(CATEGORY).hasMoreIDs());
+		try {
+			generator.takeIDs(CATEGORY, 1);
+			fail();
+		}
+		catch(NoSuchElementException e) {
+		}
+	}
+
+	private IDSet decodeText(String data) throws IDGeneratorException {
+		return IDSetCodecs.TEXT.decode(CATEGORY, data.getBytes(IDGeneratorConstants.UTF8_CHARSET));
+	}
+
+	private void assertRoundTrip(IDSetCodec codec, String rangesStr) throws IDGeneratorException {
+		assertRoundTrip(codec, new IDSet(CATEGORY, rangesStr));
+	}
+
+	private void assertRoundTrip(IDSetCodec codec, IDSet idSet) throws IDGeneratorException {
+		IDSet decoded = codec.decode(CATEGORY, codec.encode(idSet));
+		assertEquals(idSet.toString(), decoded.toString());
+	}
+
+	private static final IDCategory CATEGORY = TestingConstants.TEST_IDGEN_CATEGORY;
+	private static final String RANGES = "1-10,20-20,22-1000000,5000000000-5000000099";
+}
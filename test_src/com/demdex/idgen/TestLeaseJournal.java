@@ -0,0 +1,165 @@
+package com.demdex.idgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the LeaseJournal class.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestLeaseJournal extends TestCase {
+
+	protected void setUp() throws IOException, IDGeneratorException {
+		file = File.createTempFile("lease-journal", ".dat");
+		file.delete();
+		journal = openJournal();
+	}
+
+	protected void tearDown() throws IDGeneratorException {
+		journal.close();
+		file.delete();
+	}
+
+	public void testNextID() throws IDGeneratorException {
+		journal.addLease(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, new IDRange(1, 5), new IDRange(11, 15)));
+		assertEquals(10, journal.getSize());
+		for (int i = 1; i <= 5; i++) {
+			assertEquals(i, journal.nextID());
+		}
+		assertEquals(11, journal.nextID());
+		assertEquals(4, journal.getSize());
+		journal.takeRemainingIDs();
+		try {
+			journal.nextID();
+			fail();
+		}
+		catch(NoSuchElementException e) {
+		}
+	}
+
+	public void testRecoverAfterClose() throws IDGeneratorException {
+		IDSet lease = new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, LEASE_START_ID, LEASE_END_ID);
+		journal.addLease(lease);
+		assertFalse(lease.hasMoreIDs());
+		takeIDs(FLUSH_INTERVAL + 5);
+		journal.close();
+
+		// ID's up to the second flush interval may have been handed out
+		journal = openJournal();
+		assertEquals(LEASE_END_ID - LEASE_START_ID + 1 - 2 * FLUSH_INTERVAL, journal.getSize());
+		assertEquals(LEASE_START_ID + 2 * FLUSH_INTERVAL, journal.nextID());
+	}
+
+	public void testRecoverAfterCrash() throws IDGeneratorException {
+		journal.addLease(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, LEASE_START_ID, LEASE_END_ID));
+		takeIDs(FLUSH_INTERVAL);
+
+		// the first journal is never closed
+		LeaseJournal recoveredJournal = openJournal();
+		IDSet remainingIDs = recoveredJournal.takeRemainingIDs();
+		assertEquals(LEASE_START_ID + FLUSH_INTERVAL, remainingIDs.peekNextID());
+		assertEquals(LEASE_END_ID - LEASE_START_ID + 1 - FLUSH_INTERVAL, remainingIDs.getSize());
+		recoveredJournal.close();
+
+		recoveredJournal = openJournal();
+		assertFalse(recoveredJournal.hasMoreIDs());
+		recoveredJournal.close();
+	}
+
+	public void testManyLeases() throws IDGeneratorException {
+		// enough leases to force the journal to be both compacted and grown
+		for (int i = 0; i < NUM_LEASES; i++) {
+			journal.addLease(new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, toStartID(i), toStartID(i) + 4));
+			takeIDs(3);
+		}
+		assertEquals(NUM_LEASES * 2, journal.getSize());
+		journal.close();
+
+		// the first 3/5 of the leases were consumed
+		journal = openJournal();
+		assertEquals(NUM_LEASES * 2, journal.getSize());
+		for (int i = NUM_LEASES * 3 / 5; i < NUM_LEASES; i++) {
+			for (int j = 0; j < 5; j++) {
+				assertEquals(toStartID(i) + j, journal.nextID());
+			}
+		}
+		assertFalse(journal.hasMoreIDs());
+	}
+
+	public void testShardedCategory() throws IDGeneratorException {
+		ShardedIDCategory category = new ShardedIDCategory(TestingConstants.TEST_IDGEN_CATEGORY.getName(), NUM_SHARDS);
+		MemoryIDProvider provider = new MemoryIDProvider(category, (int)LEASE_START_ID, (int)LEASE_END_ID);
+		for (IDCategory shard : category.getShards()) {
+			provider.addCategory(shard, "");
+		}
+		IDGenerator generator = new IDGenerator(provider);
+		generator.open();
+		generator.rebalanceShards(category);
+
+		// the lease is labelled with the shard it came from
+		IDSet lease = generator.takeIDs(category, 10);
+		long firstID = lease.peekNextID();
+		journal.addLease(lease);
+		assertFalse(lease.hasMoreIDs());
+		assertEquals(10, journal.getSize());
+		assertEquals(firstID, journal.nextID());
+	}
+
+	public void testCategoryMismatch() throws IDGeneratorException {
+		journal.close();
+		LeaseJournal otherJournal = new LeaseJournal(file, new IDCategory("other"));
+		try {
+			otherJournal.open();
+			fail();
+		}
+		catch(IDGeneratorException e) {
+		}
+		journal = openJournal();
+	}
+
+	private LeaseJournal openJournal() throws IDGeneratorException {
+		LeaseJournal newJournal = new LeaseJournal(file, TestingConstants.TEST_IDGEN_CATEGORY, FLUSH_INTERVAL);
+		newJournal.open();
+		return newJournal;
+	}
+
+	private static long toStartID(int leaseNumber) {
+		return leaseNumber * 10 + 1;
+	}
+
+	private void takeIDs(long numIDs) {
+		for (long i = 0; i < numIDs; i++) {
+			journal.nextID();
+		}
+	}
+
+	private static final long LEASE_START_ID = 1001;
+	private static final long LEASE_END_ID = 2000;
+	private static final long FLUSH_INTERVAL = 10;
+	private static final int NUM_LEASES = 50;
+	private static final int NUM_SHARDS = 4;
+	private File file;
+	private LeaseJournal journal;
+}
@@ -0,0 +1,212 @@
+package com.demdex.idgen;
+
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the PagedIDCategory class.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestPagedIDCategory extends TestCase {
+
+	protected void setUp() throws IDGeneratorException {
+		openGenerator(new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID));
+	}
+
+	public void testPage() throws IDGeneratorException {
+		assertEquals(MAX_ID, generator.peekIDs(category).getSize());
+		assertFalse(generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY).hasMoreIDs());
+		assertEquals(MAX_ID, generator.peekIDs(category.getPage(0)).getSize());
+		assertEquals(1, getPageIndex().getPageCount());
+	}
+
+	public void testTakeAndPush() throws IDGeneratorException {
+		IDSet taken = generator.takeIDs(category, NUM_IDS);
+		assertEquals(category, taken.getCategory());
+		assertEquals(NUM_IDS, taken.getSize());
+		assertEquals(MIN_ID, taken.peekNextID());
+		generator.pushIDs(taken);
+		assertFalse(taken.hasMoreIDs());
+		assertEquals(MAX_ID, generator.peekIDs(category).getSize());
+	}
+
+	public void testFragmentedPushSplitsPage() throws IDGeneratorException {
+		generator.takeIDs(category, NUM_IDS);
+		generator.pushIDs(everyOtherID(category, MIN_ID, NUM_IDS));
+
+		// pushing 500 separate ranges into page 0 splits it in two
+		PageIndex pageIndex = getPageIndex();
+		assertEquals(2, pageIndex.getPageCount());
+		long splitID = pageIndex.getLowerBound(1);
+		assertEquals(splitID, generator.peekIDs(category.getPage(pageIndex.getPageNumber(1))).peekNextID());
+		assertTrue(generator.peekIDs(category.getPage(0)).getRangeCount() < NUM_IDS / 2);
+		assertEquals(MAX_ID - NUM_IDS / 2, generator.peekIDs(category).getSize());
+
+		// takes continue in ascending order across pages
+		IDSet taken = generator.takeIDs(category, NUM_IDS / 2 + 1);
+		Iterator<IDRange> takenRanges = taken.peekRanges();
+		for (long id = MIN_ID; id <= NUM_IDS; id += 2) {
+			assertEquals(id, takenRanges.next().getStartID());
+		}
+		assertEquals(NUM_IDS + 1, takenRanges.next().getStartID());
+		assertFalse(takenRanges.hasNext());
+	}
+
+	public void testPushOnlyWritesAffectedPage() throws IDGeneratorException {
+		generator.takeIDs(category, NUM_IDS);
+		generator.pushIDs(everyOtherID(category, MIN_ID, NUM_IDS));
+		PageIndex pageIndex = getPageIndex();
+		IDCategory upperPage = category.getPage(pageIndex.getPageNumber(1));
+		int lowerPageVersion = provider.getData(category.getPage(0)).getVersion();
+		int upperPageVersion = provider.getData(upperPage).getVersion();
+
+		generator.pushIDs(new IDSet(category, NUM_IDS - 2, NUM_IDS - 2));
+		assertEquals(lowerPageVersion, provider.getData(category.getPage(0)).getVersion());
+		assertEquals(upperPageVersion + 1, provider.getData(upperPage).getVersion());
+		assertEquals(MAX_ID - NUM_IDS / 2 + 1, generator.peekIDs(category).getSize());
+	}
+
+	public void testPushOverlappingIDs() throws IDGeneratorException {
+		try {
+			generator.pushIDs(new IDSet(category, MIN_ID, MIN_ID));
+			fail();
+		}
+		catch(IllegalArgumentException e) {
+		}
+	}
+
+	public void testSplitAppliedDespiteFailedIndexWrite() throws IDGeneratorException {
+		openGenerator(new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID) {
+			public void setData(IDCategory node, RawIDSetData data) throws IDGeneratorException {
+				super.setData(node, data);
+				if (node.equals(category.getPageIndexNode())) {
+					throw new IDGeneratorException("Connection lost after the write was applied");
+				}
+			}
+		});
+		generator.takeIDs(category, NUM_IDS);
+		generator.pushIDs(everyOtherID(category, MIN_ID, NUM_IDS));
+
+		// the moved ID's stay in the new page, rather than being returned to page 0 as well
+		assertEquals(2, getPageIndex().getPageCount());
+		assertTrue(generator.peekIDs(category.getPage(0)).getRangeCount() < NUM_IDS / 2);
+		assertEquals(MAX_ID - NUM_IDS / 2, generator.peekIDs(category).getSize());
+	}
+
+	public void testFailedSplitReportsOriginalFailure() throws IDGeneratorException {
+		openGenerator(new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID) {
+			public void setData(IDCategory node, RawIDSetData data) throws IDGeneratorException {
+				if (node.equals(category.getPageIndexNode())) {
+					indexWriteFailed = true;
+					throw new IllegalStateException(INDEX_WRITE_FAILURE);
+				}
+				if (indexWriteFailed) {
+					throw new IDGeneratorException("Connection lost while returning moved ID's");
+				}
+				super.setData(node, data);
+			}
+
+			private boolean indexWriteFailed = false;
+		});
+		generator.takeIDs(category, NUM_IDS);
+		// the push only logs splits that fail with an IDGeneratorException, so here the index write fails with a runtime one
+		try {
+			generator.pushIDs(everyOtherID(category, MIN_ID, NUM_IDS));
+			fail();
+		}
+		catch(IllegalStateException e) {
+			assertEquals(INDEX_WRITE_FAILURE, e.getMessage());
+		}
+	}
+
+	public void testInvalidPageIndex() {
+		String[] invalidIndexes = { "", "0 0", Long.MIN_VALUE+"", Long.MIN_VALUE+" x", "x 0" };
+		for (String invalidIndex : invalidIndexes) {
+			try {
+				PageIndex.decode(new RawIDSetData(0, invalidIndex.getBytes(IDGeneratorConstants.UTF8_CHARSET)));
+				fail();
+			}
+			catch(IDGeneratorException e) {
+			}
+		}
+	}
+
+	public void testConcurrentSplitAtSameID() throws IDGeneratorException {
+		openGenerator(new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID) {
+			public void setData(IDCategory node, RawIDSetData data) throws IDGeneratorException {
+				if (node.equals(category.getPageIndexNode()) && !splitRaced) {
+					// another client splits the page at the same ID, into a page of its own, just before the index write
+					splitRaced = true;
+					long splitID = PageIndex.decode(data).getLowerBound(1);
+					PageIndex currIndex = PageIndex.decode(getData(node));
+					generator.createNode(category.getPage(RACING_PAGE_NUMBER), new IDSet(category.getPage(RACING_PAGE_NUMBER)));
+					super.setData(node, new RawIDSetData(currIndex.getVersion(), currIndex.split(splitID, RACING_PAGE_NUMBER).encode()));
+				}
+				super.setData(node, data);
+			}
+
+			private boolean splitRaced = false;
+		});
+		generator.takeIDs(category, NUM_IDS);
+		generator.pushIDs(everyOtherID(category, MIN_ID, NUM_IDS));
+
+		// the moved ID's end up in the other client's page, and the redundant page is left empty and unindexed
+		PageIndex pageIndex = getPageIndex();
+		assertEquals(2, pageIndex.getPageCount());
+		assertEquals(RACING_PAGE_NUMBER, pageIndex.getPageNumber(1));
+		assertEquals(pageIndex.getLowerBound(1), generator.peekIDs(category.getPage(RACING_PAGE_NUMBER)).peekNextID());
+		assertFalse(generator.peekIDs(category.getPage(1)).hasMoreIDs());
+		assertEquals(MAX_ID - NUM_IDS / 2, generator.peekIDs(category).getSize());
+	}
+
+
+	private void openGenerator(MemoryIDProvider testProvider) throws IDGeneratorException {
+		provider = testProvider;
+		generator = new IDGenerator(provider);
+		generator.open();
+		category = new PagedIDCategory(TestingConstants.TEST_IDGEN_CATEGORY.getName(), MAX_PAGE_RANGE_COUNT);
+		generator.page(category);
+	}
+
+	private static IDSet everyOtherID(IDCategory category, long startID, long endID) {
+		IDSet idSet = new IDSet(category);
+		for (long id = startID; id <= endID; id += 2) {
+			idSet.addRange(id, id);
+		}
+		return idSet;
+	}
+
+	private PageIndex getPageIndex() throws IDGeneratorException {
+		return PageIndex.decode(provider.getData(category.getPageIndexNode()));
+	}
+
+	private static final int MIN_ID = 1;
+	private static final int MAX_ID = 10000;
+	private static final int NUM_IDS = 1000;
+	private static final int MAX_PAGE_RANGE_COUNT = 300;
+	private static final int RACING_PAGE_NUMBER = 7;
+	private static final String INDEX_WRITE_FAILURE = "Page index write failed";
+	private MemoryIDProvider provider;
+	private IDGenerator generator;
+	private PagedIDCategory category;
+}
@@ -0,0 +1,267 @@
+package com.demdex.idgen;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the PrefetchingIDPool class.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestPrefetchingIDPool extends TestCase {
+
+	protected void setUp() throws IDGeneratorException {
+		generator = new IDGenerator(new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID));
+		generator.open();
+	}
+
+	protected void tearDown() throws IDGeneratorException {
+		if (pool != null && pool.isOpen()) {
+			pool.close();
+		}
+	}
+
+	public void testNextID() throws IDGeneratorException {
+		pool = new PrefetchingIDPool(generator, TestingConstants.TEST_IDGEN_CATEGORY, LEASE_SIZE, LOW_WATERMARK);
+		for (int i = MIN_ID; i <= LEASE_SIZE * 3; i++) {
+			assertEquals(i, pool.nextID());
+		}
+	}
+
+	public void testTakeAndPushIDs() throws IDGeneratorException {
+		pool = new PrefetchingIDPool(generator, TestingConstants.TEST_IDGEN_CATEGORY, LEASE_SIZE, LOW_WATERMARK);
+		IDSet takenIDs = pool.takeIDs(LEASE_SIZE * 2);
+		assertEquals(LEASE_SIZE, takenIDs.getSize());
+		assertEquals(MIN_ID, takenIDs.peekNextID());
+		pool.pushIDs(takenIDs);
+		assertEquals(MIN_ID, pool.nextID());
+	}
+
+	public void testPollIDs() throws IDGeneratorException, InterruptedException {
+		pool = new PrefetchingIDPool(generator, TestingConstants.TEST_IDGEN_CATEGORY, LEASE_SIZE, LOW_WATERMARK);
+		// an empty pool doesn't wait, but still starts a refill
+		IDSet polledIDs = pool.pollIDs(LEASE_SIZE);
+		long deadline = System.currentTimeMillis() + REFILL_TIMEOUT_MILLIS;
+		while (polledIDs == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+			polledIDs = pool.pollIDs(LEASE_SIZE);
+		}
+		assertEquals(LEASE_SIZE, polledIDs.getSize());
+		assertEquals(MIN_ID, polledIDs.peekNextID());
+	}
+
+	public void testRefillBeforeExhausted() throws IDGeneratorException, InterruptedException {
+		pool = new PrefetchingIDPool(generator, TestingConstants.TEST_IDGEN_CATEGORY, LEASE_SIZE, LOW_WATERMARK);
+		int numTaken = LEASE_SIZE - LOW_WATERMARK + 1;
+		for (int i = 0; i < numTaken; i++) {
+			pool.nextID();
+		}
+		long deadline = System.currentTimeMillis() + REFILL_TIMEOUT_MILLIS;
+		while (pool.getSize() <= LOW_WATERMARK && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(2 * LEASE_SIZE - numTaken, pool.getSize());
+		IDSet remainingIDs = generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY);
+		assertEquals(2 * LEASE_SIZE + 1, remainingIDs.peekNextID());
+	}
+
+	public void testCloseReturnsUnusedIDs() throws IDGeneratorException {
+		pool = new PrefetchingIDPool(generator, TestingConstants.TEST_IDGEN_CATEGORY, LEASE_SIZE, LOW_WATERMARK);
+		pool.nextID();
+		pool.close();
+		assertFalse(pool.isOpen());
+		IDSet remainingIDs = generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY);
+		assertEquals(MAX_ID - 1, remainingIDs.getSize());
+		assertEquals(MIN_ID + 1, remainingIDs.peekNextID());
+		try {
+			pool.nextID();
+			fail();
+		}
+		catch(IllegalStateException e) {
+		}
+	}
+
+	public void testCloseDrainsPoolBeforeReturningIDs() throws Exception {
+		BlockingMemoryIDProvider blockingProvider =
+			new BlockingMemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		blockingProvider.setBlockingEnabled(false);
+		generator = new IDGenerator(blockingProvider);
+		generator.open();
+		pool = new PrefetchingIDPool(generator, TestingConstants.TEST_IDGEN_CATEGORY, LEASE_SIZE, LOW_WATERMARK);
+		pool.nextID();
+
+		// while the unused ID's are being returned, none of them may still be handed out by the pool
+		blockingProvider.setBlockingEnabled(true);
+		Thread closer = new Thread() {
+			public void run() {
+				try {
+					pool.close();
+				}
+				catch (IDGeneratorException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		closer.start();
+		while (!blockingProvider.isBlocking()) {}
+		try {
+			assertEquals(0, pool.getSize());
+		}
+		finally {
+			blockingProvider.setBlockingEnabled(false);
+			blockingProvider.stopBlocking();
+		}
+
+		closer.join(REFILL_TIMEOUT_MILLIS);
+		assertFalse(closer.isAlive());
+		assertEquals(MAX_ID - 1, generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY).getSize());
+	}
+
+	public void testShardedCategory() throws IDGeneratorException {
+		ShardedIDCategory category = new ShardedIDCategory(TestingConstants.TEST_IDGEN_CATEGORY.getName(), NUM_SHARDS);
+		MemoryIDProvider provider = new MemoryIDProvider(category, MIN_ID, MAX_ID);
+		for (IDCategory shard : category.getShards()) {
+			provider.addCategory(shard, "");
+		}
+		generator = new IDGenerator(provider);
+		generator.open();
+		generator.rebalanceShards(category);
+
+		pool = new PrefetchingIDPool(generator, category, LEASE_SIZE, LOW_WATERMARK);
+		Set<Long> takenIDs = new HashSet<Long>();
+		for (int i = 0; i < LEASE_SIZE * 3; i++) {
+			assertTrue(takenIDs.add(pool.nextID()));
+		}
+		pool.pushIDs(generator.takeIDs(category, 1));
+		pool.close();
+		assertEquals(MAX_ID - LEASE_SIZE * 3, generator.peekIDs(category).getSize());
+	}
+
+	public void testExhaustedCategory() throws IDGeneratorException {
+		pool = new PrefetchingIDPool(generator, TestingConstants.TEST_IDGEN_CATEGORY, MAX_ID, 0);
+		for (int i = MIN_ID; i <= MAX_ID; i++) {
+			pool.nextID();
+		}
+		try {
+			pool.nextID();
+			fail();
+		}
+		catch(NoSuchElementException e) {
+		}
+	}
+
+	public void testNextIDRacingClose() throws Exception {
+		BlockingMemoryIDProvider blockingProvider =
+			new BlockingMemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		generator = new IDGenerator(blockingProvider);
+		generator.open();
+		pool = new PrefetchingIDPool(generator, TestingConstants.TEST_IDGEN_CATEGORY, LEASE_SIZE, LOW_WATERMARK);
+
+		// the taker waits for the first refill, which blocks while writing
+		final Throwable[] nextIDFailure = new Throwable[1];
+		Thread taker = new Thread() {
+			public void run() {
+				try {
+					pool.nextID();
+				}
+				catch (Throwable t) {
+					nextIDFailure[0] = t;
+				}
+			}
+		};
+		taker.start();
+		while (!blockingProvider.isBlocking()) {}
+
+		Thread closer = new Thread() {
+			public void run() {
+				try {
+					pool.close();
+				}
+				catch (IDGeneratorException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		closer.start();
+		while (pool.isOpen()) {}
+		blockingProvider.setBlockingEnabled(false);
+		blockingProvider.stopBlocking();
+
+		// the taker either got an ID before close() drained the pool, or fails;  it must not keep waiting for refills
+		taker.join(REFILL_TIMEOUT_MILLIS);
+		assertFalse(taker.isAlive());
+		closer.join(REFILL_TIMEOUT_MILLIS);
+		assertFalse(closer.isAlive());
+		assertTrue(nextIDFailure[0] == null || nextIDFailure[0] instanceof IllegalStateException);
+	}
+
+	public void testConcurrentNextID() throws Exception {
+		pool = new PrefetchingIDPool(generator, TestingConstants.TEST_IDGEN_CATEGORY, LEASE_SIZE, LOW_WATERMARK);
+		final Set<Long> takenIDs = Collections.synchronizedSet(new HashSet<Long>());
+		ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+		Future<?>[] futures = new Future<?>[NUM_THREADS];
+		for (int i = 0; i < NUM_THREADS; i++) {
+			futures[i] = executor.submit(new Callable<Object>() {
+				public Object call() throws IDGeneratorException {
+					for (int j = 0; j < IDS_PER_THREAD; j++) {
+						assertTrue(takenIDs.add(pool.nextID()));
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		executor.awaitTermination(REFILL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		assertEquals(NUM_THREADS * IDS_PER_THREAD, takenIDs.size());
+	}
+
+	public void testInvalidLowWatermark() {
+		try {
+			new PrefetchingIDPool(generator, TestingConstants.TEST_IDGEN_CATEGORY, LEASE_SIZE, LEASE_SIZE);
+			fail();
+		}
+		catch(IllegalArgumentException e) {
+		}
+	}
+
+	private static final int MIN_ID = 1;
+	private static final int MAX_ID = 10000;
+	private static final int LEASE_SIZE = 100;
+	private static final int LOW_WATERMARK = 20;
+	private static final int NUM_THREADS = 4;
+	private static final int NUM_SHARDS = 4;
+	private static final int IDS_PER_THREAD = 1000;
+	private static final long REFILL_TIMEOUT_MILLIS = 5000;
+	private IDGenerator generator;
+	private PrefetchingIDPool pool;
+}
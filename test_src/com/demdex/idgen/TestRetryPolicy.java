@@ -0,0 +1,81 @@
+package com.demdex.idgen;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the RetryPolicy implementations.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestRetryPolicy extends TestCase {
+
+	public void testImmediateRetry() {
+		RetryPolicy policy = new ImmediateRetryPolicy(MAX_TRY_COUNT);
+		for (int i = 1; i < MAX_TRY_COUNT; i++) {
+			assertEquals(0, policy.getRetryDelayMillis(i, 0, 0));
+		}
+		assertEquals(RetryPolicy.STOP_RETRYING, policy.getRetryDelayMillis(MAX_TRY_COUNT, 0, 0));
+	}
+
+	public void testBackoffDelaysBounded() {
+		RetryPolicy policy = newBackoffPolicy();
+		for (int n = 0; n < 100; n++) {
+			long previousDelay = 0;
+			for (int i = 1; i < MAX_TRY_COUNT; i++) {
+				long delay = policy.getRetryDelayMillis(i, 0, previousDelay);
+				assertTrue(delay >= BASE_DELAY_MILLIS);
+				assertTrue(delay <= MAX_DELAY_MILLIS);
+				assertTrue(delay <= Math.max(BASE_DELAY_MILLIS, previousDelay * 3));
+				previousDelay = delay;
+			}
+		}
+	}
+
+	public void testBackoffStopsAfterMaxTries() {
+		RetryPolicy policy = newBackoffPolicy();
+		assertEquals(RetryPolicy.STOP_RETRYING, policy.getRetryDelayMillis(MAX_TRY_COUNT, 0, BASE_DELAY_MILLIS));
+	}
+
+	public void testBackoffRespectsTimeBudget() {
+		RetryPolicy policy = newBackoffPolicy();
+		assertEquals(RetryPolicy.STOP_RETRYING, policy.getRetryDelayMillis(1, MAX_ELAPSED_MILLIS, 0));
+		assertTrue(policy.getRetryDelayMillis(1, MAX_ELAPSED_MILLIS - 1, MAX_DELAY_MILLIS) <= 1);
+	}
+
+	public void testInvalidTryCount() {
+		try {
+			new ExponentialBackoffRetryPolicy(0);
+			fail();
+		}
+		catch (IllegalArgumentException e) {
+		}
+	}
+
+
+	private static RetryPolicy newBackoffPolicy() {
+		return new ExponentialBackoffRetryPolicy(MAX_TRY_COUNT, BASE_DELAY_MILLIS, MAX_DELAY_MILLIS, MAX_ELAPSED_MILLIS);
+	}
+
+	private static final int MAX_TRY_COUNT = 10;
+	private static final long BASE_DELAY_MILLIS = 5;
+	private static final long MAX_DELAY_MILLIS = 200;
+	private static final long MAX_ELAPSED_MILLIS = 1000;
+}
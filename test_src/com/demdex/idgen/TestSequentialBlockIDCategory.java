@@ -0,0 +1,151 @@
+package com.demdex.idgen;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the SequentialBlockIDCategory class.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestSequentialBlockIDCategory extends TestCase {
+
+	protected void setUp() throws IDGeneratorException {
+		provider = new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		generator = new IDGenerator(provider);
+		generator.open();
+		category = new SequentialBlockIDCategory(TestingConstants.TEST_IDGEN_CATEGORY.getName());
+		generator.allocateInBlocks(category, BLOCK_SIZE);
+	}
+
+	public void testAllocateInBlocks() throws IDGeneratorException {
+		assertEquals(MAX_ID, generator.peekIDs(category).getSize());
+		assertFalse(generator.peekIDs(TestingConstants.TEST_IDGEN_CATEGORY).hasMoreIDs());
+		assertFalse(generator.peekIDs(category.getFreeListNode()).hasMoreIDs());
+	}
+
+	public void testTakeWholeBlocks() throws IDGeneratorException {
+		int setDataCount = provider.getSetDataCount();
+		IDSet taken = generator.takeIDs(category, 1);
+		assertEquals(category, taken.getCategory());
+		assertEquals(BLOCK_SIZE, taken.getSize());
+		assertEquals(MIN_ID, taken.peekNextID());
+
+		taken = generator.takeIDs(category, BLOCK_SIZE + 1);
+		assertEquals(2 * BLOCK_SIZE, taken.getSize());
+		assertEquals(MIN_ID + BLOCK_SIZE, taken.peekNextID());
+		assertEquals(MAX_ID - 3 * BLOCK_SIZE, generator.peekIDs(category).getSize());
+		assertEquals(setDataCount, provider.getSetDataCount());
+	}
+
+	public void testOldSequenceNodesDeleted() throws IDGeneratorException {
+		for (int i = 0; i < 2 * SequentialBlockIDCategory.GENERATION_SIZE; i++) {
+			generator.takeIDs(category, BLOCK_SIZE);
+		}
+		assertEquals(0, provider.getSequentialNodeCount(category.getGenerationNode(0)));
+		assertEquals(
+			SequentialBlockIDCategory.GENERATION_SIZE,
+			provider.getSequentialNodeCount(category.getGenerationNode(1))
+		);
+
+		// the deletes must not make the next generation skip any blocks
+		IDSet taken = generator.takeIDs(category, BLOCK_SIZE);
+		assertEquals(MIN_ID + 2 * SequentialBlockIDCategory.GENERATION_SIZE * BLOCK_SIZE, taken.peekNextID());
+		assertEquals(
+			MAX_ID - (2 * SequentialBlockIDCategory.GENERATION_SIZE + 1) * BLOCK_SIZE,
+			generator.peekIDs(category).getSize()
+		);
+	}
+
+	public void testTakesSpanGenerations() throws IDGeneratorException {
+		IDSet taken = generator.takeIDs(category, (SequentialBlockIDCategory.GENERATION_SIZE + 1) * BLOCK_SIZE);
+		assertEquals(1, taken.getRangeCount());
+		assertEquals(MIN_ID, taken.peekNextID());
+
+		// a new client finds the latest generation on its own
+		IDGenerator otherGenerator = new IDGenerator(provider);
+		otherGenerator.open();
+		SequentialBlockIDCategory otherCategory = new SequentialBlockIDCategory(category.getName());
+		taken = otherGenerator.takeIDs(otherCategory, BLOCK_SIZE);
+		assertEquals(MIN_ID + (SequentialBlockIDCategory.GENERATION_SIZE + 1) * BLOCK_SIZE, taken.peekNextID());
+	}
+
+	public void testPushedIDsTakenAfterBlocksExhausted() throws IDGeneratorException {
+		IDSet taken = generator.takeIDs(category, MAX_ID);
+		assertEquals(MAX_ID, taken.getSize());
+		generator.pushIDs(taken.takeIDs(BLOCK_SIZE / 2));
+		assertEquals(BLOCK_SIZE / 2, generator.peekIDs(category).getSize());
+
+		taken = generator.takeIDs(category, BLOCK_SIZE);
+		assertEquals(BLOCK_SIZE / 2, taken.getSize());
+		assertEquals(MIN_ID, taken.peekNextID());
+		try {
+			generator.takeIDs(category, BLOCK_SIZE);
+			fail();
+		}
+		catch (NoSuchElementException e) {
+		}
+	}
+
+	public void testConcurrentTakes() throws Exception {
+		final Set<Long> takenIDs = Collections.synchronizedSet(new HashSet<Long>());
+		Thread[] takers = new Thread[NUM_THREADS];
+		for (int i = 0; i < NUM_THREADS; i++) {
+			takers[i] = new Thread() {
+				public void run() {
+					try {
+						while (true) {
+							IDSet taken = generator.takeIDs(category, BLOCK_SIZE);
+							while (taken.hasMoreIDs()) {
+								assertTrue(takenIDs.add(taken.takeID()));
+							}
+						}
+					}
+					catch (NoSuchElementException e) {
+					}
+					catch (IDGeneratorException e) {
+						fail(e.toString());
+					}
+				}
+			};
+		}
+		for (Thread taker : takers) {
+			taker.start();
+		}
+		for (Thread taker : takers) {
+			taker.join();
+		}
+		assertEquals(MAX_ID, takenIDs.size());
+	}
+
+
+	private static final int MIN_ID = 1;
+	private static final int MAX_ID = 100000;
+	private static final int BLOCK_SIZE = 10;
+	private static final int NUM_THREADS = 4;
+	private MemoryIDProvider provider;
+	private IDGenerator generator;
+	private SequentialBlockIDCategory category;
+}
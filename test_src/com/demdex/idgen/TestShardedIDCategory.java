@@ -0,0 +1,118 @@
+package com.demdex.idgen;
+
+import java.util.NoSuchElementException;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the ShardedIDCategory class.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestShardedIDCategory extends TestCase {
+
+	protected void setUp() throws IDGeneratorException {
+		category = new ShardedIDCategory(TestingConstants.TEST_IDGEN_CATEGORY.getName(), NUM_SHARDS);
+		provider = new MemoryIDProvider(category, MIN_ID, MAX_ID);
+		for (IDCategory shard : category.getShards()) {
+			provider.addCategory(shard, "");
+		}
+		generator = new IDGenerator(provider);
+		generator.open();
+	}
+
+	public void testShardNames() {
+		assertEquals(TestingConstants.TEST_IDGEN_CATEGORY.getName() + "/shard-0000", category.getShard(0).getName());
+		assertEquals(TestingConstants.TEST_IDGEN_CATEGORY.getName() + "/shard-0003", category.getShard(3).getName());
+		try {
+			new ShardedIDCategory(TestingConstants.TEST_IDGEN_CATEGORY.getName(), 0);
+			fail();
+		}
+		catch(IllegalArgumentException e) {
+		}
+	}
+
+	public void testReshardDistributesEvenly() throws IDGeneratorException {
+		generator.reshard(new ShardedIDCategory(category.getName(), 1), NUM_SHARDS);
+		assertFalse(generator.peekNodeIDs(category).hasMoreIDs());
+		for (IDCategory shard : category.getShards()) {
+			assertEquals(MAX_ID / NUM_SHARDS, generator.peekNodeIDs(shard).getSize());
+		}
+		assertEquals(MAX_ID, generator.peekIDs(category).getSize());
+	}
+
+	public void testReshardToFewerShards() throws IDGeneratorException {
+		generator.rebalanceShards(category);
+		generator.takeIDs(category.getShard(0), 10);
+		ShardedIDCategory newCategory = generator.reshard(category, NUM_SHARDS / 2);
+		for (IDCategory shard : category.getShards().subList(NUM_SHARDS / 2, NUM_SHARDS)) {
+			assertFalse(generator.peekNodeIDs(shard).hasMoreIDs());
+		}
+		for (IDCategory shard : newCategory.getShards()) {
+			assertEquals((MAX_ID - 10) / (NUM_SHARDS / 2), generator.peekNodeIDs(shard).getSize());
+		}
+		assertEquals(MAX_ID - 10, generator.peekIDs(newCategory).getSize());
+	}
+
+	public void testTakeAndPushBack() throws IDGeneratorException {
+		generator.rebalanceShards(category);
+		IDSet taken = generator.takeIDs(category, 10);
+		assertEquals(10, taken.getSize());
+		int shardIndex = category.getShards().indexOf(taken.getCategory());
+		assertTrue(shardIndex >= 0);
+		assertEquals(MAX_ID / NUM_SHARDS - 10, generator.peekNodeIDs(category.getShard(shardIndex)).getSize());
+
+		generator.pushIDs(category, taken);
+		assertFalse(taken.hasMoreIDs());
+		assertEquals(MAX_ID / NUM_SHARDS, generator.peekNodeIDs(category.getShard(shardIndex)).getSize());
+	}
+
+	public void testFailoverToNextShard() throws IDGeneratorException {
+		generator.rebalanceShards(category);
+		long total = 0;
+		while (total < MAX_ID) {
+			total += generator.takeIDs(category, MAX_ID / NUM_SHARDS / 2).getSize();
+		}
+		assertEquals(MAX_ID, total);
+		try {
+			generator.takeIDs(category, 1);
+			fail();
+		}
+		catch(NoSuchElementException e) {
+		}
+	}
+
+	public void testPushToWrongCategory() throws IDGeneratorException {
+		try {
+			generator.pushIDs(category, new IDSet(new IDCategory("/foo/baz"), IDRange.parse("1-10")));
+			fail();
+		}
+		catch(IllegalArgumentException e) {
+		}
+	}
+
+	private static final int NUM_SHARDS = 4;
+	private static final int MIN_ID = 1;
+	private static final int MAX_ID = 1000;
+	private ShardedIDCategory category;
+	private MemoryIDProvider provider;
+	private IDGenerator generator;
+}
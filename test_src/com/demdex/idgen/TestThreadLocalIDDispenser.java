@@ -0,0 +1,188 @@
+package com.demdex.idgen;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the ThreadLocalIDDispenser class.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestThreadLocalIDDispenser extends TestCase {
+
+	protected void setUp() {
+		sharedIDs = new IDSet(TestingConstants.TEST_IDGEN_CATEGORY, MIN_ID, MAX_ID);
+		dispenser = new ThreadLocalIDDispenser(sharedIDs, CHUNK_SIZE);
+	}
+
+	protected void tearDown() {
+		dispenser.close();
+	}
+
+	public void testNextID() {
+		for (int i = MIN_ID; i <= CHUNK_SIZE * 3; i++) {
+			assertEquals(i, dispenser.nextID());
+		}
+		assertEquals(MAX_ID - CHUNK_SIZE * 3, sharedIDs.getSize());
+	}
+
+	public void testCloseReturnsUnusedIDs() {
+		dispenser.nextID();
+		assertEquals(MAX_ID - CHUNK_SIZE, sharedIDs.getSize());
+		dispenser.close();
+		assertFalse(dispenser.isOpen());
+		assertEquals(MAX_ID - 1, sharedIDs.getSize());
+		assertEquals(MIN_ID + 1, sharedIDs.peekNextID());
+		try {
+			dispenser.nextID();
+			fail();
+		}
+		catch(IllegalStateException e) {
+		}
+	}
+
+	public void testExitedThreadsChunkReclaimed() throws InterruptedException {
+		Thread thread = new Thread() {
+			public void run() {
+				dispenser.nextID();
+			}
+		};
+		thread.start();
+		thread.join();
+		for (int i = 0; i < (ThreadLocalIDDispenser.REFILLS_PER_RECLAIM - 2) * CHUNK_SIZE; i++) {
+			dispenser.nextID();
+		}
+		assertEquals(MAX_ID - (ThreadLocalIDDispenser.REFILLS_PER_RECLAIM - 1) * CHUNK_SIZE, sharedIDs.getSize());
+		// the next refill (the REFILLS_PER_RECLAIM'th) reclaims the exited thread's chunk first
+		assertEquals(MIN_ID + 1, dispenser.nextID());
+		assertEquals(
+			MAX_ID - ThreadLocalIDDispenser.REFILLS_PER_RECLAIM * CHUNK_SIZE + CHUNK_SIZE - 1,
+			sharedIDs.getSize()
+		);
+	}
+
+	public void testExitedThreadsChunkReclaimedWhenSetExhausted() throws InterruptedException {
+		Thread thread = new Thread() {
+			public void run() {
+				dispenser.nextID();
+			}
+		};
+		thread.start();
+		thread.join();
+		sharedIDs.takeIDs(sharedIDs.getSize());
+		// the shared set is empty, but the exited thread's chunk still holds ID's
+		assertEquals(MIN_ID + 1, dispenser.nextID());
+		assertEquals(0, sharedIDs.getSize());
+	}
+
+	public void testExhaustedSet() {
+		sharedIDs.takeIDs(MAX_ID - 1);
+		assertEquals(MAX_ID, dispenser.nextID());
+		try {
+			dispenser.nextID();
+			fail();
+		}
+		catch(NoSuchElementException e) {
+		}
+	}
+
+	public void testConcurrentNextID() throws Exception {
+		final Set<Long> takenIDs = Collections.synchronizedSet(new HashSet<Long>());
+		ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+		Future<?>[] futures = new Future<?>[NUM_THREADS];
+		for (int i = 0; i < NUM_THREADS; i++) {
+			futures[i] = executor.submit(new Callable<Object>() {
+				public Object call() {
+					for (int j = 0; j < IDS_PER_THREAD; j++) {
+						assertTrue(takenIDs.add(dispenser.nextID()));
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		assertEquals(NUM_THREADS * IDS_PER_THREAD, takenIDs.size());
+		dispenser.close();
+		assertEquals(MAX_ID - NUM_THREADS * IDS_PER_THREAD, sharedIDs.getSize());
+	}
+
+	public void testCloseRacingRefills() throws Exception {
+		// refills don't lock the dispenser, so a refill racing close() must still leave its chunk's ID's to be returned
+		final Set<Long> takenIDs = Collections.synchronizedSet(new HashSet<Long>());
+		ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+		Future<?>[] futures = new Future<?>[NUM_THREADS];
+		for (int i = 0; i < NUM_THREADS; i++) {
+			futures[i] = executor.submit(new Callable<Object>() {
+				public Object call() {
+					try {
+						while (true) {
+							assertTrue(takenIDs.add(dispenser.nextID()));
+						}
+					}
+					catch(IllegalStateException e) {
+						return null;
+					}
+					catch(NoSuchElementException e) {
+						// the takers may get through the whole set before the dispenser is closed
+						return null;
+					}
+				}
+			});
+		}
+		while (takenIDs.size() < IDS_PER_THREAD) {
+			Thread.yield();
+		}
+		dispenser.close();
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		assertEquals(MAX_ID - takenIDs.size(), sharedIDs.getSize());
+	}
+
+	public void testInvalidChunkSize() {
+		try {
+			new ThreadLocalIDDispenser(sharedIDs, 0);
+			fail();
+		}
+		catch(IllegalArgumentException e) {
+		}
+	}
+
+	private static final int MIN_ID = 1;
+	private static final int MAX_ID = 10000;
+	private static final int CHUNK_SIZE = 10;
+	private static final int NUM_THREADS = 4;
+	private static final int IDS_PER_THREAD = 1000;
+	private IDSet sharedIDs;
+	private ThreadLocalIDDispenser dispenser;
+}
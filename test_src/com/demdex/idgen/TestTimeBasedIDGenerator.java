@@ -0,0 +1,182 @@
+package com.demdex.idgen;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the TimeBasedIDGenerator class.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestTimeBasedIDGenerator extends TestCase {
+
+	protected void setUp() throws IDGeneratorException {
+		provider = new MemoryIDProvider(TestingConstants.TEST_IDGEN_CATEGORY);
+		generator = new IDGenerator(provider);
+		generator.open();
+		timeBasedGenerator = new ManualClockGenerator(generator);
+		timeBasedGenerator.open();
+	}
+
+	protected void tearDown() throws IDGeneratorException {
+		timeBasedGenerator.close();
+	}
+
+	public void testIDLayout() throws IDGeneratorException {
+		timeBasedGenerator.advance(START_MILLIS);
+		long id = timeBasedGenerator.nextID();
+		assertEquals(0, timeBasedGenerator.getWorkerID());
+		assertEquals(START_MILLIS, id >>> (TimeBasedIDGenerator.WORKER_ID_BITS + TimeBasedIDGenerator.SEQUENCE_BITS));
+		assertEquals(0, id & TimeBasedIDGenerator.MAX_SEQUENCE);
+		assertEquals(id + 1, timeBasedGenerator.nextID());
+	}
+
+	public void testSequenceExhaustionWaitsForNextMillisecond() throws IDGeneratorException {
+		long previousID = -1;
+		for (long i = 0; i <= TimeBasedIDGenerator.MAX_SEQUENCE + 1; i++) {
+			long id = timeBasedGenerator.nextID();
+			assertTrue(id > previousID);
+			previousID = id;
+		}
+		assertEquals(1, timeBasedGenerator.getSleepCount());
+		assertEquals(0, previousID & TimeBasedIDGenerator.MAX_SEQUENCE);
+	}
+
+	public void testWorkersGetDistinctIDs() throws IDGeneratorException {
+		ManualClockGenerator otherGenerator = new ManualClockGenerator(generator);
+		otherGenerator.open();
+		try {
+			assertEquals(1, otherGenerator.getWorkerID());
+			Set<Long> ids = new HashSet<Long>();
+			for (int i = 0; i < NUM_IDS; i++) {
+				assertTrue(ids.add(timeBasedGenerator.nextID()));
+				assertTrue(ids.add(otherGenerator.nextID()));
+			}
+		}
+		finally {
+			otherGenerator.close();
+		}
+
+		// closing a generator releases its worker ID
+		otherGenerator = new ManualClockGenerator(generator);
+		otherGenerator.open();
+		assertEquals(1, otherGenerator.getWorkerID());
+		otherGenerator.close();
+	}
+
+	public void testSmallClockRegressionWaits() throws IDGeneratorException {
+		timeBasedGenerator.advance(START_MILLIS);
+		long id = timeBasedGenerator.nextID();
+		timeBasedGenerator.advance(-TimeBasedIDGenerator.MAX_CLOCK_REGRESSION_MILLIS);
+		assertTrue(timeBasedGenerator.nextID() > id);
+		assertEquals(1, timeBasedGenerator.getSleepCount());
+	}
+
+	public void testLargeClockRegressionFails() throws IDGeneratorException {
+		timeBasedGenerator.advance(START_MILLIS);
+		timeBasedGenerator.nextID();
+		timeBasedGenerator.advance(-TimeBasedIDGenerator.MAX_CLOCK_REGRESSION_MILLIS - 1);
+		try {
+			timeBasedGenerator.nextID();
+			fail();
+		}
+		catch (IDGeneratorException e) {
+		}
+	}
+
+	public void testDisconnectedProviderRefusesIDs() throws IDGeneratorException {
+		timeBasedGenerator.nextID();
+		provider.setConnected(false);
+		try {
+			timeBasedGenerator.nextID();
+			fail();
+		}
+		catch (IDGeneratorException e) {
+		}
+
+		// the worker node outlives the disconnection, so the worker ID is kept
+		provider.setConnected(true);
+		timeBasedGenerator.nextID();
+		assertEquals(0, timeBasedGenerator.getWorkerID());
+	}
+
+	public void testLostWorkerIDReleased() throws IDGeneratorException {
+		ManualClockGenerator otherGenerator = new ManualClockGenerator(generator);
+		otherGenerator.open();
+		IDCategory workerNode = new IDCategory(TestingConstants.TEST_IDGEN_CATEGORY.getName() + "/workers/worker-0000");
+		provider.expireEphemeralData(workerNode);
+		// another client takes over worker ID 0, so the generator has to lease a new one
+		ManualClockGenerator replacementGenerator = new ManualClockGenerator(generator);
+		replacementGenerator.open();
+		assertEquals(0, replacementGenerator.getWorkerID());
+
+		timeBasedGenerator.nextID();
+		assertEquals(2, timeBasedGenerator.getWorkerID());
+		otherGenerator.close();
+		replacementGenerator.close();
+	}
+
+	public void testNoProviderCallsAfterOpen() throws IDGeneratorException {
+		int getDataCount = provider.getGetDataCount();
+		int setDataCount = provider.getSetDataCount();
+		for (int i = 0; i < NUM_IDS; i++) {
+			timeBasedGenerator.nextID();
+		}
+		assertEquals(getDataCount, provider.getGetDataCount());
+		assertEquals(setDataCount, provider.getSetDataCount());
+	}
+
+
+	private static class ManualClockGenerator extends TimeBasedIDGenerator {
+
+		public ManualClockGenerator(IDGenerator idGenerator) {
+			super(idGenerator, TestingConstants.TEST_IDGEN_CATEGORY, 0);
+		}
+
+		public void advance(long millis) {
+			now += millis;
+		}
+
+		public int getSleepCount() {
+			return sleepCount;
+		}
+
+		long currentTimeMillis() {
+			return now;
+		}
+
+		void sleep(long millis) {
+			sleepCount++;
+			now += millis;
+		}
+
+		private long now = 0;
+		private int sleepCount = 0;
+	}
+
+	private static final long START_MILLIS = 123456789;
+	private static final int NUM_IDS = 10000;
+	private MemoryIDProvider provider;
+	private IDGenerator generator;
+	private ManualClockGenerator timeBasedGenerator;
+}
@@ -0,0 +1,130 @@
+package com.demdex.idgen;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the ZooKeeperIDProvider class.  Requests go to a ZooKeeper handle that holds a
+ * single node in memory and loses the connection on demand, so no server is needed.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestZooKeeperIDProvider extends TestCase {
+
+	protected void setUp() throws IOException {
+		zooKeeper = new FlakyZooKeeper();
+		provider = new ZooKeeperIDProvider(HOST_LIST, SESSION_TIMEOUT);
+		provider.setConnectTimeoutMillis(0);
+		provider.setZookeeper(zooKeeper);
+	}
+
+	protected void tearDown() throws InterruptedException {
+		zooKeeper.close();
+	}
+
+	public void testLostWriteRetriedIfNodeUnchanged() throws IDGeneratorException {
+		zooKeeper.loseNextWrite = true;
+		provider.setData(TestingConstants.TEST_IDGEN_CATEGORY, new RawIDSetData(0, DATA));
+		assertEquals(1, zooKeeper.version);
+		assertTrue(Arrays.equals(DATA, zooKeeper.data));
+	}
+
+	public void testIdenticalWriteByOtherClientIsConflict() throws IDGeneratorException {
+		// another client that read the same version writes the same bytes, and then our connection is lost
+		zooKeeper.concurrentWrite = DATA;
+		zooKeeper.loseNextWrite = true;
+		try {
+			provider.setData(TestingConstants.TEST_IDGEN_CATEGORY, new RawIDSetData(0, DATA));
+			fail();
+		}
+		catch (IDProviderVersionException e) {
+			assertEquals(0, e.getExpectedVersion());
+			assertEquals(1, e.getActualVersion());
+		}
+	}
+
+
+	/**
+	 * A ZooKeeper handle (whose session never connects) that holds the data of a single node.
+	 */
+	private static class FlakyZooKeeper extends ZooKeeper {
+
+		public FlakyZooKeeper() throws IOException {
+			super(HOST_LIST, SESSION_TIMEOUT, new Watcher() {
+				public void process(WatchedEvent event) {
+				}
+			});
+		}
+
+		public synchronized Stat setData(String path, byte[] newData, int expectedVersion)
+			throws KeeperException, InterruptedException
+		{
+			if (loseNextWrite) {
+				// the write itself never arrives, but another client's may
+				loseNextWrite = false;
+				if (concurrentWrite != null) {
+					data = concurrentWrite;
+					version++;
+					concurrentWrite = null;
+				}
+				throw new KeeperException.ConnectionLossException();
+			}
+			if (expectedVersion != version) {
+				throw new KeeperException.BadVersionException(path);
+			}
+			data = newData;
+			version++;
+			return getStat();
+		}
+
+		public synchronized byte[] getData(String path, boolean watch, Stat stat) {
+			if (stat != null) {
+				stat.setVersion(version);
+			}
+			return data;
+		}
+
+		private Stat getStat() {
+			Stat stat = new Stat();
+			stat.setVersion(version);
+			return stat;
+		}
+
+		private byte[] data = new byte[0];
+		private int version = 0;
+		private byte[] concurrentWrite = null;
+		private boolean loseNextWrite = false;
+	}
+
+	private static final byte[] DATA = {1, 2, 3};
+	private static final String HOST_LIST = "127.0.0.1:1";
+	private static final int SESSION_TIMEOUT = 10000;
+	private FlakyZooKeeper zooKeeper;
+	private ZooKeeperIDProvider provider;
+}
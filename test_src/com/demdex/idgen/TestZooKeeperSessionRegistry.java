@@ -0,0 +1,115 @@
+package com.demdex.idgen;
+
+import org.apache.zookeeper.ZooKeeper;
+
+import junit.framework.TestCase;
+
+/**
+ * Junit tests for the functionality in the ZooKeeperSessionRegistry class.  Sessions are opened against an unused port
+ * (without waiting for them to connect), since sharing them doesn't depend on ever connecting.
+ *
+ * ======
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+public class TestZooKeeperSessionRegistry extends TestCase {
+
+	protected void setUp() {
+		registry = new ZooKeeperSessionRegistry();
+	}
+
+	public void testProvidersShareSession() throws IDGeneratorException {
+		ZooKeeperIDProvider provider = newProvider(SESSION_TIMEOUT);
+		ZooKeeperIDProvider otherProvider = newProvider(SESSION_TIMEOUT);
+		provider.open();
+		otherProvider.open();
+		assertSame(provider.getZookeeper(), otherProvider.getZookeeper());
+		assertEquals(1, registry.getSessionCount());
+
+		provider.close();
+		assertEquals(1, registry.getSessionCount());
+		otherProvider.close();
+		assertEquals(0, registry.getSessionCount());
+	}
+
+	public void testSessionsKeyedByTimeout() throws IDGeneratorException {
+		ZooKeeperIDProvider provider = newProvider(SESSION_TIMEOUT);
+		ZooKeeperIDProvider otherProvider = newProvider(2 * SESSION_TIMEOUT);
+		provider.open();
+		otherProvider.open();
+		assertNotSame(provider.getZookeeper(), otherProvider.getZookeeper());
+		assertEquals(2, registry.getSessionCount());
+		provider.close();
+		otherProvider.close();
+		assertEquals(0, registry.getSessionCount());
+	}
+
+	public void testReopenAfterLastRelease() throws IDGeneratorException {
+		ZooKeeperIDProvider provider = newProvider(SESSION_TIMEOUT);
+		provider.open();
+		Object firstSession = provider.getZookeeper();
+		provider.close();
+		provider.open();
+		assertNotSame(firstSession, provider.getZookeeper());
+		provider.close();
+	}
+
+	public void testDeadSessionReplaced() throws Exception {
+		ZooKeeperIDProvider provider = newProvider(SESSION_TIMEOUT);
+		provider.open();
+		ZooKeeper deadSession = provider.getZookeeper();
+		deadSession.close();
+
+		ZooKeeperIDProvider otherProvider = newProvider(SESSION_TIMEOUT);
+		otherProvider.open();
+		assertNotSame(deadSession, otherProvider.getZookeeper());
+		assertEquals(1, registry.getSessionCount());
+
+		// releasing the dead session leaves its replacement registered
+		provider.close();
+		assertEquals(1, registry.getSessionCount());
+		otherProvider.close();
+		assertEquals(0, registry.getSessionCount());
+	}
+
+	public void testOpenTimesOutWaitingToConnect() {
+		ZooKeeperIDProvider provider = newProvider(SESSION_TIMEOUT);
+		provider.setConnectTimeoutMillis(CONNECT_TIMEOUT_MILLIS);
+		try {
+			provider.open();
+			fail();
+		}
+		catch (IDGeneratorException e) {
+		}
+		assertFalse(provider.isConnected());
+		assertEquals(0, registry.getSessionCount());
+	}
+
+
+	private ZooKeeperIDProvider newProvider(int sessionTimeout) {
+		ZooKeeperIDProvider provider = new ZooKeeperIDProvider(HOST_LIST, sessionTimeout, registry);
+		provider.setConnectTimeoutMillis(0);
+		return provider;
+	}
+
+	private static final long CONNECT_TIMEOUT_MILLIS = 100;
+	private static final String HOST_LIST = "127.0.0.1:1";
+	private static final int SESSION_TIMEOUT = 10000;
+	private ZooKeeperSessionRegistry registry;
+}